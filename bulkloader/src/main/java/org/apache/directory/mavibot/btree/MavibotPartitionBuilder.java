@@ -71,6 +71,7 @@ import org.apache.directory.mavibot.btree.serializer.LongSerializer;
 import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 import org.apache.directory.mavibot.btree.util.Strings;
 import org.apache.directory.server.config.ConfigPartitionReader;
+import org.apache.directory.server.config.ConfigSchemaExtension;
 import org.apache.directory.server.config.LdifConfigExtractor;
 import org.apache.directory.server.config.beans.ConfigBean;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
@@ -184,6 +185,8 @@ public class MavibotPartitionBuilder
 
         String configFile = LdifConfigExtractor.extractSingleFileConfig( configDir, "config.ldif", true );
 
+        ConfigSchemaExtension.register( schemaManager );
+
         SingleFileLdifPartition configPartition = new SingleFileLdifPartition( schemaManager, dnFactory );
         configPartition.setId( "config" );
         configPartition.setPartitionPath( new File( configFile ).toURI() );
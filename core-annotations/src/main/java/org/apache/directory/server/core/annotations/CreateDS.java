@@ -57,6 +57,14 @@ public @interface CreateDS
     boolean enableChangeLog() default true;
 
 
+    /**
+     * @return flag to compute the subentry operational attributes on read, default is false.
+     * The computed attributes are only returned : a search filter on accessControlSubentries,
+     * collectiveAttributeSubentries or any other subentry reference attribute selects nothing.
+     */
+    boolean computeSubentryMembership() default false;
+
+
     /** @return The list of partitions to create */
     CreatePartition[] partitions() default
         {};
@@ -101,6 +101,7 @@ public final class DSAnnotationProcessor
         service.setAccessControlEnabled( dsBuilder.enableAccessControl() );
         service.setAllowAnonymousAccess( dsBuilder.allowAnonAccess() );
         service.getChangeLog().setEnabled( dsBuilder.enableChangeLog() );
+        service.setSubentryMembershipComputed( dsBuilder.computeSubentryMembership() );
 
         dsf.init( dsBuilder.name() );
 
@@ -349,6 +349,16 @@ public interface DirectoryService extends ServerEntryFactory
     List<String> getInterceptors( OperationEnum operation );
 
 
+    /**
+     * Returns the compiled chain of interceptors for an operation. The returned
+     * array is shared and must not be modified.
+     *
+     * @param operation The operation that the interceptors must implement
+     * @return the interceptors to call for this operation, in order
+     */
+    Interceptor[] getInterceptorChain( OperationEnum operation );
+
+
     /**
      * Sets the interceptors in the server.
      *
@@ -469,6 +479,28 @@ public interface DirectoryService extends ServerEntryFactory
     void setDenormalizeOpAttrsEnabled( boolean denormalizeOpAttrsEnabled );
 
 
+    /**
+     * @return true if the subentry operational attributes are computed when the entries are
+     * read, instead of being stored in the entries selected by the subentries
+     */
+    boolean isSubentryMembershipComputed();
+
+
+    /**
+     * Sets whether the subentry operational attributes are computed when the entries are read,
+     * instead of being stored in the entries selected by the subentries. Adding, modifying or
+     * removing a subentry then doesn't modify the selected entries.
+     * <br>
+     * The computed attributes are added to the returned entries, but can't be searched : a
+     * filter such as (accessControlSubentries=...) is evaluated against the stored entries,
+     * and matches none of them. The same applies, when the membership is stored, to the
+     * references to the subentries which are still being updated in the background.
+     *
+     * @param subentryMembershipComputed The flag value
+     */
+    void setSubentryMembershipComputed( boolean subentryMembershipComputed );
+
+
     /**
      * Gets the ChangeLog service for this DirectoryService used for tracking
      * changes (revisions) to the server and using them to revert the server
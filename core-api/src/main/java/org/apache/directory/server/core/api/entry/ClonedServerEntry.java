@@ -75,6 +75,20 @@ public class ClonedServerEntry implements Entry
     }
 
 
+    /**
+     * Creates a new instance of ClonedServerEntry, using an already built copy
+     * of the original entry.
+     *
+     * @param originalEntry The original entry
+     * @param clonedEntry The copy of the original entry to modify
+     */
+    public ClonedServerEntry( Entry originalEntry, Entry clonedEntry )
+    {
+        this.originalEntry = originalEntry;
+        this.clonedEntry = clonedEntry;
+    }
+
+
     /**
      * @return the originalEntry
      */
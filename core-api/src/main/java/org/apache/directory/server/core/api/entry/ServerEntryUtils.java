@@ -749,6 +749,77 @@ public final class ServerEntryUtils
     }
 
 
+    /**
+     * Tells if an attribute of an entry is kept by {@link #filterContents(SchemaManager, FilteringOperationContext, Entry)}.
+     * This allows a caller to skip the attributes that won't be returned before copying
+     * them. The values are not considered, so the typesOnly flag is ignored.
+     * 
+     * @param schemaManager The SchemaManager instance
+     * @param operationContext The SearchingOperationContext
+     * @param attributeType The attribute to check
+     * @return true if the attribute is kept in the returned entry
+     */
+    public static boolean isReturned( SchemaManager schemaManager, FilteringOperationContext operationContext,
+        AttributeType attributeType )
+    {
+        if ( operationContext.isAllOperationalAttributes() && operationContext.isAllUserAttributes() )
+        {
+            return true;
+        }
+
+        AttributeType entryDnType = schemaManager.getAttributeType( SchemaConstants.ENTRY_DN_AT_OID );
+
+        // Bypass the ref attribute, unless the ManageDSAIT control is present
+        if ( operationContext.isReferralThrown() && !attributeType.equals( entryDnType )
+            && attributeType.equals( schemaManager.getAttributeType( SchemaConstants.REF_AT_OID ) ) )
+        {
+            return true;
+        }
+
+        if ( operationContext.isNoAttributes() )
+        {
+            return false;
+        }
+
+        // for special handling of entryDN attribute, see DIRSERVER-1902
+        if ( attributeType.equals( entryDnType ) )
+        {
+            return operationContext.contains( schemaManager, attributeType );
+        }
+
+        if ( operationContext.isAllUserAttributes() )
+        {
+            return attributeType.isUser() || operationContext.contains( schemaManager, attributeType );
+        }
+
+        if ( operationContext.isAllOperationalAttributes() )
+        {
+            return !attributeType.isUser() || operationContext.contains( schemaManager, attributeType );
+        }
+
+        if ( operationContext.getReturningAttributes() == null )
+        {
+            return true;
+        }
+
+        if ( !operationContext.contains( schemaManager, attributeType ) )
+        {
+            return false;
+        }
+
+        for ( AttributeTypeOptions attrOptions : operationContext.getReturningAttributes() )
+        {
+            if ( attrOptions.getAttributeType().equals( attributeType )
+                || attrOptions.getAttributeType().isAncestorOf( attributeType ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Filters an entry accordingly to the requested Attribute list.
      * 
@@ -789,7 +860,7 @@ public final class ServerEntryUtils
                     continue;
                 }
 
-                entry.remove( entry.get( attributeType ) );
+                entry.removeAttributes( attributeType );
             }
 
             entry.removeAttributes( entryDnType );
@@ -23,7 +23,9 @@ package org.apache.directory.server.core.api.filtering;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
@@ -31,9 +33,12 @@ import org.apache.directory.api.ldap.model.cursor.ClosureMonitor;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.OperationAbandonedException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.entry.ServerEntryUtils;
@@ -73,6 +78,12 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
     /** the list of filters to be applied */
     private final List<EntryFilter> filters;
 
+    /** The filters to apply, compiled from the list of filters on the first fetch */
+    private EntryFilter[] plan;
+
+    /** The attributes to copy from the fetched entries, computed once per AttributeType for this search */
+    private final Map<AttributeType, Boolean> returnedAttributes = new HashMap<>();
+
     /** the first accepted search result that is pre fetched */
     private Entry prefetched;
 
@@ -179,6 +190,8 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
      */
     public boolean addEntryFilter( EntryFilter filter )
     {
+        plan = null;
+
         return filters.add( filter );
     }
 
@@ -188,6 +201,8 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
      */
     public boolean removeEntryFilter( EntryFilter filter )
     {
+        plan = null;
+
         return filters.remove( filter );
     }
 
@@ -397,9 +412,9 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
             throw new OperationAbandonedException();
         }
 
-        Entry tempResult = null;
+        EntryFilter[] entryFilters = getPlan();
 
-        outer: while ( wrapped.next() )
+        while ( wrapped.next() )
         {
             Entry tempEntry = wrapped.get();
 
@@ -409,59 +424,20 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
                 continue;
             }
 
-            if ( tempEntry instanceof ClonedServerEntry )
-            {
-                tempResult = tempEntry;
-            }
-            else
-            {
-                tempResult = new ClonedServerEntry( tempEntry );
-            }
-
-            /*
-             * O P T I M I Z A T I O N
-             * -----------------------
-             * 
-             * Don't want to waste cycles on enabling a loop for processing
-             * filters if we have zero or one filter.
-             */
+            Entry tempResult = copy( tempEntry );
 
-            if ( filters.isEmpty() )
+            if ( accept( entryFilters, tempResult ) )
             {
-                prefetched = tempResult;
-                ServerEntryUtils.filterContents(
-                    schemaManager,
-                    operationContext, prefetched );
-
-                return true;
-            }
+                // With more than one filter, the content is filtered by the schema filter
+                if ( entryFilters.length <= 1 )
+                {
+                    ServerEntryUtils.filterContents( schemaManager, operationContext, tempResult );
+                }
 
-            if ( ( filters.size() == 1 ) && filters.get( 0 ).accept( operationContext, tempResult ) )
-            {
                 prefetched = tempResult;
-                ServerEntryUtils.filterContents(
-                    schemaManager,
-                    operationContext, prefetched );
 
                 return true;
             }
-
-            /* E N D   O P T I M I Z A T I O N */
-            for ( EntryFilter filter : filters )
-            {
-                // if a filter rejects then short and continue with outer loop
-                if ( !filter.accept( operationContext, tempResult ) )
-                {
-                    continue outer;
-                }
-            }
-
-            /*
-             * Here the entry has been accepted by all filters.
-             */
-            prefetched = tempResult;
-
-            return true;
         }
 
         prefetched = null;
@@ -491,9 +467,9 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
             throw new OperationAbandonedException();
         }
 
-        Entry tempResult = null;
+        EntryFilter[] entryFilters = getPlan();
 
-        outer: while ( wrapped.previous() )
+        while ( wrapped.previous() )
         {
             Entry entry = wrapped.get();
 
@@ -502,61 +478,94 @@ public class EntryFilteringCursorImpl extends AbstractCursor<Entry> implements E
                 continue;
             }
 
-            tempResult = new ClonedServerEntry/*Search*/( entry );
-
-            /*
-             * O P T I M I Z A T I O N
-             * -----------------------
-             * 
-             * Don't want to waste cycles on enabling a loop for processing
-             * filters if we have zero or one filter.
-             */
+            Entry tempResult = copy( entry );
 
-            if ( filters.isEmpty() )
+            if ( accept( entryFilters, tempResult ) )
             {
                 prefetched = tempResult;
-                ServerEntryUtils.filterContents(
-                    schemaManager,
-                    operationContext, prefetched );
+                ServerEntryUtils.filterContents( schemaManager, operationContext, prefetched );
 
                 return true;
             }
+        }
 
-            if ( ( filters.size() == 1 ) && filters.get( 0 ).accept( operationContext, tempResult ) )
-            {
-                prefetched = tempResult;
-                ServerEntryUtils.filterContents(
-                    schemaManager,
-                    operationContext, prefetched );
+        prefetched = null;
 
-                return true;
-            }
+        return false;
+    }
 
-            /* E N D   O P T I M I Z A T I O N */
 
-            for ( EntryFilter filter : filters )
+    /**
+     * Compiles the filters to apply on each entry. This is done once, when the first
+     * entry is fetched, as the interceptors add their filters after the cursor creation.
+     */
+    private EntryFilter[] getPlan()
+    {
+        if ( plan == null )
+        {
+            plan = filters.toArray( new EntryFilter[0] );
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Applies all the filters on an entry, in one pass.
+     */
+    private boolean accept( EntryFilter[] entryFilters, Entry entry ) throws LdapException
+    {
+        for ( EntryFilter filter : entryFilters )
+        {
+            // if a filter rejects then short and continue with the next entry
+            if ( !filter.accept( operationContext, entry ) )
             {
-                // if a filter rejects then short and continue with outer loop
-                if ( !filter.accept( operationContext, tempResult ) )
-                {
-                    continue outer;
-                }
+                return false;
             }
+        }
+
+        return true;
+    }
 
-            /*
-             * Here the entry has been accepted by all filters.
-             */
-            prefetched = tempResult;
-            ServerEntryUtils.filterContents(
-                schemaManager,
-                operationContext, prefetched );
 
-            return true;
+    /**
+     * Creates the copy of a fetched entry that will be modified by the filters. Only the attributes
+     * that will be returned are copied, the filters needing the other attributes read them from
+     * the original entry.
+     */
+    private Entry copy( Entry entry ) throws LdapException
+    {
+        if ( entry instanceof ClonedServerEntry )
+        {
+            return entry;
         }
 
-        prefetched = null;
+        if ( ( schemaManager == null ) || !entry.isSchemaAware()
+            || ( operationContext.isAllOperationalAttributes() && operationContext.isAllUserAttributes() ) )
+        {
+            return new ClonedServerEntry( entry );
+        }
 
-        return false;
+        Entry copy = new DefaultEntry( schemaManager, entry.getDn() );
+
+        for ( Attribute attribute : entry )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+            Boolean returned = returnedAttributes.get( attributeType );
+
+            if ( returned == null )
+            {
+                returned = ServerEntryUtils.isReturned( schemaManager, operationContext, attributeType );
+                returnedAttributes.put( attributeType, returned );
+            }
+
+            if ( returned )
+            {
+                copy.put( attribute.clone() );
+            }
+        }
+
+        return new ClonedServerEntry( entry, copy );
     }
 
 
@@ -305,14 +305,14 @@ public abstract class BaseInterceptor implements Interceptor
      */
     protected Interceptor getNextInterceptor( OperationContext operationContext )
     {
-        String currentInterceptor = operationContext.getNextInterceptor();
+        Interceptor interceptor = operationContext.getNextInterceptor( directoryService );
 
-        if ( currentInterceptor.equals( "FINAL" ) )
+        if ( interceptor == null )
         {
             return finalInterceptor;
         }
 
-        return directoryService.getInterceptor( currentInterceptor );
+        return interceptor;
     }
 
 
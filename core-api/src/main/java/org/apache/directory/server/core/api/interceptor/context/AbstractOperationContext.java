@@ -30,7 +30,9 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 
@@ -63,9 +65,12 @@ public abstract class AbstractOperationContext implements OperationContext
     /** the Interceptors bypassed by this operation */
     protected Collection<String> byPassed;
 
-    /** The interceptors to call for this operation */
+    /** The interceptors to call for this operation, when given by names */
     protected List<String> interceptors;
 
+    /** The compiled chain of interceptors to call for this operation */
+    protected Interceptor[] interceptorChain;
+
     /** The current interceptor position */
     protected int currentInterceptor;
 
@@ -315,6 +320,18 @@ public abstract class AbstractOperationContext implements OperationContext
     public final void setInterceptors( List<String> interceptors )
     {
         this.interceptors = interceptors;
+        interceptorChain = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void setInterceptorChain( Interceptor[] interceptorChain )
+    {
+        this.interceptorChain = interceptorChain;
+        interceptors = null;
     }
 
 
@@ -324,6 +341,16 @@ public abstract class AbstractOperationContext implements OperationContext
     @Override
     public final String getNextInterceptor()
     {
+        if ( interceptorChain != null )
+        {
+            if ( currentInterceptor == interceptorChain.length )
+            {
+                return "FINAL";
+            }
+
+            return interceptorChain[currentInterceptor++].getName();
+        }
+
         if ( currentInterceptor == interceptors.size() )
         {
             return "FINAL";
@@ -336,6 +363,34 @@ public abstract class AbstractOperationContext implements OperationContext
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Interceptor getNextInterceptor( DirectoryService directoryService )
+    {
+        if ( interceptorChain == null )
+        {
+            // Resolve the names once, the position is kept
+            Interceptor[] chain = new Interceptor[interceptors.size()];
+
+            for ( int i = 0; i < chain.length; i++ )
+            {
+                chain[i] = directoryService.getInterceptor( interceptors.get( i ) );
+            }
+
+            interceptorChain = chain;
+        }
+
+        if ( currentInterceptor == interceptorChain.length )
+        {
+            return null;
+        }
+
+        return interceptorChain[currentInterceptor++];
+    }
+
+
     /**
      * @return The number of the current interceptor in the list
      */
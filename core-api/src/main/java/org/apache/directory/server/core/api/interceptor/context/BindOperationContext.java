@@ -79,7 +79,7 @@ public class BindOperationContext extends AbstractOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.BIND ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.BIND ) );
         }
     }
 
@@ -44,7 +44,7 @@ public class GetRootDseOperationContext extends AbstractOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.GET_ROOT_DSE ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.GET_ROOT_DSE ) );
         }
     }
 
@@ -61,7 +61,7 @@ public class GetRootDseOperationContext extends AbstractOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.GET_ROOT_DSE ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.GET_ROOT_DSE ) );
         }
     }
 
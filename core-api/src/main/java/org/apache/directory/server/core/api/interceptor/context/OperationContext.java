@@ -27,8 +27,10 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 
@@ -233,6 +235,26 @@ public interface OperationContext
     void setInterceptors( List<String> interceptors );
 
 
+    /**
+     * Sets the compiled chain of interceptors to go through for an operation.
+     * The array is shared and must not be modified.
+     * 
+     * @param interceptorChain The interceptors to call, in order
+     */
+    void setInterceptorChain( Interceptor[] interceptorChain );
+
+
+    /**
+     * Gets the next interceptor in the chain, and move to the following one. If the
+     * chain has been given as a list of names, it is resolved once using the
+     * DirectoryService.
+     * 
+     * @param directoryService The DirectoryService used to resolve the interceptors names
+     * @return The next interceptor, or null if the end of the chain has been reached
+     */
+    Interceptor getNextInterceptor( DirectoryService directoryService );
+
+
     /**
      * Gets the session associated with this operation.
      *
@@ -30,6 +30,7 @@ import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.StringConstants;
 import org.apache.directory.server.core.api.CoreSession;
@@ -66,6 +67,12 @@ public class SearchOperationContext extends FilteringOperationContext
     /** flag to indicate if this search is done for replication */
     private boolean syncreplSearch;
     
+    /** The validated server side sort key, if the entries have to be sorted */
+    private SortKey sortKey;
+
+    /** flag set by the partition when it has returned the entries in the sort key order */
+    private boolean sorted;
+
     /**
      * Creates a new instance of SearchOperationContext.
      * 
@@ -77,7 +84,7 @@ public class SearchOperationContext extends FilteringOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.SEARCH ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.SEARCH ) );
         }
     }
 
@@ -94,7 +101,7 @@ public class SearchOperationContext extends FilteringOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.SEARCH ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.SEARCH ) );
         }
 
         this.filter = searchRequest.getFilter();
@@ -130,7 +137,7 @@ public class SearchOperationContext extends FilteringOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.SEARCH ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.SEARCH ) );
         }
     }
 
@@ -153,7 +160,7 @@ public class SearchOperationContext extends FilteringOperationContext
 
         if ( session != null )
         {
-            setInterceptors( session.getDirectoryService().getInterceptors( OperationEnum.SEARCH ) );
+            setInterceptorChain( session.getDirectoryService().getInterceptorChain( OperationEnum.SEARCH ) );
         }
     }
 
@@ -221,6 +228,48 @@ public class SearchOperationContext extends FilteringOperationContext
     }
 
 
+    /**
+     * @return The server side sort key to apply on the entries, or null if no sort is requested
+     */
+    public SortKey getSortKey()
+    {
+        return sortKey;
+    }
+
+
+    /**
+     * Sets the sort key the entries should be returned in. This key must have been
+     * validated against the schema before being set.
+     * 
+     * @param sortKey The sort key
+     */
+    public void setSortKey( SortKey sortKey )
+    {
+        this.sortKey = sortKey;
+    }
+
+
+    /**
+     * @return true if the partition has already returned the entries in the sort key order
+     */
+    public boolean isSorted()
+    {
+        return sorted;
+    }
+
+
+    /**
+     * Sets the flag indicating that the entries are returned in the sort key order, so
+     * that they don't have to be sorted again
+     * 
+     * @param sorted The flag indicating the entries are already sorted
+     */
+    public void setSorted( boolean sorted )
+    {
+        this.sorted = sorted;
+    }
+
+
     /**
      * @return The alias dereferencing mode
      */
@@ -20,30 +20,39 @@
 package org.apache.directory.server.core.api.subtree;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.subtree.Subentry;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 
 /**
  * A cache for subtree specifications. It associates a Subentry with a Dn,
  * representing its position in the DIT.<br>
- * This cache has a size limit set to 1000 at the moment. We should add a configuration
- * parameter to manage its size.
+ * The subentries are also indexed in a tree of their administrative points, so that the
+ * subentries which may select an entry are found by walking down the entry Dn. The cache
+ * holds all the subentries of the server : it is not bounded, unless a maximum size is given.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class SubentryCache implements Iterable<Dn>
 {
-    /** The default cache size limit */
-    private static final int DEFAULT_CACHE_MAX_SIZE = 1000;
-
     /** The cache size limit */
-    private int cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+    private int cacheMaxSize = Integer.MAX_VALUE;
 
     /** The current cache size */
     private AtomicInteger cacheSize;
@@ -51,9 +60,77 @@ public class SubentryCache implements Iterable<Dn>
     /** The Subentry cache */
     private final Map<Dn, Subentry> cache;
 
+    /** The subentries which references are still being updated in the selected entries */
+    private final Set<Dn> pendingUpdates = ConcurrentHashMap.newKeySet();
+
+    /** The root of the tree of the administrative points holding some subentries */
+    private final SubentryNode root = new SubentryNode( null, null );
+
+    /** Incremented each time a subentry is added or removed */
+    private final AtomicLong version = new AtomicLong();
+
+    /** The maximum number of computed memberships kept in memory */
+    private static final int MEMBERSHIP_CACHE_SIZE = 10000;
+
+    /** The references to the subentries computed for the entries, per entry normalized name */
+    private final Cache<String, Membership> memberships = Caffeine.newBuilder()
+        .maximumSize( MEMBERSHIP_CACHE_SIZE ).build();
+
 
     /**
-     * Creates a new instance of SubentryCache with a default maximum size.
+     * A node in the tree of the administrative points, its children being indexed by their
+     * normalized Rdn. The tree is read without locking, and modified while holding the root.
+     */
+    private static final class SubentryNode
+    {
+        /** The parent node, null for the root */
+        private final SubentryNode parent;
+
+        /** The normalized Rdn of this node in its parent */
+        private final String rdn;
+
+        /** The children, per normalized Rdn */
+        private final Map<String, SubentryNode> children = new ConcurrentHashMap<>();
+
+        /** The subentries of the administrative point, replaced on each change */
+        private volatile Set<Dn> subentries = Collections.emptySet();
+
+
+        SubentryNode( SubentryNode parent, String rdn )
+        {
+            this.parent = parent;
+            this.rdn = rdn;
+        }
+    }
+
+
+    /**
+     * The references to the subentries computed for an entry, valid as long as
+     * neither the subentries nor the entry have changed.
+     */
+    private static final class Membership
+    {
+        /** The version of the cache the references have been computed with */
+        private final long version;
+
+        /** The entryCSN of the entry */
+        private final String entryCsn;
+
+        /** The subentry operational attributes */
+        private final Entry references;
+
+
+        Membership( long version, String entryCsn, Entry references )
+        {
+            this.version = version;
+            this.entryCsn = entryCsn;
+            this.references = references;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of SubentryCache, with no maximum size.
      */
     public SubentryCache()
     {
@@ -101,6 +178,8 @@ public class SubentryCache implements Iterable<Dn>
         if ( oldSubentry != null )
         {
             cacheSize.decrementAndGet();
+            unindex( dn );
+            version.incrementAndGet();
         }
 
         return oldSubentry;
@@ -116,7 +195,7 @@ public class SubentryCache implements Iterable<Dn>
      */
     public Subentry addSubentry( Dn dn, Subentry subentry )
     {
-        if ( cacheSize.get() > cacheMaxSize )
+        if ( !cache.containsKey( dn ) && ( cacheSize.get() >= cacheMaxSize ) )
         {
             throw new IllegalStateException( "Cache is full: size=" + cacheSize.get() + ", max=" + cacheMaxSize );
         }
@@ -126,12 +205,152 @@ public class SubentryCache implements Iterable<Dn>
         if ( oldSubentry == null )
         {
             cacheSize.getAndIncrement();
+            index( dn );
         }
 
+        version.incrementAndGet();
+
         return oldSubentry;
     }
 
 
+    /**
+     * Adds a subentry in the tree of the administrative points, under its parent
+     */
+    private void index( Dn dn )
+    {
+        List<Rdn> rdns = dn.getRdns();
+
+        synchronized ( root )
+        {
+            SubentryNode node = root;
+
+            // The subentry Rdn is not part of the administrative point Dn
+            for ( int i = rdns.size() - 1; i > 0; i-- )
+            {
+                SubentryNode parent = node;
+                node = parent.children.computeIfAbsent( rdns.get( i ).getNormName(),
+                    rdn -> new SubentryNode( parent, rdn ) );
+            }
+
+            Set<Dn> subentries = new HashSet<>( node.subentries );
+            subentries.add( dn );
+            node.subentries = Collections.unmodifiableSet( subentries );
+        }
+    }
+
+
+    /**
+     * Removes a subentry from the tree of the administrative points, and the nodes
+     * which are not needed anymore
+     */
+    private void unindex( Dn dn )
+    {
+        List<Rdn> rdns = dn.getRdns();
+
+        synchronized ( root )
+        {
+            SubentryNode node = root;
+
+            for ( int i = rdns.size() - 1; ( i > 0 ) && ( node != null ); i-- )
+            {
+                node = node.children.get( rdns.get( i ).getNormName() );
+            }
+
+            if ( node == null )
+            {
+                return;
+            }
+
+            Set<Dn> subentries = new HashSet<>( node.subentries );
+            subentries.remove( dn );
+            node.subentries = subentries.isEmpty() ? Collections.<Dn>emptySet()
+                : Collections.unmodifiableSet( subentries );
+
+            while ( ( node != root ) && node.subentries.isEmpty() && node.children.isEmpty() )
+            {
+                node.parent.children.remove( node.rdn );
+                node = node.parent;
+            }
+        }
+    }
+
+
+    /**
+     * Gets the subentries which may select an entry, ie the subentries of the administrative
+     * points the entry is below or is. The tree of the administrative points is walked down
+     * along the entry Dn, which is done in O(depth of the entry).
+     *
+     * @param dn The normalized entry Dn
+     * @return The Dn of the subentries which may select the entry
+     */
+    public List<Dn> getSubentries( Dn dn )
+    {
+        List<Dn> subentries = new ArrayList<>();
+        List<Rdn> rdns = dn.getRdns();
+        SubentryNode node = root;
+
+        for ( int i = rdns.size() - 1; i >= 0; i-- )
+        {
+            node = node.children.get( rdns.get( i ).getNormName() );
+
+            if ( node == null )
+            {
+                break;
+            }
+
+            subentries.addAll( node.subentries );
+        }
+
+        return subentries;
+    }
+
+
+    /**
+     * @return The version of the cache, incremented each time a subentry is added or removed
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+
+    /**
+     * Gets the references to the subentries computed for an entry, if the subentries haven't
+     * changed since.
+     *
+     * @param dn The entry Dn
+     * @param entryCsn The entryCSN of the entry
+     * @return The subentry operational attributes, or null if they have to be computed
+     */
+    public Entry getMembership( Dn dn, String entryCsn )
+    {
+        Membership membership = memberships.getIfPresent( dn.getNormName() );
+
+        if ( ( membership == null ) || ( membership.version != version.get() )
+            || !membership.entryCsn.equals( entryCsn ) )
+        {
+            return null;
+        }
+
+        return membership.references;
+    }
+
+
+    /**
+     * Stores the references to the subentries computed for an entry.
+     *
+     * @param dn The entry Dn
+     * @param entryCsn The entryCSN of the entry
+     * @param computedVersion The version of the cache read before computing the references
+     * @param references The subentry operational attributes
+     */
+    public void putMembership( Dn dn, String entryCsn, long computedVersion, Entry references )
+    {
+        memberships.put( dn.getNormName(), new Membership( computedVersion, entryCsn, references ) );
+    }
+
+
     /**
      * Tells if there is a Subentry associated with a Dn
      * @param dn The Dn
@@ -159,4 +378,45 @@ public class SubentryCache implements Iterable<Dn>
     {
         return cacheSize.get();
     }
+
+
+    /**
+     * Records that the references to a subentry are being updated in the entries
+     * it selects. Until then, the references stored in those entries can't be trusted.
+     *
+     * @param dn The Subentry Dn
+     */
+    public void addPendingUpdate( Dn dn )
+    {
+        pendingUpdates.add( dn );
+    }
+
+
+    /**
+     * Records that the references to a subentry are up to date in the entries it selects.
+     *
+     * @param dn The Subentry Dn
+     */
+    public void removePendingUpdate( Dn dn )
+    {
+        pendingUpdates.remove( dn );
+    }
+
+
+    /**
+     * @return true if the references to some subentries are still being updated
+     */
+    public boolean hasPendingUpdates()
+    {
+        return !pendingUpdates.isEmpty();
+    }
+
+
+    /**
+     * @return The DNs of the subentries which references are still being updated
+     */
+    public Set<Dn> getPendingUpdates()
+    {
+        return Collections.unmodifiableSet( pendingUpdates );
+    }
 }
@@ -26,6 +26,7 @@ import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.subtree.Subentry;
 import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
@@ -68,15 +69,27 @@ public class SubentryUtils
      */
     public Entry getSubentryAttributes( Dn dn, Entry entryAttrs ) throws LdapException
     {
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+        }
+
         Entry subentryAttrs = new DefaultEntry( schemaManager, dn );
 
         SubentryCache subentryCache = directoryService.getSubentryCache();
         SubtreeEvaluator evaluator = directoryService.getEvaluator();
 
-        for ( Dn subentryDn : subentryCache )
+        // Only the subentries of the administrative points above the entry may select it
+        for ( Dn subentryDn : subentryCache.getSubentries( dn ) )
         {
             Dn apDn = subentryDn.getParent();
             Subentry subentry = subentryCache.getSubentry( subentryDn );
+
+            if ( subentry == null )
+            {
+                continue;
+            }
+
             SubtreeSpecification ss = subentry.getSubtreeSpecification();
 
             if ( evaluator.evaluate( ss, apDn, dn, entryAttrs ) )
@@ -142,4 +155,129 @@ public class SubentryUtils
 
         return subentryAttrs;
     }
+
+
+    /**
+     * Gets the references to the subentries selecting an entry, as stored in one of its
+     * subentry operational attributes. The references to the subentries which are still
+     * being updated in the background are evaluated against the subentry cache instead.
+     * When the subentry membership is computed on read, the stored references are ignored
+     * and all of them are evaluated against the subentry cache.
+     * <br>
+     * The references computed here are only returned, they are never indexed : a search
+     * filter on the subentry operational attributes does not see them, so it selects no
+     * entry in computed mode, and misses the pending references otherwise.
+     *
+     * @param dn the normalized distinguished name of the entry
+     * @param entry the entry, with its operational attributes
+     * @param attributeType the subentry operational attribute to read
+     * @return the attribute, or null if no subentry of that kind selects the entry
+     * @throws LdapException if the entry can't be evaluated
+     */
+    public Attribute getSubentries( Dn dn, Entry entry, AttributeType attributeType ) throws LdapException
+    {
+        if ( directoryService.isSubentryMembershipComputed() )
+        {
+            return getComputedSubentries( dn, entry ).get( attributeType );
+        }
+
+        Attribute subentries = entry.get( attributeType );
+        SubentryCache subentryCache = directoryService.getSubentryCache();
+
+        if ( !subentryCache.hasPendingUpdates() )
+        {
+            return subentries;
+        }
+
+        subentries = ( subentries == null ) ? new DefaultAttribute( attributeType ) : subentries.clone();
+
+        for ( Dn subentryDn : subentryCache.getPendingUpdates() )
+        {
+            subentries.remove( subentryDn.getName() );
+            Subentry subentry = subentryCache.getSubentry( subentryDn );
+
+            if ( ( subentry != null ) && hasRole( subentry, attributeType )
+                && directoryService.getEvaluator().evaluate( subentry.getSubtreeSpecification(),
+                    subentryDn.getParent(), dn, entry ) )
+            {
+                subentries.add( subentryDn.getName() );
+            }
+        }
+
+        if ( subentries.size() == 0 )
+        {
+            return null;
+        }
+
+        return subentries;
+    }
+
+
+    /**
+     * Computes the subentry operational attributes of an entry. The result is kept in the
+     * subentry cache until either the entry or the subentries change, and must not be modified.
+     *
+     * @param dn the normalized distinguished name of the entry
+     * @param entry the entry
+     * @return the subentry operational attributes
+     * @throws LdapException if the entry can't be evaluated
+     */
+    public Entry getComputedSubentries( Dn dn, Entry entry ) throws LdapException
+    {
+        SubentryCache subentryCache = directoryService.getSubentryCache();
+        Attribute entryCsn = entry.get( directoryService.getAtProvider().getEntryCSN() );
+
+        if ( entryCsn == null )
+        {
+            // Nothing tells if the entry has changed since, don't keep the result
+            return getSubentryAttributes( dn, entry );
+        }
+
+        String csn = entryCsn.getString();
+        Entry subentries = subentryCache.getMembership( dn, csn );
+
+        if ( subentries == null )
+        {
+            // The version must be read first, a subentry changed meanwhile invalidates the result
+            long version = subentryCache.getVersion();
+            subentries = getSubentryAttributes( dn, entry );
+            subentryCache.putMembership( dn, csn, version, subentries );
+        }
+
+        return subentries;
+    }
+
+
+    /**
+     * Tells if a subentry is referenced by the given subentry operational attribute
+     * in the entries it selects.
+     *
+     * @param subentry the subentry
+     * @param attributeType the subentry operational attribute
+     * @return true if the subentry has the matching administrative role
+     */
+    public boolean hasRole( Subentry subentry, AttributeType attributeType )
+    {
+        if ( attributeType.equals( directoryService.getAtProvider().getAccessControlSubentries() ) )
+        {
+            return subentry.isAccessControlAdminRole();
+        }
+
+        if ( attributeType.equals( directoryService.getAtProvider().getSubschemaSubentry() ) )
+        {
+            return subentry.isSchemaAdminRole();
+        }
+
+        if ( attributeType.equals( directoryService.getAtProvider().getCollectiveAttributeSubentries() ) )
+        {
+            return subentry.isCollectiveAdminRole();
+        }
+
+        if ( attributeType.equals( directoryService.getAtProvider().getTriggerExecutionSubentries() ) )
+        {
+            return subentry.isTriggersAdminRole();
+        }
+
+        return false;
+    }
 }
@@ -337,6 +337,18 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    public boolean isSubentryMembershipComputed()
+    {
+        return false;
+    }
+
+
+    public void setSubentryMembershipComputed( boolean subentryMembershipComputed )
+    {
+
+    }
+
+
     public void setChangeLog( ChangeLog changeLog )
     {
 
@@ -581,6 +593,13 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    @Override
+    public Interceptor[] getInterceptorChain( OperationEnum operation )
+    {
+        return new Interceptor[0];
+    }
+
+
     @Override
     public void addFirst( Interceptor interceptor ) throws LdapException
     {
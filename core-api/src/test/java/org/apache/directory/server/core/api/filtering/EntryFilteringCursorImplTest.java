@@ -0,0 +1,210 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.filtering;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the EntryFilteringCursorImpl class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryFilteringCursorImplTest
+{
+    private static SchemaManager schemaManager;
+
+    private static CoreSession session;
+
+
+    /**
+     * Initialize the registries once for the whole test suite
+     */
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = EntryFilteringCursorImplTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+
+        schemaManager = new DefaultSchemaManager( new LdifSchemaLoader( schemaRepository ) );
+        schemaManager.loadAllEnabled();
+
+        List<Throwable> errors = schemaManager.getErrors();
+
+        if ( errors.size() != 0 )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( errors ) );
+        }
+
+        MockDirectoryService directoryService = new MockDirectoryService();
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal( schemaManager ), directoryService );
+    }
+
+
+    private EntryFilteringCursor createCursor( String... attributes ) throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            entries.add( new DefaultEntry( schemaManager, "cn=test" + i + ",ou=system",
+                "objectClass: top",
+                "objectClass: person",
+                "cn: test" + i,
+                "sn: Test",
+                "entryUUID: f290425c-8272-4e62-8a67-92b06f38dbf" + i ) );
+        }
+
+        SearchOperationContext searchContext = new SearchOperationContext( session, new Dn( schemaManager, "ou=system" ),
+            SearchScope.ONELEVEL, null, attributes );
+
+        return new EntryFilteringCursorImpl( new ListCursor<Entry>( entries ), searchContext, schemaManager );
+    }
+
+
+    @Test
+    public void testOnlyRequestedAttributesCopied() throws Exception
+    {
+        EntryFilteringCursor cursor = createCursor( "cn" );
+        List<Boolean> originalSeen = new ArrayList<>();
+
+        // The filters can still read the original entry
+        cursor.addEntryFilter( new EntryFilter()
+        {
+            @Override
+            public boolean accept( SearchOperationContext operation, Entry entry )
+            {
+                originalSeen.add( ( ( ClonedServerEntry ) entry ).getOriginalEntry().containsAttribute( "sn" ) );
+
+                return true;
+            }
+
+
+            @Override
+            public String toString( String tabs )
+            {
+                return tabs;
+            }
+        } );
+
+        int count = 0;
+
+        while ( cursor.next() )
+        {
+            Entry entry = cursor.get();
+
+            assertEquals( 1, entry.size() );
+            assertTrue( entry.containsAttribute( "cn" ) );
+            assertEquals( 4, ( ( ClonedServerEntry ) entry ).getOriginalEntry().size() );
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( 3, count );
+        assertEquals( 3, originalSeen.size() );
+        assertFalse( originalSeen.contains( Boolean.FALSE ) );
+    }
+
+
+    @Test
+    public void testAllAttributesCopied() throws Exception
+    {
+        EntryFilteringCursor cursor = createCursor( "*", "+" );
+
+        assertTrue( cursor.next() );
+        assertEquals( 4, cursor.get().size() );
+
+        cursor.close();
+    }
+
+
+    @Test
+    public void testFilterAddedAfterFetch() throws Exception
+    {
+        EntryFilteringCursor cursor = createCursor( "*" );
+
+        assertTrue( cursor.next() );
+        assertEquals( "test0", cursor.get().get( "cn" ).getString() );
+
+        // The filters are compiled again
+        cursor.addEntryFilter( new EntryFilter()
+        {
+            @Override
+            public boolean accept( SearchOperationContext operation, Entry entry )
+            {
+                return !entry.getDn().getRdn().getValue().equals( "test1" );
+            }
+
+
+            @Override
+            public String toString( String tabs )
+            {
+                return tabs;
+            }
+        } );
+
+        assertTrue( cursor.next() );
+        assertEquals( "test2", cursor.get().get( "cn" ).getString() );
+        assertEquals( 3, cursor.get().size() );
+        assertFalse( cursor.next() );
+
+        cursor.close();
+    }
+}
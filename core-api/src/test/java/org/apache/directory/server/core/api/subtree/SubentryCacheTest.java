@@ -0,0 +1,94 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.subtree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the lookup of the subentries which may select an entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.CONCURRENT)
+public class SubentryCacheTest
+{
+    @Test
+    public void testGetSubentries() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn top = new Dn( "cn=top,ou=system" );
+        Dn nested1 = new Dn( "cn=nested1,ou=ap,ou=system" );
+        Dn nested2 = new Dn( "cn=nested2,ou=ap,ou=system" );
+        Dn other = new Dn( "cn=other,ou=other,ou=system" );
+
+        cache.addSubentry( top, new Subentry() );
+        cache.addSubentry( nested1, new Subentry() );
+        cache.addSubentry( nested2, new Subentry() );
+        cache.addSubentry( other, new Subentry() );
+
+        List<Dn> subentries = cache.getSubentries( new Dn( "cn=entry,ou=people,ou=ap,ou=system" ) );
+        assertEquals( 3, subentries.size() );
+        assertEquals( top, subentries.get( 0 ) );
+        assertTrue( new HashSet<>( subentries ).containsAll( Arrays.asList( nested1, nested2 ) ) );
+
+        // The administrative point is part of its area
+        assertEquals( 3, cache.getSubentries( new Dn( "ou=ap,ou=system" ) ).size() );
+        assertEquals( 1, cache.getSubentries( new Dn( "ou=people,ou=system" ) ).size() );
+        assertTrue( cache.getSubentries( new Dn( "dc=example,dc=com" ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testRemovedSubentries() throws Exception
+    {
+        SubentryCache cache = new SubentryCache();
+        Dn top = new Dn( "cn=top,ou=system" );
+        Dn nested = new Dn( "cn=nested,ou=ap,ou=system" );
+        Dn entry = new Dn( "cn=entry,ou=ap,ou=system" );
+
+        cache.addSubentry( top, new Subentry() );
+        cache.addSubentry( nested, new Subentry() );
+
+        cache.removeSubentry( nested );
+        assertEquals( Collections.singletonList( top ), cache.getSubentries( entry ) );
+
+        cache.removeSubentry( top );
+        assertTrue( cache.getSubentries( entry ).isEmpty() );
+
+        // The pruned nodes are created again
+        cache.addSubentry( nested, new Subentry() );
+        assertEquals( Collections.singletonList( nested ), cache.getSubentries( entry ) );
+        assertEquals( 1, cache.getCacheSize() );
+    }
+}
@@ -268,4 +268,12 @@ public final class ApacheSchemaConstants
     // entryParentId
     public static final String ENTRY_PARENT_ID_AT = "entryParentId";
     public static final String ENTRY_PARENT_ID_OID = "1.3.6.1.4.1.18060.0.4.1.2.51";
+
+    // subentryUpdateProgress
+    public static final String SUBENTRY_UPDATE_PROGRESS_AT = "subentryUpdateProgress";
+    public static final String SUBENTRY_UPDATE_PROGRESS_AT_OID = "1.3.6.1.4.1.18060.0.4.1.2.52";
+
+    // replicaMetrics
+    public static final String REPLICA_METRICS_AT = "replicaMetrics";
+    public static final String REPLICA_METRICS_AT_OID = "1.3.6.1.4.1.18060.0.4.1.2.53";
 }
@@ -23,6 +23,7 @@ package org.apache.directory.server.core.authn;
 import static org.apache.directory.server.core.integ.IntegrationUtils.apply;
 import static org.apache.directory.server.core.integ.IntegrationUtils.getConnectionAs;
 import static org.apache.directory.server.core.integ.IntegrationUtils.getUserAddLdif;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -37,6 +38,7 @@ import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.annotations.CreateDS;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.ApacheDSTestExtension;
@@ -610,4 +612,151 @@ public class SimpleAuthenticationIT extends AbstractLdapTestUnit
             assertTrue( true );
         }
     }
+
+
+    private SimpleAuthenticator getSimpleAuthenticator()
+    {
+        AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+
+        for ( Authenticator authenticator : authenticationInterceptor.getAuthenticators() )
+        {
+            if ( authenticator instanceof SimpleAuthenticator )
+            {
+                return ( SimpleAuthenticator ) authenticator;
+            }
+        }
+
+        return null;
+    }
+
+
+    @Test
+    public void testCredentialCacheHit() throws Exception
+    {
+        apply( getService(), getUserAddLdif() );
+        String userDn = "uid=akarasulu,ou=users,ou=system";
+        SimpleAuthenticator authenticator = getSimpleAuthenticator();
+
+        getConnectionAs( getService(), userDn, "test" ).close();
+        long hits = authenticator.getCacheHitCount();
+
+        // The second bind does not read the backend
+        LdapConnection connection = getConnectionAs( getService(), userDn, "test" );
+        assertTrue( connection.isAuthenticated() );
+        assertEquals( hits + 1, authenticator.getCacheHitCount() );
+        connection.close();
+
+        // A wrong password is still rejected
+        try
+        {
+            connection.bind( userDn, "wrong" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertEquals( hits + 2, authenticator.getCacheHitCount() );
+        }
+    }
+
+
+    @Test
+    public void testInvalidateCredentialCacheOnDeleteAndRename() throws Exception
+    {
+        apply( getService(), getUserAddLdif() );
+        String userDn = "uid=akarasulu,ou=users,ou=system";
+        getConnectionAs( getService(), userDn, "test" ).close();
+
+        // Rename the user : the old Dn can't be used anymore
+        LdapConnection connection = getConnectionAs( getService(), "uid=admin,ou=system", "secret" );
+        connection.rename( userDn, "uid=alex" );
+
+        try
+        {
+            getConnectionAs( getService(), userDn, "test" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertTrue( true );
+        }
+
+        String newDn = "uid=alex,ou=users,ou=system";
+        getConnectionAs( getService(), newDn, "test" ).close();
+
+        // Delete the user
+        connection.delete( newDn );
+        connection.close();
+
+        try
+        {
+            getConnectionAs( getService(), newDn, "test" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertTrue( true );
+        }
+    }
+
+
+    @Test
+    public void testVerifiedCredentialCache() throws Exception
+    {
+        apply( getService(), getUserAddLdif() );
+        String userDn = "uid=akarasulu,ou=users,ou=system";
+        SimpleAuthenticator authenticator = getSimpleAuthenticator();
+        authenticator.setVerifiedCacheTtl( 60000L );
+
+        try
+        {
+            // Set a SSHA password : 'secret'
+            LdapConnection connection = getConnectionAs( getService(), userDn, "test" );
+            ModifyRequest modReq = new ModifyRequestImpl();
+            modReq.setName( new Dn( getService().getSchemaManager(), userDn ) );
+            modReq.replace( "userPassword", "{SSHA}mjVVxasFkk59wMW4L1Ldt+YCblfhULHs03WW7g==" );
+            connection.modify( modReq );
+            connection.close();
+
+            // The first bind computes the hash, the second one does not
+            connection.bind( userDn, "secret" );
+            connection.close();
+            assertEquals( 0L, authenticator.getVerifiedCacheHitCount() );
+
+            connection.bind( userDn, "secret" );
+            connection.close();
+            assertEquals( 1L, authenticator.getVerifiedCacheHitCount() );
+
+            // Other credentials are still checked
+            try
+            {
+                connection.bind( userDn, "secret2" );
+                fail();
+            }
+            catch ( LdapAuthenticationException lae )
+            {
+                assertEquals( 1L, authenticator.getVerifiedCacheHitCount() );
+            }
+
+            // Change the password : the verified credentials are forgotten
+            connection.bind( userDn, "secret" );
+            modReq.replace( "userPassword", "{SSHA}6e2e6dIWSjDPBn2kc6v/3lNYOiw/uvwN8ymjQQ==" );
+            connection.modify( modReq );
+            connection.close();
+
+            try
+            {
+                connection.bind( userDn, "secret" );
+                fail();
+            }
+            catch ( LdapAuthenticationException lae )
+            {
+                assertEquals( 2L, authenticator.getVerifiedCacheHitCount() );
+            }
+        }
+        finally
+        {
+            authenticator.setVerifiedCacheTtl( 0L );
+        }
+    }
 }
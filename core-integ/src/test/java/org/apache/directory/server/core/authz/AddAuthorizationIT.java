@@ -21,8 +21,10 @@ package org.apache.directory.server.core.authz;
 
 
 import static org.apache.directory.server.core.authz.AutzIntegUtils.addUserToGroup;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.changePresciptiveACI;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.createAccessControlSubentry;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.createUser;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.getAdminConnection;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.getConnectionAs;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -279,4 +281,70 @@ public class AddAuthorizationIT extends AbstractLdapTestUnit
         // should work now with billyd now that all users are authorized
         assertTrue( checkCanAddEntryAs( "billyd", "billyd", "ou=testou" ) );
     }
+
+
+    /**
+     * Checks that a <b>maxImmSub</b> protected item limits the number of entries added below
+     * an entry.
+     *
+     * @throws Exception if the test encounters an error
+     */
+    @Test
+    public void testGrantAddMaxImmSub() throws Exception
+    {
+        // create the non-admin user
+        createUser( "billyd", "billyd" );
+
+        // the limit is set once the subentry, itself a child of ou=system, is created
+        createAccessControlSubentry( "maxImmSubAdd",
+            "{ " +
+                "  identificationTag \"addAci\", " +
+                "  precedence 14, " +
+                "  authenticationLevel none, " +
+                "  itemOrUserFirst userFirst: " +
+                "  { " +
+                "    userClasses { allUsers }, " +
+                "    userPermissions " +
+                "    { " +
+                "      { " +
+                "        protectedItems {entry, maxImmSub 1}, " +
+                "        grantsAndDenials { grantAdd, grantBrowse } " +
+                "      }, " +
+                "      { " +
+                "        protectedItems {allUserAttributeTypesAndValues}, " +
+                "        grantsAndDenials { grantAdd, grantBrowse } " +
+                "      } " +
+                "    } " +
+                "  } " +
+                "}" );
+
+        long nbChildren = Long.parseLong( getAdminConnection().lookup( "ou=system", "nbChildren" )
+            .get( "nbChildren" ).getString() );
+
+        changePresciptiveACI( "maxImmSubAdd",
+            "{ " +
+                "  identificationTag \"addAci\", " +
+                "  precedence 14, " +
+                "  authenticationLevel none, " +
+                "  itemOrUserFirst userFirst: " +
+                "  { " +
+                "    userClasses { allUsers }, " +
+                "    userPermissions " +
+                "    { " +
+                "      { " +
+                "        protectedItems {entry, maxImmSub " + ( nbChildren + 1 ) + "}, " +
+                "        grantsAndDenials { grantAdd, grantBrowse } " +
+                "      }, " +
+                "      { " +
+                "        protectedItems {allUserAttributeTypesAndValues}, " +
+                "        grantsAndDenials { grantAdd, grantBrowse } " +
+                "      } " +
+                "    } " +
+                "  } " +
+                "}" );
+
+        // one more entry can be added below ou=system, not two
+        assertTrue( checkCanAddEntryAs( "billyd", "billyd", "ou=testou" ) );
+        assertFalse( checkCanAddEntryAs( "billyd", "billyd", "ou=testou2" ) );
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests the groups of a member returned by the GroupCache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "GroupCacheIT")
+public class GroupCacheIT extends AbstractLdapTestUnit
+{
+    private Dn dn( String name ) throws Exception
+    {
+        return new Dn( getService().getSchemaManager(), name );
+    }
+
+
+    private String norm( String name ) throws Exception
+    {
+        return dn( name ).getNormName();
+    }
+
+
+    private Set<String> groups( String... names ) throws Exception
+    {
+        Set<String> groups = new HashSet<>();
+
+        for ( String name : names )
+        {
+            groups.add( norm( name ) );
+        }
+
+        return groups;
+    }
+
+
+    private void addGroup( GroupCache cache, String name, String... members ) throws Exception
+    {
+        SchemaManager schemaManager = getService().getSchemaManager();
+        Entry entry = new DefaultEntry( schemaManager, name,
+            "objectClass: top",
+            "objectClass: groupOfNames",
+            "cn", dn( name ).getRdn().getValue() );
+        entry.add( "member", members );
+
+        cache.groupAdded( norm( name ), entry );
+    }
+
+
+    @Test
+    public void testDirectGroups() throws Exception
+    {
+        GroupCache cache = new GroupCache( getService() );
+
+        addGroup( cache, "cn=g1,ou=groups,ou=system", "uid=a,ou=users,ou=system", "cn=g2,ou=groups,ou=system" );
+        addGroup( cache, "cn=g2,ou=groups,ou=system", "uid=a,ou=users,ou=system", "uid=b,ou=users,ou=system" );
+
+        assertEquals( groups( "cn=g1,ou=groups,ou=system", "cn=g2,ou=groups,ou=system" ),
+            cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+
+        // Nested groups are not followed
+        assertEquals( groups( "cn=g2,ou=groups,ou=system" ), cache.getGroups( norm( "uid=b,ou=users,ou=system" ) ) );
+        assertTrue( cache.getGroups( norm( "uid=c,ou=users,ou=system" ) ).isEmpty() );
+
+        // Remove a from g2, then delete g1
+        Entry g2 = new DefaultEntry( getService().getSchemaManager(), "cn=g2,ou=groups,ou=system",
+            "objectClass: top",
+            "objectClass: groupOfNames",
+            "cn: g2",
+            "member: uid=b,ou=users,ou=system" );
+        Modification modification = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            getService().getAtProvider().getMember(), "uid=a,ou=users,ou=system" );
+        cache.groupModified( dn( "cn=g2,ou=groups,ou=system" ), Collections.singletonList( modification ), g2,
+            getService().getSchemaManager() );
+
+        assertEquals( groups( "cn=g1,ou=groups,ou=system" ), cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+
+        Entry g1 = new DefaultEntry( getService().getSchemaManager(), "cn=g1,ou=groups,ou=system",
+            "objectClass: top",
+            "objectClass: groupOfNames",
+            "cn: g1",
+            "member: uid=a,ou=users,ou=system" );
+        cache.groupDeleted( dn( "cn=g1,ou=groups,ou=system" ), g1 );
+
+        assertTrue( cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testNestedGroups() throws Exception
+    {
+        GroupCache cache = new GroupCache( getService(), true );
+
+        addGroup( cache, "cn=top,ou=groups,ou=system", "cn=middle,ou=groups,ou=system" );
+        addGroup( cache, "cn=middle,ou=groups,ou=system", "cn=bottom,ou=groups,ou=system" );
+        addGroup( cache, "cn=bottom,ou=groups,ou=system", "uid=a,ou=users,ou=system" );
+
+        assertEquals( groups( "cn=top,ou=groups,ou=system", "cn=middle,ou=groups,ou=system",
+            "cn=bottom,ou=groups,ou=system" ), cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+
+        // Breaking the chain changes the memberships already computed
+        Entry middle = new DefaultEntry( getService().getSchemaManager(), "cn=middle,ou=groups,ou=system",
+            "objectClass: top",
+            "objectClass: groupOfNames",
+            "cn: middle",
+            "member: uid=b,ou=users,ou=system" );
+        Modification modification = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            getService().getAtProvider().getMember(), "uid=b,ou=users,ou=system" );
+        cache.groupModified( dn( "cn=middle,ou=groups,ou=system" ), Arrays.asList( modification ), middle,
+            getService().getSchemaManager() );
+
+        assertEquals( groups( "cn=bottom,ou=groups,ou=system" ), cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+        assertEquals( groups( "cn=top,ou=groups,ou=system", "cn=middle,ou=groups,ou=system" ),
+            cache.getGroups( norm( "uid=b,ou=users,ou=system" ) ) );
+
+        // A renamed group keeps its members
+        cache.groupRenamed( dn( "cn=bottom,ou=groups,ou=system" ), dn( "cn=renamed,ou=groups,ou=system" ) );
+
+        assertEquals( groups( "cn=renamed,ou=groups,ou=system" ), cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+    }
+
+
+    @Test
+    public void testNestedGroupsCycle() throws Exception
+    {
+        GroupCache cache = new GroupCache( getService(), true );
+
+        addGroup( cache, "cn=g1,ou=groups,ou=system", "cn=g2,ou=groups,ou=system", "uid=a,ou=users,ou=system" );
+        addGroup( cache, "cn=g2,ou=groups,ou=system", "cn=g1,ou=groups,ou=system" );
+
+        assertEquals( groups( "cn=g1,ou=groups,ou=system", "cn=g2,ou=groups,ou=system" ),
+            cache.getGroups( norm( "uid=a,ou=users,ou=system" ) ) );
+    }
+}
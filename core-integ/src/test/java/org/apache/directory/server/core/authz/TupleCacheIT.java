@@ -0,0 +1,194 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.Dependency;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests the invalidation of the tuples kept by the TupleCache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "TupleCacheIT")
+public class TupleCacheIT extends AbstractLdapTestUnit
+{
+    private static final String SUBENTRY = "cn=tupleCacheTest,ou=system";
+
+
+    private String aci( String tag, int precedence )
+    {
+        return aci( tag, precedence, "allUsers" );
+    }
+
+
+    private String aci( String tag, int precedence, String userClass )
+    {
+        return "{ " +
+            "  identificationTag \"" + tag + "\", " +
+            "  precedence " + precedence + ", " +
+            "  authenticationLevel none, " +
+            "  itemOrUserFirst userFirst: " +
+            "  { " +
+            "    userClasses { " + userClass + " }, " +
+            "    userPermissions " +
+            "    { " +
+            "      { " +
+            "        protectedItems { entry }, " +
+            "        grantsAndDenials { grantBrowse } " +
+            "      } " +
+            "    } " +
+            "  } " +
+            "}";
+    }
+
+
+    private Entry subentry( String aci ) throws Exception
+    {
+        return new DefaultEntry( getService().getSchemaManager(), SUBENTRY,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: accessControlSubentry",
+            "cn: tupleCacheTest",
+            "subtreeSpecification: {}",
+            "prescriptiveACI", aci );
+    }
+
+
+    private Dn subentryDn() throws Exception
+    {
+        return new Dn( getService().getSchemaManager(), SUBENTRY );
+    }
+
+
+    @Test
+    public void testSubentryModified() throws Exception
+    {
+        TupleCache cache = new TupleCache( getService().getAdminSession() );
+        Dn dn = subentryDn();
+
+        cache.subentryAdded( dn, subentry( aci( "first", 10 ) ) );
+
+        List<ACITuple> tuples = cache.getACITuples( dn.getNormName() );
+        assertEquals( 1, tuples.size() );
+        assertEquals( 10, tuples.get( 0 ).getPrecedence().intValue() );
+        long version = cache.getVersion();
+
+        // A modification which does not touch the prescriptiveACI keeps the tuples
+        Entry modified = subentry( aci( "first", 10 ) );
+        modified.add( "description", "a description" );
+        Modification modification = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            getService().getSchemaManager().getAttributeType( "description" ), "a description" );
+        cache.subentryModified( dn, Collections.singletonList( modification ), modified );
+
+        assertSame( tuples, cache.getACITuples( dn.getNormName() ) );
+        assertEquals( version, cache.getVersion() );
+
+        // Replacing the prescriptiveACI replaces the tuples
+        modified = subentry( aci( "second", 20 ) );
+        modification = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            getService().getAtProvider().getPrescriptiveACI(), aci( "second", 20 ) );
+        cache.subentryModified( dn, Collections.singletonList( modification ), modified );
+
+        List<ACITuple> newTuples = cache.getACITuples( dn.getNormName() );
+        assertNotSame( tuples, newTuples );
+        assertEquals( 1, newTuples.size() );
+        assertEquals( 20, newTuples.get( 0 ).getPrecedence().intValue() );
+        assertTrue( cache.getVersion() > version );
+
+        // The same goes for a modification expressed as an entry
+        version = cache.getVersion();
+        cache.subentryModified( dn, subentry( aci( "third", 30 ) ), subentry( aci( "third", 30 ) ) );
+
+        assertEquals( 30, cache.getACITuples( dn.getNormName() ).get( 0 ).getPrecedence().intValue() );
+        assertTrue( cache.getVersion() > version );
+    }
+
+
+    @Test
+    public void testSubentryDeleted() throws Exception
+    {
+        TupleCache cache = new TupleCache( getService().getAdminSession() );
+        Dn dn = subentryDn();
+        Entry entry = subentry( aci( "deleted", 10, "thisEntry" ) );
+
+        cache.subentryAdded( dn, entry );
+
+        assertEquals( 1, cache.getACITuples( dn.getNormName() ).size() );
+        assertEquals( Dependency.ENTRY, cache.getDependency( dn.getNormName() ) );
+        long version = cache.getVersion();
+
+        cache.subentryDeleted( dn, entry );
+
+        assertTrue( cache.getACITuples( dn.getNormName() ).isEmpty() );
+        assertEquals( Dependency.NONE, cache.getDependency( dn.getNormName() ) );
+        assertTrue( cache.getVersion() > version );
+    }
+
+
+    @Test
+    public void testParsedAcisOverflow() throws Exception
+    {
+        TupleCache cache = new TupleCache( getService().getAdminSession() );
+        String firstAci = aci( "aci0", 0 );
+
+        List<ACITuple> first = cache.getACITuplesOf( firstAci );
+        assertSame( first, cache.getACITuplesOf( firstAci ) );
+
+        // Fill the cache : the first ACI is still kept
+        for ( int i = 1; i < TupleCache.MAX_PARSED_ACIS; i++ )
+        {
+            cache.getACITuplesOf( aci( "aci" + i, i % 256 ) );
+        }
+
+        assertSame( first, cache.getACITuplesOf( firstAci ) );
+
+        // One more ACI clears the cache, so the first ACI is parsed again
+        cache.getACITuplesOf( aci( "overflow", 0 ) );
+
+        List<ACITuple> reparsed = cache.getACITuplesOf( firstAci );
+        assertNotSame( first, reparsed );
+        assertEquals( first.size(), reparsed.size() );
+        assertEquals( first.get( 0 ).getPrecedence(), reparsed.get( 0 ).getPrecedence() );
+        assertSame( reparsed, cache.getACITuplesOf( firstAci ) );
+    }
+}
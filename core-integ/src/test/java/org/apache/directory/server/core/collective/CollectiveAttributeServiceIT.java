@@ -572,4 +572,40 @@ public class CollectiveAttributeServiceIT extends AbstractLdapTestUnit
 
         connection.close();
     }
+
+
+    @Test
+    public void testModifiedSubentry() throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+        addAdministrativeRole( connection, "collectiveAttributeSpecificArea" );
+        connection.add( getTestSubentry( "cn=testsubentry,ou=system" ) );
+
+        // Both entries get the collective attributes merged for the same subentry
+        assertTrue( connection.lookup( "ou=services,ou=configuration,ou=system" ).get( "c-ou" )
+            .contains( "configuration" ) );
+        assertTrue( connection.lookup( "ou=interceptors,ou=configuration,ou=system" ).get( "c-ou" )
+            .contains( "configuration" ) );
+
+        // The modification of the subentry is visible at once
+        connection.modify( "cn=testsubentry,ou=system", new DefaultModification(
+            ModificationOperation.REPLACE_ATTRIBUTE, new DefaultAttribute( "c-ou", "modified" ) ) );
+
+        Attribute c_ou = connection.lookup( "ou=services,ou=configuration,ou=system" ).get( "c-ou" );
+        assertEquals( 1, c_ou.size() );
+        assertTrue( c_ou.contains( "modified" ) );
+
+        // A renamed subentry keeps its collective attributes
+        connection.rename( "cn=testsubentry,ou=system", "cn=renamed" );
+
+        Entry subentry = connection.lookup( "cn=renamed,ou=system", "*" );
+        assertTrue( subentry.get( "c-ou" ).contains( "modified" ) );
+
+        c_ou = connection.lookup( "ou=interceptors,ou=configuration,ou=system" ).get( "c-ou" );
+        assertEquals( 1, c_ou.size() );
+        assertTrue( c_ou.contains( "modified" ) );
+
+        connection.close();
+    }
 }
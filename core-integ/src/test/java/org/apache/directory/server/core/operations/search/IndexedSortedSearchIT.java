@@ -0,0 +1,245 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.operations.search;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
+import org.apache.directory.api.ldap.model.message.controls.SortResponse;
+import org.apache.directory.api.ldap.model.message.controls.SortResultCode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests for searching with server side sort control, when the sort attribute
+ * is indexed, so that the entries are read in order from the index.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( { ApacheDSTestExtension.class } )
+@CreateDS(name = "IndexedSortedSearchDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=example,dc=com\n" +
+                        "dc: example\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "sn"),
+                        @CreateIndex(attribute = "cn")
+                })
+    })
+public class IndexedSortedSearchIT extends AbstractLdapTestUnit
+{
+    /** The sn of the created persons, in a random order */
+    private static final String[] SNS =
+        { "Miller", "adams", "Zorro", "brown", "Carter", "young", "Evans" };
+
+    /** A direct connecion to the server */
+    private LdapConnection connection;
+
+    private SearchRequest req;
+
+    private SortKey sk;
+
+
+    @BeforeEach
+    public void createData() throws Exception
+    {
+        connection = IntegrationUtils.getAdminConnection( getService() );
+
+        for ( int i = 0; i < SNS.length; i++ )
+        {
+            connection.add( new DefaultEntry(
+                "cn=person" + i + ",dc=example,dc=com",
+                "objectClass: person",
+                "cn: person" + i,
+                "sn: " + SNS[i] ) );
+        }
+
+        // An entry without sn
+        connection.add( new DefaultEntry(
+            "ou=people,dc=example,dc=com",
+            "objectClass: organizationalUnit",
+            "ou: people" ) );
+
+        req = new SearchRequestImpl();
+        req.setBase( new Dn( "dc=example,dc=com" ) );
+        req.setFilter( new PresenceNode( "objectClass" ) );
+        req.setScope( SearchScope.ONELEVEL );
+        req.addAttributes( "sn" );
+
+        sk = new SortKey( "sn" );
+        SortRequest ctrl = new SortRequestImpl();
+        ctrl.addSortKey( sk );
+        req.addControl( ctrl );
+    }
+
+
+    @AfterEach
+    public void deleteData() throws Exception
+    {
+        for ( int i = 0; i < SNS.length; i++ )
+        {
+            connection.delete( "cn=person" + i + ",dc=example,dc=com" );
+        }
+
+        connection.delete( "ou=people,dc=example,dc=com" );
+        connection.close();
+    }
+
+
+    private List<String> search() throws Exception
+    {
+        List<String> sns = new ArrayList<>();
+
+        try ( SearchCursor cursor = connection.search( req ) )
+        {
+            while ( cursor.next() )
+            {
+                SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+
+                if ( se.getEntry().containsAttribute( "sn" ) )
+                {
+                    sns.add( se.getEntry().get( "sn" ).getString() );
+                }
+                else
+                {
+                    sns.add( null );
+                }
+            }
+
+            SearchResultDone sd = cursor.getSearchResultDone();
+            SortResponse resp = ( SortResponse ) sd.getControl( SortResponse.OID );
+            assertNotNull( resp );
+            assertEquals( SortResultCode.SUCCESS, resp.getSortResult() );
+        }
+
+        return sns;
+    }
+
+
+    @Test
+    public void testSortByIndexedAttribute() throws Exception
+    {
+        List<String> sns = search();
+
+        assertEquals( SNS.length + 1, sns.size() );
+
+        // The entry without sn is the last one
+        assertEquals( null, sns.get( SNS.length ) );
+        assertEquals( "adams", sns.get( 0 ) );
+        assertEquals( "brown", sns.get( 1 ) );
+        assertEquals( "Carter", sns.get( 2 ) );
+        assertEquals( "Evans", sns.get( 3 ) );
+        assertEquals( "Miller", sns.get( 4 ) );
+        assertEquals( "young", sns.get( 5 ) );
+        assertEquals( "Zorro", sns.get( 6 ) );
+    }
+
+
+    @Test
+    public void testReverseSortByIndexedAttribute() throws Exception
+    {
+        sk.setReverseOrder( true );
+        List<String> sns = search();
+
+        assertEquals( SNS.length + 1, sns.size() );
+
+        // The entry without sn is the first one
+        assertEquals( null, sns.get( 0 ) );
+        assertEquals( "Zorro", sns.get( 1 ) );
+        assertEquals( "young", sns.get( 2 ) );
+        assertEquals( "Miller", sns.get( 3 ) );
+        assertEquals( "Evans", sns.get( 4 ) );
+        assertEquals( "Carter", sns.get( 5 ) );
+        assertEquals( "brown", sns.get( 6 ) );
+        assertEquals( "adams", sns.get( 7 ) );
+    }
+
+
+    @Test
+    public void testSortAcrossPartitions() throws Exception
+    {
+        // A person in the system partition, which sn comes first
+        connection.add( new DefaultEntry(
+            "cn=aaron,ou=system",
+            "objectClass: person",
+            "cn: aaron",
+            "sn: aaron" ) );
+
+        try
+        {
+            req.setBase( Dn.ROOT_DSE );
+            req.setFilter( new PresenceNode( "sn" ) );
+            req.setScope( SearchScope.SUBTREE );
+
+            List<String> sns = search();
+
+            assertTrue( sns.size() > SNS.length );
+            assertEquals( "aaron", sns.get( 0 ) );
+
+            // The entries of both partitions are sorted together
+            for ( int i = 1; i < sns.size(); i++ )
+            {
+                assertTrue( sns.get( i - 1 ).compareToIgnoreCase( sns.get( i ) ) <= 0, sns.toString() );
+            }
+        }
+        finally
+        {
+            connection.delete( "cn=aaron,ou=system" );
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests the subentry operational attributes computed on read, instead of being
+ * stored in the selected entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "ComputedSubentryMembershipIT", computeSubentryMembership = true)
+@ApplyLdifs(
+    {
+        "dn: dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "administrativeRole: collectiveAttributeSpecificArea",
+        "dc: AP",
+        "",
+
+        "dn: ou=container,dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: organizationalUnit",
+        "ou: container",
+        "",
+
+        "dn: cn=entry,ou=container,dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: entry",
+        "sn: entry",
+        ""
+    })
+public class ComputedSubentryMembershipIT extends AbstractLdapTestUnit
+{
+    private static final String SUBENTRY_DN = "cn=subentry,dc=AP,ou=system";
+
+
+    private void addSubentry() throws Exception
+    {
+        getService().getAdminSession().add( new DefaultEntry( getService().getSchemaManager(),
+            SUBENTRY_DN,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: collectiveAttributeSubentry",
+            "subtreeSpecification: { base \"ou=container\" }",
+            "c-o: Test Org",
+            "cn: subentry" ) );
+    }
+
+
+    /**
+     * Reads an entry as it is stored in the partition
+     */
+    private Entry getStoredEntry( Dn dn ) throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+        Partition partition = getService().getPartitionNexus().getPartition( dn );
+
+        try ( PartitionTxn transaction = partition.beginReadTransaction() )
+        {
+            LookupOperationContext lookupContext = new LookupOperationContext( session, dn, "*", "+" );
+            lookupContext.setPartition( partition );
+            lookupContext.setTransaction( transaction );
+
+            return partition.lookup( lookupContext );
+        }
+    }
+
+
+    private boolean isSelected( String dn ) throws Exception
+    {
+        Entry entry = getService().getAdminSession().lookup( new Dn( dn ), "*", "+" );
+        Attribute subentries = entry.get( "collectiveAttributeSubentries" );
+
+        if ( subentries == null )
+        {
+            assertNull( entry.get( "c-o" ) );
+
+            return false;
+        }
+
+        assertTrue( subentries.contains( SUBENTRY_DN ) );
+        assertEquals( "Test Org", entry.get( "c-o" ).getString() );
+
+        return true;
+    }
+
+
+    @Test
+    public void testMembershipComputedOnRead() throws Exception
+    {
+        assertTrue( getService().isSubentryMembershipComputed() );
+
+        addSubentry();
+
+        assertTrue( isSelected( "ou=container,dc=AP,ou=system" ) );
+        assertTrue( isSelected( "cn=entry,ou=container,dc=AP,ou=system" ) );
+        assertFalse( isSelected( "dc=AP,ou=system" ) );
+
+        // Nothing has been stored in the selected entries
+        Dn dn = new Dn( getService().getSchemaManager(), "cn=entry,ou=container,dc=AP,ou=system" );
+        assertNull( getStoredEntry( dn ).get( "collectiveAttributeSubentries" ) );
+        assertFalse( getService().getSubentryCache().hasPendingUpdates() );
+
+        // Same thing for an entry added afterwards
+        getService().getAdminSession().add( new DefaultEntry( getService().getSchemaManager(),
+            "cn=added,ou=container,dc=AP,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: added",
+            "sn: added" ) );
+
+        assertTrue( isSelected( "cn=added,ou=container,dc=AP,ou=system" ) );
+        assertNull( getStoredEntry( new Dn( getService().getSchemaManager(), "cn=added,ou=container,dc=AP,ou=system" ) )
+            .get( "collectiveAttributeSubentries" ) );
+
+        // Removing the subentry is visible at once
+        getService().getAdminSession().delete( new Dn( SUBENTRY_DN ) );
+
+        assertFalse( isSelected( "ou=container,dc=AP,ou=system" ) );
+        assertFalse( isSelected( "cn=entry,ou=container,dc=AP,ou=system" ) );
+    }
+
+
+    @Test
+    public void testRenamedContainer() throws Exception
+    {
+        addSubentry();
+
+        assertTrue( isSelected( "cn=entry,ou=container,dc=AP,ou=system" ) );
+
+        // The renamed container and its children leave the area
+        getService().getAdminSession().rename( new Dn( "ou=container,dc=AP,ou=system" ), new Rdn( "ou=renamed" ),
+            true );
+
+        assertFalse( isSelected( "ou=renamed,dc=AP,ou=system" ) );
+        assertFalse( isSelected( "cn=entry,ou=renamed,dc=AP,ou=system" ) );
+
+        // And come back in
+        getService().getAdminSession().rename( new Dn( "ou=renamed,dc=AP,ou=system" ), new Rdn( "ou=container" ),
+            true );
+
+        assertTrue( isSelected( "ou=container,dc=AP,ou=system" ) );
+        assertTrue( isSelected( "cn=entry,ou=container,dc=AP,ou=system" ) );
+    }
+}
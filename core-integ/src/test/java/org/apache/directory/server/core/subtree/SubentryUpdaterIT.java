@@ -0,0 +1,200 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests the update of the entries selected by a subentry, when the administrative
+ * area holds more entries than a batch.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "SubentryUpdaterIT")
+@ApplyLdifs(
+    {
+        "dn: dc=AP,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "administrativeRole: collectiveAttributeSpecificArea",
+        "dc: AP",
+        ""
+    })
+public class SubentryUpdaterIT extends AbstractLdapTestUnit
+{
+    private static final int NB_ENTRIES = 20;
+
+    private static final String SUBENTRY_DN = "cn=subentry,dc=AP,ou=system";
+
+    private SubentryUpdater updater;
+
+
+    @BeforeEach
+    public void init() throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            session.add( new DefaultEntry( getService().getSchemaManager(),
+                "cn=entry" + i + ",dc=AP,ou=system",
+                "objectClass: top",
+                "objectClass: person",
+                "cn: entry" + i,
+                "sn: entry" + i ) );
+        }
+
+        updater = ( ( SubentryInterceptor ) getService().getInterceptor(
+            InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() ) ).getUpdater();
+        updater.setBatchSize( 3 );
+    }
+
+
+    @AfterEach
+    public void reset()
+    {
+        updater.setBatchSize( SubentryUpdater.DEFAULT_BATCH_SIZE );
+    }
+
+
+    private Entry getSubentry()
+    {
+        try
+        {
+            return new DefaultEntry( getService().getSchemaManager(),
+                SUBENTRY_DN,
+                "objectClass: top",
+                "objectClass: subentry",
+                "objectClass: collectiveAttributeSubentry",
+                "subtreeSpecification: { }",
+                "c-o: Test Org",
+                "cn: subentry" );
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+
+    private void checkEntries( boolean selected ) throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            Entry entry = session.lookup( new Dn( "cn=entry" + i + ",dc=AP,ou=system" ), "*", "+" );
+            Attribute subentries = entry.get( "collectiveAttributeSubentries" );
+
+            if ( selected )
+            {
+                assertNotNull( subentries );
+                assertTrue( subentries.contains( SUBENTRY_DN ) );
+                assertEquals( "Test Org", entry.get( "c-o" ).getString() );
+            }
+            else
+            {
+                assertNull( subentries );
+                assertNull( entry.get( "c-o" ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testSubentryAppliedInTheBackground() throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+        OperationManager operationManager = getService().getOperationManager();
+
+        // Holding the write lock prevents the updater from modifying the entries
+        operationManager.lockWrite();
+
+        try
+        {
+            session.add( getSubentry() );
+
+            Entry subentry = session.lookup( new Dn( SUBENTRY_DN ), "subentryUpdateProgress" );
+            assertNotNull( subentry.get( "subentryUpdateProgress" ) );
+            assertTrue( getService().getSubentryCache().hasPendingUpdates() );
+
+            // The membership is computed until the entries are updated
+            checkEntries( true );
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+
+        assertTrue( updater.waitForUpdates( 30000L ) );
+        assertFalse( getService().getSubentryCache().hasPendingUpdates() );
+        assertNull( session.lookup( new Dn( SUBENTRY_DN ), "subentryUpdateProgress" )
+            .get( "subentryUpdateProgress" ) );
+
+        // The references are now stored in the entries
+        checkEntries( true );
+
+        session.delete( new Dn( SUBENTRY_DN ) );
+        assertTrue( updater.waitForUpdates( 30000L ) );
+
+        checkEntries( false );
+    }
+
+
+    @Test
+    public void testSmallAreaUpdatedWithinTheOperation() throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+        updater.setBatchSize( SubentryUpdater.DEFAULT_BATCH_SIZE );
+
+        session.add( getSubentry() );
+
+        assertFalse( getService().getSubentryCache().hasPendingUpdates() );
+        checkEntries( true );
+
+        session.delete( new Dn( SUBENTRY_DN ) );
+
+        assertFalse( getService().getSubentryCache().hasPendingUpdates() );
+        checkEntries( false );
+    }
+}
@@ -1210,6 +1210,14 @@ public class DefaultCoreSession implements CoreSession
 
                 return new EmptyCursor<>();
             }
+
+            if ( ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS )
+                && ( sortControl.getSortKeys().size() == 1 ) )
+            {
+                // Let the partition return the entries in order if it can. It only knows
+                // about a single key : with more keys, the entries are sorted here
+                searchContext.setSortKey( sortControl.getSortKeys().get( 0 ) );
+            }
         }
 
         Cursor<Entry> cursor = null;
@@ -1218,7 +1226,8 @@ public class DefaultCoreSession implements CoreSession
         {
             cursor = operationManager.search( searchContext );
 
-            if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
+            if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS )
+                && ( ( searchContext.getSortKey() == null ) || !searchContext.isSorted() ) )
             {
                 cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
             }
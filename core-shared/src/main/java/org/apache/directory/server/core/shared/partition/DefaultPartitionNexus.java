@@ -704,6 +704,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
             // Loop on all the partitions
             // We will look into all the partitions, thus we create a list of cursors.
             List<EntryFilteringCursor> cursors = new ArrayList<>();
+            boolean sorted = false;
 
             for ( Partition partition : partitions.values() )
             {
@@ -721,10 +722,15 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                 {
                     searchContext.setDn( contextDn );
                     searchContext.setScope( SearchScope.OBJECT );
+                    searchContext.setSorted( false );
                     cursors.add( partition.search( searchContext ) );
+                    sorted = searchContext.isSorted();
                 }
             }
 
+            // The concatenated results are only sorted if a single partition returned them
+            searchContext.setSorted( sorted && ( cursors.size() == 1 ) );
+
             return new CursorList( cursors, searchContext );
         }
         else
@@ -732,6 +738,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
             // This is a SUBLEVEL search. We will do multiple searches and wrap
             // a CursorList into the EntryFilteringCursor
             List<EntryFilteringCursor> cursors = new ArrayList<>();
+            boolean sorted = false;
 
             for ( Partition partition : partitions.values() )
             {
@@ -747,6 +754,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                 if ( partition.hasEntry( hasEntryContext ) )
                 {
                     searchContext.setDn( contextDn );
+                    searchContext.setSorted( false );
                     EntryFilteringCursor cursor = partition.search( searchContext );
 
                     try
@@ -755,6 +763,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                         {
                             cursor.beforeFirst();
                             cursors.add( cursor );
+                            sorted = searchContext.isSorted();
                         }
                     }
                     catch ( CursorException e )
@@ -764,6 +773,9 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                 }
             }
 
+            // The concatenated results are only sorted if a single partition returned them
+            searchContext.setSorted( sorted && ( cursors.size() == 1 ) );
+
             // don't feed the above Cursors' list to a BaseEntryFilteringCursor it is skipping the naming context entry of each partition
             if ( cursors.isEmpty() )
             {
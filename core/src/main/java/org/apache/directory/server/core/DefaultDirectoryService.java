@@ -31,6 +31,7 @@ import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -232,6 +233,9 @@ public class DefaultDirectoryService implements DirectoryService
     /** Manage the operational attributes denormalization */
     private boolean denormalizeOpAttrsEnabled; // off by default
 
+    /** whether the subentry operational attributes are computed on read */
+    private boolean subentryMembershipComputed; // off by default
+
     /** The list of declared interceptors */
     private List<Interceptor> interceptors;
     private Map<String, Interceptor> interceptorNames;
@@ -246,6 +250,9 @@ public class DefaultDirectoryService implements DirectoryService
     /** A map associating a list of interceptor to each operation */
     private Map<OperationEnum, List<String>> operationInterceptors;
 
+    /** The compiled chains of interceptors for each operation, replaced atomically on changes */
+    private volatile Map<OperationEnum, Interceptor[]> interceptorChains = new EnumMap<>( OperationEnum.class );
+
     /** The System partition */
     private Partition systemPartition;
 
@@ -453,21 +460,61 @@ public class DefaultDirectoryService implements DirectoryService
      */
     public List<String> getInterceptors( OperationEnum operation )
     {
-        List<String> cloned = new ArrayList<>();
-
-        readLock.lock();
+        Interceptor[] chain = getInterceptorChain( operation );
+        List<String> names = new ArrayList<>( chain.length );
 
-        try
+        for ( Interceptor interceptor : chain )
         {
-            cloned.addAll( operationInterceptors.get( operation ) );
+            names.add( interceptor.getName() );
+        }
 
-            return cloned;
+        return names;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Interceptor[] getInterceptorChain( OperationEnum operation )
+    {
+        Interceptor[] chain = interceptorChains.get( operation );
+
+        if ( chain == null )
+        {
+            return new Interceptor[0];
         }
-        finally
+
+        return chain;
+    }
+
+
+    /**
+     * Compiles the list of interceptors of each operation into an array, and publishes
+     * the new chains. Must be called with the write lock held.
+     */
+    private void compileInterceptorChains()
+    {
+        Map<OperationEnum, Interceptor[]> chains = new EnumMap<>( OperationEnum.class );
+
+        for ( Map.Entry<OperationEnum, List<String>> operationList : operationInterceptors.entrySet() )
         {
-            readLock.unlock();
+            List<Interceptor> chain = new ArrayList<>( operationList.getValue().size() );
+
+            for ( String name : operationList.getValue() )
+            {
+                Interceptor interceptor = interceptorNames.get( name );
+
+                if ( interceptor != null )
+                {
+                    chain.add( interceptor );
+                }
+            }
+
+            chains.put( operationList.getKey(), chain.toArray( new Interceptor[0] ) );
         }
 
+        interceptorChains = chains;
     }
 
 
@@ -493,6 +540,8 @@ public class DefaultDirectoryService implements DirectoryService
 
                 operationInterceptors.put( operation, operationList );
             }
+
+            compileInterceptorChains();
         }
         finally
         {
@@ -592,6 +641,8 @@ public class DefaultDirectoryService implements DirectoryService
             {
                 interceptors.add( position, interceptor );
             }
+
+            compileInterceptorChains();
         }
         finally
         {
@@ -630,6 +681,7 @@ public class DefaultDirectoryService implements DirectoryService
 
             interceptorNames.remove( interceptorName );
             interceptors.remove( interceptor );
+            compileInterceptorChains();
         }
         finally
         {
@@ -812,6 +864,26 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSubentryMembershipComputed()
+    {
+        return subentryMembershipComputed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSubentryMembershipComputed( boolean subentryMembershipComputed )
+    {
+        this.subentryMembershipComputed = subentryMembershipComputed;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -964,7 +1036,7 @@ public class DefaultDirectoryService implements DirectoryService
             bindContext.setDn( new Dn( schemaManager, principalDn ) );
         }
         
-        bindContext.setInterceptors( getInterceptors( OperationEnum.BIND ) );
+        bindContext.setInterceptorChain( getInterceptorChain( OperationEnum.BIND ) );
 
         operationManager.bind( bindContext );
 
@@ -1001,7 +1073,7 @@ public class DefaultDirectoryService implements DirectoryService
         }
 
         bindContext.setSaslMechanism( saslMechanism );
-        bindContext.setInterceptors( getInterceptors( OperationEnum.BIND ) );
+        bindContext.setInterceptorChain( getInterceptorChain( OperationEnum.BIND ) );
 
         operationManager.bind( bindContext );
 
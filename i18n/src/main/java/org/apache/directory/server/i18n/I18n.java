@@ -503,6 +503,7 @@ public enum I18n
     ERR_38031_UNEXPECTED_BASE_SCOPE("ERR_38031_UNEXPECTED_BASE_SCOPE"),
     ERR_38032_TIME_UNIT_NOT_SUPPORTED("ERR_38032_TIME_UNIT_NOT_SUPPORTED"),
     ERR_38033_CANNOT_PROCESS_REQUEST_WHILE_BINDING("ERR_38033_CANNOT_PROCESS_REQUEST_WHILE_BINDING"),
+    ERR_38034_CANNOT_DECODE_COMPRESSED_SYNC_BATCH("ERR_38034_CANNOT_DECODE_COMPRESSED_SYNC_BATCH"),
 
     // apacheds-protocol-ntp errors                  39000 - 39999
     // No error
@@ -593,7 +594,8 @@ public enum I18n
     ERR_49042_MUST_HAVE_2_SUB_EXPRESSIONS("ERR_49042_MUST_HAVE_2_SUB_EXPRESSIONS"),
     ERR_49043_PRESENCE_CURSOR_ONLY_SUPPORT_POSITIONING_WHEN_INDEX_EXISTS("ERR_49043_PRESENCE_CURSOR_ONLY_SUPPORT_POSITIONING_WHEN_INDEX_EXISTS"),
     ERR_49044_SUBSTRING_CURSOR_NOT_ORDERED("ERR_49044_SUBSTRING_CURSOR_NOT_ORDERED"),
-    ERR_49045_SCOPE_NODE_NOT_IN_SUBTREE_SCOPE("ERR_49045_SCOPE_NODE_NOT_IN_SUBTREE_SCOPE");
+    ERR_49045_SCOPE_NODE_NOT_IN_SUBTREE_SCOPE("ERR_49045_SCOPE_NODE_NOT_IN_SUBTREE_SCOPE"),
+    ERR_49046_SORTED_INDEX_CURSOR_NOT_ORDERED("ERR_49046_SORTED_INDEX_CURSOR_NOT_ORDERED");
 
     private static final ResourceBundle ERR_BUNDLE = ResourceBundle
         .getBundle( "org.apache.directory.server.i18n.errors", Locale.ROOT );
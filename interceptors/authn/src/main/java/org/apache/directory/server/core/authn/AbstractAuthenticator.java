@@ -276,6 +276,9 @@ public abstract class AbstractAuthenticator implements Authenticator
             InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
         PasswordPolicyConfiguration pPolicyConfig = authenticationInterceptor.getPwdPolicy( userEntry );
 
+        // Take the state updates not yet written into account
+        userEntry = authenticationInterceptor.applyPwdPolicyState( userEntry );
+
         // check for locked out account
         if ( pPolicyConfig.isPwdLockout() )
         {
@@ -103,6 +103,7 @@ import org.apache.directory.server.core.api.interceptor.context.UnbindOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
+import org.apache.directory.server.core.authn.ppolicy.PpolicyStateStore;
 import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
@@ -155,6 +156,12 @@ public class AuthenticationInterceptor extends BaseInterceptor
     /** a container to hold all the ppolicies */
     private PpolicyConfigContainer pwdPolicyContainer;
 
+    /** The maximum delay before the ppolicy state updated on bind is written, 0 to write it synchronously */
+    private long pwdPolicyStateFlushInterval;
+
+    /** The store holding the ppolicy state updates not yet written */
+    private PpolicyStateStore pwdPolicyStateStore;
+
 
     /**
      * Creates an authentication service interceptor.
@@ -187,6 +194,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
 
         loadPwdPolicyStateAttributeTypes();
+
+        pwdPolicyStateStore = new PpolicyStateStore( directoryService, pwdPolicyStateFlushInterval );
+        pwdPolicyStateStore.start();
     }
 
 
@@ -262,6 +272,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
     @Override
     public void destroy()
     {
+        if ( pwdPolicyStateStore != null )
+        {
+            pwdPolicyStateStore.stop();
+        }
+
         authenticatorsMapByType.clear();
         Set<Authenticator> copy = new HashSet<>( authenticators );
         authenticators = new HashSet<>();
@@ -524,6 +539,98 @@ public class AuthenticationInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Update the ppolicy state attributes of a user after a successful bind. If the state store
+     * is enabled, the new values are stored in memory and will be written later. Otherwise, they
+     * are written immediately.
+     */
+    private void updatePwdPolicyState( BindOperationContext bindContext, Entry userEntry, List<Modification> mods )
+        throws LdapException
+    {
+        if ( mods.isEmpty() )
+        {
+            return;
+        }
+
+        Dn bindDn = bindContext.getDn();
+
+        if ( pwdPolicyStateStore.isDeferred() )
+        {
+            pwdPolicyStateStore.update( bindDn, mods );
+        }
+        else
+        {
+            String csnVal = directoryService.getCSN().toString();
+            Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
+                .getEntryCSN(), csnVal );
+            mods.add( csnMod );
+
+            ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
+            bindModCtx.setDn( bindDn );
+            bindModCtx.setEntry( userEntry );
+            bindModCtx.setModItems( mods );
+            bindModCtx.setPushToEvtInterceptor( true );
+
+            internalModify( bindContext, bindModCtx );
+        }
+
+        updateAuthenticatorCaches( bindDn, mods );
+    }
+
+
+    /**
+     * The cached entries are used to check the policy, keep them up to date
+     */
+    private void updateAuthenticatorCaches( Dn bindDn, List<Modification> mods )
+    {
+        for ( Authenticator authenticator : authenticators )
+        {
+            if ( authenticator instanceof SimpleAuthenticator )
+            {
+                ( ( SimpleAuthenticator ) authenticator ).updateCache( bindDn, mods );
+            }
+        }
+    }
+
+
+    /**
+     * Computes the state modifications of a failed bind : the new failure time, and the
+     * lockout if the maximum number of failures is reached. The pwdFailureTime modification
+     * comes first.
+     */
+    private List<Modification> getFailureMods( PasswordPolicyConfiguration policyConfig, Dn userDn,
+        Attribute pwdFailTimeAt, String failureTime ) throws LdapException
+    {
+        purgeFailureTimes( policyConfig, pwdFailTimeAt );
+        pwdFailTimeAt.add( failureTime );
+
+        List<Modification> mods = new ArrayList<>();
+        mods.add( new DefaultModification( REPLACE_ATTRIBUTE, pwdFailTimeAt ) );
+
+        // Checking that we're not locking the admin user of the system partition
+        // See DIRSERVER-1812 (The default admin account should never get locked forever)
+        if ( policyConfig.isPwdLockout() && ( pwdFailTimeAt.size() >= policyConfig.getPwdMaxFailure() )
+            && !userDn.equals( new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN ) ) )
+        {
+            Attribute pwdAccountLockedTimeAt = new DefaultAttribute( pwdAccountLockedTimeAT );
+
+            // if zero, lockout permanently, only admin can unlock it
+            if ( policyConfig.getPwdLockoutDuration() == 0 )
+            {
+                pwdAccountLockedTimeAt.add( "000001010000Z" );
+            }
+            else
+            {
+                pwdAccountLockedTimeAt.add( failureTime );
+            }
+
+            mods.add( new DefaultModification( REPLACE_ATTRIBUTE, pwdAccountLockedTimeAt ) );
+        }
+
+        return mods;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -624,7 +731,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
             lookupContext.setPartition( bindContext.getPartition() );
             lookupContext.setTransaction( bindContext.getTransaction() );
             
-            userEntry = directoryService.getPartitionNexus().lookup( lookupContext );
+            userEntry = applyPwdPolicyState( directoryService.getPartitionNexus().lookup( lookupContext ) );
         }
 
         // check if the user entry is null, it will be null
@@ -643,54 +750,22 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
             if ( ( policyConfig != null ) && ( userEntry != null ) )
             {
-                Attribute pwdFailTimeAt = userEntry.get( pwdFailurTimeAT );
-
-                if ( pwdFailTimeAt == null )
-                {
-                    pwdFailTimeAt = new DefaultAttribute( pwdFailurTimeAT );
-                }
-                else
-                {
-                    purgeFailureTimes( policyConfig, pwdFailTimeAt );
-                }
-
                 String failureTime = DateUtils.getGeneralizedTime( directoryService.getTimeProvider() );
-                pwdFailTimeAt.add( failureTime );
-                Modification pwdFailTimeMod = new DefaultModification( REPLACE_ATTRIBUTE, pwdFailTimeAt );
+                Dn userDn = userEntry.getDn();
 
-                List<Modification> mods = new ArrayList<>();
-                mods.add( pwdFailTimeMod );
+                // The failures of the user are accumulated atomically, and a lockout is written immediately
+                List<Modification> mods = pwdPolicyStateStore.addFailure( userDn,
+                    failureTimes -> getFailureMods( policyConfig, userDn, failureTimes, failureTime ) );
 
-                int numFailures = pwdFailTimeAt.size();
+                updateAuthenticatorCaches( bindDn, mods );
 
-                if ( policyConfig.isPwdLockout() && ( numFailures >= policyConfig.getPwdMaxFailure() ) )
+                if ( pwdPolicyStateStore.isLockout( mods ) )
                 {
-                    // Checking that we're not locking the admin user of the system partition
-                    // See DIRSERVER-1812 (The default admin account should never get locked forever)
-                    if ( !userEntry.getDn().equals( new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN ) ) )
-                    {
-                        Attribute pwdAccountLockedTimeAt = new DefaultAttribute( pwdAccountLockedTimeAT );
-
-                        // if zero, lockout permanently, only admin can unlock it
-                        if ( policyConfig.getPwdLockoutDuration() == 0 )
-                        {
-                            pwdAccountLockedTimeAt.add( "000001010000Z" );
-                        }
-                        else
-                        {
-                            pwdAccountLockedTimeAt.add( failureTime );
-                        }
-
-                        Modification pwdAccountLockedMod = new DefaultModification( REPLACE_ATTRIBUTE,
-                            pwdAccountLockedTimeAt );
-                        mods.add( pwdAccountLockedMod );
-
-                        pwdRespCtrl.setPasswordPolicyError( PasswordPolicyErrorEnum.ACCOUNT_LOCKED );
-                    }
+                    pwdRespCtrl.setPasswordPolicyError( PasswordPolicyErrorEnum.ACCOUNT_LOCKED );
                 }
                 else if ( policyConfig.getPwdMinDelay() > 0 )
                 {
-                    int numDelay = numFailures * policyConfig.getPwdMinDelay();
+                    int numDelay = mods.get( 0 ).getAttribute().size() * policyConfig.getPwdMinDelay();
                     int maxDelay = policyConfig.getPwdMaxDelay();
 
                     if ( numDelay > maxDelay )
@@ -709,21 +784,6 @@ public class AuthenticationInterceptor extends BaseInterceptor
                             bindDn, e );
                     }
                 }
-
-                if ( !mods.isEmpty() )
-                {
-                    String csnVal = directoryService.getCSN().toString();
-                    Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
-                        .getEntryCSN(), csnVal );
-                    mods.add( csnMod );
-                    ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
-                    bindModCtx.setDn( bindDn );
-                    bindModCtx.setEntry( userEntry );
-                    bindModCtx.setModItems( mods );
-                    bindModCtx.setPushToEvtInterceptor( true );
-
-                    internalModify( bindContext, bindModCtx );
-                }
             }
 
             String upDn = bindDn == null ? "" : bindDn.getName();
@@ -791,21 +851,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 }
             }
 
-            if ( !mods.isEmpty() )
-            {
-                String csnVal = directoryService.getCSN().toString();
-                Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
-                    .getEntryCSN(), csnVal );
-                mods.add( csnMod );
-
-                ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
-                bindModCtx.setDn( bindDn );
-                bindModCtx.setEntry( userEntry );
-                bindModCtx.setModItems( mods );
-                bindModCtx.setPushToEvtInterceptor( true );
-                
-                internalModify( bindContext, bindModCtx );
-            }
+            updatePwdPolicyState( bindContext, userEntry, mods );
 
             if ( isPPolicyReqCtrlPresent )
             {
@@ -861,6 +907,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         // propagate the call to the next interceptor
         next( deleteContext );
+        pwdPolicyStateStore.discard( deleteContext.getDn() );
         
         // if the deleted entry contains a password, then invalidate the associated caches
         invalidateAuthenticatorCaches( deleteContext.getDn() );
@@ -923,13 +970,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
     private void invalidateAuthenticatorCaches( Dn principalDn )
     {
-        for ( AuthenticationLevel authMech : authenticatorsMapByType.keySet() )
+        for ( Authenticator authenticator : authenticators )
         {
-            // try each authenticator
-            for ( Authenticator authenticator : getAuthenticators( authMech ) )
-            {
-                authenticator.invalidateCache( principalDn );
-            }
+            authenticator.invalidateCache( principalDn );
         }
     }
 
@@ -946,36 +989,20 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
 
         checkAuthenticated( modifyContext );
+        pwdPolicyStateStore.flush( modifyContext.getDn() );
 
         if ( !directoryService.isPwdPolicyEnabled() || modifyContext.isReplEvent() )
         {
-            processStandardModify( modifyContext );
+            next( modifyContext );
         }
         else
         {
             processPasswordPolicydModify( modifyContext );
         }
-    }
 
-    
-    /**
-     * Proceed with the Modification operation when the PasswordPolicy is not activated.
-     */
-    private void processStandardModify( ModifyOperationContext modifyContext ) throws LdapException
-    {
-        next( modifyContext );
-
-        List<Modification> modifications = modifyContext.getModItems();
-
-        for ( Modification modification : modifications )
-        {
-            if ( directoryService.getAtProvider().getUserPassword()
-                .equals( modification.getAttribute().getAttributeType() ) )
-            {
-                invalidateAuthenticatorCaches( modifyContext.getDn() );
-                break;
-            }
-        }
+        // The cached entries are also used to check the password policy, not only the password :
+        // invalidate them whatever the modified attributes are
+        invalidateAuthenticatorCaches( modifyContext.getDn() );
     }
 
     
@@ -1336,6 +1363,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( moveContext );
         checkPwdReset( moveContext );
+        pwdPolicyStateStore.flush( moveContext.getDn() );
         next( moveContext );
         invalidateAuthenticatorCaches( moveContext.getDn() );
     }
@@ -1354,6 +1382,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( moveAndRenameContext );
         checkPwdReset( moveAndRenameContext );
+        pwdPolicyStateStore.flush( moveAndRenameContext.getDn() );
         next( moveAndRenameContext );
         invalidateAuthenticatorCaches( moveAndRenameContext.getDn() );
     }
@@ -1372,6 +1401,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( renameContext );
         checkPwdReset( renameContext );
+        pwdPolicyStateStore.flush( renameContext.getDn() );
         next( renameContext );
         invalidateAuthenticatorCaches( renameContext.getDn() );
     }
@@ -1874,6 +1904,47 @@ public class AuthenticationInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Apply the ppolicy state updates not yet written on a user entry.
+     *
+     * @param userEntry The user entry, as read from the backend
+     * @return The entry with the latest ppolicy state
+     */
+    public Entry applyPwdPolicyState( Entry userEntry )
+    {
+        return pwdPolicyStateStore.apply( userEntry );
+    }
+
+
+    /**
+     * @return the maximum delay before the ppolicy state updated on bind is written, in milliseconds
+     */
+    public long getPwdPolicyStateFlushInterval()
+    {
+        return pwdPolicyStateFlushInterval;
+    }
+
+
+    /**
+     * Set the maximum delay before the ppolicy state updated on bind (failure times, last success, grace
+     * logins) is written, the updates lost on a crash. With 0, the default, it is written on each bind.
+     *
+     * @param pwdPolicyStateFlushInterval the delay, in milliseconds
+     */
+    public void setPwdPolicyStateFlushInterval( long pwdPolicyStateFlushInterval )
+    {
+        this.pwdPolicyStateFlushInterval = pwdPolicyStateFlushInterval;
+
+        if ( pwdPolicyStateStore != null )
+        {
+            // Already initialized : write the pending updates, and use a new store
+            pwdPolicyStateStore.stop();
+            pwdPolicyStateStore = new PpolicyStateStore( directoryService, pwdPolicyStateFlushInterval );
+            pwdPolicyStateStore.start();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
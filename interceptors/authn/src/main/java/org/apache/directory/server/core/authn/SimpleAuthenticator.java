@@ -20,13 +20,17 @@
 package org.apache.directory.server.core.authn;
 
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import javax.naming.Context;
 
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -42,6 +46,9 @@ import org.apache.directory.server.core.api.interceptor.context.BindOperationCon
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.i18n.I18n;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 
 /**
  * A simple {@link Authenticator} that authenticates clear text passwords
@@ -58,6 +65,15 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     /** A speedup for logger in debug mode */
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
+    /** Declare a default for the cache size */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /** The default time to live of a cached credential : 5 minutes */
+    private static final long DEFAULT_CACHE_TTL = 300000L;
+
+    /** The number of stripes used to detect concurrent invalidations */
+    private static final int NB_STRIPES = 64;
+
     /**
      * A cache to store passwords. It's a speedup, we will be able to avoid backend lookups.
      *
@@ -71,13 +87,44 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * The update of the backend and partition cache is already correctly handled, so we will
      * just have to offer an access to refresh the local cache.
      *
-     * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * The cache is bounded by size and by time, and does not need any external synchronization.
+     * It is keyed by the normalized Dn, and also holds the user entry, which is needed to
+     * check the password policy.
      */
-    private final LRUMap credentialCache;
+    private volatile Cache<String, CachedCredentials> credentialCache;
+
+    /**
+     * Counters incremented on each invalidation, so that a credential read from the backend
+     * while the entry is being modified is not stored in the cache.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray( NB_STRIPES );
+
+    /** The maximum number of cached credentials */
+    private int cacheSize = DEFAULT_CACHE_SIZE;
 
-    /** Declare a default for this cache. 100 entries seems to be enough */
-    private static final int DEFAULT_CACHE_SIZE = 100;
+    /** The time to live of a cached credential, in milliseconds */
+    private long cacheTtl = DEFAULT_CACHE_TTL;
+
+    /** The recently verified credentials, null if this cache is disabled */
+    private volatile VerifiedCredentialCache verifiedCredentialCache;
+
+    /**
+     * The cached credentials of a user : the stored passwords, and the entry they have
+     * been read from.
+     */
+    private static final class CachedCredentials
+    {
+        private final byte[][] storedPasswords;
+
+        private final Entry entry;
+
+
+        private CachedCredentials( byte[][] storedPasswords, Entry entry )
+        {
+            this.storedPasswords = storedPasswords;
+            this.entry = entry;
+        }
+    }
 
 
     /**
@@ -86,7 +133,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator()
     {
         super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = createCache();
     }
 
 
@@ -99,7 +146,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator( Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = createCache();
     }
 
 
@@ -109,9 +156,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize )
     {
-        super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, Dn.ROOT_DSE );
     }
 
 
@@ -125,7 +170,21 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this.cacheSize = cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE;
+        credentialCache = createCache();
+    }
+
+
+    private Cache<String, CachedCredentials> createCache()
+    {
+        return Caffeine.newBuilder().maximumSize( cacheSize )
+            .expireAfterWrite( Duration.ofMillis( cacheTtl ) ).recordStats().build();
+    }
+
+
+    private int getStripe( String normName )
+    {
+        return ( normName.hashCode() & Integer.MAX_VALUE ) % NB_STRIPES;
     }
 
 
@@ -137,22 +196,22 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
     {
-        LdapPrincipal principal = null;
+        String normName = bindContext.getDn().getNormName();
+        CachedCredentials credentials = credentialCache.getIfPresent( normName );
+        byte[][] storedPasswords;
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
+        if ( credentials != null )
         {
-            synchronized ( credentialCache )
-            {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
-            }
+            storedPasswords = credentials.storedPasswords;
+            bindContext.setEntry( new ClonedServerEntry( credentials.entry ) );
         }
-
-        byte[][] storedPasswords;
-
-        if ( principal == null )
+        else
         {
-            // Not found in the cache
+            // Not found in the cache. Remember the invalidations count, to detect
+            // a modification of the entry while we are reading it
+            int stripe = getStripe( normName );
+            long generation = generations.get( stripe );
+
             // Get the user password from the backend
             storedPasswords = lookupUserPassword( bindContext );
 
@@ -166,21 +225,19 @@ public class SimpleAuthenticator extends AbstractAuthenticator
                     {};
             }
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
-
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
+            // Now, update the local cache, if the entry has not been modified meanwhile
+            if ( generations.get( stripe ) == generation )
             {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
+                Entry userEntry = ( ( ClonedServerEntry ) bindContext.getEntry() ).getOriginalEntry();
+                credentialCache.put( normName, new CachedCredentials( storedPasswords, userEntry.clone() ) );
             }
         }
 
+        // Create a new principal for each bind, it will be modified
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( storedPasswords );
+
         return principal;
     }
 
@@ -221,9 +278,12 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         }
 
         // Now, compare the passwords.
+        String normName = bindContext.getDn().getNormName();
+        VerifiedCredentialCache verifiedCache = verifiedCredentialCache;
+
         for ( byte[] storedPassword : storedPasswords )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            if ( comparePasswords( verifiedCache, normName, credentials, storedPassword ) )
             {
                 if ( ppe != null )
                 {
@@ -247,6 +307,36 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     }
 
 
+    /**
+     * Compare the credentials with a stored password. If the stored password is hashed, and
+     * the verified credentials cache is enabled, we first check if the same credentials
+     * have been recently verified, to avoid computing the hash again.
+     */
+    private boolean comparePasswords( VerifiedCredentialCache verifiedCache, String normName, byte[] credentials,
+        byte[] storedPassword )
+    {
+        if ( ( verifiedCache == null ) || ( credentials == null )
+            || ( PasswordUtil.findAlgorithm( storedPassword ) == null ) )
+        {
+            return PasswordUtil.compareCredentials( credentials, storedPassword );
+        }
+
+        if ( verifiedCache.isVerified( normName, credentials, storedPassword ) )
+        {
+            return true;
+        }
+
+        if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+        {
+            verifiedCache.verified( normName, credentials, storedPassword );
+
+            return true;
+        }
+
+        return false;
+    }
+
+
     /**
      * Local function which request the password from the backend
      * @param bindContext the Bind operation context
@@ -343,9 +433,161 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
+        String normName = bindDn.getNormName();
+        generations.incrementAndGet( getStripe( normName ) );
+        credentialCache.invalidate( normName );
+
+        VerifiedCredentialCache verifiedCache = verifiedCredentialCache;
+
+        if ( verifiedCache != null )
         {
-            credentialCache.remove( bindDn.getNormName() );
+            verifiedCache.invalidate( normName );
         }
     }
+
+
+    /**
+     * Apply some modifications on the cached entry of a user. This is used when the
+     * password policy state of the user is updated on bind, to keep the cached entry
+     * in sync with the backend without discarding it.
+     *
+     * @param bindDn The user Dn
+     * @param modifications The modifications applied on the user entry
+     */
+    public void updateCache( Dn bindDn, List<Modification> modifications )
+    {
+        String normName = bindDn.getNormName();
+        generations.incrementAndGet( getStripe( normName ) );
+
+        // The entry is removed from the cache if the modifications can't be applied
+        credentialCache.asMap().computeIfPresent( normName,
+            ( name, credentials ) -> applyModifications( credentials, modifications ) );
+    }
+
+
+    private CachedCredentials applyModifications( CachedCredentials credentials, List<Modification> modifications )
+    {
+        Entry entry = credentials.entry.clone();
+
+        try
+        {
+            for ( Modification modification : modifications )
+            {
+                Attribute attribute = modification.getAttribute();
+
+                switch ( modification.getOperation() )
+                {
+                    case ADD_ATTRIBUTE:
+                        entry.add( attribute.clone() );
+                        break;
+
+                    case REMOVE_ATTRIBUTE:
+                        if ( attribute.size() == 0 )
+                        {
+                            entry.removeAttributes( attribute.getAttributeType() );
+                        }
+                        else
+                        {
+                            entry.remove( attribute );
+                        }
+
+                        break;
+
+                    default:
+                        if ( attribute.size() == 0 )
+                        {
+                            entry.removeAttributes( attribute.getAttributeType() );
+                        }
+                        else
+                        {
+                            entry.put( attribute.clone() );
+                        }
+
+                        break;
+                }
+            }
+        }
+        catch ( LdapException le )
+        {
+            return null;
+        }
+
+        return new CachedCredentials( credentials.storedPasswords, entry );
+    }
+
+
+    /**
+     * Set the maximum number of credentials kept in the cache. The cached
+     * credentials are discarded.
+     *
+     * @param cacheSize The cache size
+     */
+    public void setCacheSize( int cacheSize )
+    {
+        this.cacheSize = cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE;
+        credentialCache = createCache();
+    }
+
+
+    /**
+     * Set the duration a credential is kept in the cache. The cached credentials are
+     * discarded.
+     *
+     * @param cacheTtl The time to live, in milliseconds
+     */
+    public void setCacheTtl( long cacheTtl )
+    {
+        this.cacheTtl = cacheTtl > 0 ? cacheTtl : DEFAULT_CACHE_TTL;
+        credentialCache = createCache();
+    }
+
+
+    /**
+     * Enable the verified credentials cache : the credentials successfully compared with a
+     * hashed password are remembered for a short time, so that the hash is not computed again
+     * when the same credentials are presented. Only a keyed digest is kept in memory, never
+     * the credentials.
+     *
+     * @param verifiedCacheTtl The time a verification is kept, in milliseconds, 0 to disable the cache
+     */
+    public void setVerifiedCacheTtl( long verifiedCacheTtl )
+    {
+        if ( verifiedCacheTtl > 0 )
+        {
+            verifiedCredentialCache = new VerifiedCredentialCache( cacheSize, verifiedCacheTtl );
+        }
+        else
+        {
+            verifiedCredentialCache = null;
+        }
+    }
+
+
+    /**
+     * @return The number of binds for which the credentials were found in the verified credentials cache
+     */
+    public long getVerifiedCacheHitCount()
+    {
+        VerifiedCredentialCache verifiedCache = verifiedCredentialCache;
+
+        return verifiedCache == null ? 0L : verifiedCache.getHitCount();
+    }
+
+
+    /**
+     * @return The number of binds for which the credentials were found in the cache
+     */
+    public long getCacheHitCount()
+    {
+        return credentialCache.stats().hitCount();
+    }
+
+
+    /**
+     * @return The number of binds for which the credentials were read from the backend
+     */
+    public long getCacheMissCount()
+    {
+        return credentialCache.stats().missCount();
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.directory.api.util.Strings;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+
+/**
+ * A memory only cache of the credentials recently verified against a hashed password, used
+ * to avoid computing the hash again (PKCS5S2, CRYPT-SHA-512, SSHA512...) when the same
+ * credentials are presented many times.
+ * <p>
+ * Neither the credentials nor the stored password are kept : we store, for each user, a
+ * HMAC of the user Dn, the stored password and the presented credentials, computed with
+ * a random key generated when the cache is created. A verification is recognized only if
+ * the same credentials are presented for the same stored password.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class VerifiedCredentialCache
+{
+    /** The algorithm used to compute the digests */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** The random key used to compute the digests */
+    private final SecretKeySpec key;
+
+    /** The last verified digest, per user normalized Dn */
+    private final Cache<String, byte[]> verifiedDigests;
+
+    /** A Mac per thread, they are not thread safe */
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial( this::createMac );
+
+    /** The number of verifications found in the cache */
+    private final LongAdder hitCount = new LongAdder();
+
+
+    /**
+     * Creates a new instance of VerifiedCredentialCache.
+     *
+     * @param cacheSize The maximum number of users
+     * @param cacheTtl The time a verification is kept, in milliseconds
+     */
+    VerifiedCredentialCache( int cacheSize, long cacheTtl )
+    {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes( keyBytes );
+        key = new SecretKeySpec( keyBytes, HMAC_ALGORITHM );
+
+        verifiedDigests = Caffeine.newBuilder().maximumSize( cacheSize )
+            .expireAfterWrite( Duration.ofMillis( cacheTtl ) ).build();
+    }
+
+
+    private Mac createMac()
+    {
+        try
+        {
+            Mac mac = Mac.getInstance( HMAC_ALGORITHM );
+            mac.init( key );
+
+            return mac;
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            throw new IllegalStateException( gse.getMessage(), gse );
+        }
+    }
+
+
+    private void update( Mac mac, byte[] bytes )
+    {
+        // Prefix with the length, so that distinct inputs can't produce the same sequence
+        mac.update( ( byte ) ( bytes.length >>> 24 ) );
+        mac.update( ( byte ) ( bytes.length >>> 16 ) );
+        mac.update( ( byte ) ( bytes.length >>> 8 ) );
+        mac.update( ( byte ) bytes.length );
+        mac.update( bytes );
+    }
+
+
+    private byte[] digest( String normName, byte[] credentials, byte[] storedPassword )
+    {
+        Mac mac = macs.get();
+        update( mac, Strings.getBytesUtf8( normName ) );
+        update( mac, storedPassword );
+        update( mac, credentials );
+
+        return mac.doFinal();
+    }
+
+
+    /**
+     * Tells if some credentials have been recently verified against a stored password.
+     *
+     * @param normName The user normalized Dn
+     * @param credentials The presented credentials
+     * @param storedPassword The stored password
+     * @return <code>true</code> if the credentials match the stored password
+     */
+    boolean isVerified( String normName, byte[] credentials, byte[] storedPassword )
+    {
+        byte[] verifiedDigest = verifiedDigests.getIfPresent( normName );
+
+        if ( ( verifiedDigest != null )
+            && MessageDigest.isEqual( verifiedDigest, digest( normName, credentials, storedPassword ) ) )
+        {
+            hitCount.increment();
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Store the fact that some credentials match a stored password.
+     *
+     * @param normName The user normalized Dn
+     * @param credentials The presented credentials
+     * @param storedPassword The stored password
+     */
+    void verified( String normName, byte[] credentials, byte[] storedPassword )
+    {
+        verifiedDigests.put( normName, digest( normName, credentials, storedPassword ) );
+    }
+
+
+    /**
+     * Forget the verifications done for a user.
+     *
+     * @param normName The user normalized Dn
+     */
+    void invalidate( String normName )
+    {
+        verifiedDigests.invalidate( normName );
+    }
+
+
+    /**
+     * @return The number of verifications found in the cache
+     */
+    long getHitCount()
+    {
+        return hitCount.sum();
+    }
+}
@@ -0,0 +1,794 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.core.authn.ppolicy;
+
+
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT;
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT;
+import static org.apache.directory.api.ldap.model.entry.ModificationOperation.REPLACE_ATTRIBUTE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A store for the password policy state attributes updated on bind (pwdFailureTime,
+ * pwdLastSuccess, pwdGraceUseTime...). The updates are kept in memory, coalesced per
+ * user, and written to the backend in batches by a background thread, at most
+ * <code>flushInterval</code> milliseconds after they have been done. This is the
+ * window of updates that can be lost on a crash.
+ * <br>
+ * The pending values are applied on the user entry read during a bind, so that the
+ * decisions are taken on the latest state. The failed binds of a user are serialized
+ * and accumulated in the store, and the updates that lock an account are never
+ * deferred, so that the lockout stays strict.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PpolicyStateStore
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PpolicyStateStore.class );
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The maximum delay before a pending update is written, in milliseconds */
+    private final long flushInterval;
+
+    /** The pending states, per user normalized Dn */
+    private final Map<String, PendingState> pendingStates = new ConcurrentHashMap<>();
+
+    /** The pwdFailureTime AttributeType */
+    private final AttributeType pwdFailureTimeAT;
+
+    /** The pwdAccountLockedTime AttributeType */
+    private final AttributeType pwdAccountLockedTimeAT;
+
+    /** The thread writing the pending states */
+    private ScheduledExecutorService flusher;
+
+
+    /**
+     * Computes the state modifications done on a failed bind.
+     */
+    @FunctionalInterface
+    public interface FailureHandler
+    {
+        /**
+         * Adds a failure to the failure times of a user, and computes the state modifications.
+         *
+         * @param failureTimes The failure times of the user, including the ones of the previous binds
+         * @return The state modifications to apply
+         * @throws LdapException If the modifications can't be computed
+         */
+        List<Modification> addFailure( Attribute failureTimes ) throws LdapException;
+    }
+
+
+    /**
+     * The state attributes of a user, as they will be once written.
+     * An attribute without values is an attribute to remove.
+     */
+    private static final class PendingState
+    {
+        /** The user Dn */
+        private final Dn dn;
+
+        /** The attributes to write. They are replaced, never modified */
+        private final Map<AttributeType, Attribute> attributes = new HashMap<>();
+
+        /** Incremented each time the attributes are updated */
+        private long version;
+
+        /** Tells if the state is being written by the flusher */
+        private boolean inFlight;
+
+        /** Tells if the state has been written */
+        private boolean written;
+
+        /** The time the state has been written */
+        private long writtenTime;
+
+
+        PendingState( Dn dn )
+        {
+            this.dn = dn;
+        }
+
+
+        /**
+         * Waits for the write done by the flusher, if any. The caller holds the lock on the state.
+         */
+        private void awaitFlight()
+        {
+            while ( inFlight )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The attributes of a state, as they were when the write started.
+     */
+    private static final class Snapshot
+    {
+        /** The state */
+        private final PendingState state;
+
+        /** The attributes to write */
+        private final List<Attribute> attributes;
+
+        /** The version of the state */
+        private final long version;
+
+
+        Snapshot( PendingState state )
+        {
+            this.state = state;
+            this.attributes = new ArrayList<>( state.attributes.values() );
+            this.version = state.version;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of PpolicyStateStore.
+     *
+     * @param directoryService The DirectoryService instance
+     * @param flushInterval The maximum delay before a pending update is written, in milliseconds
+     */
+    public PpolicyStateStore( DirectoryService directoryService, long flushInterval )
+    {
+        this.directoryService = directoryService;
+        this.flushInterval = flushInterval;
+        pwdFailureTimeAT = directoryService.getSchemaManager().getAttributeType( PWD_FAILURE_TIME_AT );
+        pwdAccountLockedTimeAT = directoryService.getSchemaManager().getAttributeType( PWD_ACCOUNT_LOCKED_TIME_AT );
+    }
+
+
+    /**
+     * @return true if the updates are deferred, false if they have to be written synchronously
+     */
+    public boolean isDeferred()
+    {
+        return flushInterval > 0;
+    }
+
+
+    /**
+     * Starts the background thread writing the pending updates, if the updates are deferred
+     */
+    public void start()
+    {
+        if ( !isDeferred() )
+        {
+            return;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = Executors.defaultThreadFactory().newThread( runnable );
+            thread.setName( "ppolicy-state-flusher" );
+            thread.setDaemon( true );
+
+            return thread;
+        } );
+
+        flusher.scheduleWithFixedDelay( this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Stops the background thread, and writes the pending updates
+     */
+    public void stop()
+    {
+        if ( flusher != null )
+        {
+            flusher.shutdown();
+
+            try
+            {
+                flusher.awaitTermination( flushInterval + 1000L, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            flusher = null;
+        }
+
+        flush();
+        pendingStates.clear();
+    }
+
+
+    /**
+     * Gets the pending state of a user, creating it if needed, and locks it. The caller must
+     * release the lock. A state that has been written is replaced by a new one, still holding
+     * the written values, as they may not be visible yet to the binds.
+     */
+    private PendingState lockState( Dn dn )
+    {
+        while ( true )
+        {
+            PendingState state = pendingStates.computeIfAbsent( dn.getNormName(), key -> new PendingState( dn ) );
+
+            synchronized ( state )
+            {
+                if ( !state.written )
+                {
+                    return state;
+                }
+
+                PendingState newState = new PendingState( dn );
+                newState.attributes.putAll( state.attributes );
+                pendingStates.replace( dn.getNormName(), state, newState );
+            }
+        }
+    }
+
+
+    /**
+     * Stores some modifications in a state. The caller holds the lock on the state.
+     */
+    private static void put( PendingState state, List<Modification> mods )
+    {
+        for ( Modification mod : mods )
+        {
+            Attribute attribute = mod.getAttribute();
+
+            if ( mod.getOperation() == ModificationOperation.REMOVE_ATTRIBUTE )
+            {
+                state.attributes.put( attribute.getAttributeType(),
+                    new DefaultAttribute( attribute.getAttributeType() ) );
+            }
+            else
+            {
+                state.attributes.put( attribute.getAttributeType(), attribute.clone() );
+            }
+        }
+
+        state.version++;
+    }
+
+
+    /**
+     * Stores the new values of some state attributes for a user. They replace the
+     * previous pending values of the same attributes. An attribute without values
+     * will be removed from the entry.
+     *
+     * @param dn The user Dn
+     * @param attributes The state attributes
+     */
+    public void update( Dn dn, Attribute... attributes )
+    {
+        List<Modification> mods = new ArrayList<>( attributes.length );
+
+        for ( Attribute attribute : attributes )
+        {
+            mods.add( new DefaultModification( REPLACE_ATTRIBUTE, attribute ) );
+        }
+
+        update( dn, mods );
+    }
+
+
+    /**
+     * Stores the state modifications done on a user bind. The removed attributes are
+     * entirely removed, the added values must contain the existing ones.
+     *
+     * @param dn The user Dn
+     * @param mods The state modifications
+     */
+    public void update( Dn dn, List<Modification> mods )
+    {
+        PendingState state = lockState( dn );
+
+        synchronized ( state )
+        {
+            put( state, mods );
+        }
+    }
+
+
+    /**
+     * Tells if some state modifications lock the account.
+     *
+     * @param mods The state modifications
+     * @return true if a pwdAccountLockedTime value is set
+     */
+    public boolean isLockout( List<Modification> mods )
+    {
+        for ( Modification mod : mods )
+        {
+            if ( ( mod.getOperation() != ModificationOperation.REMOVE_ATTRIBUTE )
+                && mod.getAttribute().getAttributeType().equals( pwdAccountLockedTimeAT ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Records a failed bind. The failed binds of a user are serialized : each one sees the
+     * failure times recorded by the previous ones, even if they have not been written yet.
+     * The modifications are written immediately, along with the pending state of the user,
+     * if they lock the account or if the updates are not deferred.
+     *
+     * @param dn The user Dn
+     * @param handler The handler adding the failure and computing the modifications
+     * @return The state modifications
+     * @throws LdapException If the modifications can't be computed or written
+     */
+    public List<Modification> addFailure( Dn dn, FailureHandler handler ) throws LdapException
+    {
+        PendingState state = lockState( dn );
+
+        synchronized ( state )
+        {
+            Attribute failureTimes = state.attributes.get( pwdFailureTimeAT );
+
+            if ( failureTimes == null )
+            {
+                // Not updated since the last write : the backend is up to date
+                failureTimes = readFailureTimes( dn );
+            }
+
+            failureTimes = ( failureTimes == null ) ? new DefaultAttribute( pwdFailureTimeAT ) : failureTimes.clone();
+
+            List<Modification> mods = handler.addFailure( failureTimes );
+            put( state, mods );
+
+            if ( isDeferred() && !isLockout( mods ) )
+            {
+                return mods;
+            }
+
+            // An older value may be being written
+            state.awaitFlight();
+
+            try
+            {
+                write( directoryService.getPartitionNexus().getPartition( dn ), new Snapshot( state ) );
+            }
+            catch ( LdapException le )
+            {
+                if ( !isDeferred() )
+                {
+                    // Nothing will write it later
+                    state.written = true;
+                    pendingStates.remove( dn.getNormName(), state );
+                }
+
+                throw le;
+            }
+
+            state.written = true;
+            state.writtenTime = System.currentTimeMillis();
+
+            if ( !isDeferred() )
+            {
+                pendingStates.remove( dn.getNormName(), state );
+            }
+
+            return mods;
+        }
+    }
+
+
+    /**
+     * Reads the failure times of a user in the backend
+     */
+    private Attribute readFailureTimes( Dn dn ) throws LdapException
+    {
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            LookupOperationContext lookupContext = new LookupOperationContext( directoryService.getAdminSession(),
+                dn, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+            lookupContext.setPartition( partition );
+            lookupContext.setTransaction( partitionTxn );
+
+            Entry entry = directoryService.getPartitionNexus().lookup( lookupContext );
+
+            return ( entry == null ) ? null : entry.get( pwdFailureTimeAT );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Applies the pending state of a user on its entry.
+     *
+     * @param entry The user entry, as read from the backend
+     * @return A copy of the entry with the pending values, or the entry itself if there are none
+     */
+    public Entry apply( Entry entry )
+    {
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        PendingState state = pendingStates.get( entry.getDn().getNormName() );
+
+        if ( state == null )
+        {
+            return entry;
+        }
+
+        synchronized ( state )
+        {
+            // A written state is still applied : the entry may have been read before the write
+            Entry updated = entry.clone();
+
+            for ( Attribute attribute : state.attributes.values() )
+            {
+                if ( attribute.size() == 0 )
+                {
+                    updated.removeAttributes( attribute.getAttributeType() );
+                }
+                else
+                {
+                    try
+                    {
+                        updated.put( attribute.clone() );
+                    }
+                    catch ( LdapException le )
+                    {
+                        // Can't happen, the attribute is schema aware
+                        LOG.error( "Cannot apply the pending {} value on {}", attribute.getId(), entry.getDn() );
+                    }
+                }
+            }
+
+            return updated;
+        }
+    }
+
+
+    /**
+     * Writes the pending state of a user if any, and forgets about it. This is
+     * called before the entry is modified, moved or renamed.
+     *
+     * @param dn The user Dn
+     */
+    public void flush( Dn dn )
+    {
+        PendingState state = pendingStates.get( dn.getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.awaitFlight();
+
+                if ( !state.written )
+                {
+                    try
+                    {
+                        write( directoryService.getPartitionNexus().getPartition( state.dn ), new Snapshot( state ) );
+                    }
+                    catch ( LdapException le )
+                    {
+                        LOG.warn( "Cannot write the password policy state of {}", dn, le );
+                    }
+                }
+
+                // The entry is going to be modified, the state must not be applied anymore
+                state.written = true;
+                pendingStates.remove( dn.getNormName(), state );
+            }
+        }
+    }
+
+
+    /**
+     * Forgets about the pending state of a user. This is called when the entry is deleted,
+     * or when the state has been written by the caller.
+     *
+     * @param dn The user Dn
+     */
+    public void discard( Dn dn )
+    {
+        PendingState state = pendingStates.remove( dn.getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.written = true;
+            }
+        }
+    }
+
+
+    /**
+     * Writes all the pending states, one transaction per partition. Each state is only
+     * locked while its attributes are copied, so that the binds are not blocked by the
+     * writes.
+     */
+    public void flush()
+    {
+        Map<Partition, List<Snapshot>> batches = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        for ( PendingState state : pendingStates.values() )
+        {
+            Snapshot snapshot;
+
+            synchronized ( state )
+            {
+                if ( state.written )
+                {
+                    // Forget the states written since long enough for no bind to still use them
+                    if ( now - state.writtenTime > flushInterval )
+                    {
+                        pendingStates.remove( state.dn.getNormName(), state );
+                    }
+
+                    continue;
+                }
+
+                if ( state.inFlight )
+                {
+                    continue;
+                }
+
+                snapshot = new Snapshot( state );
+                state.inFlight = true;
+            }
+
+            try
+            {
+                Partition partition = directoryService.getPartitionNexus().getPartition( state.dn );
+                batches.computeIfAbsent( partition, p -> new ArrayList<>() ).add( snapshot );
+            }
+            catch ( LdapException le )
+            {
+                LOG.warn( "Cannot write the password policy state of {}", state.dn, le );
+                landed( snapshot, false );
+                discard( state.dn );
+            }
+        }
+
+        for ( Map.Entry<Partition, List<Snapshot>> batch : batches.entrySet() )
+        {
+            Set<Snapshot> written = write( batch.getKey(), batch.getValue() );
+
+            for ( Snapshot snapshot : batch.getValue() )
+            {
+                landed( snapshot, written.contains( snapshot ) );
+            }
+        }
+    }
+
+
+    /**
+     * Ends the write of a snapshot. The state is written if it has not been updated
+     * in the meantime, otherwise it will be written again on the next flush.
+     */
+    private static void landed( Snapshot snapshot, boolean written )
+    {
+        PendingState state = snapshot.state;
+
+        synchronized ( state )
+        {
+            state.inFlight = false;
+
+            if ( written && ( state.version == snapshot.version ) )
+            {
+                state.written = true;
+                state.writtenTime = System.currentTimeMillis();
+            }
+
+            state.notifyAll();
+        }
+    }
+
+
+    /**
+     * Writes some states in a partition, in one single transaction. The states which can't
+     * be written, or all of them if the transaction fails, will be written again on the next
+     * flush. The states of the deleted entries are dropped.
+     *
+     * @return The snapshots which have been written
+     */
+    private Set<Snapshot> write( Partition partition, List<Snapshot> snapshots )
+    {
+        Set<Snapshot> written = new HashSet<>();
+        PartitionTxn partitionTxn = null;
+
+        try
+        {
+            partitionTxn = partition.beginWriteTransaction();
+
+            for ( Snapshot snapshot : snapshots )
+            {
+                try
+                {
+                    modify( partition, partitionTxn, snapshot );
+                    written.add( snapshot );
+                }
+                catch ( LdapNoSuchObjectException lnsoe )
+                {
+                    // The entry has been deleted in the meantime
+                    LOG.debug( "The entry {} does not exist anymore, dropping its password policy state",
+                        snapshot.state.dn );
+                    discard( snapshot.state.dn );
+                }
+                catch ( LdapException le )
+                {
+                    LOG.warn( "Cannot write the password policy state of {} : {}", snapshot.state.dn,
+                        le.getMessage() );
+                }
+            }
+
+            partitionTxn.commit();
+
+            return written;
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot write the password policy states in partition {}", partition.getId(), ioe );
+            abort( partitionTxn );
+
+            return Collections.emptySet();
+        }
+    }
+
+
+    /**
+     * Writes the state of a user, in its own transaction. The caller holds the lock on the state.
+     */
+    private void write( Partition partition, Snapshot snapshot ) throws LdapException
+    {
+        PartitionTxn partitionTxn = null;
+
+        try
+        {
+            partitionTxn = partition.beginWriteTransaction();
+            modify( partition, partitionTxn, snapshot );
+            partitionTxn.commit();
+        }
+        catch ( LdapException le )
+        {
+            abort( partitionTxn );
+
+            throw le;
+        }
+        catch ( IOException ioe )
+        {
+            abort( partitionTxn );
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Replaces the state attributes of a user in a transaction
+     *
+     * @throws LdapNoSuchObjectException If the entry does not exist anymore
+     */
+    private void modify( Partition partition, PartitionTxn partitionTxn, Snapshot snapshot ) throws LdapException
+    {
+        HasEntryOperationContext hasEntryContext = new HasEntryOperationContext( directoryService.getAdminSession(),
+            snapshot.state.dn );
+        hasEntryContext.setPartition( partition );
+        hasEntryContext.setTransaction( partitionTxn );
+
+        if ( !partition.hasEntry( hasEntryContext ) )
+        {
+            throw new LdapNoSuchObjectException( snapshot.state.dn.getName() );
+        }
+
+        List<Modification> mods = new ArrayList<>();
+
+        for ( Attribute attribute : snapshot.attributes )
+        {
+            mods.add( new DefaultModification( REPLACE_ATTRIBUTE, attribute ) );
+        }
+
+        mods.add( new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
+            .getEntryCSN(), directoryService.getCSN().toString() ) );
+
+        ModifyOperationContext modContext = new ModifyOperationContext( directoryService.getAdminSession() );
+        modContext.setDn( snapshot.state.dn );
+        modContext.setModItems( mods );
+        modContext.setPushToEvtInterceptor( true );
+        modContext.setPartition( partition );
+        modContext.setTransaction( partitionTxn );
+
+        directoryService.getPartitionNexus().modify( modContext );
+    }
+
+
+    /**
+     * Aborts a transaction, if it has been started
+     */
+    private static void abort( PartitionTxn partitionTxn )
+    {
+        try
+        {
+            if ( partitionTxn != null )
+            {
+                partitionTxn.abort();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot abort the transaction", ioe );
+        }
+    }
+}
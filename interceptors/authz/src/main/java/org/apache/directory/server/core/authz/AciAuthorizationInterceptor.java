@@ -31,8 +31,6 @@ import java.util.Set;
 
 import javax.naming.directory.SearchControls;
 
-import org.apache.directory.api.ldap.aci.ACIItem;
-import org.apache.directory.api.ldap.aci.ACIItemParser;
 import org.apache.directory.api.ldap.aci.ACITuple;
 import org.apache.directory.api.ldap.aci.MicroOperation;
 import org.apache.directory.api.ldap.model.constants.Loggers;
@@ -53,7 +51,6 @@ import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
-import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -81,6 +78,8 @@ import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.core.authz.support.ACDFEngine;
 import org.apache.directory.server.core.authz.support.AciContext;
+import org.apache.directory.server.core.authz.support.AciDecisionCache;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.Dependency;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -152,12 +151,15 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** a groupCache that responds to add, delete, and modify attempts */
     private GroupCache groupCache;
 
-    /** a normalizing ACIItem parser */
-    private ACIItemParser aciParser;
+    /** Tells if the user's groups include the groups containing them */
+    private boolean nestedGroups;
 
     /** use and instance of the ACDF engine */
     private ACDFEngine engine;
 
+    /** the decisions made by the engine for the entries which content doesn't matter */
+    private AciDecisionCache decisionCache;
+
     /** the system wide subschemaSubentryDn */
     private Dn subschemaSubentryDn;
 
@@ -179,6 +181,18 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Sets whether the userGroup user classes match the members of the nested groups. Must be
+     * set before the interceptor is initialized.
+     *
+     * @param nestedGroups true if a member of a group belongs to the groups containing this group
+     */
+    public void setNestedGroups( boolean nestedGroups )
+    {
+        this.nestedGroups = nestedGroups;
+    }
+
+
     /**
      * Load the Tuples into the cache
      */
@@ -277,7 +291,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
     /**
      * Initializes this interceptor based service by getting a handle on the nexus, setting up
-     * the tuple and group membership caches, the ACIItem parser and the ACDF engine.
+     * the tuple and group membership caches and the ACDF engine. The ACIItems are parsed
+     * by the tuple cache.
      *
      * @param directoryService the directory service core
      * @throws LdapException if there are problems during initialization
@@ -295,11 +310,11 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         // Create the caches
         tupleCache = new TupleCache( adminSession );
-        groupCache = new GroupCache( directoryService );
+        groupCache = new GroupCache( directoryService, nestedGroups );
 
-        // Iitialize the ACI PARSER and ACDF engine
-        aciParser = new ACIItemParser( new ConcreteNameComponentNormalizer( schemaManager ), schemaManager );
-        engine = new ACDFEngine( schemaManager );
+        // Initialize the ACDF engine
+        decisionCache = new AciDecisionCache();
+        engine = new ACDFEngine( schemaManager, decisionCache );
 
         // stuff for dealing with subentries (garbage for now)
         Value subschemaSubentry = directoryService.getPartitionNexus().getRootDseValue(
@@ -348,9 +363,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
      * @param entry the target entry whose access is being controlled
      * @throws Exception if there are problems accessing attribute values
      * @param proxy the partition nexus proxy object
+     * @return the normalized names of the subentries the tuples come from
      */
-    private void addPerscriptiveAciTuples( OperationContext opContext, Collection<ACITuple> tuples, Dn dn, Entry entry )
-        throws LdapException
+    private List<String> addPerscriptiveAciTuples( OperationContext opContext, Collection<ACITuple> tuples, Dn dn,
+        Entry entry ) throws LdapException
     {
         Entry originalEntry;
 
@@ -386,19 +402,56 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             originalEntry = directoryService.getPartitionNexus().lookup( lookupContext );
         }
 
-        Attribute subentries = originalEntry.get( directoryService.getAtProvider().getAccessControlSubentries() );
+        Attribute subentries = subentryUtils.getSubentries( originalEntry.getDn(), originalEntry,
+            directoryService.getAtProvider().getAccessControlSubentries() );
 
         if ( subentries == null )
         {
-            return;
+            return Collections.emptyList();
         }
 
+        List<String> sources = new ArrayList<>( subentries.size() );
+
         for ( Value value : subentries )
         {
             String subentryDnStr = value.getString();
             Dn subentryDn = dnFactory.create( subentryDnStr );
             tuples.addAll( tupleCache.getACITuples( subentryDn.getNormName() ) );
+            sources.add( subentryDn.getNormName() );
         }
+
+        return sources;
+    }
+
+
+    /**
+     * Gets the identifier of the tuples protecting an entry, so that the engine can reuse its
+     * decisions. The entryACI and subentryACI tuples are parsed for each entry, so the decisions
+     * are only cached for the entries protected by perscriptiveACIs alone.
+     *
+     * @param sources the subentries the tuples come from
+     * @param entry the protected entry
+     * @param tupleVersion the version of the tuples before they were collected
+     * @param groupVersion the version of the groups before they were collected
+     * @return the tuple set, or null if the decisions can't be cached
+     */
+    private AciDecisionCache.TupleSet getTupleSet( List<String> sources, Entry entry, long tupleVersion,
+        long groupVersion )
+    {
+        if ( entry.containsAttribute( directoryService.getAtProvider().getEntryACI() )
+            || entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
+        {
+            return null;
+        }
+
+        Dependency dependency = Dependency.NONE;
+
+        for ( String source : sources )
+        {
+            dependency = dependency.or( tupleCache.getDependency( source ) );
+        }
+
+        return decisionCache.getTupleSet( sources, dependency, tupleVersion, groupVersion );
     }
 
 
@@ -422,11 +475,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         for ( Value value : entryAci )
         {
             String aciString = value.getString();
-            ACIItem item;
 
             try
             {
-                item = aciParser.parse( aciString );
+                tuples.addAll( tupleCache.getACITuplesOf( aciString ) );
             }
             catch ( ParseException e )
             {
@@ -434,8 +486,6 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 LOG.error( msg, e );
                 throw new LdapOperationErrorException( msg );
             }
-
-            tuples.addAll( item.toTuples() );
         }
     }
 
@@ -482,11 +532,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         for ( Value value : subentryAci )
         {
             String aciString = value.getString();
-            ACIItem item;
 
             try
             {
-                item = aciParser.parse( aciString );
+                tuples.addAll( tupleCache.getACITuplesOf( aciString ) );
             }
             catch ( ParseException e )
             {
@@ -494,8 +543,6 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 LOG.error( msg, e );
                 throw new LdapOperationErrorException( msg );
             }
-
-            tuples.addAll( item.toTuples() );
         }
     }
 
@@ -1290,11 +1337,14 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         LdapPrincipal principal = lookupContext.getSession().getEffectivePrincipal();
         Dn userName = principal.getDn();
+        long tupleVersion = tupleCache.getVersion();
+        long groupVersion = groupCache.getVersion();
         Set<String> userGroups = groupCache.getGroups( userName.getNormName() );
         Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( lookupContext, tuples, dn, entry );
+        List<String> sources = addPerscriptiveAciTuples( lookupContext, tuples, dn, entry );
         addEntryAciTuples( tuples, entry );
         addSubentryAciTuples( lookupContext, tuples, dn, entry );
+        AciDecisionCache.TupleSet tupleSet = getTupleSet( sources, entry, tupleVersion, groupVersion );
 
         // check that we have read access to the entry
         AciContext aciContext = new AciContext( schemaManager, lookupContext );
@@ -1304,6 +1354,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         aciContext.setEntryDn( dn );
         aciContext.setMicroOperations( LOOKUP_PERMS );
         aciContext.setAciTuples( tuples );
+        aciContext.setTupleSet( tupleSet );
         aciContext.setEntry( entry );
 
         engine.checkPermission( aciContext );
@@ -1323,6 +1374,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 valueAciContext.setAttrValue( value );
                 valueAciContext.setMicroOperations( READ_PERMS );
                 valueAciContext.setAciTuples( tuples );
+                valueAciContext.setTupleSet( tupleSet );
                 valueAciContext.setEntry( entry );
 
                 engine.checkPermission( valueAciContext );
@@ -1353,11 +1405,15 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
         Dn userDn = principal.getDn();
+        long tupleVersion = tupleCache.getVersion();
+        long groupVersion = groupCache.getVersion();
         Set<String> userGroups = groupCache.getGroups( userDn.getNormName() );
         Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        Entry originalEntry = ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry();
+        List<String> sources = addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
+        addEntryAciTuples( tuples, originalEntry );
+        addSubentryAciTuples( opContext, tuples, normName, originalEntry );
+        AciDecisionCache.TupleSet tupleSet = getTupleSet( sources, originalEntry, tupleVersion, groupVersion );
 
         AciContext aciContext = new AciContext( schemaManager, opContext );
         aciContext.setUserGroupNames( userGroups );
@@ -1366,7 +1422,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         aciContext.setEntryDn( normName );
         aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
         aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        aciContext.setTupleSet( tupleSet );
+        aciContext.setEntry( originalEntry );
 
         if ( !engine.hasPermission( aciContext ) )
         {
@@ -1381,6 +1438,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
          * values remaining then the entire attribute is removed.
          */
         List<AttributeType> attributeToRemove = new ArrayList<>();
+        List<Attribute> attributeToReplace = new ArrayList<>();
 
         for ( Attribute attribute : clonedEntry.getAttributes() )
         {
@@ -1396,6 +1454,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             aciContext.setAttributeType( attributeType );
             aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
             aciContext.setAciTuples( tuples );
+            aciContext.setTupleSet( tupleSet );
             aciContext.setEntry( clonedEntry );
 
             if ( !engine.hasPermission( aciContext ) )
@@ -1419,6 +1478,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 aciContext.setAttrValue( value );
                 aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
                 aciContext.setAciTuples( tuples );
+                aciContext.setTupleSet( tupleSet );
                 aciContext.setEntry( clonedEntry );
 
                 if ( !engine.hasPermission( aciContext ) )
@@ -1427,15 +1487,27 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 }
             }
 
-            for ( Value value : valueToRemove )
+            if ( valueToRemove.isEmpty() )
             {
-                attr.remove( value );
+                continue;
             }
 
-            if ( attr.size() == 0 )
+            if ( valueToRemove.size() == attr.size() )
             {
                 attributeToRemove.add( attributeType );
+
+                continue;
+            }
+
+            // The attribute may be shared with other entries, such as the collective attributes
+            Attribute filtered = attr.clone();
+
+            for ( Value value : valueToRemove )
+            {
+                filtered.remove( value );
             }
+
+            attributeToReplace.add( filtered );
         }
 
         for ( AttributeType attributeType : attributeToRemove )
@@ -1443,6 +1515,11 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             clonedEntry.removeAttributes( attributeType );
         }
 
+        for ( Attribute attribute : attributeToReplace )
+        {
+            clonedEntry.put( attribute );
+        }
+
         return true;
     }
 
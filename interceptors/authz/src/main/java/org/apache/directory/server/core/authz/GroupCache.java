@@ -20,6 +20,9 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -90,11 +93,23 @@ public class GroupCache
     /** The Admin user DN */
     private Dn adminSystemDn;
 
-    private static final Set<String> EMPTY_GROUPS = new HashSet<>();
+    private static final Set<String> EMPTY_GROUPS = Collections.emptySet();
 
-    /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
+    /** String key for the Dn of a group to a Set for the Strings of member DNs. The sets are never modified */
     private final Map<String, Set<String>> groups = new ConcurrentHashMap<>();
 
+    /** The reverse index, from a member Dn to the groups it directly belongs to. The sets are never modified */
+    private final Map<String, Set<String>> memberGroups = new ConcurrentHashMap<>();
+
+    /** The groups a member belongs to, directly or through nested groups, computed on demand */
+    private final Map<String, Set<String>> nestedMemberGroups = new ConcurrentHashMap<>();
+
+    /** Tells if the groups a member belongs to include the groups of its groups */
+    private final boolean nestedGroups;
+
+    /** Incremented each time a membership changes */
+    private volatile long version;
+
 
     /**
      * Creates a static group cache.
@@ -103,8 +118,22 @@ public class GroupCache
      * @throws LdapException if there are failures on initialization
      */
     public GroupCache( DirectoryService dirService ) throws LdapException
+    {
+        this( dirService, false );
+    }
+
+
+    /**
+     * Creates a static group cache.
+     *
+     * @param dirService the directory service core
+     * @param nestedGroups If the groups of a member include the groups its groups are members of
+     * @throws LdapException if there are failures on initialization
+     */
+    public GroupCache( DirectoryService dirService, boolean nestedGroups ) throws LdapException
     {
         this.directoryService = dirService;
+        this.nestedGroups = nestedGroups;
         schemaManager = dirService.getSchemaManager();
         dnFactory = dirService.getDnFactory();
         nexus = dirService.getPartitionNexus();
@@ -175,7 +204,7 @@ public class GroupCache
                         Set<String> memberSet = new HashSet<>( members.size() );
                         addMembers( memberSet, members );
 
-                        groups.put( groupDn.getNormName(), memberSet );
+                        setMembers( groupDn.getNormName(), memberSet );
                     }
                     else
                     {
@@ -309,7 +338,7 @@ public class GroupCache
         Set<String> memberSet = new HashSet<>( members.size() );
         addMembers( memberSet, members );
 
-        groups.put( name, memberSet );
+        setMembers( name, memberSet );
 
         if ( IS_DEBUG )
         {
@@ -335,7 +364,7 @@ public class GroupCache
             return;
         }
 
-        groups.remove( name.getNormName() );
+        setMembers( name.getNormName(), null );
 
         if ( IS_DEBUG )
         {
@@ -382,6 +411,163 @@ public class GroupCache
     }
 
 
+    /**
+     * Applies a modification of its members to a cached group.
+     *
+     * @param group the normalized Dn of the group
+     * @param modOp the type of modify operation being performed
+     * @param members the members being added, removed or replaced
+     * @throws LdapException if there are problems accessing attribute values
+     */
+    private synchronized void modifyMembers( String group, ModificationOperation modOp, Attribute members )
+        throws LdapException
+    {
+        Set<String> memberSet = groups.get( group );
+
+        if ( memberSet != null )
+        {
+            Set<String> modified = new HashSet<>( memberSet );
+            modify( modified, modOp, members );
+            setMembers( group, modified );
+        }
+    }
+
+
+    /**
+     * Replaces the members of a group, updating the reverse index. The nested memberships
+     * of the members which have been added or removed are forgotten, and all of them are when
+     * a nested group is involved.
+     *
+     * @param group the normalized Dn of the group
+     * @param members the new members, or null if the group is removed
+     */
+    private synchronized void setMembers( String group, Set<String> members )
+    {
+        Set<String> previous = groups.getOrDefault( group, EMPTY_GROUPS );
+        Set<String> current = ( members == null ) ? EMPTY_GROUPS : members;
+        boolean nestingChanged = false;
+
+        for ( String member : previous )
+        {
+            if ( !current.contains( member ) )
+            {
+                unlink( member, group );
+                nestingChanged |= membershipChanged( member );
+            }
+        }
+
+        for ( String member : current )
+        {
+            if ( !previous.contains( member ) )
+            {
+                link( member, group );
+                nestingChanged |= membershipChanged( member );
+            }
+        }
+
+        if ( members == null )
+        {
+            groups.remove( group );
+        }
+        else
+        {
+            groups.put( group, Collections.unmodifiableSet( members ) );
+        }
+
+        if ( nestingChanged )
+        {
+            nestedMemberGroups.clear();
+        }
+
+        version++;
+    }
+
+
+    /**
+     * @return The version of the groups, incremented each time a membership changes
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+
+    /**
+     * Forget the nested memberships of a member which groups have changed.
+     *
+     * @param member the normalized member Dn
+     * @return true if the member is a group, so that the memberships of its members have changed too
+     */
+    private boolean membershipChanged( String member )
+    {
+        nestedMemberGroups.remove( member );
+
+        return groups.containsKey( member );
+    }
+
+
+    private void link( String member, String group )
+    {
+        memberGroups.compute( member, ( key, known ) ->
+        {
+            Set<String> updated = ( known == null ) ? new HashSet<>() : new HashSet<>( known );
+            updated.add( group );
+
+            return Collections.unmodifiableSet( updated );
+        } );
+    }
+
+
+    private void unlink( String member, String group )
+    {
+        memberGroups.computeIfPresent( member, ( key, known ) ->
+        {
+            Set<String> updated = new HashSet<>( known );
+            updated.remove( group );
+
+            return updated.isEmpty() ? null : Collections.unmodifiableSet( updated );
+        } );
+    }
+
+
+    /**
+     * Computes the groups a member belongs to, following the nested groups.
+     *
+     * @param memberDn the normalized member Dn
+     * @return the groups, directly or indirectly containing the member
+     */
+    private synchronized Set<String> computeNestedGroups( String memberDn )
+    {
+        Set<String> closure = nestedMemberGroups.get( memberDn );
+
+        if ( closure != null )
+        {
+            return closure;
+        }
+
+        closure = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add( memberDn );
+
+        while ( !pending.isEmpty() )
+        {
+            for ( String group : memberGroups.getOrDefault( pending.poll(), EMPTY_GROUPS ) )
+            {
+                // Cycles are stopped by the groups already seen
+                if ( closure.add( group ) )
+                {
+                    pending.add( group );
+                }
+            }
+        }
+
+        closure = closure.isEmpty() ? EMPTY_GROUPS : Collections.unmodifiableSet( closure );
+        nestedMemberGroups.put( memberDn, closure );
+
+        return closure;
+    }
+
+
     /**
      * Modifies the cache to reflect changes via modify operations to the group entries.
      * Called by the interceptor to account for modify ops on groups.
@@ -420,12 +606,7 @@ public class GroupCache
         {
             if ( Strings.equals( memberAttr.getOid(), modification.getAttribute().getId() ) )
             {
-                Set<String> memberSet = groups.get( name.getNormName() );
-                
-                if ( memberSet != null )
-                {
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
-                }
+                modifyMembers( name.getNormName(), modification.getOperation(), modification.getAttribute() );
 
                 break;
             }
@@ -456,12 +637,7 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = groups.get( name.getNormName() );
-
-        if ( memberSet != null )
-        {
-            modify( memberSet, modOp, members );
-        }
+        modifyMembers( name.getNormName(), modOp, members );
 
         if ( IS_DEBUG )
         {
@@ -500,7 +676,8 @@ public class GroupCache
 
     /**
      * Gets the set of groups a user is a member of.  The groups are returned
-     * as normalized Name objects within the set.
+     * as normalized Name objects within the set. When the nested groups are enabled,
+     * the groups containing the user's groups are included.
      *
      * @param memberDn the member (user) to get the groups for
      * @return a Set of Name objects representing the groups
@@ -508,47 +685,38 @@ public class GroupCache
      */
     public Set<String> getGroups( String memberDn ) throws LdapException
     {
-        Set<String> memberGroups = null;
-
-        for ( Map.Entry<String, Set<String>> entry : groups.entrySet() )
+        if ( !nestedGroups )
         {
-            String group = entry.getKey();
-            Set<String> members = entry.getValue();
-
-            if ( members == null )
-            {
-                continue;
-            }
-
-            if ( members.contains( memberDn ) )
-            {
-                if ( memberGroups == null )
-                {
-                    memberGroups = new HashSet<>();
-                }
-
-                memberGroups.add( group );
-            }
+            return memberGroups.getOrDefault( memberDn, EMPTY_GROUPS );
         }
 
-        if ( memberGroups == null )
+        Set<String> closure = nestedMemberGroups.get( memberDn );
+
+        if ( closure != null )
         {
-            return EMPTY_GROUPS;
+            return closure;
         }
 
-        return memberGroups;
+        return computeNestedGroups( memberDn );
     }
 
 
-    public boolean groupRenamed( Dn oldName, Dn newName )
+    /**
+     * Moves a group's members to its new name.  Called by interceptor to account for
+     * the renaming or move of groups.
+     *
+     * @param oldName the former normalized Dn of the group
+     * @param newName the new normalized Dn of the group
+     * @return true if the group was cached
+     */
+    public synchronized boolean groupRenamed( Dn oldName, Dn newName )
     {
         Set<String> members = groups.get( oldName.getNormName() );
 
         if ( members != null )
         {
-            groups.remove( oldName.getNormName() );
-
-            groups.put( newName.getNormName(), members );
+            setMembers( oldName.getNormName(), null );
+            setMembers( newName.getNormName(), new HashSet<>( members ) );
 
             if ( IS_DEBUG )
             {
@@ -23,10 +23,11 @@ package org.apache.directory.server.core.authz;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
@@ -57,6 +58,8 @@ import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.authz.support.AciDecisionCache;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.Dependency;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,8 +77,17 @@ public class TupleCache
     /** the logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( TupleCache.class );
 
-    /** a map of strings to ACITuple collections */
-    private final Map<String, List<ACITuple>> tuples = new HashMap<>();
+    /** The maximum number of parsed entryACI and subentryACI values kept */
+    static final int MAX_PARSED_ACIS = 1000;
+
+    /** a map of the subentries normalized Dn to their tuples. The values are replaced, never modified */
+    private final Map<String, SubentryTuples> tuples = new ConcurrentHashMap<>();
+
+    /** The tuples of the entryACI and subentryACI values already parsed, by ACI */
+    private final Map<String, List<ACITuple>> parsedAcis = new ConcurrentHashMap<>();
+
+    /** Incremented each time the tuples change */
+    private final AtomicLong version = new AtomicLong();
 
     /** the directory service */
     private final DirectoryService directoryService;
@@ -90,6 +102,26 @@ public class TupleCache
     private final ACIItemParser aciParser;
 
 
+    /**
+     * The tuples of an access control subentry
+     */
+    private static final class SubentryTuples
+    {
+        /** The tuples, not modifiable */
+        private final List<ACITuple> aciTuples;
+
+        /** What the decisions made with these tuples depend on */
+        private final Dependency dependency;
+
+
+        private SubentryTuples( List<ACITuple> aciTuples )
+        {
+            this.aciTuples = Collections.unmodifiableList( aciTuples );
+            dependency = AciDecisionCache.getDependency( aciTuples );
+        }
+    }
+
+
     /**
      * Creates a ACITuple cache.
      *
@@ -234,7 +266,8 @@ public class TupleCache
             }
         }
 
-        tuples.put( dn.getNormName(), entryTuples );
+        tuples.put( dn.getNormName(), new SubentryTuples( entryTuples ) );
+        version.incrementAndGet();
     }
 
 
@@ -246,6 +279,7 @@ public class TupleCache
         }
 
         tuples.remove( dn.getNormName() );
+        version.incrementAndGet();
     }
 
 
@@ -260,7 +294,7 @@ public class TupleCache
         {
             if ( mod.getAttribute().isInstanceOf( directoryService.getAtProvider().getPrescriptiveACI() ) )
             {
-                subentryDeleted( normName, entry );
+                // The tuples are replaced at once, never missing for a concurrent evaluation
                 subentryAdded( normName, entry );
             }
         }
@@ -276,7 +310,6 @@ public class TupleCache
 
         if ( mods.get( directoryService.getAtProvider().getPrescriptiveACI() ) != null )
         {
-            subentryDeleted( normName, entry );
             subentryAdded( normName, entry );
         }
     }
@@ -284,19 +317,77 @@ public class TupleCache
 
     public List<ACITuple> getACITuples( String subentryDn )
     {
-        List<ACITuple> aciTuples = tuples.get( subentryDn );
+        SubentryTuples subentryTuples = tuples.get( subentryDn );
 
-        if ( aciTuples == null )
+        if ( subentryTuples == null )
         {
             return Collections.emptyList();
         }
 
-        return Collections.unmodifiableList( aciTuples );
+        return subentryTuples.aciTuples;
+    }
+
+
+    /**
+     * Gets the tuples of an entryACI or subentryACI value. An ACI is parsed once, the
+     * same tuples being returned as long as they are kept in the cache.
+     *
+     * @param aci The ACI item
+     * @return The tuples, not modifiable
+     * @throws ParseException If the ACI item is invalid
+     */
+    public List<ACITuple> getACITuplesOf( String aci ) throws ParseException
+    {
+        List<ACITuple> aciTuples = parsedAcis.get( aci );
+
+        if ( aciTuples == null )
+        {
+            aciTuples = Collections.unmodifiableList( new ArrayList<>( aciParser.parse( aci ).toTuples() ) );
+
+            if ( parsedAcis.size() >= MAX_PARSED_ACIS )
+            {
+                parsedAcis.clear();
+            }
+
+            parsedAcis.put( aci, aciTuples );
+        }
+
+        return aciTuples;
+    }
+
+
+    /**
+     * Tells what the decisions made with the tuples of a subentry depend on
+     *
+     * @param subentryDn The normalized subentry Dn
+     * @return The dependency of the decisions
+     */
+    public Dependency getDependency( String subentryDn )
+    {
+        SubentryTuples subentryTuples = tuples.get( subentryDn );
+
+        return ( subentryTuples == null ) ? Dependency.NONE : subentryTuples.dependency;
+    }
+
+
+    /**
+     * @return The version of the tuples, incremented each time they change
+     */
+    public long getVersion()
+    {
+        return version.get();
     }
 
 
     public void subentryRenamed( Dn oldName, Dn newName )
     {
-        tuples.put( newName.getNormName(), tuples.remove( oldName.getNormName() ) );
+        SubentryTuples subentryTuples = tuples.remove( oldName.getNormName() );
+
+        if ( subentryTuples != null )
+        {
+            tuples.put( newName.getNormName(), subentryTuples );
+        }
+
+        version.incrementAndGet();
     }
 }
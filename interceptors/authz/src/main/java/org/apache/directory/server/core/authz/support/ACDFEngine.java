@@ -24,11 +24,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.UserClass;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.event.Evaluator;
 import org.apache.directory.server.core.api.event.ExpressionEvaluator;
@@ -44,16 +46,19 @@ import org.apache.directory.server.core.api.subtree.RefinementLeafEvaluator;
  * This engine simply filters the collection of tuples using the following
  * {@link ACITupleFilter}s sequentially:
  * <ol>
+ * <li>{@link MicroOperationFilter}</li>
  * <li>{@link RelatedUserClassFilter}</li>
  * <li>{@link RelatedProtectedItemFilter}</li>
  * <li>{@link MaxValueCountFilter}</li>
  * <li>{@link MaxImmSubFilter}</li>
  * <li>{@link RestrictedByFilter}</li>
- * <li>{@link MicroOperationFilter}</li>
  * <li>{@link HighestPrecedenceFilter}</li>
  * <li>{@link MostSpecificUserClassFilter}</li>
  * <li>{@link MostSpecificProtectedItemFilter}</li>
  * </ol>
+ * The filters preceding the {@link HighestPrecedenceFilter} keep or remove each tuple
+ * independently of the others, so the cheap micro-operations filter is applied first.
+ * The user entry is only read when a refined subtree user class needs it.
  * <br>
  * Operation is determined to be permitted if and only if there is at least one
  * tuple left and all of them grants the access. (18.8.4. X.501)
@@ -64,6 +69,12 @@ public class ACDFEngine
 {
     private final ACITupleFilter[] filters;
 
+    /** The first filter, which doesn't need the user entry */
+    private final ACITupleFilter microOperationFilter = new MicroOperationFilter();
+
+    /** The cached decisions, if any */
+    private final AciDecisionCache decisionCache;
+
 
     /**
      * Creates a new instance.
@@ -72,6 +83,19 @@ public class ACDFEngine
      */
     public ACDFEngine( SchemaManager schemaManager )
     {
+        this( schemaManager, null );
+    }
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param schemaManager The server schemaManager
+     * @param decisionCache The cache for the decisions made with a known {@link AciContext#getTupleSet()}
+     */
+    public ACDFEngine( SchemaManager schemaManager, AciDecisionCache decisionCache )
+    {
+        this.decisionCache = decisionCache;
         Evaluator entryEvaluator = new ExpressionEvaluator( schemaManager );
         SubtreeEvaluator subtreeEvaluator = new SubtreeEvaluator( schemaManager );
         RefinementEvaluator refinementEvaluator = new RefinementEvaluator( new RefinementLeafEvaluator( schemaManager ) );
@@ -83,7 +107,6 @@ public class ACDFEngine
                 new MaxValueCountFilter(),
                 new MaxImmSubFilter( schemaManager ),
                 new RestrictedByFilter(),
-                new MicroOperationFilter(),
                 new HighestPrecedenceFilter(),
                 new MostSpecificUserClassFilter(),
                 new MostSpecificProtectedItemFilter() };
@@ -123,32 +146,89 @@ public class ACDFEngine
             throw new IllegalArgumentException( "entryName" );
         }
 
-        CoreSession session = aciContext.getOperationContext().getSession();
-        LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
-            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
-        lookupContext.setPartition( aciContext.getOperationContext().getPartition() );
-        lookupContext.setTransaction( aciContext.getOperationContext().getTransaction() );
-        
-        Entry userEntry = session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+        if ( ( decisionCache == null ) || ( aciContext.getTupleSet() == null ) )
+        {
+            return evaluate( aciContext );
+        }
+
+        AciDecisionCache.DecisionKey key = new AciDecisionCache.DecisionKey( aciContext.getTupleSet(), aciContext,
+            getScope( aciContext ) );
+        Boolean decision = decisionCache.get( key );
+
+        if ( decision == null )
+        {
+            decision = evaluate( aciContext );
+            decisionCache.put( key, decision );
+        }
+
+        return decision;
+    }
 
-        // Determine the scope of the requested operation.
-        OperationScope scope;
 
+    private static OperationScope getScope( AciContext aciContext )
+    {
         if ( aciContext.getAttributeType() == null )
         {
-            scope = OperationScope.ENTRY;
+            return OperationScope.ENTRY;
         }
         else if ( aciContext.getAttrValue() == null )
         {
-            scope = OperationScope.ATTRIBUTE_TYPE;
+            return OperationScope.ATTRIBUTE_TYPE;
         }
         else
         {
-            scope = OperationScope.ATTRIBUTE_TYPE_AND_VALUE;
+            return OperationScope.ATTRIBUTE_TYPE_AND_VALUE;
+        }
+    }
+
+
+    /**
+     * Tells if a tuple has a subtree user class which refinement applies to the user entry
+     */
+    private static boolean needsUserEntry( Collection<ACITuple> aciTuples )
+    {
+        for ( ACITuple tuple : aciTuples )
+        {
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtree : ( ( UserClass.Subtree ) userClass ).getSubtreeSpecifications() )
+                    {
+                        if ( subtree.getRefinement() != null )
+                        {
+                            return true;
+                        }
+                    }
+                }
+            }
         }
 
+        return false;
+    }
+
+
+    private boolean evaluate( AciContext aciContext ) throws LdapException
+    {
+        // Determine the scope of the requested operation.
+        OperationScope scope = getScope( aciContext );
+
         // Clone aciTuples in case it is unmodifiable.
         aciContext.setAciTuples( new ArrayList<ACITuple>( aciContext.getAciTuples() ) );
+        aciContext.setAciTuples( microOperationFilter.filter( aciContext, scope, null ) );
+
+        Entry userEntry = null;
+
+        if ( needsUserEntry( aciContext.getAciTuples() ) )
+        {
+            CoreSession session = aciContext.getOperationContext().getSession();
+            LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
+                SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+            lookupContext.setPartition( aciContext.getOperationContext().getPartition() );
+            lookupContext.setTransaction( aciContext.getOperationContext().getTransaction() );
+
+            userEntry = session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+        }
 
         // Filter unrelated and invalid tuples
         for ( ACITupleFilter filter : filters )
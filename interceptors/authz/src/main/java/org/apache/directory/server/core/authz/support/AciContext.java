@@ -47,6 +47,9 @@ public class AciContext
     /** The operation context */
     private OperationContext operationContext;
 
+    /** The identifier of the tuples, if the decision can be cached */
+    private AciDecisionCache.TupleSet tupleSet;
+
     /** The Users belonging to a group */
     private Collection<String> userGroupNames;
 
@@ -271,6 +274,24 @@ public class AciContext
     }
 
 
+    /**
+     * @return the identifier of the tuples, or null if the decision can't be cached
+     */
+    public AciDecisionCache.TupleSet getTupleSet()
+    {
+        return tupleSet;
+    }
+
+
+    /**
+     * @param tupleSet the identifier of the tuples to set
+     */
+    public void setTupleSet( AciDecisionCache.TupleSet tupleSet )
+    {
+        this.tupleSet = tupleSet;
+    }
+
+
     /**
      * @return the entry
      */
@@ -0,0 +1,370 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeValueItem;
+import org.apache.directory.api.ldap.aci.protectedItem.ClassesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxValueCountItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RangeOfValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RestrictedByItem;
+import org.apache.directory.api.ldap.aci.protectedItem.SelfValueItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+
+
+/**
+ * A cache of the decisions made by the {@link ACDFEngine}. A decision only depends on the
+ * tuples, the user, the micro-operations and the protected attribute type (and value) as
+ * long as the tuples don't refer to the protected entry content (classes, rangeOfValues,
+ * maxValueCount, maxImmSub, restrictedBy and selfValue protected items, thisEntry and
+ * parentOfEntry user classes, refined subtree user classes). Such tuple sets are never cached.
+ * <br>
+ * The tuple sets are identified by the access control subentries they come from, and the
+ * cache is cleared when the tuples or the groups change.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCache
+{
+    /** The default maximum number of cached decisions */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * What a decision depends on, besides the tuples and the user
+     */
+    public enum Dependency
+    {
+        /** The protected attribute type */
+        NONE,
+
+        /** The protected attribute value */
+        VALUE,
+
+        /** The protected entry, the decision can't be cached */
+        ENTRY;
+
+
+        /**
+         * @param other Another dependency
+         * @return The widest of the two dependencies
+         */
+        public Dependency or( Dependency other )
+        {
+            return ( other.ordinal() > ordinal() ) ? other : this;
+        }
+    }
+
+    /** The cached decisions */
+    private final Map<DecisionKey, Boolean> decisions = new ConcurrentHashMap<>();
+
+    /** The maximum number of cached decisions */
+    private final int maxSize;
+
+    /** The version of the tuples the cached decisions have been made with */
+    private volatile long tupleVersion = -1L;
+
+    /** The version of the groups the cached decisions have been made with */
+    private volatile long groupVersion = -1L;
+
+
+    /**
+     * A set of tuples coming from some access control subentries
+     */
+    public static final class TupleSet
+    {
+        /** The normalized Dn of the subentries */
+        private final List<String> subentries;
+
+        /** Tells if the protected value must be part of the decision key */
+        private final boolean valueDependent;
+
+        /** The versions of the tuples and groups */
+        private final long tupleVersion;
+        private final long groupVersion;
+
+        private final int hash;
+
+
+        private TupleSet( List<String> subentries, boolean valueDependent, long tupleVersion, long groupVersion )
+        {
+            this.subentries = subentries;
+            this.valueDependent = valueDependent;
+            this.tupleVersion = tupleVersion;
+            this.groupVersion = groupVersion;
+            hash = Objects.hash( subentries, tupleVersion, groupVersion );
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o )
+            {
+                return true;
+            }
+
+            if ( !( o instanceof TupleSet ) )
+            {
+                return false;
+            }
+
+            TupleSet that = ( TupleSet ) o;
+
+            return ( tupleVersion == that.tupleVersion ) && ( groupVersion == that.groupVersion )
+                && subentries.equals( that.subentries );
+        }
+    }
+
+
+    /**
+     * The key of a decision. The user's groups are compared by identity : the GroupCache
+     * never modifies the sets it returns.
+     */
+    static final class DecisionKey
+    {
+        private final TupleSet tupleSet;
+        private final String userDn;
+        private final Collection<String> userGroups;
+        private final AuthenticationLevel authenticationLevel;
+        private final Collection<MicroOperation> microOperations;
+        private final OperationScope scope;
+        private final String oid;
+        private final Value value;
+        private final int hash;
+
+
+        DecisionKey( TupleSet tupleSet, AciContext aciContext, OperationScope scope )
+        {
+            this.tupleSet = tupleSet;
+            this.userDn = aciContext.getUserDn().getNormName();
+            this.userGroups = aciContext.getUserGroupNames();
+            this.authenticationLevel = aciContext.getAuthenticationLevel();
+            this.microOperations = aciContext.getMicroOperations();
+            this.scope = scope;
+            this.oid = ( aciContext.getAttributeType() == null ) ? null : aciContext.getAttributeType().getOid();
+            this.value = tupleSet.valueDependent ? aciContext.getAttrValue() : null;
+
+            int h = Objects.hash( tupleSet, userDn, authenticationLevel, microOperations, scope, oid, value );
+            hash = h * 31 + System.identityHashCode( userGroups );
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o )
+            {
+                return true;
+            }
+
+            if ( !( o instanceof DecisionKey ) )
+            {
+                return false;
+            }
+
+            DecisionKey that = ( DecisionKey ) o;
+
+            return ( hash == that.hash ) && ( userGroups == that.userGroups ) && ( scope == that.scope )
+                && ( authenticationLevel == that.authenticationLevel ) && userDn.equals( that.userDn )
+                && Objects.equals( oid, that.oid ) && Objects.equals( value, that.value )
+                && tupleSet.equals( that.tupleSet ) && microOperations.equals( that.microOperations );
+        }
+    }
+
+
+    /**
+     * Creates a new instance of AciDecisionCache, holding at most {@link #DEFAULT_MAX_SIZE} decisions
+     */
+    public AciDecisionCache()
+    {
+        this( DEFAULT_MAX_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of AciDecisionCache
+     *
+     * @param maxSize The maximum number of cached decisions
+     */
+    public AciDecisionCache( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Tells what the decisions made with some tuples depend on.
+     *
+     * @param tuples The tuples
+     * @return The dependency of the decisions
+     */
+    public static Dependency getDependency( Collection<ACITuple> tuples )
+    {
+        Dependency dependency = Dependency.NONE;
+
+        for ( ACITuple tuple : tuples )
+        {
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( ( userClass == UserClass.THIS_ENTRY ) || ( userClass == UserClass.PARENT_OF_ENTRY ) )
+                {
+                    return Dependency.ENTRY;
+                }
+
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtree : ( ( UserClass.Subtree ) userClass ).getSubtreeSpecifications() )
+                    {
+                        // The refinement is evaluated against the user entry
+                        if ( subtree.getRefinement() != null )
+                        {
+                            return Dependency.ENTRY;
+                        }
+                    }
+                }
+            }
+
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item instanceof ClassesItem ) || ( item instanceof RangeOfValuesItem )
+                    || ( item instanceof MaxImmSubItem ) || ( item instanceof MaxValueCountItem )
+                    || ( item instanceof RestrictedByItem ) || ( item instanceof SelfValueItem ) )
+                {
+                    return Dependency.ENTRY;
+                }
+
+                if ( item instanceof AttributeValueItem )
+                {
+                    dependency = Dependency.VALUE;
+                }
+            }
+        }
+
+        return dependency;
+    }
+
+
+    /**
+     * Gets the identifier of the tuples coming from some access control subentries. The cached
+     * decisions are dropped if the tuples or the groups have changed.
+     *
+     * @param subentries The normalized Dn of the subentries the tuples come from
+     * @param dependency What the decisions made with these tuples depend on
+     * @param tupleVersion The current version of the tuples
+     * @param groupVersion The current version of the groups
+     * @return The tuple set, or null if the decisions can't be cached
+     */
+    public TupleSet getTupleSet( List<String> subentries, Dependency dependency, long tupleVersion,
+        long groupVersion )
+    {
+        if ( dependency == Dependency.ENTRY )
+        {
+            return null;
+        }
+
+        if ( ( tupleVersion != this.tupleVersion ) || ( groupVersion != this.groupVersion ) )
+        {
+            synchronized ( this )
+            {
+                this.tupleVersion = tupleVersion;
+                this.groupVersion = groupVersion;
+                decisions.clear();
+            }
+        }
+
+        return new TupleSet( new ArrayList<>( subentries ), dependency == Dependency.VALUE, tupleVersion,
+            groupVersion );
+    }
+
+
+    /**
+     * Gets a cached decision
+     *
+     * @param key The decision key
+     * @return The decision, or null if not known
+     */
+    Boolean get( DecisionKey key )
+    {
+        return decisions.get( key );
+    }
+
+
+    /**
+     * Stores a decision. The cache is emptied when it's full.
+     *
+     * @param key The decision key
+     * @param decision The decision
+     */
+    void put( DecisionKey key, boolean decision )
+    {
+        if ( decisions.size() >= maxSize )
+        {
+            decisions.clear();
+        }
+
+        decisions.put( key, decision );
+    }
+
+
+    /**
+     * Drop all the decisions
+     */
+    public void clear()
+    {
+        decisions.clear();
+    }
+
+
+    /**
+     * @return The number of cached decisions
+     */
+    public int size()
+    {
+        return decisions.size();
+    }
+}
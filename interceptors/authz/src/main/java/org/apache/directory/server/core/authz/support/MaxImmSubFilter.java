@@ -20,29 +20,24 @@
 package org.apache.directory.server.core.authz.support;
 
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 
-import javax.naming.directory.SearchControls;
-
 import org.apache.directory.api.ldap.aci.ACITuple;
 import org.apache.directory.api.ldap.aci.ProtectedItem;
 import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
-import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.PresenceNode;
-import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
-import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
-
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 
 /**
  * An {@link ACITupleFilter} that discards all tuples that doesn't satisfy
@@ -52,26 +47,14 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
  */
 public class MaxImmSubFilter implements ACITupleFilter
 {
-    private final ExprNode childrenFilter;
-    private final SearchControls childrenSearchControls;
-
-
+    /**
+     * Creates a new instance of MaxImmSubFilter
+     *
+     * @param schemaManager The server schemaManager
+     */
     public MaxImmSubFilter( SchemaManager schemaManager )
     {
-        AttributeType objectClassAt = null;
-
-        try
-        {
-            objectClassAt = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OBJECT_CLASS_AT );
-        }
-        catch ( LdapException le )
-        {
-            // Do nothing
-        }
-
-        childrenFilter = new PresenceNode( objectClassAt );
-        childrenSearchControls = new SearchControls();
-        childrenSearchControls.setSearchScope( SearchControls.ONELEVEL_SCOPE );
+        // Nothing to do : the number of children is maintained by the partitions
     }
 
 
@@ -99,7 +82,7 @@ public class MaxImmSubFilter implements ACITupleFilter
             return aciContext.getAciTuples();
         }
 
-        int immSubCount = -1;
+        long immSubCount = -1L;
 
         for ( Iterator<ACITuple> i = aciContext.getAciTuples().iterator(); i.hasNext(); )
         {
@@ -134,51 +117,54 @@ public class MaxImmSubFilter implements ACITupleFilter
     }
 
 
-    private int getImmSubCount( OperationContext opContext, Dn entryName ) throws LdapException
+    /**
+     * Gets the number of immediate subordinates of the entry's superior, as maintained by
+     * its partition, instead of searching and counting them.
+     */
+    private long getImmSubCount( OperationContext opContext, Dn entryName ) throws LdapException
     {
-        int cnt = 0;
-        EntryFilteringCursor results = null;
+        Dn parentDn = entryName.getParent();
 
-        try
+        if ( parentDn.isRootDse() )
         {
-            Dn baseDn = new Dn( opContext.getSession().getDirectoryService().getSchemaManager(),
-                entryName.getRdn( entryName.size() - 1 ) );
-            SearchOperationContext searchContext = new SearchOperationContext( opContext.getSession(),
-                baseDn, childrenFilter, childrenSearchControls );
-            searchContext.setAliasDerefMode( AliasDerefMode.DEREF_ALWAYS );
-            searchContext.setPartition( opContext.getPartition() );
-            searchContext.setTransaction( opContext.getTransaction() );
+            return 0L;
+        }
 
-            results = opContext.getSession().getDirectoryService().getPartitionNexus().search( searchContext );
+        PartitionNexus nexus = opContext.getSession().getDirectoryService().getPartitionNexus();
+        Partition partition = nexus.getPartition( parentDn );
 
-            try
-            {
-                while ( results.next() )
-                {
-                    results.get();
-                    cnt++;
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOtherException( e.getMessage(), e );
-            }
+        if ( ( partition == opContext.getPartition() ) && ( opContext.getTransaction() != null ) )
+        {
+            return getImmSubCount( opContext, partition, opContext.getTransaction(), parentDn );
         }
-        finally
+
+        // The superior is the suffix of another partition
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
-            if ( results != null )
-            {
-                try
-                {
-                    results.close();
-                }
-                catch ( Exception e )
-                {
-                    throw new LdapOperationException( e.getMessage(), e );
-                }
-            }
+            return getImmSubCount( opContext, partition, partitionTxn, parentDn );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    private long getImmSubCount( OperationContext opContext, Partition partition, PartitionTxn partitionTxn,
+        Dn parentDn ) throws LdapException
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( opContext.getSession(), parentDn,
+            SchemaConstants.ENTRY_UUID_AT );
+        lookupContext.setPartition( partition );
+        lookupContext.setTransaction( partitionTxn );
+
+        Entry parent = partition.lookup( lookupContext );
+
+        if ( parent == null )
+        {
+            return 0L;
         }
 
-        return cnt;
+        return partition.getSubordinates( partitionTxn, parent ).getNbChildren();
     }
 }
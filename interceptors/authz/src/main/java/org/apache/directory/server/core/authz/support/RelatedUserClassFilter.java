@@ -22,7 +22,6 @@ package org.apache.directory.server.core.authz.support;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Set;
 
 import org.apache.directory.api.ldap.aci.ACITuple;
 import org.apache.directory.api.ldap.aci.UserClass;
@@ -134,19 +133,12 @@ public class RelatedUserClassFilter implements ACITupleFilter
             {
                 UserClass.UserGroup userGroupUserClass = ( UserClass.UserGroup ) userClass;
 
-                for ( String userGroupName : userGroupNames )
+                // The user's groups are a set, probe it with the few names of the user class
+                for ( String dn : userGroupUserClass.getNames() )
                 {
-                    Set<String> dns = userGroupUserClass.getNames();
-
-                    if ( userGroupName != null )
+                    if ( userGroupNames.contains( dn ) )
                     {
-                        for ( String dn : dns )
-                        {
-                            if ( userGroupName.equals( dn ) )
-                            {
-                                return true;
-                            }
-                        }
+                        return true;
                     }
                 }
             }
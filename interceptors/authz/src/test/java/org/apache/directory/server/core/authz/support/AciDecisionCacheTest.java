@@ -0,0 +1,146 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeValueItem;
+import org.apache.directory.api.ldap.aci.protectedItem.SelfValueItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.DecisionKey;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.Dependency;
+import org.apache.directory.server.core.authz.support.AciDecisionCache.TupleSet;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests {@link AciDecisionCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCacheTest
+{
+    private static final Set<MicroOperation> READ = Collections.singleton( MicroOperation.READ );
+
+
+    private static ACITuple tuple( UserClass userClass, ProtectedItem protectedItem )
+    {
+        return new ACITuple( Collections.singleton( userClass ), AuthenticationLevel.NONE,
+            Collections.singleton( protectedItem ), READ, true, 0 );
+    }
+
+
+    private static AciContext context( String userDn, Collection<String> groups ) throws Exception
+    {
+        AciContext aciContext = new AciContext( null, null );
+        aciContext.setUserDn( new Dn( userDn ) );
+        aciContext.setUserGroupNames( groups );
+        aciContext.setEntryDn( new Dn( "ou=system" ) );
+        aciContext.setMicroOperations( READ );
+
+        return aciContext;
+    }
+
+
+    @Test
+    public void testDependency()
+    {
+        ACITuple entry = tuple( UserClass.ALL_USERS, ProtectedItem.ENTRY );
+        ACITuple value = tuple( UserClass.ALL_USERS, new AttributeValueItem( new HashSet<Attribute>() ) );
+        ACITuple selfValue = tuple( UserClass.ALL_USERS, new SelfValueItem( new HashSet<AttributeType>() ) );
+        ACITuple thisEntry = tuple( UserClass.THIS_ENTRY, ProtectedItem.ENTRY );
+
+        assertEquals( Dependency.NONE, AciDecisionCache.getDependency( new ArrayList<ACITuple>() ) );
+        assertEquals( Dependency.NONE, AciDecisionCache.getDependency( Arrays.asList( entry ) ) );
+        assertEquals( Dependency.VALUE, AciDecisionCache.getDependency( Arrays.asList( entry, value ) ) );
+        assertEquals( Dependency.ENTRY, AciDecisionCache.getDependency( Arrays.asList( value, selfValue ) ) );
+        assertEquals( Dependency.ENTRY, AciDecisionCache.getDependency( Arrays.asList( thisEntry ) ) );
+        assertEquals( Dependency.VALUE, Dependency.NONE.or( Dependency.VALUE ) );
+        assertEquals( Dependency.ENTRY, Dependency.ENTRY.or( Dependency.NONE ) );
+    }
+
+
+    @Test
+    public void testDecisions() throws Exception
+    {
+        AciDecisionCache cache = new AciDecisionCache();
+        Set<String> groups = Collections.singleton( "cn=group" );
+        TupleSet tupleSet = cache.getTupleSet( Arrays.asList( "cn=acsa" ), Dependency.NONE, 1L, 1L );
+
+        assertNull( cache.getTupleSet( Arrays.asList( "cn=acsa" ), Dependency.ENTRY, 1L, 1L ) );
+
+        cache.put( new DecisionKey( tupleSet, context( "uid=a", groups ), OperationScope.ENTRY ), true );
+        cache.put( new DecisionKey( tupleSet, context( "uid=b", groups ), OperationScope.ENTRY ), false );
+
+        TupleSet same = cache.getTupleSet( Arrays.asList( "cn=acsa" ), Dependency.NONE, 1L, 1L );
+
+        assertTrue( cache.get( new DecisionKey( same, context( "uid=a", groups ), OperationScope.ENTRY ) ) );
+        assertEquals( Boolean.FALSE, cache.get( new DecisionKey( same, context( "uid=b", groups ),
+            OperationScope.ENTRY ) ) );
+
+        // The groups are compared by identity
+        assertNull( cache.get( new DecisionKey( same, context( "uid=a", new HashSet<>( groups ) ),
+            OperationScope.ENTRY ) ) );
+
+        // Distinct subentries, or scope
+        TupleSet other = cache.getTupleSet( Arrays.asList( "cn=other" ), Dependency.NONE, 1L, 1L );
+        assertNull( cache.get( new DecisionKey( other, context( "uid=a", groups ), OperationScope.ENTRY ) ) );
+        assertNull( cache.get( new DecisionKey( same, context( "uid=a", groups ), OperationScope.ATTRIBUTE_TYPE ) ) );
+
+        // A new version of the tuples drops the decisions
+        TupleSet updated = cache.getTupleSet( Arrays.asList( "cn=acsa" ), Dependency.NONE, 2L, 1L );
+
+        assertEquals( 0, cache.size() );
+        assertNull( cache.get( new DecisionKey( updated, context( "uid=a", groups ), OperationScope.ENTRY ) ) );
+    }
+
+
+    @Test
+    public void testBoundedSize() throws Exception
+    {
+        AciDecisionCache cache = new AciDecisionCache( 10 );
+        Set<String> groups = Collections.emptySet();
+        TupleSet tupleSet = cache.getTupleSet( Arrays.asList( "cn=acsa" ), Dependency.NONE, 1L, 1L );
+
+        for ( int i = 0; i < 25; i++ )
+        {
+            cache.put( new DecisionKey( tupleSet, context( "uid=" + i, groups ), OperationScope.ENTRY ), true );
+        }
+
+        assertTrue( cache.size() <= 10 );
+    }
+}
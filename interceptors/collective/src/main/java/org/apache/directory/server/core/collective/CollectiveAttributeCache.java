@@ -0,0 +1,167 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.collective;
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+
+/**
+ * A cache of the collective attributes injected in the entries, per set of collective
+ * attribute subentries and collectiveExclusions. The entries selected by the same
+ * subentries share the same attribute instances, which must not be modified.
+ * <p>
+ * A cached block is valid as long as the subentries it has been built from have the
+ * same entryCSN as the one last recorded for them. The interceptor records the entryCSN
+ * of the subentries it modifies, so that a block built from an older read is never used.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CollectiveAttributeCache
+{
+    /** The default maximum number of blocks kept in memory */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    /** The collective attributes, per set of subentries and exclusions */
+    private final Cache<String, Block> blocks;
+
+    /** The last known entryCSN of the collective attribute subentries, per normalized name */
+    private final Map<String, String> subentryCsns = new ConcurrentHashMap<>();
+
+
+    /**
+     * The collective attributes injected in the entries selected by a set of subentries
+     */
+    private static final class Block
+    {
+        /** The entryCSN of the subentries the block has been built from, per normalized name */
+        private final Map<String, String> csns;
+
+        /** The merged collective attributes */
+        private final List<Attribute> attributes;
+
+
+        Block( Map<String, String> csns, List<Attribute> attributes )
+        {
+            this.csns = csns;
+            this.attributes = attributes;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CollectiveAttributeCache
+     *
+     * @param cacheSize The maximum number of blocks kept in memory
+     */
+    public CollectiveAttributeCache( int cacheSize )
+    {
+        blocks = Caffeine.newBuilder().maximumSize( cacheSize ).build();
+    }
+
+
+    /**
+     * Gets the collective attributes built for a set of subentries and exclusions.
+     *
+     * @param key The key built from the subentries and exclusions
+     * @return The collective attributes, or null if they have to be built
+     */
+    public List<Attribute> get( String key )
+    {
+        Block block = blocks.getIfPresent( key );
+
+        if ( ( block == null ) || !isCurrent( block.csns ) )
+        {
+            return null;
+        }
+
+        return block.attributes;
+    }
+
+
+    /**
+     * Stores the collective attributes built for a set of subentries and exclusions. They
+     * are not stored if one of the subentries has been modified since it has been read.
+     *
+     * @param key The key built from the subentries and exclusions
+     * @param csns The entryCSN of the subentries, as read, per normalized name
+     * @param attributes The merged collective attributes
+     */
+    public void put( String key, Map<String, String> csns, List<Attribute> attributes )
+    {
+        for ( Map.Entry<String, String> csn : csns.entrySet() )
+        {
+            subentryCsns.putIfAbsent( csn.getKey(), csn.getValue() );
+        }
+
+        if ( isCurrent( csns ) )
+        {
+            blocks.put( key, new Block( csns, Collections.unmodifiableList( attributes ) ) );
+        }
+    }
+
+
+    /**
+     * Records the entryCSN of a subentry which has been added or modified.
+     *
+     * @param subentryName The subentry normalized name
+     * @param csn The new entryCSN of the subentry
+     */
+    public void subentryModified( String subentryName, String csn )
+    {
+        subentryCsns.put( subentryName, csn );
+    }
+
+
+    /**
+     * Forgets a subentry which has been deleted, moved or renamed.
+     *
+     * @param subentryName The subentry normalized name
+     */
+    public void subentryRemoved( String subentryName )
+    {
+        subentryCsns.remove( subentryName );
+    }
+
+
+    /**
+     * Tells if the subentries a block has been built from haven't been modified since
+     */
+    private boolean isCurrent( Map<String, String> csns )
+    {
+        for ( Map.Entry<String, String> csn : csns.entrySet() )
+        {
+            if ( !csn.getValue().equals( subentryCsns.get( csn.getKey() ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
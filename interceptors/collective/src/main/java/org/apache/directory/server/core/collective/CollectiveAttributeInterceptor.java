@@ -20,9 +20,15 @@
 package org.apache.directory.server.core.collective;
 
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -37,6 +43,7 @@ import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationExceptio
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.AttributeTypeOptions;
 import org.apache.directory.api.ldap.model.schema.SchemaUtils;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -46,10 +53,15 @@ import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +81,12 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     /** The LoggerFactory used by this Interceptor */
     private static final Logger LOG = LoggerFactory.getLogger( CollectiveAttributeInterceptor.class );
 
+    /** Computes the references to the subentries still being applied */
+    private SubentryUtils subentryUtils;
+
+    /** The collective attributes, merged per set of subentries and exclusions */
+    private CollectiveAttributeCache collectiveAttributeCache;
+
 
     /**
      * Creates a new instance of a CollectiveAttributeInterceptor.
@@ -120,6 +138,9 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     {
         super.init( directoryService );
 
+        subentryUtils = new SubentryUtils( directoryService );
+        collectiveAttributeCache = new CollectiveAttributeCache( CollectiveAttributeCache.DEFAULT_CACHE_SIZE );
+
         LOG.debug( "CollectiveAttribute interceptor initialized" );
     }
 
@@ -136,6 +157,26 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
         checkAdd( addContext.getDn(), addContext.getEntry() );
 
         next( addContext );
+
+        if ( isCollectiveAttributeSubentry( addContext.getEntry() ) )
+        {
+            subentryModified( addContext.getDn(), addContext.getEntry() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        next( deleteContext );
+
+        if ( isCollectiveAttributeSubentry( deleteContext.getEntry() ) )
+        {
+            collectiveAttributeCache.subentryRemoved( deleteContext.getDn().getNormName() );
+        }
     }
 
 
@@ -169,6 +210,75 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
         checkModify( modifyContext );
 
         next( modifyContext );
+
+        if ( isCollectiveAttributeSubentry( modifyContext.getEntry() )
+            || isCollectiveAttributeSubentry( modifyContext.getAlteredEntry() ) )
+        {
+            subentryModified( modifyContext.getDn(), modifyContext.getAlteredEntry() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        if ( isCollectiveAttributeSubentry( moveContext.getOriginalEntry() ) )
+        {
+            next( moveContext );
+
+            collectiveAttributeCache.subentryRemoved( moveContext.getDn().getNormName() );
+        }
+        else
+        {
+            removeCollectiveAttributes( moveContext.getModifiedEntry() );
+
+            next( moveContext );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        if ( isCollectiveAttributeSubentry( moveAndRenameContext.getOriginalEntry() ) )
+        {
+            next( moveAndRenameContext );
+
+            collectiveAttributeCache.subentryRemoved( moveAndRenameContext.getDn().getNormName() );
+        }
+        else
+        {
+            removeCollectiveAttributes( moveAndRenameContext.getModifiedEntry() );
+
+            next( moveAndRenameContext );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        if ( isCollectiveAttributeSubentry( renameContext.getEntry() ) )
+        {
+            next( renameContext );
+
+            collectiveAttributeCache.subentryRemoved( renameContext.getDn().getNormName() );
+        }
+        else
+        {
+            removeCollectiveAttributes( renameContext.getModifiedEntry() );
+
+            next( renameContext );
+        }
     }
 
 
@@ -181,7 +291,7 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
         EntryFilteringCursor cursor = next( searchContext );
 
         // only add collective attributes for non-syncrepl search
-        if ( !searchContext.isSyncreplSearch() )
+        if ( !searchContext.isSyncreplSearch() && mayReturnCollectiveAttributes( searchContext ) )
         {
             cursor.addEntryFilter( searchFilter );
         }
@@ -190,6 +300,40 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Tells if a search may return some collective attributes : we must have some subentries,
+     * and the user attributes, or at least one of them, must have been requested. Otherwise,
+     * the filter would not inject anything.
+     */
+    private boolean mayReturnCollectiveAttributes( SearchOperationContext searchContext )
+    {
+        if ( searchContext.isNoAttributes() || ( directoryService.getSubentryCache().getCacheSize() == 0 ) )
+        {
+            return false;
+        }
+
+        if ( searchContext.isAllUserAttributes() )
+        {
+            return true;
+        }
+
+        if ( searchContext.getReturningAttributes() == null )
+        {
+            return false;
+        }
+
+        for ( AttributeTypeOptions attributeTypeOptions : searchContext.getReturningAttributes() )
+        {
+            if ( attributeTypeOptions.getAttributeType().isUser() )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     //-------------------------------------------------------------------------------------
     // Helper methods
     //-------------------------------------------------------------------------------------
@@ -333,12 +477,45 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
      * @param entry the entry to have the collective attributes injected
      * @throws LdapException if there are problems accessing subentries
      */
+    /**
+     * Removes the collective attributes injected in the entry read before a move or a rename,
+     * as the partition stores that entry under its new name. This must not be done for the
+     * collective attribute subentries, which hold them.
+     */
+    private void removeCollectiveAttributes( Entry entry ) throws LdapException
+    {
+        if ( entry == null )
+        {
+            return;
+        }
+
+        List<AttributeType> collectiveAttributeTypes = new ArrayList<>();
+
+        for ( Attribute attribute : entry )
+        {
+            if ( ( attribute.getAttributeType() != null ) && attribute.getAttributeType().isCollective() )
+            {
+                collectiveAttributeTypes.add( attribute.getAttributeType() );
+            }
+        }
+
+        if ( !collectiveAttributeTypes.isEmpty() )
+        {
+            entry.removeAttributes( collectiveAttributeTypes.toArray( new AttributeType[0] ) );
+        }
+    }
+
+
+    /**
+     * Injects the collective attributes of the subentries selecting an entry, as requested.
+     * The collective attributes are merged once per set of subentries and exclusions, and
+     * the resulting attributes are shared by all the entries with the same set.
+     */
     private void addCollectiveAttributes( FilteringOperationContext opContext, Entry entry )
         throws LdapException
     {
-        CoreSession session = opContext.getSession();
-
-        Attribute collectiveAttributeSubentries = ( ( ClonedServerEntry ) entry ).getOriginalEntry().get(
+        Entry originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        Attribute collectiveAttributeSubentries = subentryUtils.getSubentries( originalEntry.getDn(), originalEntry,
             directoryService.getAtProvider().getCollectiveAttributeSubentries() );
 
         /*
@@ -361,8 +538,7 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
          * in the exclusions set instead of regular names that may have case
          * variance.
          */
-        Attribute collectiveExclusions = ( ( ClonedServerEntry ) entry ).getOriginalEntry().get(
-            directoryService.getAtProvider().getCollectiveExclusions() );
+        Attribute collectiveExclusions = originalEntry.get( directoryService.getAtProvider().getCollectiveExclusions() );
         Set<AttributeType> exclusions = new HashSet<>();
 
         if ( collectiveExclusions != null )
@@ -389,25 +565,90 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
             }
         }
 
+        // The subentries and the exclusions, ordered, identify the block of collective attributes
+        Map<String, Dn> subentryDns = new TreeMap<>();
+
+        for ( Value value : collectiveAttributeSubentries )
+        {
+            Dn subentryDn = dnFactory.create( value.getString() );
+            subentryDns.put( subentryDn.getNormName(), subentryDn );
+        }
+
+        Set<String> exclusionOids = new TreeSet<>();
+
+        for ( AttributeType exclusion : exclusions )
+        {
+            exclusionOids.add( exclusion.getOid() );
+        }
+
+        String key = subentryDns.keySet() + "|" + exclusionOids;
+        List<Attribute> collectiveAttributes = collectiveAttributeCache.get( key );
+
+        if ( collectiveAttributes == null )
+        {
+            collectiveAttributes = getCollectiveAttributes( opContext, subentryDns, exclusions, key );
+        }
+
+        for ( Attribute collectiveAttribute : collectiveAttributes )
+        {
+            AttributeType attributeType = collectiveAttribute.getAttributeType();
+
+            /*
+             * If not all attributes or this collective attribute requested specifically
+             * then bypass the inclusion process.
+             */
+            if ( !opContext.isAllUserAttributes() && !opContext.contains( schemaManager, attributeType ) )
+            {
+                LOG.debug( "The {} subentry attribute is not in the list of attributes to return",
+                    attributeType.getName() );
+                continue;
+            }
+
+            Attribute entryColAttr = entry.get( attributeType );
+
+            if ( entryColAttr == null )
+            {
+                // The cached attribute is shared with the other entries
+                entry.put( collectiveAttribute );
+            }
+            else
+            {
+                entryColAttr = entryColAttr.clone();
+
+                for ( Value subentryColVal : collectiveAttribute )
+                {
+                    entryColAttr.add( subentryColVal );
+                }
+
+                entry.put( entryColAttr );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the subentries, and merges their collective attributes which are not excluded.
+     * The result is cached if all the subentries have an entryCSN.
+     */
+    private List<Attribute> getCollectiveAttributes( FilteringOperationContext opContext, Map<String, Dn> subentryDns,
+        Set<AttributeType> exclusions, String key ) throws LdapException
+    {
+        CoreSession session = opContext.getSession();
+        Map<AttributeType, Attribute> collectiveAttributes = new LinkedHashMap<>();
+        Map<String, String> csns = new HashMap<>();
+        boolean cacheable = true;
+
         /*
          * For each collective subentry referenced by the entry we lookup the
          * attributes of the subentry and copy collective attributes from the
-         * subentry into the entry.
+         * subentry into the block.
          */
-        for ( Value value : collectiveAttributeSubentries )
+        for ( Map.Entry<String, Dn> subentryName : subentryDns.entrySet() )
         {
-            String subentryDnStr = value.getString();
-            Dn subentryDn = dnFactory.create( subentryDnStr );
+            Dn subentryDn = subentryName.getValue();
 
             LOG.debug( "Applying subentries {}", subentryDn.getName() );
 
-            /*
-             * TODO - Instead of hitting disk here can't we leverage the
-             * SubentryService to get us cached sub-entries so we're not
-             * wasting time with a lookup here? It is ridiculous to waste
-             * time looking up this sub-entry.
-             */
-
             LookupOperationContext lookupContext = new LookupOperationContext( session, subentryDn,
                 SchemaConstants.ALL_ATTRIBUTES_ARRAY );
             lookupContext.setPartition( opContext.getPartition() );
@@ -415,7 +656,22 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
 
             Entry subentry = directoryService.getPartitionNexus().lookup( lookupContext );
 
-            //LOG.debug( "Fetched the subentry : {}", subentry.getDn().getName() );
+            if ( subentry == null )
+            {
+                LOG.debug( "The subentry {} does not exist anymore", subentryDn );
+                continue;
+            }
+
+            Attribute entryCsn = subentry.get( directoryService.getAtProvider().getEntryCSN() );
+
+            if ( entryCsn == null )
+            {
+                cacheable = false;
+            }
+            else
+            {
+                csns.put( subentryName.getKey(), entryCsn.getString() );
+            }
 
             for ( Attribute attribute : subentry.getAttributes() )
             {
@@ -424,7 +680,6 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
                 // Skip the attributes which are not collective
                 if ( !attributeType.isCollective() )
                 {
-                    //LOG.debug( "The {} subentry attribute is not collective", attributeType.getName() );
                     continue;
                 }
 
@@ -439,39 +694,62 @@ public class CollectiveAttributeInterceptor extends BaseInterceptor
                     continue;
                 }
 
-                /*
-                 * If not all attributes or this collective attribute requested specifically
-                 * then bypass the inclusion process.
-                 */
-                if ( !opContext.isAllUserAttributes() && !opContext.contains( schemaManager, attributeType ) )
-                {
-                    LOG.debug( "The {} subentry attribute is not in the list of attributes to return",
-                        attributeType.getName() );
-                    continue;
-                }
-
-                Attribute subentryColAttr = subentry.get( attributeType );
-                Attribute entryColAttr = entry.get( attributeType );
+                Attribute collectiveAttribute = collectiveAttributes.get( attributeType );
 
-                /*
-                 * If entry does not have attribute for collective attribute then create it.
-                 */
-                if ( entryColAttr == null )
+                if ( collectiveAttribute == null )
                 {
-                    entryColAttr = new DefaultAttribute( attributeType );
-                    entry.put( entryColAttr );
+                    collectiveAttribute = new DefaultAttribute( attributeType );
+                    collectiveAttributes.put( attributeType, collectiveAttribute );
                 }
 
                 /*
                  *  Add all the collective attribute values in the subentry
-                 *  to the currently processed collective attribute in the entry.
+                 *  to the collective attribute in the block.
                  */
-                for ( Value subentryColVal : subentryColAttr )
+                for ( Value subentryColVal : attribute )
                 {
-                    LOG.debug( "Adding the {} collective attribute into the entry", subentryColAttr );
-                    entryColAttr.add( subentryColVal.getString() );
+                    LOG.debug( "Adding the {} collective attribute into the entry", attribute );
+                    collectiveAttribute.add( subentryColVal.getString() );
                 }
             }
         }
+
+        List<Attribute> result = new ArrayList<>( collectiveAttributes.values() );
+
+        if ( cacheable )
+        {
+            collectiveAttributeCache.put( key, csns, result );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Tells if an entry is a collective attribute subentry
+     */
+    private boolean isCollectiveAttributeSubentry( Entry entry )
+    {
+        return ( entry != null ) && entry.hasObjectClass( SchemaConstants.COLLECTIVE_ATTRIBUTE_SUBENTRY_OC );
+    }
+
+
+    /**
+     * Records the entryCSN of a collective attribute subentry which has been added or modified,
+     * so that the collective attributes built from its previous content aren't used anymore.
+     */
+    private void subentryModified( Dn dn, Entry subentry ) throws LdapException
+    {
+        Attribute entryCsn = ( subentry == null ) ? null : subentry.get( directoryService.getAtProvider()
+            .getEntryCSN() );
+
+        if ( entryCsn == null )
+        {
+            collectiveAttributeCache.subentryRemoved( dn.getNormName() );
+        }
+        else
+        {
+            collectiveAttributeCache.subentryModified( dn.getNormName(), entryCsn.getString() );
+        }
     }
 }
@@ -48,6 +48,9 @@ class DefaultEventService implements EventService
     /** The list of RegistrationEntries being registered */
     private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<>();
 
+    /** The registrations, grouped by identical criteria */
+    private List<RegistrationGroup> groups = new CopyOnWriteArrayList<>();
+
     /** The DirectoryService instance */
     private DirectoryService directoryService;
 
@@ -73,7 +76,7 @@ class DefaultEventService implements EventService
      * {@inheritDoc}
      */
     @Override
-    public void addListener( DirectoryListener listener, NotificationCriteria criteria ) throws Exception
+    public synchronized void addListener( DirectoryListener listener, NotificationCriteria criteria ) throws Exception
     {
         if ( !criteria.getBase().isSchemaAware() )
         {
@@ -82,7 +85,32 @@ class DefaultEventService implements EventService
 
         ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
         criteria.setFilter( result );
-        registrations.add( new RegistrationEntry( listener, criteria ) );
+
+        RegistrationEntry registration = new RegistrationEntry( listener, criteria );
+        registrations.add( registration );
+        getGroup( criteria ).getRegistrations().add( registration );
+    }
+
+
+    /**
+     * Get the group of the registrations having the same criteria, creating it if needed
+     */
+    private RegistrationGroup getGroup( NotificationCriteria criteria )
+    {
+        String key = RegistrationGroup.getKey( criteria );
+
+        for ( RegistrationGroup group : groups )
+        {
+            if ( group.getKey().equals( key ) )
+            {
+                return group;
+            }
+        }
+
+        RegistrationGroup group = new RegistrationGroup( criteria );
+        groups.add( group );
+
+        return group;
     }
 
 
@@ -90,7 +118,7 @@ class DefaultEventService implements EventService
      * {@inheritDoc}
      */
     @Override
-    public void removeListener( DirectoryListener listener )
+    public synchronized void removeListener( DirectoryListener listener )
     {
         for ( RegistrationEntry entry : registrations )
         {
@@ -99,6 +127,16 @@ class DefaultEventService implements EventService
                 registrations.remove( entry );
             }
         }
+
+        for ( RegistrationGroup group : groups )
+        {
+            group.getRegistrations().removeIf( entry -> entry.getListener() == listener );
+
+            if ( group.getRegistrations().isEmpty() )
+            {
+                groups.remove( group );
+            }
+        }
     }
 
 
@@ -110,4 +148,13 @@ class DefaultEventService implements EventService
     {
         return Collections.unmodifiableList( registrations );
     }
+
+
+    /**
+     * @return The registrations, grouped by identical criteria
+     */
+    List<RegistrationGroup> getRegistrationGroups()
+    {
+        return groups;
+    }
 }
@@ -47,7 +47,6 @@ import org.apache.directory.server.core.api.event.DirectoryListener;
 import org.apache.directory.server.core.api.event.Evaluator;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.ExpressionEvaluator;
-import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.event.RegistrationEntry;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
@@ -75,6 +74,9 @@ public class EventInterceptor extends BaseInterceptor
     private Evaluator evaluator;
     private ExecutorService executor;
 
+    /** The event service, storing the registrations */
+    private DefaultEventService eventService;
+
 
     /**
      * Creates a new instance of a EventInterceptor.
@@ -113,7 +115,8 @@ public class EventInterceptor extends BaseInterceptor
         executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ),
             threadFactory );
 
-        this.directoryService.setEventService( new DefaultEventService( directoryService ) );
+        eventService = new DefaultEventService( directoryService );
+        this.directoryService.setEventService( eventService );
         LOG.info( "Initialization complete." );
     }
 
@@ -428,26 +431,25 @@ public class EventInterceptor extends BaseInterceptor
 
     /**
      * Find a list of registrationEntries given an entry and a name. We check against
-     * the criteria for each registrationEntry
+     * the criteria of each group of registrations, so the registrations sharing the same
+     * criteria are evaluated once.
      */
     private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
     {
-        List<RegistrationEntry> registrations = directoryService.getEventService().getRegistrationEntries();
+        List<RegistrationGroup> groups = eventService.getRegistrationGroups();
 
-        if ( registrations.isEmpty() )
+        if ( groups.isEmpty() )
         {
             return Collections.emptyList();
         }
 
         List<RegistrationEntry> selecting = new ArrayList<>();
 
-        for ( RegistrationEntry registration : registrations )
+        for ( RegistrationGroup group : groups )
         {
-            NotificationCriteria criteria = registration.getCriteria();
-
-            Dn base = criteria.getBase();
+            Dn base = group.getBase();
 
-            SearchScope scope = criteria.getScope();
+            SearchScope scope = group.getScope();
             
             // fix for DIRSERVER-1502
             boolean inscope =
@@ -455,9 +457,9 @@ public class EventInterceptor extends BaseInterceptor
                     || ( ( scope == ONELEVEL ) && name.getParent().equals( base ) )
                     || ( ( scope == SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) ) );
             
-            if ( inscope && evaluator.evaluate( criteria.getFilter(), base, entry ) )
+            if ( inscope && evaluator.evaluate( group.getFilter(), base, entry ) )
             {
-                selecting.add( registration );
+                selecting.addAll( group.getRegistrations() );
             }
         }
 
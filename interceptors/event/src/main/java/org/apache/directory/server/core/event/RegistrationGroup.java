@@ -0,0 +1,127 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+
+
+/**
+ * The registrations sharing the same base, scope and filter. The criteria of a group are
+ * evaluated once per event, whatever the number of its registrations.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class RegistrationGroup
+{
+    /** The key identifying the criteria of the group */
+    private final String key;
+
+    /** The base of the criteria */
+    private final Dn base;
+
+    /** The scope of the criteria */
+    private final SearchScope scope;
+
+    /** The normalized filter of the criteria */
+    private final ExprNode filter;
+
+    /** The registrations of the group */
+    private final List<RegistrationEntry> registrations = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Creates a new instance of RegistrationGroup.
+     *
+     * @param criteria The normalized criteria of the group
+     */
+    RegistrationGroup( NotificationCriteria criteria )
+    {
+        key = getKey( criteria );
+        base = criteria.getBase();
+        scope = criteria.getScope();
+        filter = criteria.getFilter();
+    }
+
+
+    /**
+     * Compute the key identifying a normalized criteria. The event mask is not part of the key,
+     * as it is checked for each registration.
+     *
+     * @param criteria The normalized criteria
+     * @return The key
+     */
+    static String getKey( NotificationCriteria criteria )
+    {
+        return criteria.getScope() + "|" + criteria.getBase().getNormName() + "|" + criteria.getFilter();
+    }
+
+
+    /**
+     * @return The key identifying the criteria of the group
+     */
+    String getKey()
+    {
+        return key;
+    }
+
+
+    /**
+     * @return The base of the criteria
+     */
+    Dn getBase()
+    {
+        return base;
+    }
+
+
+    /**
+     * @return The scope of the criteria
+     */
+    SearchScope getScope()
+    {
+        return scope;
+    }
+
+
+    /**
+     * @return The normalized filter of the criteria
+     */
+    ExprNode getFilter()
+    {
+        return filter;
+    }
+
+
+    /**
+     * @return The registrations of the group
+     */
+    List<RegistrationEntry> getRegistrations()
+    {
+        return registrations;
+    }
+}
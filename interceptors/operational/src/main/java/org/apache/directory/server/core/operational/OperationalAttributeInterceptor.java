@@ -546,13 +546,26 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
         if ( searchContext.isAllOperationalAttributes()
             || ( ( searchContext.getReturningAttributes() != null ) && !searchContext.getReturningAttributes().isEmpty() ) )
         {
-            if ( directoryService.isDenormalizeOpAttrsEnabled() )
+            // Only add the filters that will do something for this search
+            if ( searchContext.getReturningAttributesString() != null )
             {
-                cursor.addEntryFilter( denormalizingSearchFilter );
+                if ( directoryService.isDenormalizeOpAttrsEnabled() )
+                {
+                    cursor.addEntryFilter( denormalizingSearchFilter );
+                }
+
+                if ( searchContext.isAllOperationalAttributes()
+                    || searchContext.getReturningAttributes().contains(
+                        new AttributeTypeOptions( directoryService.getAtProvider().getSubschemaSubentry() ) ) )
+                {
+                    cursor.addEntryFilter( operationalAttributeSearchFilter );
+                }
             }
 
-            cursor.addEntryFilter( operationalAttributeSearchFilter );
-            cursor.addEntryFilter( subordinatesSearchFilter );
+            if ( isSubordinatesRequested( searchContext ) )
+            {
+                cursor.addEntryFilter( subordinatesSearchFilter );
+            }
             
             return cursor;
         }
@@ -611,6 +624,31 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Tells if one of the attributes computed by the SubordinatesSearchFilter has been requested
+     */
+    private boolean isSubordinatesRequested( SearchOperationContext searchContext )
+    {
+        Set<AttributeTypeOptions> returningAttributes = searchContext.getReturningAttributes();
+
+        if ( returningAttributes == null )
+        {
+            return false;
+        }
+
+        if ( searchContext.isAllOperationalAttributes() )
+        {
+            return true;
+        }
+
+        return returningAttributes.contains( new AttributeTypeOptions( directoryService.getAtProvider().getNbChildren() ) )
+            || returningAttributes.contains( new AttributeTypeOptions( directoryService.getAtProvider().getNbSubordinates() ) )
+            || returningAttributes.contains( new AttributeTypeOptions( directoryService.getAtProvider().getHasSubordinates() ) )
+            || returningAttributes.contains(
+                new AttributeTypeOptions( directoryService.getAtProvider().getStructuralObjectClass() ) );
+    }
+
+
     /**
      * Does not create a new Dn but alters existing Dn by using the first
      * short name for an attributeType definition.
@@ -692,8 +730,16 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
             if ( nbChildrenRequested || nbSubordinatesRequested || hasSubordinatesRequested 
                 || structuralObjectClassRequested )
             {
+                // The returned entry only contains the requested attributes
+                Entry originalEntry = entry;
+
+                if ( entry instanceof ClonedServerEntry )
+                {
+                    originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+                }
+
                 Partition partition = directoryService.getPartitionNexus().getPartition( entry.getDn() );
-                Subordinates subordinates = partition.getSubordinates( operationContext.getTransaction(), entry );
+                Subordinates subordinates = partition.getSubordinates( operationContext.getTransaction(), originalEntry );
                 
                 long nbChildren = subordinates.getNbChildren();
                 long nbSubordinates = subordinates.getNbSubordinates();
@@ -728,7 +774,7 @@ public class OperationalAttributeInterceptor extends BaseInterceptor
                 // Inject the structuralObjectclass OpAttr if needed
                 if ( structuralObjectClassRequested )
                 {
-                    Attribute objectClasses = entry.get( SchemaConstants.OBJECT_CLASS_AT );
+                    Attribute objectClasses = originalEntry.get( SchemaConstants.OBJECT_CLASS_AT );
                     Map<String, ObjectClass> superiors = new HashMap<>();
                     ObjectClass[] objectClassArray = new ObjectClass[objectClasses.size()];
                     int nbStructural = 0;
@@ -20,8 +20,15 @@
 package org.apache.directory.server.core.subtree;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -39,13 +46,11 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchAttributeException;
-import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -53,6 +58,7 @@ import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.Subentries;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.UsageEnum;
 import org.apache.directory.api.ldap.model.subtree.AdministrativeRole;
 import org.apache.directory.api.ldap.model.subtree.Subentry;
 import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
@@ -62,11 +68,13 @@ import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.entry.ServerEntryUtils;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
@@ -77,6 +85,7 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.subtree.SubentryCache;
+import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.core.api.subtree.SubtreeEvaluator;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
@@ -97,6 +106,12 @@ public class SubentryInterceptor extends BaseInterceptor
     /** the subentry control OID */
     private static final String SUBENTRY_CONTROL = Subentries.OID;
 
+    /**
+     * The file present while the subentry membership is computed on read. It lists the
+     * subentries removed meanwhile, which references may still be stored in some entries.
+     */
+    private static final String COMPUTED_MEMBERSHIP_FILE_NAME = "subentry-membership-computed.txt";
+
     private Value subentryOC;
 
     /** The SubTree specification parser instance */
@@ -105,14 +120,17 @@ public class SubentryInterceptor extends BaseInterceptor
     /** A reference to the nexus for direct backend operations */
     private PartitionNexus nexus;
 
-    /** An enum used for the entries update */
-    private enum OperationEnum
-    {
-        ADD,
-        REMOVE,
-        REPLACE
-    }
+    /** Updates the references to the subentries in the entries they select */
+    private SubentryUpdater updater;
+
+    /** Computes the references to the subentries which are still being updated */
+    private SubentryUtils subentryUtils;
 
+    /** The operational attribute holding the progress of the update of a subentry */
+    private AttributeType subentryUpdateProgressAT;
+
+    /** The file listing the subentries removed while the membership is computed on read */
+    private File computedMembershipFile;
 
     /**
      * Creates a new instance of SubentryInterceptor
@@ -125,6 +143,21 @@ public class SubentryInterceptor extends BaseInterceptor
     //-------------------------------------------------------------------------------------------
     // Search filter methods
     //-------------------------------------------------------------------------------------------
+    /**
+     * Gets the entry as returned by the backend, as the filtered entry only contains
+     * the requested attributes.
+     */
+    private static Entry getOriginalEntry( Entry entry )
+    {
+        if ( entry instanceof ClonedServerEntry )
+        {
+            return ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        return entry;
+    }
+
+
     /**
      * SearchResultFilter used to filter out subentries based on objectClass values.
      */
@@ -143,7 +176,7 @@ public class SubentryInterceptor extends BaseInterceptor
             }
 
             // see if we can use objectclass if present
-            return !entry.contains( directoryService.getAtProvider().getObjectClass(), subentryOC );
+            return !getOriginalEntry( entry ).contains( directoryService.getAtProvider().getObjectClass(), subentryOC );
         }
 
 
@@ -176,7 +209,8 @@ public class SubentryInterceptor extends BaseInterceptor
             }
 
             // see if we can use objectclass if present
-            return entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC );
+            return getOriginalEntry( entry ).contains( directoryService.getAtProvider().getObjectClass(),
+                SchemaConstants.SUBENTRY_OC );
         }
 
 
@@ -190,6 +224,34 @@ public class SubentryInterceptor extends BaseInterceptor
         }
     }
 
+    /**
+     * SearchResultFilter used to inject the references to the subentries which are still
+     * being updated, and the progress of those updates.
+     */
+    private final class PendingUpdatesFilter implements EntryFilter
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( SearchOperationContext searchContext, Entry entry ) throws LdapException
+        {
+            addPendingUpdates( searchContext, entry );
+
+            return true;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( String tabs )
+        {
+            return tabs + "PendingUpdatesFilter";
+        }
+    }
+
 
     //-------------------------------------------------------------------------------------------
     // Interceptor initialization
@@ -282,6 +344,153 @@ public class SubentryInterceptor extends BaseInterceptor
                 }
             }
         }
+
+        subentryUtils = new SubentryUtils( directoryService );
+        subentryUpdateProgressAT = getSubentryUpdateProgressAttributeType();
+
+        // Restart the updates which were not done when the server stopped
+        File file = null;
+
+        if ( directoryService.getInstanceLayout() != null )
+        {
+            file = new File( directoryService.getInstanceLayout().getPartitionsDirectory(),
+                SubentryUpdater.STORE_FILE_NAME );
+            computedMembershipFile = new File( directoryService.getInstanceLayout().getPartitionsDirectory(),
+                COMPUTED_MEMBERSHIP_FILE_NAME );
+        }
+
+        updater = new SubentryUpdater( directoryService, SubentryUpdater.DEFAULT_BATCH_SIZE, file );
+        updater.start();
+
+        initComputedMembership();
+    }
+
+
+    /**
+     * Keeps track of the subentry membership mode. When the membership stops being computed
+     * on read, the references stored in the entries are out of date : they are rebuilt in
+     * the background, and the subentries are evaluated on the fly until it's done.
+     */
+    private void initComputedMembership() throws LdapException
+    {
+        if ( computedMembershipFile == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( directoryService.isSubentryMembershipComputed() )
+            {
+                if ( !computedMembershipFile.exists() )
+                {
+                    Files.write( computedMembershipFile.toPath(), Collections.<String>emptyList(),
+                        StandardCharsets.UTF_8 );
+                }
+            }
+            else if ( computedMembershipFile.exists() )
+            {
+                LOG.info( "The subentry membership is not computed anymore, rebuilding the stored references" );
+
+                for ( Dn subentryDn : directoryService.getSubentryCache() )
+                {
+                    updater.schedule( subentryDn );
+                }
+
+                // The references to the removed subentries must be removed too
+                for ( String line : Files.readAllLines( computedMembershipFile.toPath(), StandardCharsets.UTF_8 ) )
+                {
+                    if ( !line.isEmpty() )
+                    {
+                        updater.schedule( new Dn( schemaManager, line ) );
+                    }
+                }
+
+                Files.delete( computedMembershipFile.toPath() );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Records a subentry removed while the subentry membership is computed on read, so that
+     * the references to it still stored in the entries are removed if the mode is switched off.
+     */
+    private void recordRemovedSubentry( Dn subentryDn ) throws LdapException
+    {
+        if ( computedMembershipFile == null )
+        {
+            return;
+        }
+
+        try
+        {
+            Files.write( computedMembershipFile.toPath(), Collections.singletonList( subentryDn.getName() ),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Removes the computed references to the subentries from the entry read before a move or
+     * a rename, as the partition stores that entry under its new name.
+     */
+    private void removeComputedReferences( Entry entry ) throws LdapException
+    {
+        if ( ( entry != null ) && directoryService.isSubentryMembershipComputed() )
+        {
+            entry.removeAttributes( directoryService.getAtProvider().getAccessControlSubentries(),
+                directoryService.getAtProvider().getCollectiveAttributeSubentries(),
+                directoryService.getAtProvider().getTriggerExecutionSubentries() );
+        }
+    }
+
+
+    /**
+     * Updates the references to a subentry which has been added, modified or removed, in the
+     * entries it selects. Nothing is stored when the subentry membership is computed on read.
+     */
+    private void updateReferences( OperationContext opContext, Dn subentryDn, boolean removed )
+        throws LdapException
+    {
+        if ( !directoryService.isSubentryMembershipComputed() )
+        {
+            updater.update( opContext, subentryDn );
+        }
+        else if ( removed )
+        {
+            recordRemovedSubentry( subentryDn );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if ( updater != null )
+        {
+            updater.stop();
+        }
+    }
+
+
+    /**
+     * @return The updater applying the changes done on the subentries to the entries they select
+     */
+    public SubentryUpdater getUpdater()
+    {
+        return updater;
     }
 
 
@@ -352,79 +561,102 @@ public class SubentryInterceptor extends BaseInterceptor
 
 
     /**
-     * Update all the entries under an AP adding the
+     * Gets the operational attribute exposing the progress of the update of a subentry,
+     * registering it if the loaded schema doesn't define it.
      */
-    private void updateEntries( OperationContext opContext, OperationEnum operation, 
-        Dn apDn, SubtreeSpecification ss, Dn baseDn, List<Attribute> operationalAttributes ) throws LdapException
+    private AttributeType getSubentryUpdateProgressAttributeType() throws LdapException
     {
-        ExprNode filter = ObjectClassNode.OBJECT_CLASS_NODE; // (objectClass=*)
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-        SearchOperationContext searchOperationContext = new SearchOperationContext( opContext.getSession(),
-            baseDn, filter, controls );
-        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-        searchOperationContext.setPartition( opContext.getPartition() );
-        searchOperationContext.setTransaction( opContext.getTransaction() );
+        AttributeType attributeType = schemaManager.getAttributeType(
+            ApacheSchemaConstants.SUBENTRY_UPDATE_PROGRESS_AT_OID );
 
-        EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-        try
+        if ( attributeType != null )
         {
-            while ( subentries.next() )
-            {
-                Entry candidate = subentries.get();
-                Dn candidateDn = candidate.getDn();
+            return attributeType;
+        }
 
-                if ( directoryService.getEvaluator().evaluate( ss, apDn, candidateDn, candidate ) )
-                {
-                    List<Modification> modifications = null;
+        attributeType = new AttributeType( ApacheSchemaConstants.SUBENTRY_UPDATE_PROGRESS_AT_OID );
+        attributeType.setNames( ApacheSchemaConstants.SUBENTRY_UPDATE_PROGRESS_AT );
+        attributeType.setDescription( "The progress of the update of the entries selected by a subentry" );
+        attributeType.setSchemaName( "apache" );
+        attributeType.setSyntaxOid( SchemaConstants.DIRECTORY_STRING_SYNTAX );
+        attributeType.setEqualityOid( SchemaConstants.CASE_IGNORE_MATCH_MR_OID );
+        attributeType.setUsage( UsageEnum.DSA_OPERATION );
+        attributeType.setSingleValued( true );
+        attributeType.setUserModifiable( false );
+
+        if ( !schemaManager.add( attributeType ) )
+        {
+            LOG.warn( "Cannot register the {} attribute type : {}", ApacheSchemaConstants.SUBENTRY_UPDATE_PROGRESS_AT,
+                schemaManager.getErrors() );
 
-                    switch ( operation )
-                    {
-                        case ADD:
-                            modifications = getOperationalModsForAdd( candidate, operationalAttributes );
-                            break;
+            return null;
+        }
 
-                        case REMOVE:
-                            modifications = getOperationalModsForRemove( opContext.getDn(), candidate );
-                            break;
+        return schemaManager.getAttributeType( ApacheSchemaConstants.SUBENTRY_UPDATE_PROGRESS_AT_OID );
+    }
 
-                        case REPLACE:
-                            // TODO: why is that commented out???
-                            //modifications = getOperationalModsForReplace( subentryDn, candidate );
-                            break;
 
-                        default:
-                            throw new IllegalArgumentException( "Unexpected operation " + operation );
-                    }
+    /**
+     * Tells if the references to the subentries have to be computed on read, either because
+     * they aren't stored at all, or because some subentries are still being updated.
+     */
+    private boolean hasComputedReferences()
+    {
+        return directoryService.isSubentryMembershipComputed()
+            || directoryService.getSubentryCache().hasPendingUpdates();
+    }
 
-                    LOG.debug( "The entry {} has been evaluated to true for subentry {}", candidate.getDn(), opContext.getDn() );
-                    ModifyOperationContext modifyContext = new ModifyOperationContext( opContext.getSession(), candidateDn, modifications );
-                    modifyContext.setPartition( opContext.getPartition() );
-                    modifyContext.setTransaction( opContext.getTransaction() );
-                    
-                    nexus.modify( modifyContext );
-                }
-            }
 
-            subentries.close();
+    /**
+     * Injects in a returned entry the references to the subentries which are computed
+     * from the subentry cache, and the progress of the update if the entry is a subentry
+     * which is still being updated.
+     */
+    private void addPendingUpdates( FilteringOperationContext opContext, Entry entry ) throws LdapException
+    {
+        if ( !hasComputedReferences() )
+        {
+            return;
         }
-        catch ( Exception e )
+
+        Entry originalEntry = getOriginalEntry( entry );
+        Dn dn = originalEntry.getDn();
+
+        if ( !dn.isSchemaAware() )
         {
-            throw new LdapOtherException( e.getMessage(), e );
+            dn = new Dn( schemaManager, dn );
         }
-        finally
+
+        AttributeType[] attributeTypes = new AttributeType[]
+            {
+                directoryService.getAtProvider().getAccessControlSubentries(),
+                directoryService.getAtProvider().getCollectiveAttributeSubentries(),
+                directoryService.getAtProvider().getTriggerExecutionSubentries()
+        };
+
+        for ( AttributeType attributeType : attributeTypes )
         {
-            try
+            if ( ServerEntryUtils.isReturned( schemaManager, opContext, attributeType ) )
             {
-                subentries.close();
+                Attribute subentries = subentryUtils.getSubentries( dn, originalEntry, attributeType );
+                entry.removeAttributes( attributeType );
+
+                if ( subentries != null )
+                {
+                    // The computed references may be shared, and the returned entry modified
+                    entry.put( subentries.clone() );
+                }
             }
-            catch ( Exception e )
+        }
+
+        if ( ( subentryUpdateProgressAT != null )
+            && ServerEntryUtils.isReturned( schemaManager, opContext, subentryUpdateProgressAT ) )
+        {
+            String progress = updater.getProgress( dn );
+
+            if ( progress != null )
             {
-                LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
+                entry.put( subentryUpdateProgressAT, progress );
             }
         }
     }
@@ -544,6 +776,12 @@ public class SubentryInterceptor extends BaseInterceptor
     {
         List<Modification> modifications = new ArrayList<>();
 
+        // Nothing is stored when the membership is computed on read
+        if ( directoryService.isSubentryMembershipComputed() )
+        {
+            return modifications;
+        }
+
         /*
          * There are two different situations warranting action.  First if
          * an ss evalutating to true with the old name no longer evalutates
@@ -560,7 +798,16 @@ public class SubentryInterceptor extends BaseInterceptor
         SubentryCache subentryCache = directoryService.getSubentryCache();
         SubtreeEvaluator evaluator = directoryService.getEvaluator();
 
-        for ( Dn subentryDn : subentryCache )
+        if ( !newName.isSchemaAware() )
+        {
+            newName = new Dn( schemaManager, newName );
+        }
+
+        // Only the subentries of the APs above the old or the new name may select the entry
+        Set<Dn> subentryDns = new LinkedHashSet<>( subentryCache.getSubentries( oldName ) );
+        subentryDns.addAll( subentryCache.getSubentries( newName ) );
+
+        for ( Dn subentryDn : subentryDns )
         {
             Dn apDn = subentryDn.getParent();
             SubtreeSpecification ss = subentryCache.getSubentry( subentryDn ).getSubtreeSpecification();
@@ -660,171 +907,6 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
-    /**
-     * Update the list of modifications with a modification associated with a specific
-     * role, if it's requested.
-     */
-    private void getOperationalModForReplace( boolean hasRole, AttributeType attributeType, Entry entry, Dn oldDn,
-        Dn newDn, List<Modification> modifications ) throws LdapInvalidAttributeValueException
-    {
-        String oldDnStr = oldDn.getName();
-        String newDnStr = newDn.getName();
-
-        if ( hasRole )
-        {
-            Attribute operational = entry.get( attributeType ).clone();
-
-            if ( operational == null )
-            {
-                operational = new DefaultAttribute( attributeType, newDnStr );
-            }
-            else
-            {
-                operational.remove( oldDnStr );
-                operational.add( newDnStr );
-            }
-
-            modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, operational ) );
-        }
-    }
-
-
-    /**
-     * Get the list of modifications to be applied on an entry to inject the operational attributes
-     * associated with the administrative roles.
-     */
-    private List<Modification> getOperationalModsForReplace( Dn oldDn, Dn newDn, Subentry subentry, Entry entry )
-        throws LdapException
-    {
-        List<Modification> modifications = new ArrayList<>();
-
-        getOperationalModForReplace( subentry.isAccessControlAdminRole(), directoryService.getAtProvider()
-            .getAccessControlSubentries(), entry, oldDn, newDn, modifications );
-        getOperationalModForReplace( subentry.isSchemaAdminRole(), directoryService.getAtProvider()
-            .getSubschemaSubentry(), entry, oldDn, newDn, modifications );
-        getOperationalModForReplace( subentry.isCollectiveAdminRole(), directoryService.getAtProvider()
-            .getCollectiveAttributeSubentries(), entry, oldDn, newDn, modifications );
-        getOperationalModForReplace( subentry.isTriggersAdminRole(), directoryService.getAtProvider()
-            .getTriggerExecutionSubentries(), entry, oldDn, newDn, modifications );
-
-        return modifications;
-    }
-
-
-    /**
-     * Gets the subschema operational attributes to be added to or removed from
-     * an entry selected by a subentry's subtreeSpecification.
-     */
-    private List<Attribute> getSubentryOperationalAttributes( Dn dn, Subentry subentry ) throws LdapException
-    {
-        List<Attribute> attributes = new ArrayList<>();
-
-        if ( subentry.isAccessControlAdminRole() )
-        {
-            Attribute accessControlSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getAccessControlSubentries(), dn.getName() );
-            attributes.add( accessControlSubentries );
-        }
-
-        if ( subentry.isSchemaAdminRole() )
-        {
-            Attribute subschemaSubentry = new DefaultAttribute(
-                directoryService.getAtProvider().getSubschemaSubentry(), dn.getName() );
-            attributes.add( subschemaSubentry );
-        }
-
-        if ( subentry.isCollectiveAdminRole() )
-        {
-            Attribute collectiveAttributeSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getCollectiveAttributeSubentries(), dn.getName() );
-            attributes.add( collectiveAttributeSubentries );
-        }
-
-        if ( subentry.isTriggersAdminRole() )
-        {
-            Attribute tiggerExecutionSubentries = new DefaultAttribute( directoryService.getAtProvider()
-                .getTriggerExecutionSubentries(), dn.getName() );
-            attributes.add( tiggerExecutionSubentries );
-        }
-
-        return attributes;
-    }
-
-
-    /**
-     * Calculates the subentry operational attributes to remove from a candidate
-     * entry selected by a subtreeSpecification.  When we remove a subentry we
-     * must remove the operational attributes in the entries that were once selected
-     * by the subtree specification of that subentry.  To do so we must perform
-     * a modify operation with the set of modifications to perform.  This method
-     * calculates those modifications.
-     *
-     * @param subentryDn the distinguished name of the subentry
-     * @param candidate the candidate entry to removed from the
-     * @return the set of modifications required to remove an entry's reference to
-     * a subentry
-     */
-    private List<Modification> getOperationalModsForRemove( Dn subentryDn, Entry candidate ) throws LdapException
-    {
-        List<Modification> modifications = new ArrayList<>();
-        String dn = subentryDn.getName();
-
-        for ( AttributeType operationalAttribute : directoryService.getAtProvider().getSubentryOperationalAttributes() )
-        {
-            Attribute opAttr = candidate.get( operationalAttribute );
-
-            if ( ( opAttr != null ) && opAttr.contains( dn ) )
-            {
-                Attribute attr = new DefaultAttribute( operationalAttribute, dn );
-                modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attr ) );
-            }
-        }
-
-        return modifications;
-    }
-
-
-    /**
-     * Calculates the subentry operational attributes to add or replace from
-     * a candidate entry selected by a subtree specification.  When a subentry
-     * is added or it's specification is modified some entries must have new
-     * operational attributes added to it to point back to the associated
-     * subentry.  To do so a modify operation must be performed on entries
-     * selected by the subtree specification.  This method calculates the
-     * modify operation to be performed on the entry.
-     */
-    private List<Modification> getOperationalModsForAdd( Entry entry, List<Attribute> operationalAttributes )
-        throws LdapException
-    {
-        List<Modification> modifications = new ArrayList<>();
-
-        for ( Attribute operationalAttribute : operationalAttributes )
-        {
-            Attribute opAttrInEntry = entry.get( operationalAttribute.getAttributeType() );
-
-            if ( ( opAttrInEntry != null ) && ( opAttrInEntry.size() > 0 ) )
-            {
-                Attribute newOperationalAttribute = operationalAttribute.clone();
-
-                for ( Value value : opAttrInEntry )
-                {
-                    newOperationalAttribute.add( value );
-                }
-
-                modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
-                    newOperationalAttribute ) );
-            }
-            else
-            {
-                modifications
-                    .add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, operationalAttribute ) );
-            }
-        }
-
-        return modifications;
-    }
-
-
     /**
      * Get the list of modification to apply to all the entries
      */
@@ -833,7 +915,13 @@ public class SubentryInterceptor extends BaseInterceptor
     {
         List<Modification> modList = new ArrayList<>();
 
-        for ( Dn subentryDn : directoryService.getSubentryCache() )
+        // Nothing is stored when the membership is computed on read
+        if ( directoryService.isSubentryMembershipComputed() )
+        {
+            return modList;
+        }
+
+        for ( Dn subentryDn : directoryService.getSubentryCache().getSubentries( name ) )
         {
             Dn apDn = subentryDn.getParent();
             SubtreeSpecification ss = directoryService.getSubentryCache().getSubentry( subentryDn )
@@ -933,17 +1021,8 @@ public class SubentryInterceptor extends BaseInterceptor
             Dn apDn = dn.getParent();
             checkAdministrativeRole( addContext, apDn );
 
-            /* ----------------------------------------------------------------
-             * Build the set of operational attributes to be injected into
-             * entries that are contained within the subtree represented by this
-             * new subentry.  In the process we make sure the proper roles are
-             * supported by the administrative point to allow the addition of
-             * this new subentry.
-             * ----------------------------------------------------------------
-             */
             Subentry subentry = new Subentry();
             subentry.setAdministrativeRoles( getSubentryAdminRoles( entry ) );
-            List<Attribute> operationalAttributes = getSubentryOperationalAttributes( dn, subentry );
 
             /* ----------------------------------------------------------------
              * Parse the subtreeSpecification of the subentry and add it to the
@@ -959,18 +1038,12 @@ public class SubentryInterceptor extends BaseInterceptor
             next( addContext );
 
             /* ----------------------------------------------------------------
-             * Find the baseDn for the subentry and use that to search the tree
-             * while testing each entry returned for inclusion within the
-             * subtree of the subentry's subtreeSpecification.  All included
-             * entries will have their operational attributes merged with the
-             * operational attributes calculated above.
+             * Add a reference to the subentry in all the entries selected by
+             * its subtreeSpecification. This is done in the background if the
+             * administrative area is large.
              * ----------------------------------------------------------------
              */
-            Dn baseDn = apDn;
-            baseDn = baseDn.add( subentry.getSubtreeSpecification().getBase() );
-
-            updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
-                baseDn, operationalAttributes );
+            updateReferences( addContext, dn, false );
 
             // Store the newly modified entry into the context for later use in interceptor
             // just in case
@@ -980,48 +1053,44 @@ public class SubentryInterceptor extends BaseInterceptor
         {
             // The added entry is not a Subentry.
             // Nevertheless, we have to check if the entry is added into an AdministrativePoint
-            // and is associated with some SubtreeSpecification
-            // We brutally check *all* the subentries, as we don't hold a hierarchy
-            // of AP
-            // TODO : add a hierarchy of subentries
-            for ( Dn subentryDn : directoryService.getSubentryCache() )
+            // and is associated with some SubtreeSpecification. Only the subentries of the
+            // APs above the entry are evaluated. Nothing is stored when the membership is
+            // computed on read.
+            List<Dn> subentryDns = directoryService.isSubentryMembershipComputed()
+                ? Collections.<Dn>emptyList() : directoryService.getSubentryCache().getSubentries( dn );
+
+            for ( Dn subentryDn : subentryDns )
             {
                 Dn apDn = subentryDn.getParent();
+                Subentry subentry = directoryService.getSubentryCache().getSubentry( subentryDn );
+                SubtreeSpecification ss = subentry.getSubtreeSpecification();
 
-                // No need to evaluate the entry if it's not below an AP.
-                if ( dn.isDescendantOf( apDn ) )
+                // Now, evaluate the entry wrt the subentry ss
+                // and inject a ref to the subentry if it evaluates to true
+                if ( directoryService.getEvaluator().evaluate( ss, apDn, dn, entry ) )
                 {
-                    Subentry subentry = directoryService.getSubentryCache().getSubentry( subentryDn );
-                    SubtreeSpecification ss = subentry.getSubtreeSpecification();
-
-                    // Now, evaluate the entry wrt the subentry ss
-                    // and inject a ref to the subentry if it evaluates to true
-                    if ( directoryService.getEvaluator().evaluate( ss, apDn, dn, entry ) )
+                    if ( subentry.isAccessControlAdminRole() )
                     {
+                        setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
+                            .getAccessControlSubentries() );
+                    }
 
-                        if ( subentry.isAccessControlAdminRole() )
-                        {
-                            setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
-                                .getAccessControlSubentries() );
-                        }
-
-                        if ( subentry.isSchemaAdminRole() )
-                        {
-                            setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
-                                .getSubschemaSubentry() );
-                        }
+                    if ( subentry.isSchemaAdminRole() )
+                    {
+                        setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
+                            .getSubschemaSubentry() );
+                    }
 
-                        if ( subentry.isCollectiveAdminRole() )
-                        {
-                            setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
-                                .getCollectiveAttributeSubentries() );
-                        }
+                    if ( subentry.isCollectiveAdminRole() )
+                    {
+                        setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
+                            .getCollectiveAttributeSubentries() );
+                    }
 
-                        if ( subentry.isTriggersAdminRole() )
-                        {
-                            setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
-                                .getTriggerExecutionSubentries() );
-                        }
+                    if ( subentry.isTriggersAdminRole() )
+                    {
+                        setOperationalAttribute( entry, subentryDn, directoryService.getAtProvider()
+                            .getTriggerExecutionSubentries() );
                     }
                 }
             }
@@ -1049,27 +1118,12 @@ public class SubentryInterceptor extends BaseInterceptor
         // We first remove the re
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
-            Subentry removedSubentry = directoryService.getSubentryCache().getSubentry( dn );
-
-            /* ----------------------------------------------------------------
-             * Find the baseDn for the subentry and use that to search the tree
-             * for all entries included by the subtreeSpecification.  Then we
-             * check the entry for subentry operational attribute that contain
-             * the Dn of the subentry.  These are the subentry operational
-             * attributes we remove from the entry in a modify operation.
-             * ----------------------------------------------------------------
-             */
-            Dn apDn = dn.getParent();
-            Dn baseDn = apDn;
-            baseDn = baseDn.add( removedSubentry.getSubtreeSpecification().getBase() );
-
-            // Remove all the references to this removed subentry from all the selected entries
-            updateEntries( deleteContext, OperationEnum.REMOVE, apDn,
-                removedSubentry.getSubtreeSpecification(), baseDn, null );
-
             // Update the cache
             directoryService.getSubentryCache().removeSubentry( dn );
 
+            // Remove all the references to this removed subentry from all the selected entries
+            updateReferences( deleteContext, dn, true );
+
             // Now delete the subentry itself
             next( deleteContext );
         }
@@ -1121,7 +1175,6 @@ public class SubentryInterceptor extends BaseInterceptor
         if ( containsSubentryOC && isSubtreeSpecificationModification )
         {
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( dn );
-            SubtreeSpecification ssOld = subentry.getSubtreeSpecification();
             SubtreeSpecification ssNew;
 
             try
@@ -1141,107 +1194,9 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( modifyContext );
 
-            // search for all entries selected by the old SS and remove references to subentry
-            Dn apName = dn.getParent();
-            Dn oldBaseDn = apName;
-            oldBaseDn = oldBaseDn.add( ssOld.getBase() );
-
-            ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            controls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-            SearchOperationContext searchOperationContext = new SearchOperationContext( modifyContext.getSession(),
-                oldBaseDn, filter, controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( modifyContext.getPartition() );
-            searchOperationContext.setTransaction( modifyContext.getTransaction() );
-
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-            try
-            {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn candidateDn = candidate.getDn();
-
-                    if ( directoryService.getEvaluator().evaluate( ssOld, apName, candidateDn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( modifyContext.getSession(), candidateDn,
-                            getOperationalModsForRemove( dn, candidate ) );
-                        newModifyContext.setPartition( modifyContext.getPartition() );
-                        newModifyContext.setTransaction( modifyContext.getTransaction() );
-                        
-                        nexus.modify( newModifyContext );
-                    }
-                }
-
-                subentries.close();
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationErrorException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
-                }
-            }
-
-            // search for all selected entries by the new SS and add references to subentry
-            subentry = directoryService.getSubentryCache().getSubentry( dn );
-            List<Attribute> operationalAttributes = getSubentryOperationalAttributes( dn, subentry );
-            Dn newBaseDn = apName;
-            newBaseDn = newBaseDn.add( ssNew.getBase() );
-
-            searchOperationContext = new SearchOperationContext( modifyContext.getSession(), newBaseDn, filter,
-                controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( modifyContext.getPartition() );
-            searchOperationContext.setTransaction( modifyContext.getTransaction() );
-
-            subentries = nexus.search( searchOperationContext );
-
-            try
-            {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn candidateDn = candidate.getDn();
-
-                    if ( directoryService.getEvaluator().evaluate( ssNew, apName, candidateDn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( modifyContext.getSession(), candidateDn,
-                            getOperationalModsForAdd( candidate, operationalAttributes ) );
-                        newModifyContext.setTransaction( modifyContext.getTransaction() );
-                        nexus.modify( newModifyContext );
-                    }
-                }
-                subentries.close();
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationErrorException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
-                }
-            }
+            // Update the references to the subentry in the entries selected by the old
+            // and the new subtreeSpecifications
+            updateReferences( modifyContext, dn, false );
         }
         else
         {
@@ -1312,10 +1267,6 @@ public class SubentryInterceptor extends BaseInterceptor
             checkAdministrativeRole( moveContext, newSuperiorDn );
 
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( oldDn );
-            SubtreeSpecification ss = subentry.getSubtreeSpecification();
-            Dn apName = oldDn.getParent();
-            Dn baseDn = apName;
-            baseDn = baseDn.add( ss.getBase() );
             Dn newName = newSuperiorDn;
             newName = newName.add( oldDn.getRdn() );
             
@@ -1328,61 +1279,10 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( moveContext );
 
-            subentry = directoryService.getSubentryCache().getSubentry( newName );
-
-            ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            controls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-            SearchOperationContext searchOperationContext = new SearchOperationContext( moveContext.getSession(),
-                baseDn,
-                filter, controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( moveContext.getPartition() );
-            searchOperationContext.setTransaction( moveContext.getTransaction() );
-
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-            try
-            {
-                // Modify all the entries under this subentry
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn dn = candidate.getDn();
-                    
-                    if ( !dn.isSchemaAware() )
-                    {
-                        dn = new Dn( schemaManager, dn );
-                    }
-
-                    if ( directoryService.getEvaluator().evaluate( ss, apName, dn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( moveContext.getSession(), dn,
-                            getOperationalModsForReplace( oldDn, newName, subentry, candidate ) );
-                        newModifyContext.setPartition( moveContext.getPartition() );
-                        newModifyContext.setTransaction( moveContext.getTransaction() );
-                        nexus.modify( newModifyContext );
-                    }
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
-                }
-            }
+            // Move the references to the subentry from the entries selected under the old
+            // administrative point to the ones selected under the new one
+            updateReferences( moveContext, oldDn, true );
+            updateReferences( moveContext, newName, false );
         }
         else
         {
@@ -1400,6 +1300,7 @@ public class SubentryInterceptor extends BaseInterceptor
             }
 
             // Move the entry
+            removeComputedReferences( moveContext.getModifiedEntry() );
             next( moveContext );
 
             // calculate the new Dn now for use below to modify subentry operational
@@ -1433,10 +1334,6 @@ public class SubentryInterceptor extends BaseInterceptor
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( oldDn );
-            SubtreeSpecification ss = subentry.getSubtreeSpecification();
-            Dn apName = oldDn.getParent();
-            Dn baseDn = apName;
-            baseDn = baseDn.add( ss.getBase() );
             Dn newName = newSuperiorDn.getParent();
 
             newName = newName.add( moveAndRenameContext.getNewRdn() );
@@ -1450,60 +1347,10 @@ public class SubentryInterceptor extends BaseInterceptor
 
             next( moveAndRenameContext );
 
-            subentry = directoryService.getSubentryCache().getSubentry( newName );
-
-            ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            controls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-            SearchOperationContext searchOperationContext = new SearchOperationContext(
-                moveAndRenameContext.getSession(), baseDn,
-                filter, controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( moveAndRenameContext.getPartition() );
-            searchOperationContext.setTransaction( moveAndRenameContext.getTransaction() );
-
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-            try
-            {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn dn = candidate.getDn();
-                    
-                    if ( !dn.isSchemaAware() )
-                    {
-                        dn = new Dn( schemaManager, dn );
-                    }
-
-                    if ( directoryService.getEvaluator().evaluate( ss, apName, dn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( moveAndRenameContext.getSession(), dn,
-                            getOperationalModsForReplace( oldDn, newName, subentry, candidate ) );
-                        newModifyContext.setPartition( moveAndRenameContext.getPartition() );
-                        newModifyContext.setTransaction( moveAndRenameContext.getTransaction() );
-                        nexus.modify( newModifyContext );
-                    }
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
-                }
-            }
+            // Move the references to the subentry from the entries selected under the old
+            // administrative point to the ones selected under the new one
+            updateReferences( moveAndRenameContext, oldDn, true );
+            updateReferences( moveAndRenameContext, newName, false );
         }
         else
         {
@@ -1514,6 +1361,7 @@ public class SubentryInterceptor extends BaseInterceptor
                 throw new LdapSchemaViolationException( ResultCodeEnum.NOT_ALLOWED_ON_RDN, msg );
             }
 
+            removeComputedReferences( moveAndRenameContext.getModifiedEntry() );
             next( moveAndRenameContext );
 
             // calculate the new Dn now for use below to modify subentry operational
@@ -1545,10 +1393,6 @@ public class SubentryInterceptor extends BaseInterceptor
         {
             // @Todo To be reviewed !!!
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( oldDn );
-            SubtreeSpecification ss = subentry.getSubtreeSpecification();
-            Dn apName = oldDn.getParent();
-            Dn baseDn = apName;
-            baseDn = baseDn.add( ss.getBase() );
             Dn newName = oldDn.getParent();
 
             newName = newName.add( renameContext.getNewRdn() );
@@ -1561,59 +1405,10 @@ public class SubentryInterceptor extends BaseInterceptor
             directoryService.getSubentryCache().addSubentry( newName, subentry );
             next( renameContext );
 
-            subentry = directoryService.getSubentryCache().getSubentry( newName );
-            ExprNode filter = new PresenceNode( directoryService.getAtProvider().getObjectClass() );
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            controls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
-
-            SearchOperationContext searchOperationContext = new SearchOperationContext( renameContext.getSession(),
-                baseDn,
-                filter, controls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-            searchOperationContext.setPartition( renameContext.getPartition() );
-            searchOperationContext.setTransaction( renameContext.getTransaction() );
-
-            EntryFilteringCursor subentries = nexus.search( searchOperationContext );
-
-            try
-            {
-                while ( subentries.next() )
-                {
-                    Entry candidate = subentries.get();
-                    Dn dn = candidate.getDn();
-
-                    if ( !dn.isSchemaAware() )
-                    {
-                        dn = new Dn( schemaManager, dn );
-                    }
-
-                    if ( directoryService.getEvaluator().evaluate( ss, apName, dn, candidate ) )
-                    {
-                        ModifyOperationContext newModifyContext = new ModifyOperationContext( renameContext.getSession(), dn,
-                            getOperationalModsForReplace(
-                                oldDn, newName, subentry, candidate ) );
-                        newModifyContext.setTransaction( renameContext.getTransaction() );
-                        nexus.modify( newModifyContext );
-                    }
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationException( e.getMessage(), e );
-            }
-            finally
-            {
-                try
-                {
-                    subentries.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
-                }
-            }
+            // Move the references to the subentry from the entries selected under the old
+            // administrative point to the ones selected under the new one
+            updateReferences( renameContext, oldDn, true );
+            updateReferences( renameContext, newName, false );
         }
         else
         {
@@ -1624,6 +1419,7 @@ public class SubentryInterceptor extends BaseInterceptor
                 throw new LdapSchemaViolationException( ResultCodeEnum.NOT_ALLOWED_ON_RDN, msg );
             }
 
+            removeComputedReferences( renameContext.getModifiedEntry() );
             next( renameContext );
 
             // calculate the new Dn now for use below to modify subentry operational
@@ -1643,6 +1439,20 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+    {
+        Entry entry = next( lookupContext );
+
+        addPendingUpdates( lookupContext, entry );
+
+        return entry;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1651,6 +1461,11 @@ public class SubentryInterceptor extends BaseInterceptor
     {
         EntryFilteringCursor cursor = next( searchContext );
 
+        if ( hasComputedReferences() )
+        {
+            cursor.addEntryFilter( new PendingUpdatesFilter() );
+        }
+
         // object scope searches by default return subentries
         if ( searchContext.getScope() == SearchScope.OBJECT )
         {
@@ -0,0 +1,748 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.subtree.SubentryCache;
+import org.apache.directory.server.core.api.subtree.SubentryUtils;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Updates the references to a subentry (accessControlSubentries, collectiveAttributeSubentries...)
+ * in the entries of its administrative area, once the subentry has been added, modified, moved
+ * or deleted. An update compares what the subentry selects now with the references stored in each
+ * entry of the area, so it can be run again as many times as needed.
+ * <br>
+ * The entries of a small area are updated within the operation done on the subentry. When the area
+ * holds more than <code>batchSize</code> entries, the update goes on in a background thread, and the
+ * entries are modified by batches, each batch in its own transaction. The subentries being updated
+ * are stored in a file, so that their update is restarted if the server stops before it's done.
+ * Until then, the readers compute the references to those subentries on the fly (see
+ * {@link SubentryUtils#getSubentries(Dn, Entry, AttributeType)}).
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryUpdater
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( SubentryUpdater.class );
+
+    /** The name of the file the pending updates are stored in */
+    public static final String STORE_FILE_NAME = "subentry-updates.txt";
+
+    /** The default number of entries modified in one transaction */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The utility used to evaluate the subentries */
+    private final SubentryUtils subentryUtils;
+
+    /** The number of entries read within an operation, and modified in one transaction */
+    private volatile int batchSize;
+
+    /** The file the pending updates are stored in, if any */
+    private final File file;
+
+    /** The pending updates, per subentry Dn, in the order they have been requested */
+    private final Map<Dn, Progress> updates = new LinkedHashMap<>();
+
+    /** The thread running the updates */
+    private ExecutorService executor;
+
+    /** Tells if the updater is being stopped */
+    private volatile boolean stopped;
+
+
+    /**
+     * The progress of the update of a subentry
+     */
+    private static final class Progress
+    {
+        /** The number of entries read so far */
+        private volatile long processed;
+
+        /** The number of entries modified so far */
+        private volatile long updated;
+
+        /** Tells if the update is running */
+        private volatile boolean running;
+
+        /** Tells if the subentry has changed while it was being updated */
+        private boolean rerun;
+
+        /** The reason why the update has failed, if it did */
+        private volatile String failure;
+
+
+        @Override
+        public String toString()
+        {
+            if ( failure != null )
+            {
+                return "failed: " + failure;
+            }
+
+            if ( running )
+            {
+                return "running: " + processed + " entries processed, " + updated + " updated";
+            }
+
+            return "queued";
+        }
+    }
+
+
+    /**
+     * Creates a new instance of SubentryUpdater.
+     *
+     * @param directoryService The DirectoryService instance
+     * @param batchSize The number of entries modified in one transaction
+     * @param file The file the pending updates are stored in, or null if they are kept in memory
+     */
+    public SubentryUpdater( DirectoryService directoryService, int batchSize, File file )
+    {
+        this.directoryService = directoryService;
+        this.subentryUtils = new SubentryUtils( directoryService );
+        this.batchSize = batchSize;
+        this.file = file;
+    }
+
+
+    /**
+     * Starts the background thread, and restarts the updates that were pending
+     * when the server stopped.
+     *
+     * @throws LdapException If the pending updates can't be read
+     */
+    public void start() throws LdapException
+    {
+        stopped = false;
+        executor = Executors.newSingleThreadExecutor( runnable ->
+        {
+            Thread thread = Executors.defaultThreadFactory().newThread( runnable );
+            thread.setName( "subentry-updater" );
+            thread.setDaemon( true );
+
+            return thread;
+        } );
+
+        if ( ( file == null ) || !file.exists() )
+        {
+            return;
+        }
+
+        try
+        {
+            for ( String line : Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 ) )
+            {
+                if ( !line.isEmpty() )
+                {
+                    LOG.info( "Restarting the update of the entries selected by the subentry {}", line );
+                    schedule( new Dn( directoryService.getSchemaManager(), line ) );
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Stops the background thread. The updates which are not done will be
+     * restarted when the server starts again.
+     */
+    public void stop()
+    {
+        stopped = true;
+
+        if ( executor != null )
+        {
+            executor.shutdownNow();
+
+            try
+            {
+                executor.awaitTermination( 10L, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            executor = null;
+        }
+    }
+
+
+    /**
+     * Updates the references to a subentry in the entries of its administrative area. The
+     * first entries are updated within the given operation. If the area holds more entries,
+     * the update is done in the background once the operation has been committed.
+     *
+     * @param opContext The operation done on the subentry
+     * @param subentryDn The subentry Dn. It may not be in the subentry cache anymore, if it has
+     * been deleted or moved, in which case its references are removed.
+     * @throws LdapException If the entries can't be updated
+     */
+    public void update( OperationContext opContext, Dn subentryDn ) throws LdapException
+    {
+        synchronized ( this )
+        {
+            // An update is already pending: it has to be done again
+            if ( updates.containsKey( subentryDn ) )
+            {
+                schedule( subentryDn );
+
+                return;
+            }
+        }
+
+        Partition partition = directoryService.getPartitionNexus().getPartition( subentryDn.getParent() );
+
+        if ( ( partition != opContext.getPartition() )
+            || !update( opContext.getSession(), partition, opContext.getTransaction(), subentryDn ) )
+        {
+            schedule( subentryDn );
+        }
+    }
+
+
+    /**
+     * @param batchSize The number of entries read within an operation, and modified in one transaction
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * @param subentryDn The subentry Dn
+     * @return The progress of the update of the references to this subentry, or null if there is none
+     */
+    public synchronized String getProgress( Dn subentryDn )
+    {
+        Progress progress = updates.get( subentryDn );
+
+        if ( progress == null )
+        {
+            return null;
+        }
+
+        return progress.toString();
+    }
+
+
+    /**
+     * Waits for the pending updates to be done.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return true if there is no pending update anymore
+     * @throws InterruptedException If the thread has been interrupted
+     */
+    public synchronized boolean waitForUpdates( long timeout ) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+
+        while ( hasRunnableUpdate() )
+        {
+            long remaining = end - System.currentTimeMillis();
+
+            if ( remaining <= 0L )
+            {
+                return false;
+            }
+
+            wait( remaining );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Tells if an update is waiting or running. The failed updates are not considered.
+     */
+    private boolean hasRunnableUpdate()
+    {
+        for ( Progress progress : updates.values() )
+        {
+            if ( progress.failure == null )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Queues the update of the references to a subentry. The readers will evaluate
+     * this subentry on the fly until it's done.
+     *
+     * @param subentryDn The subentry Dn. Its references are removed if it's not in the subentry cache.
+     */
+    public synchronized void schedule( Dn subentryDn )
+    {
+        Progress progress = updates.get( subentryDn );
+
+        if ( progress != null )
+        {
+            if ( progress.running )
+            {
+                progress.rerun = true;
+            }
+            else if ( progress.failure != null )
+            {
+                updates.remove( subentryDn );
+                progress = null;
+            }
+        }
+
+        if ( progress == null )
+        {
+            updates.put( subentryDn, new Progress() );
+            directoryService.getSubentryCache().addPendingUpdate( subentryDn );
+            store();
+
+            if ( executor != null )
+            {
+                executor.execute( () -> run( subentryDn ) );
+            }
+        }
+    }
+
+
+    /**
+     * Runs the update of the references to a subentry in the background
+     */
+    private void run( Dn subentryDn )
+    {
+        Progress progress;
+
+        synchronized ( this )
+        {
+            progress = updates.get( subentryDn );
+            progress.running = true;
+            progress.rerun = false;
+            progress.processed = 0L;
+            progress.updated = 0L;
+        }
+
+        // The update has been queued while the operation on the subentry was holding the
+        // write lock: we wait for it to be released, so that we read what has been committed
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.lockWrite();
+        operationManager.unlockWrite();
+
+        try
+        {
+            update( subentryDn, progress );
+        }
+        catch ( Exception e )
+        {
+            if ( stopped )
+            {
+                return;
+            }
+
+            LOG.error( "Cannot update the entries selected by the subentry {}", subentryDn, e );
+            progress.failure = e.getMessage();
+        }
+
+        synchronized ( this )
+        {
+            progress.running = false;
+
+            if ( stopped )
+            {
+                return;
+            }
+
+            if ( progress.rerun )
+            {
+                executor.execute( () -> run( subentryDn ) );
+            }
+            else if ( progress.failure == null )
+            {
+                updates.remove( subentryDn );
+                directoryService.getSubentryCache().removePendingUpdate( subentryDn );
+                store();
+                LOG.info( "The {} entries selected by the subentry {} have been updated", progress.updated,
+                    subentryDn );
+            }
+
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Updates the first entries of an area within the current operation.
+     *
+     * @return true if all the entries have been updated, false if there are more than a batch
+     */
+    private boolean update( CoreSession session, Partition partition, PartitionTxn transaction, Dn subentryDn )
+        throws LdapException
+    {
+        EntryFilteringCursor cursor = search( session, partition, transaction, subentryDn.getParent() );
+
+        try
+        {
+            int processed = 0;
+
+            while ( cursor.next() )
+            {
+                if ( ++processed > batchSize )
+                {
+                    return false;
+                }
+
+                Entry candidate = cursor.get();
+                Dn candidateDn = getCandidateDn( candidate );
+                List<Modification> modifications = getModifications( subentryDn, candidateDn, candidate );
+
+                if ( !modifications.isEmpty() )
+                {
+                    ModifyOperationContext modifyContext = new ModifyOperationContext( session, candidateDn,
+                        modifications );
+                    modifyContext.setPartition( partition );
+                    modifyContext.setTransaction( transaction );
+                    directoryService.getPartitionNexus().modify( modifyContext );
+                }
+            }
+
+            return true;
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            close( cursor );
+        }
+    }
+
+
+    /**
+     * Updates all the entries of an area, by batches. The entries are read in a read transaction,
+     * and the ones to modify are read again and modified in a write transaction, as they may have
+     * changed in the meantime.
+     */
+    private void update( Dn subentryDn, Progress progress ) throws LdapException, IOException
+    {
+        Partition partition = directoryService.getPartitionNexus().getPartition( subentryDn.getParent() );
+        CoreSession session = directoryService.getAdminSession();
+        List<Dn> batch = new ArrayList<>();
+
+        try ( PartitionTxn transaction = partition.beginReadTransaction() )
+        {
+            EntryFilteringCursor cursor = search( session, partition, transaction, subentryDn.getParent() );
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    if ( stopped )
+                    {
+                        return;
+                    }
+
+                    Entry candidate = cursor.get();
+                    Dn candidateDn = getCandidateDn( candidate );
+                    progress.processed++;
+
+                    if ( !getModifications( subentryDn, candidateDn, candidate ).isEmpty() )
+                    {
+                        batch.add( candidateDn );
+
+                        if ( batch.size() >= batchSize )
+                        {
+                            write( session, partition, subentryDn, batch, progress );
+                            batch.clear();
+                        }
+                    }
+                }
+            }
+            catch ( LdapException le )
+            {
+                throw le;
+            }
+            catch ( Exception e )
+            {
+                throw new LdapOtherException( e.getMessage(), e );
+            }
+            finally
+            {
+                close( cursor );
+            }
+        }
+
+        write( session, partition, subentryDn, batch, progress );
+    }
+
+
+    /**
+     * Modifies a batch of entries in one transaction, holding the write lock
+     */
+    private void write( CoreSession session, Partition partition, Dn subentryDn, List<Dn> batch, Progress progress )
+        throws LdapException, IOException
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+
+        PartitionNexus nexus = directoryService.getPartitionNexus();
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.lockWrite();
+        PartitionTxn transaction = null;
+
+        try
+        {
+            transaction = partition.beginWriteTransaction();
+
+            for ( Dn candidateDn : batch )
+            {
+                LookupOperationContext lookupContext = new LookupOperationContext( session, candidateDn,
+                    SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+                lookupContext.setPartition( partition );
+                lookupContext.setTransaction( transaction );
+                Entry candidate;
+
+                try
+                {
+                    candidate = nexus.lookup( lookupContext );
+                }
+                catch ( LdapNoSuchObjectException lnsoe )
+                {
+                    // The entry has been deleted in the meantime
+                    continue;
+                }
+
+                List<Modification> modifications = getModifications( subentryDn, candidateDn, candidate );
+
+                if ( !modifications.isEmpty() )
+                {
+                    ModifyOperationContext modifyContext = new ModifyOperationContext( session, candidateDn,
+                        modifications );
+                    modifyContext.setPartition( partition );
+                    modifyContext.setTransaction( transaction );
+                    nexus.modify( modifyContext );
+                    progress.updated++;
+                }
+            }
+
+            transaction.commit();
+        }
+        catch ( LdapException | IOException e )
+        {
+            if ( transaction != null )
+            {
+                transaction.abort();
+            }
+
+            throw e;
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+    }
+
+
+    /**
+     * Searches all the entries of an administrative area, with their operational attributes
+     */
+    private EntryFilteringCursor search( CoreSession session, Partition partition, PartitionTxn transaction,
+        Dn apDn ) throws LdapException
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        controls.setReturningAttributes( new String[]
+            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
+
+        SearchOperationContext searchOperationContext = new SearchOperationContext( session, apDn,
+            ObjectClassNode.OBJECT_CLASS_NODE, controls );
+        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchOperationContext.setPartition( partition );
+        searchOperationContext.setTransaction( transaction );
+
+        return directoryService.getPartitionNexus().search( searchOperationContext );
+    }
+
+
+    /**
+     * Computes the modifications to apply on an entry so that it references the subentry
+     * if and only if the subentry selects it.
+     */
+    private List<Modification> getModifications( Dn subentryDn, Dn candidateDn, Entry candidate )
+        throws LdapException
+    {
+        List<Modification> modifications = new ArrayList<>();
+        SubentryCache subentryCache = directoryService.getSubentryCache();
+        Subentry subentry = subentryCache.getSubentry( subentryDn );
+        boolean selected = ( subentry != null ) && directoryService.getEvaluator().evaluate(
+            subentry.getSubtreeSpecification(), subentryDn.getParent(), candidateDn, candidate );
+
+        for ( AttributeType attributeType : directoryService.getAtProvider().getSubentryOperationalAttributes() )
+        {
+            boolean expected = selected && subentryUtils.hasRole( subentry, attributeType );
+            Attribute references = candidate.get( attributeType );
+            boolean present = ( references != null ) && references.contains( subentryDn.getName() );
+
+            if ( expected && !present )
+            {
+                modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+                    new DefaultAttribute( attributeType, subentryDn.getName() ) ) );
+            }
+            else if ( !expected && present )
+            {
+                modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+                    new DefaultAttribute( attributeType, subentryDn.getName() ) ) );
+            }
+        }
+
+        return modifications;
+    }
+
+
+    /**
+     * Gets the schema aware Dn of an entry
+     */
+    private Dn getCandidateDn( Entry candidate ) throws LdapException
+    {
+        Dn dn = candidate.getDn();
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( directoryService.getSchemaManager(), dn );
+        }
+
+        return dn;
+    }
+
+
+    /**
+     * Closes a cursor
+     */
+    private void close( EntryFilteringCursor cursor )
+    {
+        try
+        {
+            cursor.close();
+        }
+        catch ( Exception e )
+        {
+            LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
+        }
+    }
+
+
+    /**
+     * Stores the Dn of the subentries being updated. The file is written in a temporary
+     * file first, then renamed, so that it's never partially written.
+     */
+    private void store()
+    {
+        if ( file == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( updates.isEmpty() )
+            {
+                Files.deleteIfExists( file.toPath() );
+
+                return;
+            }
+
+            List<String> lines = new ArrayList<>( updates.size() );
+
+            for ( Dn subentryDn : updates.keySet() )
+            {
+                lines.add( subentryDn.getName() );
+            }
+
+            File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+            Files.write( tmp.toPath(), lines, StandardCharsets.UTF_8 );
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot store the pending subentry updates in {}", file, ioe );
+        }
+    }
+}
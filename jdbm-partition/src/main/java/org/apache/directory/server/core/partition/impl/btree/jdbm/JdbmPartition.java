@@ -112,6 +112,12 @@ public class JdbmPartition extends AbstractBTreePartition
     /** the entry cache */
     private Cache< String, Entry > entryCache;
 
+    /** The number of write transactions committed at once while bulk loading */
+    private static final int BULK_LOAD_COMMIT_INTERVAL = 1000;
+
+    /** The last bulk load transaction, its pending writes are flushed before any other write */
+    private volatile JdbmPartitionBulkWriteTxn bulkWriteTxn;
+
 
     /**
      * Creates a store based on JDBM B+Trees.
@@ -1002,6 +1008,35 @@ public class JdbmPartition extends AbstractBTreePartition
     @Override
     public PartitionWriteTxn beginWriteTransaction()
     {
+        JdbmPartitionBulkWriteTxn bulkTxn = bulkWriteTxn;
+
+        // The new transaction may be rolled back, which would also drop the bulk loaded
+        // operations not yet committed
+        if ( bulkTxn != null )
+        {
+            try
+            {
+                bulkTxn.flush();
+            }
+            catch ( IOException ioe )
+            {
+                // The bulk load transaction is now failed, the bulk load has to be done again
+                LOG.error( "Failed to commit the bulk loaded operations of the {} partition", getSuffixDn(), ioe );
+            }
+        }
+
         return new JdbmPartitionWriteTxn( recMan, isSyncOnWrite() );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected PartitionWriteTxn beginBulkWriteTransaction()
+    {
+        bulkWriteTxn = new JdbmPartitionBulkWriteTxn( recMan, BULK_LOAD_COMMIT_INTERVAL );
+
+        return bulkWriteTxn;
+    }
 }
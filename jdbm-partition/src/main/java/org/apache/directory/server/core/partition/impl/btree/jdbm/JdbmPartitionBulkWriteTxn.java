@@ -0,0 +1,183 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+import java.io.IOException;
+
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+
+import jdbm.RecordManager;
+
+/**
+ * The JDBM partition write transaction used while the partition is bulk loaded. The same
+ * transaction is used by all the bulk loaded operations : each operation commits it, but the
+ * writes are only committed once every N operations, and when the transaction is closed.
+ * <p>
+ * JDBM can only roll back all the pending writes, and doing so would leave the in memory
+ * BTrees out of sync. An operation can thus not be aborted : the abort fails, and so does the
+ * close, the bulk loaded data having to be reloaded. The other write transactions share the
+ * same RecordManager, so the pending writes are flushed before one of them starts : rolling it
+ * back does not drop the bulk loaded operations.
+ *  
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmPartitionBulkWriteTxn extends PartitionWriteTxn
+{
+    /** The associated record manager */
+    private final RecordManager recordManager;
+
+    /** The number of operations committed at once */
+    private final int commitInterval;
+
+    /** The number of operations not yet committed */
+    private int pendingWrites;
+
+    /** Set when an operation has been aborted */
+    private boolean failed;
+
+    /** Set when the transaction has been closed */
+    private boolean closed;
+    
+    /**
+     * Create an instance of JdbmPartitionBulkWriteTxn
+     * 
+     * @param recordManager The RecordManager instance
+     * @param commitInterval The number of operations committed at once
+     */
+    public JdbmPartitionBulkWriteTxn( RecordManager recordManager, int commitInterval )
+    {
+        this.recordManager = recordManager;
+        this.commitInterval = commitInterval;
+    }
+    
+    
+    /**
+     * Commits an operation : the pending writes are committed once every N operations.
+     * 
+     * @throws IOException If the commit failed, or if the transaction is closed
+     */
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        checkOpen();
+        pendingWrites++;
+
+        if ( pendingWrites >= commitInterval )
+        {
+            recordManager.commit();
+            pendingWrites = 0;
+        }
+    }
+
+
+    /**
+     * Aborts an operation : nothing is rolled back, the transaction is marked as failed.
+     * 
+     * @throws IOException Always, as the operation can't be rolled back
+     */
+    @Override
+    public synchronized void abort() throws IOException
+    {
+        checkOpen();
+        failed = true;
+
+        throw new IOException( "Cannot roll back a bulk loaded operation, the bulk load has failed" );
+    }
+
+
+    /**
+     * Commits the pending writes, if any, so that they can't be rolled back by another write
+     * transaction. Flushing a closed transaction does nothing.
+     * 
+     * @throws IOException If the commit failed
+     */
+    public synchronized void flush() throws IOException
+    {
+        if ( closed || ( pendingWrites == 0 ) )
+        {
+            return;
+        }
+
+        try
+        {
+            recordManager.commit();
+            pendingWrites = 0;
+        }
+        catch ( IOException ioe )
+        {
+            failed = true;
+
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * @return <code>true</code> if an operation has been aborted
+     */
+    public synchronized boolean isFailed()
+    {
+        return failed;
+    }
+
+    
+    /**
+     * Commits the pending writes and closes the transaction. Closing a closed transaction
+     * does nothing.
+     * 
+     * @throws IOException If the commit failed, or if an operation has been aborted
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        closed = true;
+        recordManager.commit();
+        pendingWrites = 0;
+
+        if ( failed )
+        {
+            throw new IOException( "The bulk load has failed, an operation has been aborted" );
+        }
+    }
+
+
+    private void checkOpen() throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "The bulk load transaction is closed" );
+        }
+    }
+}
@@ -29,6 +29,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -48,7 +49,9 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
@@ -924,4 +927,137 @@ public class JdbmStoreTest
         lookedup = partition.modify( partitionTxn, dn, add );
         assertEquals( attribVal, lookedup.get( "ou" ).get().getString() );
     }
+
+
+    private void addPerson( String cn, String ou ) throws Exception
+    {
+        PartitionTxn partitionTxn = partition.beginWriteTransaction();
+
+        try
+        {
+            addPerson( partitionTxn, cn, ou );
+        }
+        catch ( Exception e )
+        {
+            partitionTxn.abort();
+            throw e;
+        }
+    }
+
+
+    private void addPerson( PartitionTxn partitionTxn, String cn, String ou ) throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=" + cn + ",ou=Sales,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "cn", cn,
+            "sn", cn,
+            "ou", ou,
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( partitionTxn );
+
+        partition.add( addContext );
+        partitionTxn.commit();
+    }
+
+
+    @Test
+    public void testBulkLoad() throws Exception
+    {
+        Index<String, String> ouIndex = ( Index<String, String> ) partition.getUserIndex( OU_AT );
+        String bulk = new Value( OU_AT, "Bulk" ).getNormalized();
+        String local = new Value( OU_AT, "Local" ).getNormalized();
+
+        PartitionTxn bulkTxn = partition.beginBulkLoad();
+        assertTrue( partition.isBulkLoading() );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            addPerson( bulkTxn, "Bulk " + i, "Bulk" );
+        }
+
+        // The user indexes are not updated yet
+        assertNull( ouIndex.forwardLookup( partitionTxn, bulk ) );
+
+        // The additions done with another transaction are indexed right away
+        addPerson( "Local", "Local" );
+        assertEquals( 1, ouIndex.count( partitionTxn, local ) );
+
+        partition.endBulkLoad();
+        assertFalse( partition.isBulkLoading() );
+        assertTrue( bulkTxn.isClosed() );
+        assertThrows( IOException.class, () -> bulkTxn.commit() );
+
+        assertEquals( 20, ouIndex.count( partitionTxn, bulk ) );
+
+        // The entries are updated as usual
+        addPerson( "After Bulk", "Bulk" );
+        assertEquals( 21, ouIndex.count( partitionTxn, bulk ) );
+    }
+
+
+    @Test
+    public void testBulkLoadFailedAddition() throws Exception
+    {
+        Index<String, String> ouIndex = ( Index<String, String> ) partition.getUserIndex( OU_AT );
+        String bulk = new Value( OU_AT, "Bulk" ).getNormalized();
+
+        PartitionTxn bulkTxn = partition.beginBulkLoad();
+        addPerson( bulkTxn, "Bulk 1", "Bulk" );
+
+        // This addition fails, and it can't be rolled back
+        assertThrows( LdapNoSuchObjectException.class, () -> addPerson( bulkTxn, "Bulk 2,ou=Not Present", "Bulk" ) );
+        assertThrows( IOException.class, () -> bulkTxn.abort() );
+
+        // The bulk load has failed, but the added entry is kept and indexed
+        assertThrows( LdapOtherException.class, () -> partition.endBulkLoad() );
+        assertFalse( partition.isBulkLoading() );
+
+        assertNotNull( partition.getEntryId( partitionTxn, new Dn( schemaManager, "cn=Bulk 1,ou=Sales,o=Good Times Co." ) ) );
+        assertEquals( 1, ouIndex.count( partitionTxn, bulk ) );
+    }
+
+
+    @Test
+    public void testBulkLoadFailedLocalAddition() throws Exception
+    {
+        Index<String, String> ouIndex = ( Index<String, String> ) partition.getUserIndex( OU_AT );
+        String bulk = new Value( OU_AT, "Bulk" ).getNormalized();
+
+        PartitionTxn bulkTxn = partition.beginBulkLoad();
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            addPerson( bulkTxn, "Bulk " + i, "Bulk" );
+        }
+
+        // A local addition fails and is rolled back, the bulk loaded entries must not be lost
+        assertThrows( LdapNoSuchObjectException.class, () -> addPerson( "Local,ou=Not Present", "Local" ) );
+
+        for ( int i = 20; i < 40; i++ )
+        {
+            addPerson( bulkTxn, "Bulk " + i, "Bulk" );
+        }
+
+        partition.endBulkLoad();
+        assertFalse( partition.isBulkLoading() );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            assertNotNull( partition.getEntryId( partitionTxn,
+                new Dn( schemaManager, "cn=Bulk " + i + ",ou=Sales,o=Good Times Co." ) ) );
+        }
+
+        assertEquals( 40, ouIndex.count( partitionTxn, bulk ) );
+
+        // The partition is still usable
+        addPerson( "After Bulk", "Bulk" );
+        assertEquals( 41, ouIndex.count( partitionTxn, bulk ) );
+    }
 }
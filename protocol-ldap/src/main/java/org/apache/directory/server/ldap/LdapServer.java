@@ -20,6 +20,7 @@
 package org.apache.directory.server.ldap;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.security.KeyStore;
@@ -37,7 +38,6 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
-import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SaslQoP;
 import org.apache.directory.api.ldap.model.exception.LdapConfigurationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -93,9 +93,11 @@ import org.apache.directory.server.ldap.handlers.response.SearchResultEntryHandl
 import org.apache.directory.server.ldap.handlers.response.SearchResultReferenceHandler;
 import org.apache.directory.server.ldap.handlers.sasl.MechanismHandler;
 import org.apache.directory.server.ldap.handlers.ssl.LdapsInitializer;
-import org.apache.directory.server.ldap.replication.consumer.PingerThread;
+import org.apache.directory.server.ldap.replication.DefaultReplicationMetricsRegistry;
+import org.apache.directory.server.ldap.replication.ReplicationMetricsRegistry;
+import org.apache.directory.server.ldap.replication.consumer.AttributeCsnStore;
 import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
-import org.apache.directory.server.ldap.replication.consumer.ReplicationStatusEnum;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerRunner;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
 import org.apache.directory.server.protocol.shared.DirectoryBackedService;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
@@ -116,7 +118,6 @@ import org.apache.mina.transport.socket.AbstractSocketSessionConfig;
 import org.apache.mina.transport.socket.SocketAcceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 
 
 /**
@@ -130,9 +131,6 @@ public class LdapServer extends DirectoryBackedService
     /** logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( LdapServer.class );
 
-    /** Logger for the replication consumer */
-    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
-
     /** Value (0) for configuration where size limit is unlimited. */
     public static final long NO_SIZE_LIMIT = 0;
 
@@ -250,12 +248,24 @@ public class LdapServer extends DirectoryBackedService
     /** The list of replication consumers */
     private List<ReplicationConsumer> replConsumers;
 
+    /** The runners driving the started replication consumers */
+    private List<ReplicationConsumerRunner> replConsumerRunners = new ArrayList<>();
+
+    /** The store of the attributes CSNs shared by the replication consumers */
+    private AttributeCsnStore attributeCsnStore;
+
+    /** The registry of the replication metrics */
+    private ReplicationMetricsRegistry replicationMetricsRegistry = new DefaultReplicationMetricsRegistry();
+
     private KeyManagerFactory keyManagerFactory;
     private TrustManager[] trustManagers;
 
-    /** the time interval between subsequent pings to each replication provider */
+    /** the maximum delay between two connection attempts to a replication provider, in seconds */
     private int pingerSleepTime;
 
+    /** the default maximum delay between two connection attempts to a replication provider, in ms */
+    private static final long DEFAULT_MAX_REPL_RETRY_DELAY = 5000L;
+
     /**
      * the list of cipher suites to be used in LDAPS and StartTLS
      * @deprecated See the {@link TcpTransport} class that contains this list
@@ -740,64 +750,30 @@ public class LdapServer extends DirectoryBackedService
     {
         if ( ( replConsumers != null ) && !replConsumers.isEmpty() )
         {
-            final PingerThread pingerThread = new PingerThread( pingerSleepTime );
-            pingerThread.start();
+            // The pinger delay is now the maximum delay between two connection attempts
+            long maxRetryDelay = DEFAULT_MAX_REPL_RETRY_DELAY;
 
-            for ( final ReplicationConsumer consumer : replConsumers )
+            if ( pingerSleepTime > 0 )
+            {
+                maxRetryDelay = pingerSleepTime * 1000L;
+            }
+
+            // The consumers in MMR mode resolve the conflicts per attribute
+            File replDirectory = getDirectoryService().getInstanceLayout().getReplDirectory();
+            attributeCsnStore = new AttributeCsnStore( new File( replDirectory, AttributeCsnStore.STORE_FILE_NAME ) );
+            attributeCsnStore.start( getDirectoryService() );
+
+            for ( ReplicationConsumer consumer : replConsumers )
             {
+                consumer.setMetricsRegistry( replicationMetricsRegistry );
+                consumer.setAttributeCsnStore( attributeCsnStore );
                 consumer.init( getDirectoryService() );
 
-                Runnable consumerTask = new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            while ( true )
-                            {
-                                if ( CONSUMER_LOG.isDebugEnabled() )
-                                {
-                                    MDC.put( "Replica", consumer.getId() );
-                                }
-
-                                LOG.info( "starting the replication consumer with {}", consumer );
-                                CONSUMER_LOG.info( "starting the replication consumer with {}", consumer );
-                                boolean isConnected = consumer.connect( ReplicationConsumer.NOW );
-
-                                if ( isConnected )
-                                {
-                                    pingerThread.addConsumer( consumer );
-
-                                    // We are now connected, start the replication
-                                    ReplicationStatusEnum status = null;
-
-                                    do
-                                    {
-                                        status = consumer.startSync();
-                                    }
-                                    while ( status == ReplicationStatusEnum.REFRESH_REQUIRED );
-
-                                    if ( status == ReplicationStatusEnum.STOPPED )
-                                    {
-                                        // Exit the loop
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        catch ( Exception e )
-                        {
-                            LOG.error( "Failed to start consumer {}", consumer );
-                            CONSUMER_LOG.error( "Failed to start consumer  {}", consumer );
-                            throw new RuntimeException( e );
-                        }
-                    }
-                };
+                LOG.info( "starting the replication consumer with {}", consumer );
 
-                Thread consumerThread = new Thread( consumerTask );
-                consumerThread.setDaemon( true );
-                consumerThread.start();
+                ReplicationConsumerRunner runner = new ReplicationConsumerRunner( consumer, maxRetryDelay );
+                replConsumerRunners.add( runner );
+                runner.start();
             }
         }
     }
@@ -813,7 +789,19 @@ public class LdapServer extends DirectoryBackedService
             for ( ReplicationConsumer consumer : replConsumers )
             {
                 LOG.info( "stopping the consumer with id {}", consumer.getId() );
-                consumer.stop();
+            }
+
+            for ( ReplicationConsumerRunner runner : replConsumerRunners )
+            {
+                runner.stop();
+            }
+
+            replConsumerRunners.clear();
+
+            if ( attributeCsnStore != null )
+            {
+                attributeCsnStore.stop();
+                attributeCsnStore = null;
             }
         }
     }
@@ -1726,6 +1714,24 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * @return The registry of the replication metrics
+     */
+    public ReplicationMetricsRegistry getReplicationMetricsRegistry()
+    {
+        return replicationMetricsRegistry;
+    }
+
+
+    /**
+     * @param replicationMetricsRegistry The registry of the replication metrics
+     */
+    public void setReplicationMetricsRegistry( ReplicationMetricsRegistry replicationMetricsRegistry )
+    {
+        this.replicationMetricsRegistry = replicationMetricsRegistry;
+    }
+
+
     /**
      * @return the key manager factory of the server keystore
      */
@@ -1773,7 +1779,7 @@ public class LdapServer extends DirectoryBackedService
 
 
     /**
-     * @return the number of seconds pinger thread sleeps between subsequent pings
+     * @return the maximum number of seconds between two connection attempts to a replication provider
      */
     public int getReplPingerSleepTime()
     {
@@ -1782,9 +1788,10 @@ public class LdapServer extends DirectoryBackedService
 
 
     /**
-     * The number of seconds pinger thread should sleep before pinging the providers
+     * The maximum number of seconds between two connection attempts to a replication provider.
+     * The consumers which can't connect retry with an increasing delay, up to this one.
      *
-     * @param pingerSleepTime The delay between 2 pings
+     * @param pingerSleepTime The maximum delay between 2 connection attempts
      */
     public void setReplPingerSleepTime( int pingerSleepTime )
     {
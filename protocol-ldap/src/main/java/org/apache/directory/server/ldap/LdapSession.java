@@ -39,6 +39,7 @@ import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.SearchRequestContainer;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewContext;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -96,6 +97,9 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
 
+    /** The Virtual List View context, a session keeps one list at most */
+    private VirtualListViewContext virtualListViewContext;
+
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -540,6 +544,24 @@ public class LdapSession
     }
 
 
+    /**
+     * Add a Virtual List View context into the stored contexts. It replaces the
+     * previous Virtual List View context of the session, if any, which is removed.
+     *
+     * @param context The context to add
+     */
+    public synchronized void addVirtualListViewContext( VirtualListViewContext context )
+    {
+        if ( virtualListViewContext != null )
+        {
+            pagedSearchContexts.remove( virtualListViewContext.getCookieValue(), virtualListViewContext );
+        }
+
+        virtualListViewContext = context;
+        addPagedSearchContext( context );
+    }
+
+
     /**
      * Remove a Paged Search context from the map storing all of them.
      *
@@ -548,7 +570,20 @@ public class LdapSession
      */
     public PagedSearchContext removePagedSearchContext( int contextId )
     {
-        return pagedSearchContexts.remove( contextId );
+        PagedSearchContext context = pagedSearchContexts.remove( contextId );
+
+        if ( context instanceof VirtualListViewContext )
+        {
+            synchronized ( this )
+            {
+                if ( virtualListViewContext == context )
+                {
+                    virtualListViewContext = null;
+                }
+            }
+        }
+
+        return context;
     }
 
 
@@ -0,0 +1,484 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewRequest;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ManageDsaITImpl;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.ldap.LdapSession;
+
+
+/**
+ * The structure which stores the informations relative to the Virtual List View
+ * control. The sorted cursor is walked once, when the list is built, keeping the Dn
+ * and the sort key value of each entry. The following requests on the list find
+ * the target by rank, or by a binary search on the sort key values, and only fetch
+ * the entries they return. This context is associated to the VLV contextID, and
+ * stored into the session, which keeps one list at most. As the list is held in
+ * memory, it can't contain more entries than the server size limit.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VirtualListViewContext extends PagedSearchContext
+{
+    /** The sort key the list is ordered with */
+    private SortKey sortKey;
+
+    /** The sort attribute */
+    private AttributeType sortAttributeType;
+
+    /** The comparator used to order the list */
+    private LdapComparator<Object> comparator;
+
+    /** The normalizer associated with the ordering matching rule */
+    private Normalizer normalizer;
+
+    /** The Dn of the entries of the list, in the list order */
+    private final List<Dn> dns = new ArrayList<>();
+
+    /** The sort key value of the entries of the list, null for the entries without the sort attribute */
+    private final List<Object> keys = new ArrayList<>();
+
+    /** Tells if the sort attribute has been added to the requested attributes */
+    private boolean sortAttributeAdded;
+
+
+    /**
+     * Creates a new instance of this class, storing the SearchRequest into it.
+     *
+     * @param searchRequest The SearchRequest
+     * @param schemaManager The SchemaManager
+     * @param sortAttributeAdded Tells if the sort attribute has been added to the requested attributes
+     * @throws LdapException If the sort key can't be resolved
+     */
+    @SuppressWarnings("unchecked")
+    public VirtualListViewContext( SearchRequest searchRequest, SchemaManager schemaManager,
+        boolean sortAttributeAdded ) throws LdapException
+    {
+        super( searchRequest );
+
+        this.sortAttributeAdded = sortAttributeAdded;
+        sortKey = getSortKey( searchRequest );
+        sortAttributeType = schemaManager.lookupAttributeTypeRegistry( sortKey.getAttributeTypeDesc() );
+
+        MatchingRule matchingRule;
+
+        if ( sortKey.getMatchingRuleId() != null )
+        {
+            matchingRule = schemaManager.lookupMatchingRuleRegistry( sortKey.getMatchingRuleId() );
+        }
+        else
+        {
+            matchingRule = sortAttributeType.getOrdering();
+
+            if ( matchingRule == null )
+            {
+                matchingRule = sortAttributeType.getEquality();
+            }
+        }
+
+        comparator = ( LdapComparator<Object> ) schemaManager.lookupComparatorRegistry( matchingRule.getOid() );
+        normalizer = matchingRule.getNormalizer();
+    }
+
+
+    /**
+     * Get the first sort key of the request
+     *
+     * @param searchRequest The SearchRequest
+     * @return The sort key, or null if there is no sort control
+     */
+    public static SortKey getSortKey( SearchRequest searchRequest )
+    {
+        SortRequest sortRequest = ( SortRequest ) searchRequest.getControl( SortRequest.OID );
+
+        if ( ( sortRequest == null ) || sortRequest.getSortKeys().isEmpty() )
+        {
+            return null;
+        }
+
+        return sortRequest.getSortKeys().get( 0 );
+    }
+
+
+    /**
+     * Add the sort attribute to the requested attributes if it's not already
+     * returned, as we need it to find the assertion targets.
+     *
+     * @param searchRequest The SearchRequest
+     * @param sortKey The sort key
+     * @param schemaManager The SchemaManager
+     * @return true if the attribute has been added
+     */
+    public static boolean addSortAttribute( SearchRequest searchRequest, SortKey sortKey, SchemaManager schemaManager )
+    {
+        List<String> attributes = searchRequest.getAttributes();
+
+        if ( attributes.isEmpty() )
+        {
+            // All the user attributes will be returned
+            return false;
+        }
+
+        AttributeType sortAttributeType = schemaManager.getAttributeType( sortKey.getAttributeTypeDesc() );
+
+        if ( sortAttributeType == null )
+        {
+            // The sort control will be rejected by the core
+            return false;
+        }
+
+        for ( String attribute : attributes )
+        {
+            if ( ( SchemaConstants.ALL_USER_ATTRIBUTES.equals( attribute ) && sortAttributeType.isUser() )
+                || ( SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES.equals( attribute ) && sortAttributeType.isOperational() )
+                || sortAttributeType.equals( schemaManager.getAttributeType( attribute ) ) )
+            {
+                return false;
+            }
+        }
+
+        searchRequest.addAttributes( sortKey.getAttributeTypeDesc() );
+
+        return true;
+    }
+
+
+    /**
+     * Get the integer value of a VLV contextID, as it has been produced by the
+     * cookie of a context.
+     *
+     * @param contextId The contextID sent by the client
+     * @return The context integer value
+     */
+    public static int getContextValue( byte[] contextId )
+    {
+        // The contextID is a BER encoded integer
+        int value = contextId[0];
+
+        for ( int i = 1; i < contextId.length; i++ )
+        {
+            value = ( value << 8 ) | ( contextId[i] & 0x00FF );
+        }
+
+        return value;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasSameRequest( SearchRequest request, LdapSession session )
+    {
+        SortKey requestSortKey = getSortKey( request );
+
+        if ( ( requestSortKey == null )
+            || !Strings.toLowerCaseAscii( requestSortKey.getAttributeTypeDesc() ).equals(
+                Strings.toLowerCaseAscii( sortKey.getAttributeTypeDesc() ) )
+            || ( requestSortKey.isReverseOrder() != sortKey.isReverseOrder() ) )
+        {
+            return false;
+        }
+
+        return super.hasSameRequest( request, session );
+    }
+
+
+    /**
+     * Build the list, walking the sorted cursor once. The entries are not kept, only
+     * their Dn and their sort key value. The caller closes the cursor.
+     *
+     * @param cursor The sorted cursor
+     * @param maxSize The maximum number of entries the list can hold
+     * @return false if the cursor has more than maxSize entries, in which case the list is not usable
+     * @throws LdapException If we can't move the cursor
+     * @throws CursorException If we can't move the cursor
+     */
+    public boolean load( Cursor<Entry> cursor, long maxSize ) throws LdapException, CursorException
+    {
+        cursor.beforeFirst();
+
+        while ( cursor.next() )
+        {
+            if ( dns.size() >= maxSize )
+            {
+                dns.clear();
+                keys.clear();
+
+                return false;
+            }
+
+            Entry entry = cursor.get();
+
+            dns.add( entry.getDn() );
+            keys.add( getKey( entry ) );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Get the Dn of the entry at a position in the list
+     *
+     * @param position The position, starting at 1
+     * @return The entry Dn
+     */
+    public Dn getDn( int position )
+    {
+        return dns.get( position - 1 );
+    }
+
+
+    /**
+     * Fetch an entry of a Virtual List View, as the search request returns it. The entry
+     * is read with a base search using the request filter and attributes.
+     *
+     * @param session The session
+     * @param req The search request
+     * @param dn The entry Dn
+     * @return The entry, or null if it doesn't exist or doesn't match the filter anymore
+     */
+    public static Entry fetchEntry( CoreSession session, SearchRequest req, Dn dn ) throws Exception
+    {
+        SearchRequest baseReq = new SearchRequestImpl();
+        baseReq.setBase( dn );
+        baseReq.setScope( SearchScope.OBJECT );
+        baseReq.setFilter( req.getFilter() );
+        baseReq.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+        baseReq.setTypesOnly( req.getTypesOnly() );
+        baseReq.addAttributes( req.getAttributes().toArray( new String[0] ) );
+
+        // The referrals are turned into references by the search handler
+        baseReq.addControl( new ManageDsaITImpl() );
+
+        try ( Cursor<Entry> cursor = session.search( baseReq ) )
+        {
+            if ( cursor.next() )
+            {
+                return cursor.get();
+            }
+
+            return null;
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * @return The sort attribute
+     */
+    public AttributeType getSortAttributeType()
+    {
+        return sortAttributeType;
+    }
+
+
+    /**
+     * @return true if the sort attribute has been added to the requested attributes, and
+     * must be removed from the returned entries
+     */
+    public boolean isSortAttributeAdded()
+    {
+        return sortAttributeAdded;
+    }
+
+
+    /**
+     * @return The number of entries in the list
+     */
+    public int getContentCount()
+    {
+        return dns.size();
+    }
+
+
+    /**
+     * Compute the position of the target entry for a request, from its offset or
+     * its assertion value. The client offset is scaled to our content count when
+     * the client has an outdated view of the list.
+     *
+     * @param vlvRequest The VLV request
+     * @return The target position, between 1 and contentCount + 1, or 0 if the offset is invalid
+     * @throws LdapException If the assertion value can't be normalized
+     */
+    public int getTargetPosition( VirtualListViewRequest vlvRequest ) throws LdapException
+    {
+        if ( !vlvRequest.hasOffset() )
+        {
+            return seek( vlvRequest.getAssertionValue() );
+        }
+
+        int offset = vlvRequest.getOffset();
+        int clientCount = vlvRequest.getContentCount();
+        int count = getContentCount();
+        int targetPosition;
+
+        if ( ( offset <= 0 ) || ( clientCount < 0 ) )
+        {
+            return 0;
+        }
+
+        if ( ( clientCount == 0 ) || ( clientCount == count ) )
+        {
+            targetPosition = offset;
+        }
+        else if ( offset >= clientCount )
+        {
+            // The client wants the end of the list
+            targetPosition = offset == clientCount ? count : count + 1;
+        }
+        else
+        {
+            // Scale the offset to our content count
+            targetPosition = ( int ) ( ( ( long ) offset * count + clientCount / 2 ) / clientCount );
+        }
+
+        return Math.max( 1, Math.min( targetPosition, count + 1 ) );
+    }
+
+
+    /**
+     * Find the position of the first entry which sort key value is greater than or equal
+     * to the given assertion value, in the list order. The list being sorted, this is a
+     * binary search.
+     *
+     * @param assertionValue The assertion value
+     * @return The position of the target entry, contentCount + 1 if there is none
+     * @throws LdapException If the assertion value can't be normalized
+     */
+    public int seek( byte[] assertionValue ) throws LdapException
+    {
+        Object assertion = normalizer.normalize( Strings.utf8ToString( assertionValue ) );
+        int low = 0;
+        int high = keys.size();
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( compare( keys.get( middle ), assertion ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low + 1;
+    }
+
+
+    /**
+     * Get the sort key value of an entry : its smallest sort attribute value, as the
+     * sort does, or null if it has none.
+     */
+    private Object getKey( Entry entry ) throws LdapException
+    {
+        Attribute attribute = entry.get( sortAttributeType );
+
+        if ( attribute == null )
+        {
+            return null;
+        }
+
+        Object smallest = null;
+
+        for ( Value value : attribute )
+        {
+            Object normalized = normalizer.normalize( value.getString() );
+
+            if ( ( smallest == null ) || ( comparator.compare( normalized, smallest ) < 0 ) )
+            {
+                smallest = normalized;
+            }
+        }
+
+        return smallest;
+    }
+
+
+    /**
+     * Compare a sort key value with an assertion value, in the list order.
+     * Entries without the sort attribute are greater than any value.
+     */
+    private int compare( Object key, Object assertion )
+    {
+        if ( key == null )
+        {
+            return sortKey.isReverseOrder() ? -1 : 1;
+        }
+
+        int result = comparator.compare( key, assertion );
+
+        return sortKey.isReverseOrder() ? -result : result;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "VirtualListView context : <" );
+        sb.append( Strings.dumpBytes( getCookie() ) );
+        sb.append( ", " );
+        sb.append( sortKey.getAttributeTypeDesc() );
+        sb.append( ", " );
+        sb.append( dns.size() );
+        sb.append( ">" );
+
+        return sb.toString();
+    }
+}
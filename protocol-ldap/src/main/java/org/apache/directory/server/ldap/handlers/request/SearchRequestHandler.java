@@ -30,6 +30,10 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRequestValue;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewRequest;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewResponse;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewResponseImpl;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewResultCode;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorClosedException;
@@ -38,6 +42,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.exception.LdapTimeLimitExceededException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
 import org.apache.directory.api.ldap.model.exception.OperationAbandonedException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
@@ -63,8 +68,13 @@ import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
 import org.apache.directory.api.ldap.model.message.controls.PagedResults;
 import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
 import org.apache.directory.api.ldap.model.message.controls.PersistentSearch;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortResponse;
+import org.apache.directory.api.ldap.model.message.controls.SortResponseImpl;
+import org.apache.directory.api.ldap.model.message.controls.SortResultCode;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.url.LdapUrl;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -81,6 +91,7 @@ import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewContext;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -767,6 +778,213 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Remove a context from the session, and close its cursor
+     */
+    private void discardContext( LdapSession session, PagedSearchContext context )
+    {
+        removeContext( session, context );
+
+        Cursor<Entry> cursor = context.getCursor();
+
+        if ( cursor != null )
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_38007_FAILED_ON_LIST_CLOSE ), e );
+            }
+        }
+    }
+
+
+    /**
+     * Handle a Virtual List View search request. The list is built on the first request,
+     * and kept in the session, associated with the contextID we return, so that the next
+     * requests on the same list only fetch the entries they return.
+     */
+    private SearchResultDone doVirtualListViewSearch( LdapSession session, SearchRequest req,
+        VirtualListViewRequest vlvRequest ) throws Exception
+    {
+        SearchResultDone done = ( SearchResultDone ) req.getResultResponse();
+        LdapResult ldapResult = done.getLdapResult();
+        VirtualListViewResponse vlvResponse = new VirtualListViewResponseImpl();
+        SortKey sortKey = VirtualListViewContext.getSortKey( req );
+
+        if ( sortKey == null )
+        {
+            // The VLV control requires a server side sort control
+            ldapResult.setDiagnosticMessage( "The Virtual List View control requires a Server Side Sort control." );
+            ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+            vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.SORTCONTROLMISSING );
+            done.addControl( vlvResponse );
+
+            return done;
+        }
+
+        SchemaManager schemaManager = session.getCoreSession().getDirectoryService().getSchemaManager();
+        boolean sortAttributeAdded = VirtualListViewContext.addSortAttribute( req, sortKey, schemaManager );
+        VirtualListViewContext vlvContext = null;
+
+        if ( !Strings.isEmpty( vlvRequest.getContextId() ) )
+        {
+            int contextValue = VirtualListViewContext.getContextValue( vlvRequest.getContextId() );
+            PagedSearchContext context = session.getPagedSearchContext( contextValue );
+
+            if ( ( context instanceof VirtualListViewContext ) && context.hasSameRequest( req, session ) )
+            {
+                // Same list : reuse the cursor
+                vlvContext = ( VirtualListViewContext ) context;
+
+                SortResponse sortResponse = new SortResponseImpl();
+                sortResponse.setSortResult( SortResultCode.SUCCESS );
+                done.addControl( sortResponse );
+            }
+            else if ( context != null )
+            {
+                // The list has changed, discard the previous context
+                discardContext( session, context );
+            }
+        }
+
+        if ( vlvContext == null )
+        {
+            Cursor<Entry> cursor = session.getCoreSession().search( req );
+            SortResponse sortResponse = ( SortResponse ) done.getControl( SortResponse.OID );
+
+            if ( ( ldapResult.getResultCode() != ResultCodeEnum.SUCCESS )
+                || ( ( sortResponse != null ) && ( sortResponse.getSortResult() != SortResultCode.SUCCESS ) ) )
+            {
+                // The entries can't be sorted, we can't build the list
+                cursor.close();
+
+                if ( ldapResult.getResultCode() == ResultCodeEnum.SUCCESS )
+                {
+                    ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+                }
+
+                vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.UNWILLINGTOPERFORM );
+                done.addControl( vlvResponse );
+
+                return done;
+            }
+
+            vlvContext = new VirtualListViewContext( req, schemaManager, sortAttributeAdded );
+            setTimeLimitsOnCursor( req, session, cursor );
+            boolean loaded;
+
+            try
+            {
+                // The list is built once, the cursor is not needed anymore
+                // The list is kept in the session, so it is bounded by the server size limit
+                loaded = vlvContext.load( cursor,
+                    ldapServer.getMaxSizeLimit() == NO_SIZE_LIMIT ? Long.MAX_VALUE : ldapServer.getMaxSizeLimit() );
+            }
+            catch ( CursorClosedException cce )
+            {
+                if ( !( cce.getCause() instanceof LdapTimeLimitExceededException ) )
+                {
+                    throw cce;
+                }
+
+                ldapResult.setResultCode( ResultCodeEnum.TIME_LIMIT_EXCEEDED );
+                vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.TIMELIMITEXCEEDED );
+                done.addControl( vlvResponse );
+
+                return done;
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            if ( !loaded )
+            {
+                // The list would be too large to be kept in memory
+                ldapResult.setDiagnosticMessage( "The Virtual List View list exceeds the server size limit." );
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+                vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.ADMINLIMITEXCEEDED );
+                done.addControl( vlvResponse );
+
+                return done;
+            }
+
+            session.addVirtualListViewContext( vlvContext );
+        }
+
+        try
+        {
+            int contentCount = vlvContext.getContentCount();
+            int targetPosition = vlvContext.getTargetPosition( vlvRequest );
+
+            if ( targetPosition == 0 )
+            {
+                ldapResult.setDiagnosticMessage( "Invalid offset for the Virtual List View request." );
+                ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+                vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.OFFSETRANGEERROR );
+                vlvResponse.setContentCount( contentCount );
+                vlvResponse.setContextId( vlvContext.getCookie() );
+                done.addControl( vlvResponse );
+
+                return done;
+            }
+
+            // Now, send the entries around the target position
+            long sizeLimit = min( getServerSizeLimit( session, req ),
+                req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit() );
+            int first = Math.max( 1, targetPosition - vlvRequest.getBeforeCount() );
+            long last = Math.min( contentCount, ( long ) targetPosition + vlvRequest.getAfterCount() );
+            long count = 0;
+            AttributeType sortAttributeType = vlvContext.getSortAttributeType();
+
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+
+            for ( int position = first; position <= last; position++ )
+            {
+                if ( count >= sizeLimit )
+                {
+                    ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+                    break;
+                }
+
+                Entry entry = VirtualListViewContext.fetchEntry( session.getCoreSession(), req,
+                    vlvContext.getDn( position ) );
+
+                if ( entry == null )
+                {
+                    // Deleted, or not matching the filter anymore, since the list has been built
+                    continue;
+                }
+
+                if ( vlvContext.isSortAttributeAdded() )
+                {
+                    entry.removeAttributes( sortAttributeType );
+                }
+
+                session.getIoSession().write( generateResponse( session, req, entry ) );
+                count++;
+            }
+
+            vlvResponse.setTargetPosition( targetPosition );
+            vlvResponse.setContentCount( contentCount );
+            vlvResponse.setContextId( vlvContext.getCookie() );
+            vlvResponse.setVirtualListViewResult( VirtualListViewResultCode.SUCCESS );
+            done.addControl( vlvResponse );
+        }
+        catch ( Exception e )
+        {
+            discardContext( session, vlvContext );
+
+            throw e;
+        }
+
+        return done;
+    }
+
+
     /**
      * Conducts a simple search across the result set returning each entry
      * back except for the search response done.  This is calculated but not
@@ -782,8 +1000,16 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     {
         LdapResult ldapResult = req.getResultResponse().getLdapResult();
 
+        // Check if we are using the Virtual List View Control
+        Object control = req.getControls().get( VirtualListViewRequest.OID );
+
+        if ( control != null )
+        {
+            return doVirtualListViewSearch( session, req, ( VirtualListViewRequest ) control );
+        }
+
         // Check if we are using the Paged Search Control
-        Object control = req.getControls().get( PagedResults.OID );
+        control = req.getControls().get( PagedResults.OID );
 
         if ( control != null )
         {
@@ -0,0 +1,160 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.directory.api.asn1.DecoderException;
+import org.apache.directory.api.asn1.ber.Asn1Decoder;
+import org.apache.directory.api.asn1.ber.tlv.TLVStateEnum;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapMessageContainer;
+import org.apache.directory.api.ldap.codec.api.SchemaBinaryAttributeDetector;
+import org.apache.directory.api.ldap.model.message.Message;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Decodes the batches of messages produced by a {@link CompressedSyncEncoder}. A decoder
+ * must be used for all the batches of a syncrepl request, in the order they are received.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompressedSyncDecoder
+{
+    /** The LDAP codec */
+    private final LdapApiService codec;
+
+    /** The detector used to know which attributes have binary values */
+    private final SchemaBinaryAttributeDetector binaryDetector;
+
+    /** The decompressor, shared by all the batches */
+    private final Inflater inflater = new Inflater();
+
+
+    /**
+     * Creates a new instance of CompressedSyncDecoder.
+     *
+     * @param codec The LDAP codec
+     * @param schemaManager The SchemaManager
+     */
+    public CompressedSyncDecoder( LdapApiService codec, SchemaManager schemaManager )
+    {
+        this.codec = codec;
+        binaryDetector = new SchemaBinaryAttributeDetector( schemaManager );
+    }
+
+
+    /**
+     * Decode a batch
+     *
+     * @param batch The IntermediateResponse value
+     * @return The messages contained in the batch, in the order they have been added
+     * @throws DecoderException If the batch can't be decoded
+     */
+    public List<Message> decode( byte[] batch ) throws DecoderException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( inflate( batch ) );
+        List<Message> messages = new ArrayList<>();
+
+        while ( buffer.hasRemaining() )
+        {
+            int length = buffer.getInt();
+
+            if ( ( length < 0 ) || ( length > buffer.remaining() ) )
+            {
+                throw new DecoderException( I18n.err( I18n.ERR_38034_CANNOT_DECODE_COMPRESSED_SYNC_BATCH,
+                    "invalid message length " + length ) );
+            }
+
+            ByteBuffer encoded = buffer.slice();
+            encoded.limit( length );
+            buffer.position( buffer.position() + length );
+
+            LdapMessageContainer<Message> container = new LdapMessageContainer<>( codec, binaryDetector );
+            Asn1Decoder.decode( encoded, container );
+
+            if ( container.getState() != TLVStateEnum.PDU_DECODED )
+            {
+                throw new DecoderException( I18n.err( I18n.ERR_38034_CANNOT_DECODE_COMPRESSED_SYNC_BATCH,
+                    "truncated message" ) );
+            }
+
+            messages.add( container.getMessage() );
+        }
+
+        return messages;
+    }
+
+
+    /**
+     * Inflate a batch, using the context left by the previous ones
+     */
+    private byte[] inflate( byte[] batch ) throws DecoderException
+    {
+        inflater.setInput( batch );
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream( batch.length * 4 );
+        byte[] buffer = new byte[8192];
+
+        try
+        {
+            while ( true )
+            {
+                int length = inflater.inflate( buffer );
+                inflated.write( buffer, 0, length );
+
+                // Done when all the input has been consumed and the output drained
+                if ( ( length < buffer.length ) && inflater.needsInput() )
+                {
+                    break;
+                }
+
+                if ( ( length == 0 ) && ( inflater.finished() || inflater.needsDictionary() ) )
+                {
+                    break;
+                }
+            }
+        }
+        catch ( DataFormatException dfe )
+        {
+            throw new DecoderException( I18n.err( I18n.ERR_38034_CANNOT_DECODE_COMPRESSED_SYNC_BATCH,
+                dfe.getMessage() ), dfe );
+        }
+
+        return inflated.toByteArray();
+    }
+
+
+    /**
+     * Release the decompressor
+     */
+    public void close()
+    {
+        inflater.end();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.util.Asn1Buffer;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.message.Message;
+
+
+/**
+ * Gathers the messages sent to a consumer in batches, compressed with Deflate. The compression
+ * context is kept from one batch to the other, so the batches have to be decoded in the order
+ * they have been produced, by a single {@link CompressedSyncDecoder}.
+ * <br>
+ * Each batch is transmitted as the value of an IntermediateResponse. Once inflated, this value
+ * contains, for each message, its length followed by its BER encoded form.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompressedSyncEncoder
+{
+    /** The IntermediateResponse name */
+    public static final String OID = "1.3.6.1.4.1.18060.0.1.11";
+
+    /** The LDAP codec */
+    private final LdapApiService codec;
+
+    /** The compressor, shared by all the batches */
+    private final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+
+    /** The encoded messages waiting to be compressed */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** The number of pending messages */
+    private int nbPending;
+
+
+    /**
+     * Creates a new instance of CompressedSyncEncoder.
+     *
+     * @param codec The LDAP codec
+     */
+    public CompressedSyncEncoder( LdapApiService codec )
+    {
+        this.codec = codec;
+    }
+
+
+    /**
+     * Add a message to the current batch
+     *
+     * @param message The message to add
+     * @throws EncoderException If the message can't be encoded
+     */
+    public void add( Message message ) throws EncoderException
+    {
+        add( LdapEncoder.encodeMessage( new Asn1Buffer(), codec, message ) );
+    }
+
+
+    /**
+     * Add an already encoded message to the current batch
+     *
+     * @param encoded The encoded message
+     */
+    public void add( ByteBuffer encoded )
+    {
+        int length = encoded.remaining();
+        byte[] bytes = new byte[length];
+        encoded.get( bytes );
+
+        pending.write( ( length >>> 24 ) & 0xFF );
+        pending.write( ( length >>> 16 ) & 0xFF );
+        pending.write( ( length >>> 8 ) & 0xFF );
+        pending.write( length & 0xFF );
+        pending.write( bytes, 0, length );
+
+        nbPending++;
+    }
+
+
+    /**
+     * @return The number of messages in the current batch
+     */
+    public int size()
+    {
+        return nbPending;
+    }
+
+
+    /**
+     * @return The number of bytes of the current batch, before compression
+     */
+    public int getPendingBytes()
+    {
+        return pending.size();
+    }
+
+
+    /**
+     * Compress the current batch, and start a new one
+     *
+     * @param messageId The syncrepl request message ID
+     * @return The IntermediateResponse transmitting the batch, or null if the batch is empty
+     */
+    public IntermediateResponse flush( int messageId )
+    {
+        if ( nbPending == 0 )
+        {
+            return null;
+        }
+
+        deflater.setInput( pending.toByteArray() );
+        pending.reset();
+        nbPending = 0;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+
+        // A SYNC_FLUSH delivers all the input without resetting the compression context
+        do
+        {
+            length = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH );
+            compressed.write( buffer, 0, length );
+        }
+        while ( length == buffer.length );
+
+        IntermediateResponse response = new IntermediateResponseImpl( messageId );
+        response.setResponseName( OID );
+        response.setResponseValue( compressed.toByteArray() );
+
+        return response;
+    }
+
+
+    /**
+     * Release the compressor
+     */
+    public void close()
+    {
+        deflater.end();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The default {@link ReplicationMetricsRegistry}, keeping the metrics in memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DefaultReplicationMetricsRegistry implements ReplicationMetricsRegistry
+{
+    /** The registered metrics */
+    private final Map<String, ReplicaMetrics> metrics = new ConcurrentHashMap<>();
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReplicaMetrics getMetrics( String name )
+    {
+        return metrics.computeIfAbsent( name, this::createMetrics );
+    }
+
+
+    /**
+     * Creates the metrics with the given name
+     *
+     * @param name The metrics name
+     * @return The new metrics
+     */
+    protected ReplicaMetrics createMetrics( String name )
+    {
+        return new ReplicaMetrics( name );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeMetrics( String name )
+    {
+        metrics.remove( name );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<ReplicaMetrics> getAllMetrics()
+    {
+        return Collections.unmodifiableCollection( metrics.values() );
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import org.apache.directory.api.ldap.model.message.controls.AbstractControl;
+
+
+/**
+ * A control, without value, sent by a consumer with its syncrepl request to tell the producer
+ * that it accepts the modifications applied on an entry instead of the whole modified entry.
+ * Those modifications are sent in a {@link DeltaSyncMessage}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DeltaSyncControl extends AbstractControl
+{
+    /** This control OID */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.2";
+
+
+    /**
+     * Creates a new instance of DeltaSyncControl
+     */
+    public DeltaSyncControl()
+    {
+        super( OID );
+    }
+}
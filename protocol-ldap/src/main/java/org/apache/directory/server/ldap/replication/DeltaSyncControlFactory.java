@@ -0,0 +1,68 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import org.apache.directory.api.ldap.codec.api.AbstractControlFactory;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+
+
+/**
+ * The {@link DeltaSyncControl} factory. The control has no value, so there is nothing
+ * to encode or decode.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DeltaSyncControlFactory extends AbstractControlFactory<DeltaSyncControl>
+{
+    /**
+     * Creates a new instance of DeltaSyncControlFactory.
+     *
+     * @param codec The LDAP codec
+     */
+    public DeltaSyncControlFactory( LdapApiService codec )
+    {
+        super( codec, DeltaSyncControl.OID );
+    }
+
+
+    /**
+     * Register the factory in the given codec, if it's not already registered
+     *
+     * @param codec The LDAP codec
+     */
+    public static void register( LdapApiService codec )
+    {
+        if ( !codec.getRequestControlFactories().containsKey( DeltaSyncControl.OID ) )
+        {
+            codec.registerRequestControl( new DeltaSyncControlFactory( codec ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeltaSyncControl newControl()
+    {
+        return new DeltaSyncControl();
+    }
+}
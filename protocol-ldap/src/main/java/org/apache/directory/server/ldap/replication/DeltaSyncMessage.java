@@ -0,0 +1,181 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The modifications applied on an entry, sent by a producer to a consumer which has requested them
+ * with a {@link DeltaSyncControl}, instead of the whole modified entry. It's transmitted as the value
+ * of an IntermediateResponse, with this format :
+ * <ul>
+ * <li>byte[] : the serialized entry DN</li>
+ * <li>String : the entryUUID</li>
+ * <li>int and byte[] : the cookie</li>
+ * <li>int and byte[]s : the number of modifications and the serialized modifications</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DeltaSyncMessage
+{
+    /** The IntermediateResponse name */
+    public static final String OID = "1.3.6.1.4.1.18060.0.1.10";
+
+    /** The modified entry DN */
+    private Dn dn;
+
+    /** The modified entry entryUUID */
+    private String entryUuid;
+
+    /** The cookie */
+    private byte[] cookie;
+
+    /** The modifications, including the entryCSN replacement */
+    private List<Modification> modifications;
+
+
+    /**
+     * Creates a new instance of DeltaSyncMessage.
+     *
+     * @param dn The modified entry DN
+     * @param entryUuid The modified entry entryUUID
+     * @param cookie The cookie
+     * @param modifications The modifications applied on the entry
+     */
+    public DeltaSyncMessage( Dn dn, String entryUuid, byte[] cookie, List<Modification> modifications )
+    {
+        this.dn = dn;
+        this.entryUuid = entryUuid;
+        this.cookie = cookie;
+        this.modifications = modifications;
+    }
+
+
+    /**
+     * @return The modified entry DN
+     */
+    public Dn getDn()
+    {
+        return dn;
+    }
+
+
+    /**
+     * @return The modified entry entryUUID
+     */
+    public String getEntryUuid()
+    {
+        return entryUuid;
+    }
+
+
+    /**
+     * @return The cookie
+     */
+    public byte[] getCookie()
+    {
+        return cookie;
+    }
+
+
+    /**
+     * @return The modifications applied on the entry
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * Creates the IntermediateResponse transmitting this message
+     *
+     * @param messageId The syncrepl request message ID
+     * @return The IntermediateResponse
+     * @throws IOException If the message can't be serialized
+     */
+    public IntermediateResponse toIntermediateResponse( int messageId ) throws IOException
+    {
+        IntermediateResponse response = new IntermediateResponseImpl( messageId );
+        response.setResponseName( OID );
+
+        try ( ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutput out = new ObjectOutputStream( baos ) )
+        {
+            dn.writeExternal( out );
+            out.writeUTF( entryUuid );
+            out.writeInt( cookie.length );
+            out.write( cookie );
+            ReplicaEventMessageSerializer.writeModifications( out, modifications );
+
+            out.flush();
+
+            response.setResponseValue( baos.toByteArray() );
+        }
+
+        return response;
+    }
+
+
+    /**
+     * Read a message from an IntermediateResponse value
+     *
+     * @param schemaManager The SchemaManager
+     * @param value The IntermediateResponse value
+     * @return The DeltaSyncMessage instance
+     * @throws IOException If the message can't be deserialized
+     */
+    public static DeltaSyncMessage decode( SchemaManager schemaManager, byte[] value ) throws IOException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( value ) ) )
+        {
+            Dn dn = new Dn( schemaManager );
+            dn.readExternal( in );
+
+            String entryUuid = in.readUTF();
+
+            byte[] cookie = new byte[in.readInt()];
+            in.readFully( cookie );
+
+            List<Modification> modifications = ReplicaEventMessageSerializer.readModifications( schemaManager, in );
+
+            return new DeltaSyncMessage( dn, entryUuid, cookie, modifications );
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+    }
+}
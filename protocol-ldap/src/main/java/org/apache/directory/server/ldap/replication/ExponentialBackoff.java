@@ -0,0 +1,116 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Computes the delays between the attempts of a retried operation. The first attempt is
+ * immediate, then the delay doubles at each attempt, up to a maximum. Each delay is randomly
+ * picked between its half and its full value, so that the consumers of a failed provider
+ * don't reconnect all at the same time.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ExponentialBackoff
+{
+    /** The delay before the second attempt, in milliseconds */
+    private final long initialDelay;
+
+    /** The maximum delay between two attempts, in milliseconds */
+    private final long maxDelay;
+
+    /** The number of attempts since the last reset */
+    private int attempts;
+
+
+    /**
+     * Creates a new instance of ExponentialBackoff.
+     *
+     * @param initialDelay The delay before the second attempt, in milliseconds
+     * @param maxDelay The maximum delay between two attempts, in milliseconds
+     */
+    public ExponentialBackoff( long initialDelay, long maxDelay )
+    {
+        this.initialDelay = Math.max( 1L, initialDelay );
+        this.maxDelay = Math.max( this.initialDelay, maxDelay );
+    }
+
+
+    /**
+     * @return The delay to wait before the next attempt, in milliseconds
+     */
+    public synchronized long nextDelay()
+    {
+        int attempt = attempts;
+
+        if ( attempts < Integer.MAX_VALUE )
+        {
+            attempts++;
+        }
+
+        if ( attempt == 0 )
+        {
+            return 0L;
+        }
+
+        int shift = attempt - 1;
+        long delay = maxDelay;
+
+        // Don't shift the bits up to the sign bit
+        if ( shift < Long.numberOfLeadingZeros( initialDelay ) - 1 )
+        {
+            delay = Math.min( maxDelay, initialDelay << shift );
+        }
+
+        long half = delay / 2;
+
+        return half + ThreadLocalRandom.current().nextLong( delay - half + 1 );
+    }
+
+
+    /**
+     * @return The maximum delay between two attempts, in milliseconds
+     */
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+
+    /**
+     * @return The number of attempts since the last reset
+     */
+    public synchronized int getAttempts()
+    {
+        return attempts;
+    }
+
+
+    /**
+     * Restart from an immediate attempt, after a success
+     */
+    public synchronized void reset()
+    {
+        attempts = 0;
+    }
+}
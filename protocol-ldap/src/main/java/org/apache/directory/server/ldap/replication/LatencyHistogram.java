@@ -0,0 +1,154 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A lock free histogram of latencies. The latencies are counted in buckets which bounds are
+ * powers of 2 microseconds, so the percentiles are approximated by the upper bound of the
+ * bucket they fall in : the error is at most a factor 2, which is enough to spot a slow
+ * consumer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets : the last one holds the latencies above 2^38 us (about 3 days) */
+    private static final int NB_BUCKETS = 40;
+
+    /** The number of latencies in each bucket */
+    private final AtomicLongArray buckets = new AtomicLongArray( NB_BUCKETS );
+
+    /** The number of recorded latencies */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of the recorded latencies, in microseconds */
+    private final LongAdder total = new LongAdder();
+
+
+    /**
+     * Records a latency
+     *
+     * @param latency The latency, in nanoseconds
+     */
+    public void record( long latency )
+    {
+        long micros = Math.max( 0L, TimeUnit.NANOSECONDS.toMicros( latency ) );
+
+        buckets.incrementAndGet( bucket( micros ) );
+        count.increment();
+        total.add( micros );
+    }
+
+
+    /**
+     * Computes the bucket of a latency : the bucket N holds the latencies in ]2^(N-1), 2^N] us
+     */
+    private static int bucket( long micros )
+    {
+        if ( micros <= 1L )
+        {
+            return 0;
+        }
+
+        return Math.min( NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros - 1L ) );
+    }
+
+
+    /**
+     * @return The number of recorded latencies
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+
+    /**
+     * @return The mean of the recorded latencies, in microseconds
+     */
+    public long getMean()
+    {
+        long nb = count.sum();
+
+        if ( nb == 0L )
+        {
+            return 0L;
+        }
+
+        return total.sum() / nb;
+    }
+
+
+    /**
+     * Computes an approximation of a percentile of the recorded latencies
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, in microseconds, or 0 if
+     * no latency has been recorded
+     */
+    public long getPercentile( double percentile )
+    {
+        long[] snapshot = new long[NB_BUCKETS];
+        long nb = 0L;
+
+        for ( int i = 0; i < NB_BUCKETS; i++ )
+        {
+            snapshot[i] = buckets.get( i );
+            nb += snapshot[i];
+        }
+
+        if ( nb == 0L )
+        {
+            return 0L;
+        }
+
+        long rank = Math.max( 1L, ( long ) Math.ceil( nb * Math.min( 100d, Math.max( 0d, percentile ) ) / 100d ) );
+        long seen = 0L;
+
+        for ( int i = 0; i < NB_BUCKETS; i++ )
+        {
+            seen += snapshot[i];
+
+            if ( seen >= rank )
+            {
+                return 1L << i;
+            }
+        }
+
+        return 1L << ( NB_BUCKETS - 1 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + getMean() + "us, p50=" + getPercentile( 50d ) + "us, p99="
+            + getPercentile( 99d ) + "us";
+    }
+}
@@ -21,8 +21,11 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
@@ -41,6 +44,9 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The modifications applied on the entry, for a Modify operation */
+    private List<Modification> modifications;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
@@ -61,6 +67,19 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * Create a new ReplicaEvent instance for a Modify operation, keeping the applied modifications
+     * @param changeType The change type
+     * @param entry The modified entry
+     * @param modifications The modifications applied on the entry
+     */
+    public ReplicaEventMessage( ChangeType changeType, Entry entry, List<Modification> modifications )
+    {
+        this( changeType, entry );
+        this.modifications = modifications;
+    }
+
+
     /**
      * @return The changeType
      */
@@ -79,6 +98,15 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The modifications applied on the entry, or null if they are not known
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
@@ -22,15 +22,21 @@ package org.apache.directory.server.ldap.replication;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -44,6 +50,8 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * <li>byte : EventType</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>boolean : true if the modifications applied on the entry are stored</li>
+ * <li>int and byte[]s : the number of modifications and the serialized modifications, if they are stored</li>
  * </ul>
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -91,6 +99,15 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            // The modifications, if any
+            List<Modification> modifications = replicaEventMessage.getModifications();
+            out.writeBoolean( modifications != null );
+
+            if ( modifications != null )
+            {
+                writeModifications( out, modifications );
+            }
+
             out.flush();
 
             return baos.toByteArray();
@@ -126,8 +143,16 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.readExternal( in );
             entry.setDn( entryDn );
 
+            // The modifications, if any
+            List<Modification> modifications = null;
+
+            if ( hasModifications( in ) )
+            {
+                modifications = readModifications( schemaManager, in );
+            }
+
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage = new ReplicaEventMessage( changeType, entry, modifications );
         }
         catch ( ClassNotFoundException cnfe )
         {
@@ -136,4 +161,65 @@ public class ReplicaEventMessageSerializer implements Serializer
 
         return replicaEventMessage;
     }
+
+
+    /**
+     * Tells if the modifications are stored after the entry. The messages stored by a previous
+     * version don't have them.
+     */
+    private boolean hasModifications( ObjectInput in ) throws IOException
+    {
+        try
+        {
+            return in.readBoolean();
+        }
+        catch ( EOFException eofe )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * Serialize a list of modifications : the number of modifications, followed by each modification
+     *
+     * @param out The stream to write into
+     * @param modifications The modifications to serialize
+     * @throws IOException If the modifications can't be written
+     */
+    static void writeModifications( ObjectOutput out, List<Modification> modifications ) throws IOException
+    {
+        out.writeInt( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            modification.writeExternal( out );
+        }
+    }
+
+
+    /**
+     * Deserialize a list of modifications written by {@link #writeModifications(ObjectOutput, List)}
+     *
+     * @param schemaManager The SchemaManager used to restore the attributes
+     * @param in The stream to read from
+     * @return The read modifications
+     * @throws IOException If the modifications can't be read
+     * @throws ClassNotFoundException If a value can't be deserialized
+     */
+    static List<Modification> readModifications( SchemaManager schemaManager, ObjectInput in )
+        throws IOException, ClassNotFoundException
+    {
+        int nbModifications = in.readInt();
+        List<Modification> modifications = new ArrayList<>( nbModifications );
+
+        for ( int i = 0; i < nbModifications; i++ )
+        {
+            Modification modification = new DefaultModification();
+            modification.readExternal( in );
+            modifications.add( new DefaultModification( schemaManager, modification ) );
+        }
+
+        return modifications;
+    }
 }
@@ -0,0 +1,448 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+
+
+/**
+ * The metrics of a replication stream, seen either from the provider (for one of its consumers)
+ * or from the consumer. The provider updates the logged and sent counters, the journal size,
+ * and the CSN lag, the consumer updates the applied counters, the apply latencies, the lag, and
+ * the refresh progress.
+ * <br>
+ * The lags are approximations : the time lag is the delay between the last logged change and
+ * the last sent change (on the provider) or between the last applied change and now (on the
+ * consumer), the count lag is the number of changes logged but not yet sent, since the
+ * metrics have been created.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaMetrics
+{
+    /** The window over which the rates are computed, in seconds */
+    private static final int RATE_WINDOW = 10;
+
+    /** The metrics name */
+    private final String name;
+
+    /** The number of changes stored in the journal */
+    private final LongAdder logged = new LongAdder();
+
+    /** The number of changes sent to the consumer */
+    private final LongAdder sent = new LongAdder();
+
+    /** The number of changes applied by the consumer */
+    private final LongAdder applied = new LongAdder();
+
+    /** The rate of sent changes */
+    private final RateMeter sentRate = new RateMeter();
+
+    /** The rate of applied changes */
+    private final RateMeter appliedRate = new RateMeter();
+
+    /** The latencies of the application of the changes */
+    private final LatencyHistogram applyLatency = new LatencyHistogram();
+
+    /** The time of the last logged change, from its CSN */
+    private volatile long lastLoggedChangeTime;
+
+    /** The time of the last sent change, from its CSN */
+    private volatile long lastSentChangeTime;
+
+    /** The time of the last applied change, from its CSN */
+    private volatile long lastAppliedChangeTime;
+
+    /** The delay between the last applied change and its application */
+    private volatile long appliedLag;
+
+    /** The size of the journal, in bytes */
+    private volatile long journalSize;
+
+    /** A flag set when a refresh is running */
+    private volatile boolean refreshing;
+
+    /** The start of the last refresh */
+    private volatile long refreshStart;
+
+    /** The end of the last refresh */
+    private volatile long refreshEnd;
+
+    /** The number of entries received during the last refresh */
+    private final LongAdder refreshEntries = new LongAdder();
+
+
+    /**
+     * Counts the events in one second slots, over a sliding window
+     */
+    private static final class RateMeter
+    {
+        /** The second of each slot */
+        private final long[] seconds = new long[RATE_WINDOW];
+
+        /** The number of events in each slot */
+        private final long[] counts = new long[RATE_WINDOW];
+
+
+        private synchronized void mark( long now )
+        {
+            long second = now / 1000L;
+            int slot = ( int ) ( second % RATE_WINDOW );
+
+            if ( seconds[slot] != second )
+            {
+                seconds[slot] = second;
+                counts[slot] = 0L;
+            }
+
+            counts[slot]++;
+        }
+
+
+        private synchronized double rate( long now )
+        {
+            long second = now / 1000L;
+            long total = 0L;
+
+            for ( int i = 0; i < RATE_WINDOW; i++ )
+            {
+                if ( second - seconds[i] < RATE_WINDOW )
+                {
+                    total += counts[i];
+                }
+            }
+
+            return ( double ) total / RATE_WINDOW;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicaMetrics
+     *
+     * @param name The metrics name
+     */
+    public ReplicaMetrics( String name )
+    {
+        this.name = name;
+    }
+
+
+    /**
+     * Gets the time of a CSN
+     *
+     * @param csn The CSN
+     * @return The CSN timestamp, or 0 if the CSN is not valid
+     */
+    private static long getTime( String csn )
+    {
+        if ( !Csn.isValid( csn ) )
+        {
+            return 0L;
+        }
+
+        return new Csn( csn ).getTimestamp();
+    }
+
+
+    /**
+     * Records a change stored in the journal
+     *
+     * @param csn The change CSN
+     */
+    public void changeLogged( String csn )
+    {
+        logged.increment();
+        lastLoggedChangeTime = Math.max( lastLoggedChangeTime, getTime( csn ) );
+    }
+
+
+    /**
+     * Records a change sent to the consumer
+     *
+     * @param csn The change CSN
+     */
+    public void changeSent( String csn )
+    {
+        sent.increment();
+        sentRate.mark( System.currentTimeMillis() );
+        lastSentChangeTime = Math.max( lastSentChangeTime, getTime( csn ) );
+    }
+
+
+    /**
+     * Records a change applied by the consumer
+     *
+     * @param latency The time spent to apply the change, in nanoseconds
+     */
+    public void changeApplied( long latency )
+    {
+        applied.increment();
+        appliedRate.mark( System.currentTimeMillis() );
+        applyLatency.record( latency );
+    }
+
+
+    /**
+     * Records the CSN of the last change applied by the consumer
+     *
+     * @param csn The CSN of the last applied change
+     */
+    public void checkpoint( String csn )
+    {
+        long changeTime = getTime( csn );
+
+        if ( changeTime != 0L )
+        {
+            lastAppliedChangeTime = changeTime;
+            appliedLag = Math.max( 0L, System.currentTimeMillis() - changeTime );
+        }
+    }
+
+
+    /**
+     * Records the start of a refresh
+     */
+    public void refreshStarted()
+    {
+        refreshEntries.reset();
+        refreshStart = System.currentTimeMillis();
+        refreshEnd = 0L;
+        refreshing = true;
+    }
+
+
+    /**
+     * Records an entry received during a refresh
+     */
+    public void refreshEntryReceived()
+    {
+        if ( refreshing )
+        {
+            refreshEntries.increment();
+        }
+    }
+
+
+    /**
+     * Records the end of a refresh
+     */
+    public void refreshDone()
+    {
+        if ( refreshing )
+        {
+            refreshEnd = System.currentTimeMillis();
+            refreshing = false;
+        }
+    }
+
+
+    /**
+     * @param journalSize The size of the journal, in bytes
+     */
+    public void setJournalSize( long journalSize )
+    {
+        this.journalSize = journalSize;
+    }
+
+
+    /**
+     * @return The metrics name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+
+    /**
+     * @return The number of changes stored in the journal
+     */
+    public long getLoggedCount()
+    {
+        return logged.sum();
+    }
+
+
+    /**
+     * @return The number of changes sent to the consumer
+     */
+    public long getSentCount()
+    {
+        return sent.sum();
+    }
+
+
+    /**
+     * @return The number of changes applied by the consumer
+     */
+    public long getAppliedCount()
+    {
+        return applied.sum();
+    }
+
+
+    /**
+     * @return The number of changes logged but not yet sent
+     */
+    public long getLagCount()
+    {
+        return Math.max( 0L, logged.sum() - sent.sum() );
+    }
+
+
+    /**
+     * @return The replication lag, in milliseconds
+     */
+    public long getLagTime()
+    {
+        if ( lastLoggedChangeTime != 0L )
+        {
+            return Math.max( 0L, lastLoggedChangeTime - lastSentChangeTime );
+        }
+
+        return appliedLag;
+    }
+
+
+    /**
+     * @return The time of the last sent change, from its CSN
+     */
+    public long getLastSentChangeTime()
+    {
+        return lastSentChangeTime;
+    }
+
+
+    /**
+     * @return The time of the last applied change, from its CSN
+     */
+    public long getLastAppliedChangeTime()
+    {
+        return lastAppliedChangeTime;
+    }
+
+
+    /**
+     * @return The number of changes sent per second
+     */
+    public double getSentRate()
+    {
+        return sentRate.rate( System.currentTimeMillis() );
+    }
+
+
+    /**
+     * @return The number of changes applied per second
+     */
+    public double getAppliedRate()
+    {
+        return appliedRate.rate( System.currentTimeMillis() );
+    }
+
+
+    /**
+     * @return The latencies of the application of the changes
+     */
+    public LatencyHistogram getApplyLatency()
+    {
+        return applyLatency;
+    }
+
+
+    /**
+     * @return The size of the journal, in bytes
+     */
+    public long getJournalSize()
+    {
+        return journalSize;
+    }
+
+
+    /**
+     * @return true if a refresh is running
+     */
+    public boolean isRefreshing()
+    {
+        return refreshing;
+    }
+
+
+    /**
+     * @return The number of entries received during the last refresh
+     */
+    public long getRefreshEntries()
+    {
+        return refreshEntries.sum();
+    }
+
+
+    /**
+     * @return The duration of the last refresh, or of the running one, in milliseconds
+     */
+    public long getRefreshDuration()
+    {
+        if ( refreshStart == 0L )
+        {
+            return 0L;
+        }
+
+        long end = refreshing ? System.currentTimeMillis() : refreshEnd;
+
+        return Math.max( 0L, end - refreshStart );
+    }
+
+
+    /**
+     * @return A "name: value" line per metric
+     */
+    public String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "lagCount: " ).append( getLagCount() ).append( '\n' );
+        sb.append( "lagTime: " ).append( getLagTime() ).append( '\n' );
+        sb.append( "journalSize: " ).append( getJournalSize() ).append( '\n' );
+        sb.append( "sent: " ).append( getSentCount() ).append( '\n' );
+        sb.append( "sentRate: " ).append( String.format( Locale.ROOT, "%.1f", getSentRate() ) ).append( '\n' );
+        sb.append( "applied: " ).append( getAppliedCount() ).append( '\n' );
+        sb.append( "appliedRate: " ).append( String.format( Locale.ROOT, "%.1f", getAppliedRate() ) ).append( '\n' );
+        sb.append( "applyLatency: " ).append( applyLatency ).append( '\n' );
+        sb.append( "refreshing: " ).append( isRefreshing() ).append( '\n' );
+        sb.append( "refreshEntries: " ).append( getRefreshEntries() ).append( '\n' );
+        sb.append( "refreshDuration: " ).append( getRefreshDuration() );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return name + " : " + describe().replace( '\n', ',' );
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.Collection;
+
+
+/**
+ * A registry of the replication metrics. The provider registers the metrics of each of its
+ * consumers under the name "provider.&lt;replicaId&gt;", and each consumer registers its
+ * own metrics under the name "consumer.&lt;replicaId&gt;". An implementation can be set in the
+ * LdapServer to export the metrics to a monitoring system.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ReplicationMetricsRegistry
+{
+    /** The prefix of the metrics names of the consumers seen by the provider */
+    String PROVIDER_PREFIX = "provider.";
+
+    /** The prefix of the metrics names of the consumers */
+    String CONSUMER_PREFIX = "consumer.";
+
+
+    /**
+     * Gets the metrics with the given name, creating them if they don't exist
+     *
+     * @param name The metrics name
+     * @return The metrics
+     */
+    ReplicaMetrics getMetrics( String name );
+
+
+    /**
+     * Removes the metrics with the given name
+     *
+     * @param name The metrics name
+     */
+    void removeMetrics( String name );
+
+
+    /**
+     * @return All the registered metrics
+     */
+    Collection<ReplicaMetrics> getAllMetrics();
+}
@@ -0,0 +1,115 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The scheduler shared by the replication providers and consumers. The delayed and periodic
+ * tasks are triggered by a single timer thread, and must be short : the long running tasks,
+ * like a consumer synchronization session, are executed on a separate pool.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class ReplicationScheduler
+{
+    /** The timer */
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor( 1,
+        threadFactory( "ReplicationScheduler" ) );
+
+    /** The pool running the long tasks */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool( threadFactory( "ReplicationWorker" ) );
+
+    static
+    {
+        TIMER.setRemoveOnCancelPolicy( true );
+    }
+
+
+    private ReplicationScheduler()
+    {
+    }
+
+
+    /**
+     * Create a factory for daemon threads
+     */
+    private static ThreadFactory threadFactory( String prefix )
+    {
+        AtomicInteger counter = new AtomicInteger();
+
+        return runnable ->
+        {
+            Thread thread = new Thread( runnable, prefix + "-" + counter.incrementAndGet() );
+            thread.setDaemon( true );
+
+            return thread;
+        };
+    }
+
+
+    /**
+     * Execute a short task after a delay
+     *
+     * @param task The task to execute
+     * @param delay The delay
+     * @param unit The delay unit
+     * @return The future used to cancel the task
+     */
+    public static ScheduledFuture<?> schedule( Runnable task, long delay, TimeUnit unit )
+    {
+        return TIMER.schedule( task, delay, unit );
+    }
+
+
+    /**
+     * Execute a short task periodically
+     *
+     * @param task The task to execute
+     * @param initialDelay The delay before the first execution
+     * @param delay The delay between the end of an execution and the start of the next one
+     * @param unit The delays unit
+     * @return The future used to cancel the task
+     */
+    public static ScheduledFuture<?> scheduleWithFixedDelay( Runnable task, long initialDelay, long delay,
+        TimeUnit unit )
+    {
+        return TIMER.scheduleWithFixedDelay( task, initialDelay, delay, unit );
+    }
+
+
+    /**
+     * Execute a long running task
+     *
+     * @param task The task to execute
+     */
+    public static void execute( Runnable task )
+    {
+        WORKERS.execute( task );
+    }
+}
@@ -58,6 +58,10 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  *   <li>useTls : the connection uses TLS, defaults to true</li>
  *   <li>strictCertVerification : strictly verify the certificate, defaults to true</li>
  *   <li>trustManager : the trustManager to use, defaults to @link{ReplicationTrustManager}</li>
+ *   <li>applyThreads : the number of threads applying the received changes, defaults to 4</li>
+ *   <li>deltaSync : the modifications are received instead of the modified entries, defaults to false.
+ *   In MMR mode, only those modifications are merged per attribute with the local ones</li>
+ *   <li>useCompression : the entries are received in compressed batches, defaults to false</li>
  *   <li></li>
  * </ul>
  * 
@@ -65,6 +69,9 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  */
 public class SyncReplConfiguration implements ReplicationConsumerConfig
 {
+    /** The default number of threads applying the received changes */
+    public static final int DEFAULT_APPLY_THREADS = 4;
+
     /** host name of the syncrepl remote server, default value is localhost */
     private String remoteHost;
 
@@ -133,6 +140,15 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** the number of threads applying the received changes, 0 to apply them on the reading thread */
+    private int applyThreads = DEFAULT_APPLY_THREADS;
+
+    /** flag to indicate if the modifications are received instead of the modified entries, default is false */
+    private boolean deltaSync = false;
+
+    /** flag to indicate if the entries are received in compressed batches, default is false */
+    private boolean useCompression = false;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -570,7 +586,9 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
 
 
     /**
-     * enable/disable MMR option
+     * enable/disable MMR option. In MMR mode, the conflicts between the received changes and
+     * the local ones are resolved per attribute for the modifications received with delta sync,
+     * and per entry otherwise.
      *
      * @param mmrMode The type of replication
      */
@@ -580,6 +598,74 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of threads applying the received changes
+     */
+    public int getApplyThreads()
+    {
+        return applyThreads;
+    }
+
+
+    /**
+     * Sets the number of threads applying the received changes. The changes made on a given
+     * entry are always applied by the same thread. With 0, the changes are applied by the thread
+     * reading them.
+     *
+     * @param applyThreads the number of threads applying the received changes
+     */
+    public void setApplyThreads( int applyThreads )
+    {
+        this.applyThreads = applyThreads;
+    }
+
+
+    /**
+     * @return true if the modifications are received instead of the modified entries
+     */
+    public boolean isDeltaSync()
+    {
+        return deltaSync;
+    }
+
+
+    /**
+     * Tells the producer to send the modifications applied on an entry instead of the whole
+     * modified entry. The producer falls back to the modified entries when it does not have
+     * the modifications, or when the consumer has to be reloaded.
+     * <br>
+     * In MMR mode, only the modifications received this way are merged per attribute with the
+     * concurrent local modifications. A whole modified entry older than the local entry is dropped.
+     *
+     * @param deltaSync true if the modifications are received instead of the modified entries
+     */
+    public void setDeltaSync( boolean deltaSync )
+    {
+        this.deltaSync = deltaSync;
+    }
+
+
+    /**
+     * @return true if the entries are received in compressed batches
+     */
+    public boolean isUseCompression()
+    {
+        return useCompression;
+    }
+
+
+    /**
+     * Tells the producer to gather the replicated entries in batches compressed with Deflate,
+     * and to send them without waiting for each write to complete.
+     *
+     * @param useCompression true if the entries are received in compressed batches
+     */
+    public void setUseCompression( boolean useCompression )
+    {
+        this.useCompression = useCompression;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -633,6 +719,18 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
             sb.append( "MS, " );
         }
 
+        sb.append( "apply threads:" ).append( applyThreads ).append( ", " );
+
+        if ( deltaSync )
+        {
+            sb.append( "delta sync, " );
+        }
+
+        if ( useCompression )
+        {
+            sb.append( "compressed, " );
+        }
+
         sb.append( "provider:" ).append( producer ).append( ", " );
         sb.append( "user:'" ).append( replUserDn ).append( "', " );
 
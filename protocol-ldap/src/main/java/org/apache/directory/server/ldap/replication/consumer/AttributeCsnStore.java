@@ -0,0 +1,562 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.ldap.replication.ReplicationScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Stores the CSN of the last modification of each attribute of the replicated entries, so that the
+ * MMR consumers resolve the conflicts per attribute instead of per entry : two concurrent
+ * modifications of distinct attributes of an entry are both applied on all the servers.
+ * <br>
+ * The local modifications are recorded by a listener, the replicated ones by the consumers,
+ * with the CSN of the remote change. The CSNs are kept for a retention period : the store
+ * only knows the attribute CSNs of the changes done after its <i>horizon</i>, and the older
+ * changes are resolved using the entryCSN. The store is saved in the replication directory
+ * when the server is stopped. After a crash, the horizon is the restart time.
+ * <br>
+ * This store has two limitations :
+ * <ul>
+ * <li>The per-attribute merge only applies to the modifications received from a producer with
+ * delta sync. A whole modified entry is still resolved using its entryCSN : when it is older
+ * than the local entry, it is dropped, including its changes on attributes not modified locally.
+ * The changes it applies are still recorded.</li>
+ * <li>The CSNs are not stored with the entries, nor written in the same transaction, as the schema
+ * has no attribute to hold them. They are kept in memory and only saved when the server stops.
+ * After a crash, or when an entry is restored from a backup or an LDIF import, the changes done
+ * before the horizon are resolved using the entryCSN.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AttributeCsnStore
+{
+    /** A logger for the replication consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The name of the file storing the CSNs */
+    public static final String STORE_FILE_NAME = "attribute-csn.db";
+
+    /** The default retention of the CSNs, in milliseconds */
+    public static final long DEFAULT_RETENTION = 24L * 60L * 60L * 1000L;
+
+    /** The delay between two purges of the expired CSNs, in milliseconds */
+    private static final long PURGE_DELAY = 10L * 60L * 1000L;
+
+    /** The file format version */
+    private static final int VERSION = 1;
+
+    /** The file storing the CSNs */
+    private final File file;
+
+    /** The attributes CSNs, per entryUUID then per attribute OID. The inner maps are never modified */
+    private final Map<String, Map<String, String>> csns = new ConcurrentHashMap<>();
+
+    /** The time after which all the attributes modifications are known */
+    private volatile long horizon;
+
+    /** The time a CSN is kept, in milliseconds */
+    private long retention = DEFAULT_RETENTION;
+
+    /** The DirectoryService instance */
+    private DirectoryService directoryService;
+
+    /** The bases of the replicated areas, and their listeners */
+    private final Map<Dn, DirectoryListener> listeners = new HashMap<>();
+
+    /** The periodic purge */
+    private ScheduledFuture<?> purgeTask;
+
+
+    /**
+     * Records the local modifications
+     */
+    private final class AttributeCsnListener extends DirectoryListenerAdapter
+    {
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            // The replicated modifications are recorded by the consumers, with their remote CSN
+            if ( modifyContext.isReplEvent() )
+            {
+                return;
+            }
+
+            String csn = null;
+
+            for ( Modification modification : modifyContext.getModItems() )
+            {
+                if ( modification.getAttribute().getAttributeType().getOid().equals( SchemaConstants.ENTRY_CSN_AT_OID ) )
+                {
+                    csn = modification.getAttribute().get().getString();
+                }
+            }
+
+            Attribute uuid = modifyContext.getEntry().get( SchemaConstants.ENTRY_UUID_AT );
+
+            if ( ( csn != null ) && ( uuid != null ) )
+            {
+                update( uuid.get().getString(), csn, modifyContext.getModItems() );
+            }
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            Attribute uuid = deleteContext.getEntry().get( SchemaConstants.ENTRY_UUID_AT );
+
+            if ( uuid != null )
+            {
+                remove( uuid.get().getString() );
+            }
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            // The CSNs must be known before the next replicated change is applied
+            return true;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of AttributeCsnStore
+     *
+     * @param file The file storing the CSNs
+     */
+    public AttributeCsnStore( File file )
+    {
+        this.file = file;
+        horizon = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Load the stored CSNs, and start purging the expired ones
+     *
+     * @param directoryService The DirectoryService instance
+     */
+    public void start( DirectoryService directoryService )
+    {
+        this.directoryService = directoryService;
+
+        try
+        {
+            load();
+        }
+        catch ( IOException ioe )
+        {
+            CONSUMER_LOG.warn( "Failed to load the attributes CSNs from {}, starting from now", file, ioe );
+            csns.clear();
+            horizon = System.currentTimeMillis();
+        }
+
+        purgeTask = ReplicationScheduler.scheduleWithFixedDelay( () -> purge( System.currentTimeMillis() ),
+            PURGE_DELAY, PURGE_DELAY, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Record the local modifications done in a replicated area
+     *
+     * @param base The base of the replicated area
+     * @throws Exception If the listener can't be registered
+     */
+    public synchronized void track( Dn base ) throws Exception
+    {
+        if ( listeners.containsKey( base ) )
+        {
+            return;
+        }
+
+        NotificationCriteria criteria = new NotificationCriteria( directoryService.getSchemaManager() );
+        criteria.setBase( base );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.MODIFY, EventType.DELETE );
+
+        DirectoryListener listener = new AttributeCsnListener();
+        directoryService.getEventService().addListener( listener, criteria );
+        listeners.put( base, listener );
+    }
+
+
+    /**
+     * Stop recording the modifications, and save the CSNs
+     */
+    public synchronized void stop()
+    {
+        if ( purgeTask != null )
+        {
+            purgeTask.cancel( false );
+        }
+
+        for ( DirectoryListener listener : listeners.values() )
+        {
+            directoryService.getEventService().removeListener( listener );
+        }
+
+        listeners.clear();
+
+        try
+        {
+            save();
+        }
+        catch ( IOException ioe )
+        {
+            CONSUMER_LOG.warn( "Failed to save the attributes CSNs in {}", file, ioe );
+        }
+    }
+
+
+    /**
+     * Record the CSN of the modified attributes of an entry. A CSN older than the known one is ignored.
+     *
+     * @param uuid The entryUUID
+     * @param csn The modification CSN
+     * @param modifications The modifications
+     */
+    public void update( String uuid, String csn, Iterable<Modification> modifications )
+    {
+        List<String> oids = new ArrayList<>();
+
+        for ( Modification modification : modifications )
+        {
+            String oid = modification.getAttribute().getAttributeType().getOid();
+
+            if ( !SchemaConstants.ENTRY_CSN_AT_OID.equals( oid ) )
+            {
+                oids.add( oid );
+            }
+        }
+
+        if ( oids.isEmpty() )
+        {
+            return;
+        }
+
+        csns.compute( uuid, ( key, known ) ->
+        {
+            Map<String, String> updated = ( known == null ) ? new HashMap<>() : new HashMap<>( known );
+
+            for ( String oid : oids )
+            {
+                String previous = updated.get( oid );
+
+                if ( ( previous == null ) || ( csn.compareTo( previous ) > 0 ) )
+                {
+                    updated.put( oid, csn );
+                }
+            }
+
+            return updated;
+        } );
+    }
+
+
+    /**
+     * Gets the CSN of the last known modification of an attribute
+     *
+     * @param uuid The entryUUID
+     * @param oid The attribute OID
+     * @return The CSN, or null if the attribute has not been modified since the horizon
+     */
+    public String getCsn( String uuid, String oid )
+    {
+        Map<String, String> known = csns.get( uuid );
+
+        if ( known == null )
+        {
+            return null;
+        }
+
+        return known.get( oid );
+    }
+
+
+    /**
+     * Tells if all the modifications done before a change are known
+     *
+     * @param csn The change CSN
+     * @return true if the change is younger than the horizon
+     */
+    public boolean isTracked( String csn )
+    {
+        return Csn.isValid( csn ) && ( new Csn( csn ).getTimestamp() > horizon );
+    }
+
+
+    /**
+     * Select the received modifications of an entry which has been modified locally after them :
+     * the modifications of the attributes which have not been modified locally since are still
+     * applied, so that concurrent modifications of distinct attributes are merged. The local
+     * entryCSN is kept.
+     *
+     * @param uuid The entryUUID
+     * @param localCsn The local entryCSN
+     * @param remoteCsn The CSN of the received modifications
+     * @param modifications The received modifications
+     * @return The modifications to apply, empty if they are all older than the local ones
+     * @throws LdapException If the entryCSN modification can't be created
+     */
+    public List<Modification> merge( String uuid, String localCsn, String remoteCsn,
+        List<Modification> modifications ) throws LdapException
+    {
+        if ( !isTracked( remoteCsn ) )
+        {
+            // The local changes done before the horizon are unknown
+            return Collections.emptyList();
+        }
+
+        List<Modification> merged = new ArrayList<>( modifications.size() );
+        boolean userModification = false;
+
+        for ( Modification modification : modifications )
+        {
+            AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+            if ( SchemaConstants.ENTRY_CSN_AT_OID.equals( attributeType.getOid() ) )
+            {
+                continue;
+            }
+
+            String attributeCsn = getCsn( uuid, attributeType.getOid() );
+
+            if ( ( attributeCsn == null ) || ( attributeCsn.compareTo( remoteCsn ) < 0 ) )
+            {
+                merged.add( modification );
+                userModification |= attributeType.isUser();
+            }
+        }
+
+        if ( !userModification )
+        {
+            return Collections.emptyList();
+        }
+
+        CONSUMER_LOG.debug( "merging {} of the {} modifications received for the entry {}", merged.size(),
+            modifications.size(), uuid );
+
+        merged.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            directoryService.getAtProvider().getEntryCSN(), localCsn ) );
+
+        return merged;
+    }
+
+
+    /**
+     * Forget the CSNs of an entry
+     *
+     * @param uuid The entryUUID
+     */
+    public void remove( String uuid )
+    {
+        csns.remove( uuid );
+    }
+
+
+    /**
+     * Remove the CSNs which have expired, moving the horizon forward
+     *
+     * @param now The current time
+     */
+    void purge( long now )
+    {
+        long limit = now - retention;
+
+        if ( limit <= horizon )
+        {
+            return;
+        }
+
+        // The horizon is moved first, so that a purged CSN is never considered unknown while tracked
+        horizon = limit;
+
+        for ( String uuid : csns.keySet() )
+        {
+            csns.computeIfPresent( uuid, ( key, known ) ->
+            {
+                Map<String, String> kept = new HashMap<>();
+
+                for ( Map.Entry<String, String> entry : known.entrySet() )
+                {
+                    if ( new Csn( entry.getValue() ).getTimestamp() > limit )
+                    {
+                        kept.put( entry.getKey(), entry.getValue() );
+                    }
+                }
+
+                return kept.isEmpty() ? null : kept;
+            } );
+        }
+    }
+
+
+    /**
+     * Read the saved CSNs. The file is deleted once read, so that the CSNs recorded after a crash are
+     * never considered as complete.
+     */
+    private void load() throws IOException
+    {
+        if ( !file.exists() )
+        {
+            return;
+        }
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            if ( in.readInt() != VERSION )
+            {
+                throw new IOException( "Unsupported attributes CSNs file version" );
+            }
+
+            long savedHorizon = in.readLong();
+            int nbEntries = in.readInt();
+
+            for ( int i = 0; i < nbEntries; i++ )
+            {
+                String uuid = in.readUTF();
+                int nbAttributes = in.readInt();
+                Map<String, String> known = new HashMap<>();
+
+                for ( int j = 0; j < nbAttributes; j++ )
+                {
+                    known.put( in.readUTF(), in.readUTF() );
+                }
+
+                csns.put( uuid, known );
+            }
+
+            horizon = savedHorizon;
+        }
+
+        Files.delete( file.toPath() );
+
+        CONSUMER_LOG.debug( "Loaded the attributes CSNs of {} entries", csns.size() );
+    }
+
+
+    /**
+     * Write the CSNs in the file
+     */
+    private void save() throws IOException
+    {
+        File directory = file.getParentFile();
+
+        if ( !directory.exists() && !directory.mkdirs() )
+        {
+            throw new IOException( "Cannot create the directory " + directory );
+        }
+
+        File tmp = new File( directory, file.getName() + ".tmp" );
+        Map<String, Map<String, String>> snapshot = new HashMap<>( csns );
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) )
+        {
+            out.writeInt( VERSION );
+            out.writeLong( horizon );
+            out.writeInt( snapshot.size() );
+
+            for ( Map.Entry<String, Map<String, String>> entry : snapshot.entrySet() )
+            {
+                out.writeUTF( entry.getKey() );
+                out.writeInt( entry.getValue().size() );
+
+                for ( Map.Entry<String, String> csn : entry.getValue().entrySet() )
+                {
+                    out.writeUTF( csn.getKey() );
+                    out.writeUTF( csn.getValue() );
+                }
+            }
+        }
+
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+
+    /**
+     * @return The number of entries which attributes CSNs are known
+     */
+    public int size()
+    {
+        return csns.size();
+    }
+
+
+    /**
+     * @return The time after which all the attributes modifications are known
+     */
+    public long getHorizon()
+    {
+        return horizon;
+    }
+
+
+    /**
+     * @param retention The time a CSN is kept, in milliseconds
+     */
+    public void setRetention( long retention )
+    {
+        this.retention = retention;
+    }
+}
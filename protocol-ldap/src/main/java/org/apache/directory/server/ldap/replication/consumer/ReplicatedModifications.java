@@ -0,0 +1,223 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+
+
+/**
+ * Computes the modifications applied on the replicated entries. The modifications received
+ * from a producer are made idempotent, so that a change which has already been applied,
+ * partly or completely, can be replayed :
+ * <ul>
+ * <li>the added values already present are not added</li>
+ * <li>the removed values or attributes which are absent are not removed</li>
+ * <li>a replacement of a missing attribute is an addition</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class ReplicatedModifications
+{
+    private ReplicatedModifications()
+    {
+    }
+
+
+    /**
+     * Filters the modifications to apply on a local entry.
+     *
+     * @param localEntry The local entry, containing at least the modified attributes
+     * @param modifications The received modifications
+     * @return The modifications which change the local entry, in the same order
+     * @throws LdapException If the modifications can't be evaluated
+     */
+    static List<Modification> filter( Entry localEntry, List<Modification> modifications ) throws LdapException
+    {
+        // The entry as modified by the previous modifications
+        Entry current = localEntry.clone();
+        List<Modification> filtered = new ArrayList<>( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            Attribute modified = modification.getAttribute();
+            AttributeType attributeType = modified.getAttributeType();
+            Attribute currentAttribute = current.get( attributeType );
+
+            switch ( modification.getOperation() )
+            {
+                case ADD_ATTRIBUTE:
+                    Attribute added = new DefaultAttribute( attributeType );
+
+                    for ( Value value : modified )
+                    {
+                        if ( ( currentAttribute == null ) || !currentAttribute.contains( value ) )
+                        {
+                            added.add( value );
+                        }
+                    }
+
+                    if ( added.size() > 0 )
+                    {
+                        filtered.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, added ) );
+                        current.add( added.clone() );
+                    }
+
+                    break;
+
+                case REMOVE_ATTRIBUTE:
+                    if ( currentAttribute == null )
+                    {
+                        break;
+                    }
+
+                    if ( modified.size() == 0 )
+                    {
+                        filtered.add( modification );
+                        current.removeAttributes( attributeType );
+
+                        break;
+                    }
+
+                    Attribute removed = new DefaultAttribute( attributeType );
+
+                    for ( Value value : modified )
+                    {
+                        if ( currentAttribute.remove( value ) )
+                        {
+                            removed.add( value );
+                        }
+                    }
+
+                    if ( removed.size() > 0 )
+                    {
+                        filtered.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, removed ) );
+                    }
+
+                    if ( currentAttribute.size() == 0 )
+                    {
+                        current.removeAttributes( attributeType );
+                    }
+
+                    break;
+
+                case REPLACE_ATTRIBUTE:
+                    if ( modified.size() == 0 )
+                    {
+                        if ( currentAttribute != null )
+                        {
+                            filtered.add( modification );
+                            current.removeAttributes( attributeType );
+                        }
+                    }
+                    else if ( currentAttribute == null )
+                    {
+                        filtered.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, modified ) );
+                        current.put( modified.clone() );
+                    }
+                    else
+                    {
+                        filtered.add( modification );
+                        current.put( modified.clone() );
+                    }
+
+                    break;
+
+                default:
+                    filtered.add( modification );
+
+                    break;
+            }
+        }
+
+        return filtered;
+    }
+
+
+    /**
+     * Computes the modifications replacing the local entry's attributes by the remote entry's ones.
+     * The remote entry's attributes are consumed.
+     *
+     * @param localEntry The local entry
+     * @param remoteEntry The entry received from the producer
+     * @param changes Filled with the modifications actually changing the local entry
+     * @return The modifications to apply
+     * @throws LdapException If a remote attribute can't be consumed
+     */
+    static List<Modification> diff( Entry localEntry, Entry remoteEntry, List<Modification> changes )
+        throws LdapException
+    {
+        List<Modification> mods = new ArrayList<>();
+        Iterator<Attribute> itr = localEntry.iterator();
+
+        while ( itr.hasNext() )
+        {
+            Attribute localAttr = itr.next();
+            String attrId = localAttr.getId();
+            Modification mod;
+            Attribute remoteAttr = remoteEntry.get( attrId );
+
+            if ( remoteAttr != null ) // would be better if we compare the values also? or will it consume more time?
+            {
+                mod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, remoteAttr );
+                remoteEntry.remove( remoteAttr );
+
+                if ( !remoteAttr.equals( localAttr ) )
+                {
+                    changes.add( mod );
+                }
+            }
+            else
+            {
+                mod = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, localAttr );
+                changes.add( mod );
+            }
+
+            mods.add( mod );
+        }
+
+        if ( remoteEntry.size() > 0 )
+        {
+            itr = remoteEntry.iterator();
+
+            while ( itr.hasNext() )
+            {
+                Modification mod = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, itr.next() );
+                mods.add( mod );
+                changes.add( mod );
+            }
+        }
+
+        return mods;
+    }
+}
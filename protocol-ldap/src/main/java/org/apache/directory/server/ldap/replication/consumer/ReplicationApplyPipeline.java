@@ -0,0 +1,405 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Applies the changes received by a consumer using a set of worker threads. The changes are
+ * decoded by the thread reading the connection, then dispatched to a worker selected using the
+ * entryUUID, so that the changes made on an entry are applied in the order they were received.
+ * <ul>
+ * <li>a change waits for the pending additions of the entry's ancestors done by other workers</li>
+ * <li>the MODDN and DELETE changes, which modify a whole subtree, are applied once all the previous
+ * changes have been applied, before any other change is dispatched</li>
+ * <li>a cookie is checkpointed only once all the changes received before it have been applied</li>
+ * <li>once a change has failed, no cookie is checkpointed until the pipeline is reset : the
+ * consumer has to synchronize again from the last checkpointed cookie</li>
+ * </ul>
+ * With no worker, the changes are applied by the calling thread.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class ReplicationApplyPipeline
+{
+    /** A dedicated logger for the consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The maximum number of changes waiting in a worker queue */
+    private static final int QUEUE_SIZE = 1024;
+
+    /** The task used to stop a worker */
+    private static final Task STOP = new Task( -1L, null, null, null, null );
+
+    /** The number of workers */
+    private final int nbWorkers;
+
+    /** The prefix of the workers names */
+    private final String name;
+
+    /** Stores a cookie once all the changes received before it are applied */
+    private final Consumer<byte[]> checkpoint;
+
+    /** The workers, created when the first change is dispatched */
+    private Worker[] workers;
+
+    /** The additions not yet applied, per added entry normalized Dn */
+    private final Map<String, Task> pendingAdds = new ConcurrentHashMap<>();
+
+    /** The dispatched changes not yet checkpointed, in sequence order. Protected by the pipeline lock */
+    private final TreeMap<Long, Task> inFlight = new TreeMap<>();
+
+    /** The next sequence number, only used by the dispatching thread */
+    private long sequence;
+
+    /** Set when a change has failed. Written under the pipeline lock */
+    private volatile boolean failed;
+
+
+    /**
+     * A change to apply
+     */
+    interface Change
+    {
+        /**
+         * Apply the change
+         *
+         * @throws Exception If the change can't be applied
+         */
+        void apply() throws Exception;
+    }
+
+
+    /**
+     * A change dispatched to a worker
+     */
+    private static final class Task
+    {
+        /** The task sequence number */
+        private final long sequence;
+
+        /** The worker applying the change */
+        private final Worker worker;
+
+        /** The normalized Dn of the added entry, if the change is an addition */
+        private final String addedDn;
+
+        /** The cookie received with the change */
+        private final byte[] cookie;
+
+        /** The change */
+        private final Change change;
+
+        /** Released once the change has been applied */
+        private final CountDownLatch applied = new CountDownLatch( 1 );
+
+        /** Set once the change has been applied, protected by the pipeline lock */
+        private boolean done;
+
+        /** Tells if the change has been successfully applied, protected by the pipeline lock */
+        private boolean succeeded;
+
+
+        private Task( long sequence, Worker worker, String addedDn, byte[] cookie, Change change )
+        {
+            this.sequence = sequence;
+            this.worker = worker;
+            this.addedDn = addedDn;
+            this.cookie = cookie;
+            this.change = change;
+        }
+    }
+
+
+    /**
+     * A thread applying the changes of its queue, in order
+     */
+    private final class Worker extends Thread
+    {
+        private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>( QUEUE_SIZE );
+
+
+        private Worker( String name )
+        {
+            super( name );
+            setDaemon( true );
+        }
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while ( true )
+                {
+                    Task task = queue.take();
+
+                    if ( task == STOP )
+                    {
+                        return;
+                    }
+
+                    completed( task, apply( task.change ) );
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                CONSUMER_LOG.warn( "The replication worker {} has been interrupted", getName() );
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicationApplyPipeline.
+     *
+     * @param nbWorkers The number of workers. The changes are applied by the calling thread if 0
+     * @param name The prefix of the workers names
+     * @param checkpoint Stores a cookie
+     */
+    ReplicationApplyPipeline( int nbWorkers, String name, Consumer<byte[]> checkpoint )
+    {
+        this.nbWorkers = nbWorkers;
+        this.name = name;
+        this.checkpoint = checkpoint;
+    }
+
+
+    /**
+     * Apply a change, logging the errors
+     */
+    private boolean apply( Change change )
+    {
+        try
+        {
+            change.apply();
+
+            return true;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( e.getMessage(), e );
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Apply a change on the calling thread, once all the dispatched changes have been applied
+     */
+    private void applyNow( byte[] cookie, Change change ) throws InterruptedException
+    {
+        drain();
+
+        boolean succeeded = apply( change );
+
+        synchronized ( this )
+        {
+            failed |= !succeeded;
+
+            // store the cookie only if all the changes were successful
+            if ( !failed && ( cookie != null ) )
+            {
+                checkpoint.accept( cookie );
+            }
+        }
+    }
+
+
+    /**
+     * Dispatch a change to the worker associated with its entryUUID.
+     *
+     * @param uuid The entryUUID of the modified entry
+     * @param dn The modified entry Dn, as received from the provider
+     * @param state The change type
+     * @param cookie The cookie received with the change, if any
+     * @param change The change to apply
+     * @throws InterruptedException If the thread was interrupted while waiting for a worker
+     */
+    void submit( String uuid, Dn dn, SyncStateTypeEnum state, byte[] cookie, Change change )
+        throws InterruptedException
+    {
+        if ( ( nbWorkers <= 0 ) || ( state == SyncStateTypeEnum.MODDN ) || ( state == SyncStateTypeEnum.DELETE ) )
+        {
+            applyNow( cookie, change );
+
+            return;
+        }
+
+        if ( workers == null )
+        {
+            workers = new Worker[nbWorkers];
+
+            for ( int i = 0; i < nbWorkers; i++ )
+            {
+                workers[i] = new Worker( name + "-" + i );
+                workers[i].start();
+            }
+        }
+
+        Worker worker = workers[( uuid.hashCode() & 0x7FFFFFFF ) % nbWorkers];
+
+        // The ancestors must have been added before
+        for ( Dn parentDn = dn.getParent(); !parentDn.isEmpty(); parentDn = parentDn.getParent() )
+        {
+            Task pendingAdd = pendingAdds.get( parentDn.getNormName() );
+
+            if ( ( pendingAdd != null ) && ( pendingAdd.worker != worker ) )
+            {
+                pendingAdd.applied.await();
+            }
+        }
+
+        String addedDn = state == SyncStateTypeEnum.ADD ? dn.getNormName() : null;
+        Task task = new Task( sequence++, worker, addedDn, cookie, change );
+
+        synchronized ( this )
+        {
+            inFlight.put( task.sequence, task );
+        }
+
+        if ( addedDn != null )
+        {
+            pendingAdds.put( addedDn, task );
+        }
+
+        worker.queue.put( task );
+    }
+
+
+    /**
+     * Called by the workers once a change has been applied. The most recent cookie which
+     * follows only applied changes is checkpointed.
+     */
+    private void completed( Task task, boolean succeeded )
+    {
+        if ( task.addedDn != null )
+        {
+            pendingAdds.remove( task.addedDn, task );
+        }
+
+        task.applied.countDown();
+
+        synchronized ( this )
+        {
+            task.done = true;
+            task.succeeded = succeeded;
+            byte[] cookie = null;
+
+            while ( !inFlight.isEmpty() && inFlight.firstEntry().getValue().done )
+            {
+                Task applied = inFlight.pollFirstEntry().getValue();
+                failed |= !applied.succeeded;
+
+                if ( ( applied.cookie != null ) && !failed )
+                {
+                    cookie = applied.cookie;
+                }
+            }
+
+            if ( cookie != null )
+            {
+                checkpoint.accept( cookie );
+            }
+
+            if ( inFlight.isEmpty() )
+            {
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Wait until all the dispatched changes have been applied
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    synchronized void drain() throws InterruptedException
+    {
+        while ( !inFlight.isEmpty() )
+        {
+            wait();
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if a change has failed since the pipeline was reset
+     */
+    boolean hasFailed()
+    {
+        return failed;
+    }
+
+
+    /**
+     * Reset the pipeline, so that the next cookies are checkpointed again
+     *
+     * @return <code>true</code> if a change had failed
+     */
+    synchronized boolean reset()
+    {
+        boolean hadFailed = failed;
+        failed = false;
+
+        return hadFailed;
+    }
+
+
+    /**
+     * Stop the workers, once they have applied the dispatched changes
+     */
+    void shutdown()
+    {
+        if ( workers != null )
+        {
+            for ( Worker worker : workers )
+            {
+                try
+                {
+                    worker.queue.put( STOP );
+                }
+                catch ( InterruptedException ie )
+                {
+                    worker.interrupt();
+                }
+            }
+
+            workers = null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The bulk load of the replicated partition during a full refresh. The consumer operations use a
+ * session of their own, holding the partition's bulk load transaction : the user indexes are not
+ * updated for the entries it adds, and the exception and schema interceptors are not called on
+ * them, as they have been checked by the producer. The other operations on the partition are
+ * processed as usual.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class ReplicationBulkLoad
+{
+    /** A dedicated logger for the consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The bulk loaded partition */
+    private final AbstractBTreePartition partition;
+
+    /** The session holding the bulk load transaction */
+    private final CoreSession session;
+
+    /** The interceptors called on the bulk loaded entries */
+    private final List<String> interceptors;
+
+
+    private ReplicationBulkLoad( DirectoryService directoryService, AbstractBTreePartition partition,
+        CoreSession session, List<String> interceptors )
+    {
+        this.directoryService = directoryService;
+        this.partition = partition;
+        this.session = session;
+        this.interceptors = interceptors;
+    }
+
+
+    /**
+     * Switch the partition containing the given base Dn to the bulk load mode, if it supports it.
+     *
+     * @param directoryService The directory service
+     * @param baseDn The replicated base Dn
+     * @return The started bulk load, or <code>null</code> if the partition can't be bulk loaded
+     * @throws LdapException If the bulk load can't be started
+     */
+    static ReplicationBulkLoad begin( DirectoryService directoryService, Dn baseDn ) throws LdapException
+    {
+        Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+
+        if ( !( partition instanceof AbstractBTreePartition ) )
+        {
+            return null;
+        }
+
+        AbstractBTreePartition btreePartition = ( AbstractBTreePartition ) partition;
+        PartitionWriteTxn bulkLoadTxn = btreePartition.beginBulkLoad();
+
+        if ( bulkLoadTxn == null )
+        {
+            return null;
+        }
+
+        List<String> interceptors = new ArrayList<>( directoryService.getInterceptors( OperationEnum.ADD ) );
+        interceptors.remove( InterceptorEnum.EXCEPTION_INTERCEPTOR.getName() );
+        interceptors.remove( InterceptorEnum.SCHEMA_INTERCEPTOR.getName() );
+
+        CoreSession session = directoryService.getSession(
+            directoryService.getAdminSession().getEffectivePrincipal() );
+        session.addTransaction( partition, bulkLoadTxn );
+
+        return new ReplicationBulkLoad( directoryService, btreePartition, session, interceptors );
+    }
+
+
+    /**
+     * @return The session the consumer operations are done with
+     */
+    CoreSession getSession()
+    {
+        return session;
+    }
+
+
+    /**
+     * @return The interceptors called on the bulk loaded entries
+     */
+    List<String> getInterceptors()
+    {
+        return interceptors;
+    }
+
+
+    /**
+     * Switch the bulk loaded partition back to the normal mode, building the user indexes.
+     *
+     * @return <code>false</code> if a bulk loaded operation could not be rolled back, or if the
+     * indexes can't be built
+     */
+    boolean end()
+    {
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.lockWrite();
+
+        try
+        {
+            partition.endBulkLoad();
+
+            return true;
+        }
+        catch ( LdapException le )
+        {
+            CONSUMER_LOG.error( "Failed to end the bulk load of the {} partition", partition.getSuffixDn(), le );
+
+            return false;
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+    }
+
+
+    /**
+     * @return The bulk loaded partition
+     */
+    Partition getPartition()
+    {
+        return partition;
+    }
+}
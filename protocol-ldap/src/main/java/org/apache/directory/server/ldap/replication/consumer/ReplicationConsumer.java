@@ -23,6 +23,7 @@ package org.apache.directory.server.ldap.replication.consumer;
 
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
+import org.apache.directory.server.ldap.replication.ReplicationMetricsRegistry;
 
 
 /**
@@ -70,6 +71,59 @@ public interface ReplicationConsumer
      * @return true if the consumer is connected, false otherwise
      */
     boolean connect( boolean now );
+
+
+    /**
+     * Try once to connect the consumer to the provider, and to bind on it
+     * 
+     * @return true if the consumer is connected, false otherwise
+     */
+    boolean connect();
+
+
+    /**
+     * Sets the listener called when the connection with the provider has been closed
+     * 
+     * @param listener The listener
+     */
+    default void setDisconnectionListener( Runnable listener )
+    {
+        // Nothing to do
+    }
+
+
+    /**
+     * Sets the registry where the consumer stores its metrics. It's called before the
+     * consumer is initialized.
+     * 
+     * @param metricsRegistry The metrics registry
+     */
+    default void setMetricsRegistry( ReplicationMetricsRegistry metricsRegistry )
+    {
+        // Nothing to do
+    }
+
+
+    /**
+     * Sets the store of the attributes CSNs used to resolve the MMR conflicts per attribute.
+     * It's called before the consumer is initialized, and only if it's in MMR mode.
+     * 
+     * @param attributeCsnStore The attributes CSNs store
+     */
+    default void setAttributeCsnStore( AttributeCsnStore attributeCsnStore )
+    {
+        // Nothing to do
+    }
+
+
+    /**
+     * @return The delay to wait before the next synchronization, when the previous one
+     * has returned {@link ReplicationStatusEnum#REFRESH_DONE}, in milliseconds
+     */
+    default long getRefreshInterval()
+    {
+        return 60L * 1000L;
+    }
     
     
     /**
@@ -22,7 +22,7 @@ package org.apache.directory.server.ldap.replication.consumer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -56,6 +56,7 @@ import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.Message;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
@@ -91,7 +92,18 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.CompressedSyncControl;
+import org.apache.directory.server.ldap.replication.CompressedSyncControlFactory;
+import org.apache.directory.server.ldap.replication.CompressedSyncDecoder;
+import org.apache.directory.server.ldap.replication.CompressedSyncEncoder;
+import org.apache.directory.server.ldap.replication.DefaultReplicationMetricsRegistry;
+import org.apache.directory.server.ldap.replication.DeltaSyncControl;
+import org.apache.directory.server.ldap.replication.DeltaSyncControlFactory;
+import org.apache.directory.server.ldap.replication.DeltaSyncMessage;
+import org.apache.directory.server.ldap.replication.ExponentialBackoff;
+import org.apache.directory.server.ldap.replication.ReplicaMetrics;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
+import org.apache.directory.server.ldap.replication.ReplicationMetricsRegistry;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -112,7 +124,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private SyncReplConfiguration config;
 
     /** the sync cookie sent by the server */
-    private byte[] syncCookie;
+    private volatile byte[] syncCookie;
+
+    /** applies the received changes, using the configured number of threads */
+    private ReplicationApplyPipeline applyPipeline;
+
+    /** the bulk load of the replicated partition during a full refresh, if any */
+    private volatile ReplicationBulkLoad bulkLoad;
+
+    /** set when a bulk load has failed : the next full refresh adds the entries one by one */
+    private volatile boolean bulkLoadDisabled;
 
     /** connection to the syncrepl provider */
     private LdapNetworkConnection connection;
@@ -129,8 +150,20 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /** flag to indicate whether the consumer was disconnected */
     private volatile boolean disconnected;
 
-    /** the core session */
-    private CoreSession session;
+    /** the listener called when the connection with the provider has been closed */
+    private volatile Runnable disconnectionListener;
+
+    /** the store of the attributes CSNs, used to resolve the conflicts per attribute in MMR mode */
+    private AttributeCsnStore attributeCsnStore;
+
+    /** the registry where the metrics are stored */
+    private ReplicationMetricsRegistry metricsRegistry = new DefaultReplicationMetricsRegistry();
+
+    /** the replication metrics of this consumer */
+    private ReplicaMetrics metrics;
+
+    /** the core session. During a bulk load, a session holding the bulk load transaction */
+    private volatile CoreSession session;
 
     /** attributes on which modification should be ignored */
     private static final String[] MOD_IGNORE_AT = new String[]
@@ -199,7 +232,21 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         Attribute ridAttr = new DefaultAttribute( adsDsReplicaIdAT );
         ridMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, ridAttr );
 
+        metrics = metricsRegistry.getMetrics( ReplicationMetricsRegistry.CONSUMER_PREFIX + config.getReplicaId() );
+
+        applyPipeline = new ReplicationApplyPipeline( config.getApplyThreads(),
+            "ReplicationApply-" + config.getReplicaId(), this::checkpoint );
+
         prepareSyncSearchRequest();
+
+        if ( config.isMmrMode() && ( attributeCsnStore != null ) )
+        {
+            attributeCsnStore.track( new Dn( schemaManager, config.getBaseDn() ) );
+        }
+        else
+        {
+            attributeCsnStore = null;
+        }
     }
 
 
@@ -209,6 +256,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      *
      * @return true if the connections have been successful.
      */
+    @Override
     public boolean connect()
     {
         String providerHost = config.getRemoteHost();
@@ -298,6 +346,20 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             searchRequest.addControl( new ManageDsaITImpl() );
         }
 
+        // The modifications can only be applied if we replicate all the user attributes
+        if ( config.isDeltaSync()
+            && Arrays.asList( config.getAttributes() ).contains( SchemaConstants.ALL_USER_ATTRIBUTES ) )
+        {
+            DeltaSyncControlFactory.register( directoryService.getLdapCodecService() );
+            searchRequest.addControl( new DeltaSyncControl() );
+        }
+
+        if ( config.isUseCompression() )
+        {
+            CompressedSyncControlFactory.register( directoryService.getLdapCodecService() );
+            searchRequest.addControl( new CompressedSyncControl() );
+        }
+
         if ( CONSUMER_LOG.isDebugEnabled() )
         {
             MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
@@ -323,6 +385,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         reload = false;
 
+        // The refresh is completed
+        endBulkLoad();
+        metrics.refreshDone();
+
         return searchDone.getLdapResult().getResultCode();
     }
 
@@ -354,119 +420,335 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
             String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
-            // lock on UUID to serialize the updates when there are multiple consumers
-            // connected to several producers and to the *same* base/partition
-            Object lock = getLockFor( uuid );
+            byte[] cookie = syncStateCtrl.getCookie();
+            int rid = cookie == null ? -1 : LdapProtocolUtils.getReplicaId( Strings.utf8ToString( cookie ) );
 
-            synchronized ( lock )
+            if ( cookie != null )
             {
-                int rid = -1;
+                CONSUMER_LOG.debug( "received the cookie from sync state value control: {}",
+                    Strings.utf8ToString( cookie ) );
+            }
 
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
-                    CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
-                }
+            SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+            metrics.refreshEntryReceived();
 
-                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+            // check to avoid conversion of UUID from byte[] to String
+            if ( CONSUMER_LOG.isDebugEnabled() )
+            {
+                CONSUMER_LOG.debug( "state name {}", state.name() );
+                CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
+            }
 
-                // check to avoid conversion of UUID from byte[] to String
-                if ( CONSUMER_LOG.isDebugEnabled() )
-                {
-                    CONSUMER_LOG.debug( "state name {}", state.name() );
-                    CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
-                }
+            // The change is applied by the worker associated with the entryUUID, the cookie
+            // is stored once all the previous changes are applied
+            applyPipeline.submit( uuid, remoteEntry.getDn(), state, cookie,
+                () -> measure( () -> applyChange( remoteEntry, uuid, state, rid ) ) );
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( e.getMessage(), e );
+        }
 
-                Dn remoteDn = remoteEntry.getDn();
+        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+    }
 
-                switch ( state )
-                {
-                    case ADD:
-                        boolean remoteDnExist = false;
 
-                        try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
+    /**
+     * Applies a change, recording the time it took in the metrics
+     */
+    private void measure( ReplicationApplyPipeline.Change change ) throws Exception
+    {
+        long start = System.nanoTime();
 
-                        if ( !remoteDnExist )
-                        {
-                            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
-                            CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
-                            addContext.setReplEvent( true );
-                            addContext.setRid( rid );
-
-                            OperationManager operationManager = directoryService.getOperationManager();
-                            operationManager.add( addContext );
-                        }
-                        else
+        change.apply();
+
+        metrics.changeApplied( System.nanoTime() - start );
+    }
+
+
+    /**
+     * Apply a change received from the producer
+     *
+     * @param remoteEntry The received entry
+     * @param uuid The entry's entryUUID
+     * @param state The change type
+     * @param rid The replica ID of the producer
+     * @throws Exception If the change can't be applied
+     */
+    private void applyChange( Entry remoteEntry, String uuid, SyncStateTypeEnum state, int rid ) throws Exception
+    {
+        // lock on UUID to serialize the updates when there are multiple consumers
+        // connected to several producers and to the *same* base/partition
+        Object lock = getLockFor( uuid );
+
+        synchronized ( lock )
+        {
+            Dn remoteDn = remoteEntry.getDn();
+
+            switch ( state )
+            {
+                case ADD:
+                    boolean remoteDnExist = false;
+
+                    try
+                    {
+                        remoteDnExist = session.exists( remoteDn );
+                    }
+                    catch ( LdapNoSuchObjectException lnsoe )
+                    {
+                        CONSUMER_LOG.error( lnsoe.getMessage() );
+                    }
+
+                    if ( !remoteDnExist )
+                    {
+                        CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
+                        CONSUMER_LOG.debug( remoteEntry.toString() );
+                        AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+                        addContext.setReplEvent( true );
+
+                        ReplicationBulkLoad currentBulkLoad = bulkLoad;
+
+                        if ( currentBulkLoad != null )
                         {
-                            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
-                            modify( remoteEntry, rid );
+                            addContext.setInterceptors( currentBulkLoad.getInterceptors() );
                         }
 
-                        break;
+                        addContext.setRid( rid );
 
-                    case MODIFY:
-                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+                        OperationManager operationManager = directoryService.getOperationManager();
+                        operationManager.add( addContext );
+                    }
+                    else
+                    {
+                        CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
                         modify( remoteEntry, rid );
+                    }
 
-                        break;
+                    break;
 
-                    case MODDN:
-                        String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() );
-                        applyModDnOperation( remoteEntry, entryUuid, rid );
+                case MODIFY:
+                    CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+                    modify( remoteEntry, rid );
 
-                        break;
+                    break;
 
-                    case DELETE:
-                        CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
+                case MODDN:
+                    applyModDnOperation( remoteEntry, uuid, rid );
 
-                        if ( !session.exists( remoteDn ) )
-                        {
-                            CONSUMER_LOG
-                                .debug(
-                                    "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
-                                    remoteDn );
-                        }
-                        else
-                        {
-                            // incase of a MODDN operation resulting in a branch to be moved out of scope
-                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
-                            // so the branch needs to be recursively deleted here
-                            deleteRecursive( remoteEntry.getDn(), rid );
-                        }
+                    break;
 
-                        break;
+                case DELETE:
+                    CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
 
-                    case PRESENT:
-                        CONSUMER_LOG.debug( "entry present {}", remoteEntry );
-                        break;
+                    if ( !session.exists( remoteDn ) )
+                    {
+                        CONSUMER_LOG
+                            .debug(
+                                "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
+                                remoteDn );
+                    }
+                    else
+                    {
+                        // incase of a MODDN operation resulting in a branch to be moved out of scope
+                        // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
+                        // so the branch needs to be recursively deleted here
+                        deleteRecursive( remoteEntry.getDn(), rid );
+                    }
 
-                    default:
-                        throw new IllegalArgumentException( "Unexpected sync state " + state );
-                }
+                    break;
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    storeCookie();
-                }
+                case PRESENT:
+                    CONSUMER_LOG.debug( "entry present {}", remoteEntry );
+                    break;
+
+                default:
+                    throw new IllegalArgumentException( "Unexpected sync state " + state );
             }
         }
+    }
+
+
+    /**
+     * Process the modifications applied on an entry, sent by the producer instead of the whole
+     * modified entry when we have requested it.
+     *
+     * @param deltaResponse The IntermediateResponse containing the modifications
+     */
+    private void handleDeltaSyncMessage( IntermediateResponse deltaResponse )
+    {
+        try
+        {
+            DeltaSyncMessage deltaSyncMessage = DeltaSyncMessage.decode( schemaManager,
+                deltaResponse.getResponseValue() );
+            String uuid = deltaSyncMessage.getEntryUuid();
+            byte[] cookie = deltaSyncMessage.getCookie();
+            int rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( cookie ) );
+
+            CONSUMER_LOG.debug( "received the modifications of entry {}", deltaSyncMessage.getDn() );
+
+            applyPipeline.submit( uuid, deltaSyncMessage.getDn(), SyncStateTypeEnum.MODIFY, cookie,
+                () -> measure( () -> applyModifications( deltaSyncMessage, rid ) ) );
+        }
         catch ( Exception e )
         {
             CONSUMER_LOG.error( e.getMessage(), e );
         }
+    }
 
-        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+
+    /**
+     * Apply the modifications sent by the producer on the local entry. The modifications which
+     * have already been applied are skipped. If they can't be applied, the whole entry is fetched
+     * from the producer.
+     *
+     * @param deltaSyncMessage The received modifications
+     * @param rid The replica ID of the producer
+     * @throws Exception If neither the modifications nor the fetched entry can be applied
+     */
+    private void applyModifications( DeltaSyncMessage deltaSyncMessage, int rid ) throws Exception
+    {
+        Dn dn = deltaSyncMessage.getDn();
+        List<Modification> modifications = new ArrayList<>( deltaSyncMessage.getModifications().size() );
+        List<String> attributes = new ArrayList<>();
+        attributes.add( SchemaConstants.ENTRY_CSN_AT );
+        String remoteCsn = null;
+
+        for ( Modification modification : deltaSyncMessage.getModifications() )
+        {
+            String oid = modification.getAttribute().getAttributeType().getOid();
+
+            if ( SchemaConstants.ENTRY_CSN_AT_OID.equals( oid ) )
+            {
+                remoteCsn = modification.getAttribute().getString();
+            }
+
+            if ( !isModIgnored( modification.getAttribute().getAttributeType() ) )
+            {
+                modifications.add( modification );
+                attributes.add( oid );
+            }
+        }
+
+        String uuid = deltaSyncMessage.getEntryUuid();
+
+        synchronized ( getLockFor( uuid ) )
+        {
+            LookupOperationContext lookupCtx = new LookupOperationContext( session, dn,
+                attributes.toArray( new String[0] ) );
+            lookupCtx.setSyncreplLookup( true );
+
+            Entry localEntry;
+            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                lookupCtx.setTransaction( partitionTxn );
+                localEntry = directoryService.getOperationManager().lookup( lookupCtx );
+            }
+            catch ( LdapNoSuchObjectException lnsoe )
+            {
+                localEntry = null;
+            }
+
+            if ( localEntry == null )
+            {
+                CONSUMER_LOG.warn( "The modified entry {} does not exist, fetching it from the producer", dn );
+                fetchEntry( dn, uuid, rid );
+
+                return;
+            }
+
+            if ( config.isMmrMode() && ( remoteCsn != null ) )
+            {
+                String localCsn = localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+
+                if ( new Csn( localCsn ).compareTo( new Csn( remoteCsn ) ) >= 0 )
+                {
+                    modifications = ( attributeCsnStore == null ) ? Collections.emptyList()
+                        : attributeCsnStore.merge( uuid, localCsn, remoteCsn, modifications );
+                }
+            }
+
+            modifications = ReplicatedModifications.filter( localEntry, modifications );
+
+            if ( modifications.isEmpty() )
+            {
+                // just discard the received modifications, they are old or already applied
+                CONSUMER_LOG.debug( "the local entry is up to date, discarding the modifications of dn {}", dn );
+                return;
+            }
+
+            ModifyOperationContext modifyContext = new ModifyOperationContext( session, dn, modifications );
+            modifyContext.setReplEvent( true );
+            modifyContext.setRid( rid );
+
+            try
+            {
+                directoryService.getOperationManager().modify( modifyContext );
+            }
+            catch ( LdapException le )
+            {
+                CONSUMER_LOG.warn( "Cannot apply the modifications of {}, fetching the entry from the producer",
+                    dn, le );
+                fetchEntry( dn, uuid, rid );
+
+                return;
+            }
+
+            if ( ( attributeCsnStore != null ) && ( remoteCsn != null ) )
+            {
+                attributeCsnStore.update( uuid, remoteCsn, modifications );
+            }
+        }
+    }
+
+
+    /**
+     * Fetch an entry from the producer, and apply it as a whole on the local entry
+     *
+     * @param dn The entry Dn
+     * @param uuid The entry's entryUUID
+     * @param rid The replica ID of the producer
+     * @throws Exception If the entry can't be fetched or applied
+     */
+    private void fetchEntry( Dn dn, String uuid, int rid ) throws Exception
+    {
+        LdapNetworkConnection producer = connection;
+        Entry fetched = ( producer == null ) ? null : producer.lookup( dn,
+            computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES ) );
+
+        if ( fetched == null )
+        {
+            throw new LdapNoSuchObjectException( "Cannot fetch the entry " + dn + " from " + config.getProducer() );
+        }
+
+        Entry remoteEntry = new DefaultEntry( schemaManager, fetched );
+        Attribute remoteUuid = remoteEntry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( ( remoteUuid == null ) || !uuid.equals( remoteUuid.getString() ) )
+        {
+            throw new LdapNoSuchObjectException( "The entry " + dn + " fetched from " + config.getProducer()
+                + " is not the modified entry " + uuid );
+        }
+
+        applyChange( remoteEntry, uuid, SyncStateTypeEnum.ADD, rid );
+    }
+
+
+    /**
+     * Tells if the modifications on the given AttributeType must be ignored
+     */
+    private boolean isModIgnored( AttributeType attributeType )
+    {
+        for ( String ignored : MOD_IGNORE_AT )
+        {
+            if ( attributeType.equals( schemaManager.getAttributeType( ignored ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
 
@@ -479,6 +761,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             CONSUMER_LOG.debug( "............... inside handleSyncInfo ..............." );
 
+            // All the changes received before must have been applied, and the refresh is completed
+            applyPipeline.drain();
+
+            if ( !endBulkLoad() )
+            {
+                disconnect();
+
+                return;
+            }
+
+            metrics.refreshDone();
+
             byte[] syncInfoBytes = syncInfoResp.getResponseValue();
 
             if ( syncInfoBytes == null )
@@ -554,6 +848,54 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
 
         disconnect();
+
+        Runnable listener = disconnectionListener;
+
+        if ( listener != null )
+        {
+            listener.run();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDisconnectionListener( Runnable listener )
+    {
+        disconnectionListener = listener;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRefreshInterval()
+    {
+        return config.getRefreshInterval();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMetricsRegistry( ReplicationMetricsRegistry metricsRegistry )
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAttributeCsnStore( AttributeCsnStore attributeCsnStore )
+    {
+        this.attributeCsnStore = attributeCsnStore;
     }
 
 
@@ -565,7 +907,21 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         CONSUMER_LOG.debug( "Starting the SyncRepl process for consumer {}", config.getReplicaId() );
 
-        // read the cookie if persisted
+        // wait for the changes received before a disconnection, then read the cookie if persisted
+        try
+        {
+            applyPipeline.drain();
+        }
+        catch ( InterruptedException ie )
+        {
+            CONSUMER_LOG.warn( "Consumer {} interrupted while applying the pending changes", config.getReplicaId() );
+            Thread.currentThread().interrupt();
+
+            return ReplicationStatusEnum.DISCONNECTED;
+        }
+
+        // a change could not be applied : reload the content, from the last stored cookie
+        reload |= applyPipeline.reset();
         readCookie();
 
         if ( config.isRefreshNPersist() )
@@ -589,36 +945,38 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Do one refreshOnly synchronization. The next one is scheduled by the caller, after
+     * the refresh interval.
+     */
     private ReplicationStatusEnum doRefreshOnly()
     {
-        while ( !disconnected )
+        if ( disconnected )
         {
-            CONSUMER_LOG.debug( "==================== Refresh Only ==========" );
-
-            try
-            {
-                doSyncSearch( SynchronizationModeEnum.REFRESH_ONLY, reload );
+            return ReplicationStatusEnum.DISCONNECTED;
+        }
 
-                CONSUMER_LOG.debug( "--------------------- Sleep for {} seconds ------------------",
-                    ( config.getRefreshInterval() / 1000 ) );
-                Thread.sleep( config.getRefreshInterval() );
-                CONSUMER_LOG.debug( "--------------------- syncing again ------------------" );
+        CONSUMER_LOG.debug( "==================== Refresh Only ==========" );
 
-            }
-            catch ( InterruptedException ie )
-            {
-                CONSUMER_LOG.warn( "refresher thread interrupted" );
+        try
+        {
+            ReplicationStatusEnum status = doSyncSearch( SynchronizationModeEnum.REFRESH_ONLY, reload );
 
-                return ReplicationStatusEnum.DISCONNECTED;
-            }
-            catch ( Exception e )
+            if ( ( status == ReplicationStatusEnum.REFRESH_REQUIRED ) || disconnected )
             {
-                CONSUMER_LOG.error( "Failed to sync with refresh only mode", e );
-                return ReplicationStatusEnum.DISCONNECTED;
+                return status;
             }
-        }
 
-        return ReplicationStatusEnum.STOPPED;
+            CONSUMER_LOG.debug( "--------------------- Next refresh in {} seconds ------------------",
+                ( config.getRefreshInterval() / 1000 ) );
+
+            return ReplicationStatusEnum.REFRESH_DONE;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( "Failed to sync with refresh only mode", e );
+            return ReplicationStatusEnum.DISCONNECTED;
+        }
     }
 
 
@@ -639,21 +997,25 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     public boolean connect( boolean now )
     {
         boolean connected = false;
+        ExponentialBackoff backoff = new ExponentialBackoff( 250L, 5000L );
 
         if ( now )
         {
             connected = connect();
+            backoff.nextDelay();
         }
 
         while ( !connected )
         {
             try
             {
-                CONSUMER_LOG.debug( "Consumer {} cannot connect to {}, wait 5 seconds.", config.getReplicaId(),
-                    config.getProducer() );
+                long delay = backoff.nextDelay();
+
+                CONSUMER_LOG.debug( "Consumer {} cannot connect to {}, wait {} ms.", config.getReplicaId(),
+                    config.getProducer(), delay );
 
-                // try to establish a connection for every 5 seconds
-                Thread.sleep( 5000 );
+                // try to establish a connection with an increasing delay, up to 5 seconds
+                Thread.sleep( delay );
             }
             catch ( InterruptedException e )
             {
@@ -679,25 +1041,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         boolean connected = !disconnected;
 
-        boolean restartSync = false;
-
+        // The synchronization is restarted by the ReplicationConsumerRunner once connected
         if ( disconnected )
         {
             connected = connect();
-            restartSync = connected;
         }
 
         if ( connected )
         {
             CONSUMER_LOG.debug( "PING : The consumer {} is alive", config.getReplicaId() );
-
-            // DIRSERVER-2014
-            if ( restartSync )
-            {
-                CONSUMER_LOG.warn( "Restarting the disconnected consumer {}", config.getReplicaId() );
-                disconnected = false;
-                startSync();
-            }
         }
         else
         {
@@ -716,6 +1068,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             disconnect();
         }
+
+        if ( applyPipeline != null )
+        {
+            applyPipeline.shutdown();
+        }
     }
 
 
@@ -766,36 +1123,63 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
 
         searchRequest.addControl( syncReq );
+        metrics.refreshStarted();
+
+        // A full refresh : the entries are bulk loaded
+        if ( ( reloadHint || ( syncCookie == null ) ) && !bulkLoadDisabled )
+        {
+            beginBulkLoad();
+        }
 
         // Do the search. We use a searchAsync because we want to get SearchResultDone responses
         SearchFuture sf = connection.searchAsync( searchRequest );
 
+        // The compressed batches share the same compression context for the whole search
+        CompressedSyncDecoder decoder = null;
+
+        if ( config.isUseCompression() )
+        {
+            decoder = new CompressedSyncDecoder( connection.getCodecService(), schemaManager );
+        }
+
         Response resp = sf.get();
 
         CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
 
-        // Now, process the responses. We loop until we have a connection termination or
-        // a SearchResultDone (RefreshOnly mode)
-        while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
+        try
         {
-            if ( resp instanceof SearchResultEntry )
+            // Now, process the responses. We loop until we have a connection termination or
+            // a SearchResultDone (RefreshOnly mode)
+            while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected
+                && !applyPipeline.hasFailed() )
             {
-                SearchResultEntry result = ( SearchResultEntry ) resp;
+                if ( ( resp instanceof IntermediateResponse ) && CompressedSyncEncoder.OID.equals(
+                    ( ( IntermediateResponse ) resp ).getResponseName() ) )
+                {
+                    handleCompressedBatch( ( IntermediateResponse ) resp, decoder );
+                }
+                else
+                {
+                    handleResponse( resp );
+                }
 
-                handleSearchResultEntry( result );
-            }
-            else if ( resp instanceof SearchResultReference )
-            {
-                handleSearchReference( ( SearchResultReference ) resp );
+                // Next entry
+                resp = sf.get();
+                CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
             }
-            else if ( resp instanceof IntermediateResponse )
+        }
+        finally
+        {
+            if ( decoder != null )
             {
-                handleSyncInfo( ( IntermediateResponse ) resp );
+                decoder.close();
             }
+        }
 
-            // Next entry
-            resp = sf.get();
-            CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
+        if ( applyPipeline.hasFailed() )
+        {
+            CONSUMER_LOG.warn( "A change could not be applied, consumer {} reloads the content", config.getReplicaId() );
+            disconnect();
         }
 
         if ( sf.isCancelled() )
@@ -813,6 +1197,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
         else
         {
+            applyPipeline.drain();
             ResultCodeEnum resultCode = handleSearchResultDone( ( SearchResultDone ) resp );
 
             CONSUMER_LOG.debug( "Rsultcode of Sync operation from {} : {}", config.getProducer(), resultCode );
@@ -870,6 +1255,68 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Process a response received from the producer
+     *
+     * @param resp The response
+     */
+    private void handleResponse( Message resp )
+    {
+        if ( resp instanceof SearchResultEntry )
+        {
+            SearchResultEntry result = ( SearchResultEntry ) resp;
+
+            handleSearchResultEntry( result );
+        }
+        else if ( resp instanceof SearchResultReference )
+        {
+            handleSearchReference( ( SearchResultReference ) resp );
+        }
+        else if ( resp instanceof IntermediateResponse )
+        {
+            IntermediateResponse intermediateResponse = ( IntermediateResponse ) resp;
+
+            if ( DeltaSyncMessage.OID.equals( intermediateResponse.getResponseName() ) )
+            {
+                handleDeltaSyncMessage( intermediateResponse );
+            }
+            else
+            {
+                handleSyncInfo( intermediateResponse );
+            }
+        }
+    }
+
+
+    /**
+     * Process a compressed batch of responses, in the order the producer has sent them.
+     *
+     * @param batchResponse The IntermediateResponse containing the batch
+     * @param decoder The decoder used for all the batches of the current search
+     * @throws Exception If the batch can't be decoded
+     */
+    private void handleCompressedBatch( IntermediateResponse batchResponse, CompressedSyncDecoder decoder )
+        throws Exception
+    {
+        if ( decoder == null )
+        {
+            // We haven't asked for compressed batches
+            CONSUMER_LOG.warn( "Ignoring an unexpected compressed batch from {}", config.getProducer() );
+
+            return;
+        }
+
+        List<Message> messages = decoder.decode( batchResponse.getResponseValue() );
+
+        CONSUMER_LOG.debug( "Received a batch of {} responses from {}", messages.size(), config.getProducer() );
+
+        for ( Message message : messages )
+        {
+            handleResponse( message );
+        }
+    }
+
+
     /**
      * Disconnect from the producer
      */
@@ -907,18 +1354,101 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
             // reset the cookie
             syncCookie = null;
+
+            endBulkLoad();
+        }
+    }
+
+
+    /**
+     * Switch the replicated partition to the bulk load mode, if it supports it. Until the
+     * refresh is completed, the consumer operations are done using the bulk load session.
+     */
+    private void beginBulkLoad()
+    {
+        try
+        {
+            ReplicationBulkLoad newBulkLoad = ReplicationBulkLoad.begin( directoryService,
+                new Dn( schemaManager, config.getBaseDn() ) );
+
+            if ( newBulkLoad != null )
+            {
+                bulkLoad = newBulkLoad;
+                session = newBulkLoad.getSession();
+
+                CONSUMER_LOG.info( "Consumer {} bulk loads the {} partition", config.getReplicaId(),
+                    newBulkLoad.getPartition().getSuffixDn() );
+            }
+        }
+        catch ( LdapException le )
+        {
+            CONSUMER_LOG.warn( "Cannot bulk load the replicated entries for consumer {}", config.getReplicaId(), le );
+        }
+    }
+
+
+    /**
+     * Switch the bulk loaded partition back to the normal mode, building the user indexes. If
+     * a bulk loaded operation could not be rolled back, or if the indexes can't be built, the
+     * cookie is removed so that the next synchronization is a full refresh, done without bulk
+     * load.
+     *
+     * @return <code>false</code> if the bulk load has failed
+     */
+    private boolean endBulkLoad()
+    {
+        ReplicationBulkLoad currentBulkLoad = bulkLoad;
+
+        if ( currentBulkLoad == null )
+        {
+            return true;
+        }
+
+        bulkLoad = null;
+        session = directoryService.getAdminSession();
+
+        if ( currentBulkLoad.end() )
+        {
+            return true;
+        }
+
+        CONSUMER_LOG.warn( "Consumer {} failed to bulk load the entries, a new full refresh is needed",
+            config.getReplicaId() );
+        bulkLoadDisabled = true;
+        removeCookie();
+        reload = true;
+
+        return false;
+    }
+
+
+    /**
+     * stores a cookie once all the changes received before it have been applied.
+     */
+    private synchronized void checkpoint( byte[] cookie )
+    {
+        syncCookie = cookie;
+        storeCookie();
+
+        String cookieString = Strings.utf8ToString( cookie );
+
+        if ( LdapProtocolUtils.isValidCookie( cookieString ) )
+        {
+            metrics.checkpoint( LdapProtocolUtils.getCsn( cookieString ) );
+
+            CONSUMER_LOG.debug( "Consumer {} replication lag : {} ms", config.getReplicaId(), metrics.getLagTime() );
         }
     }
 
 
     /**
-     * stores the cookie.
+     * stores the cookie, unless a change received before it could not be applied.
      */
-    private void storeCookie()
+    private synchronized void storeCookie()
     {
         CONSUMER_LOG.debug( "Storing the cookie '{}'", Strings.utf8ToString( syncCookie ) );
 
-        if ( syncCookie == null )
+        if ( ( syncCookie == null ) || applyPipeline.hasFailed() )
         {
             return;
         }
@@ -1155,41 +1685,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             }
         }
 
+        Attribute uuid = remoteEntry.get( SchemaConstants.ENTRY_UUID_AT );
+        String remoteCsn = remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+
         remoteEntry.removeAttributes( MOD_IGNORE_AT );
         localEntry.removeAttributes( MOD_IGNORE_AT );
 
-        List<Modification> mods = new ArrayList<>();
-        Iterator<Attribute> itr = localEntry.iterator();
-
-        while ( itr.hasNext() )
-        {
-            Attribute localAttr = itr.next();
-            String attrId = localAttr.getId();
-            Modification mod;
-            Attribute remoteAttr = remoteEntry.get( attrId );
-
-            if ( remoteAttr != null ) // would be better if we compare the values also? or will it consume more time?
-            {
-                mod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, remoteAttr );
-                remoteEntry.remove( remoteAttr );
-            }
-            else
-            {
-                mod = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, localAttr );
-            }
-
-            mods.add( mod );
-        }
-
-        if ( remoteEntry.size() > 0 )
-        {
-            itr = remoteEntry.iterator();
-
-            while ( itr.hasNext() )
-            {
-                mods.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, itr.next() ) );
-            }
-        }
+        // The modifications actually changing the entry, which CSN is stored
+        List<Modification> changes = new ArrayList<>();
+        List<Modification> mods = ReplicatedModifications.diff( localEntry, remoteEntry, changes );
 
         List<Modification> serverModifications = new ArrayList<>( mods.size() );
 
@@ -1205,6 +1709,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         OperationManager operationManager = directoryService.getOperationManager();
         operationManager.modify( modifyContext );
+
+        if ( ( attributeCsnStore != null ) && ( uuid != null ) )
+        {
+            attributeCsnStore.update( uuid.getString(), remoteCsn, changes );
+        }
     }
 
 
@@ -0,0 +1,227 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.server.ldap.replication.ExponentialBackoff;
+import org.apache.directory.server.ldap.replication.ReplicationScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+
+/**
+ * Drives a replication consumer : connects it to its provider, runs its synchronization
+ * sessions and schedules the next one on the {@link ReplicationScheduler}. No thread is
+ * waiting between two sessions. A consumer which can't reach its provider is retried with
+ * an exponential backoff, and reconnects immediately when its connection is closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationConsumerRunner
+{
+    /** Logger for the replication consumer */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+    /** The delay before the first retry, in milliseconds */
+    private static final long INITIAL_RETRY_DELAY = 250L;
+
+    /** The driven consumer */
+    private final ReplicationConsumer consumer;
+
+    /** The delays between the connection attempts */
+    private final ExponentialBackoff backoff;
+
+    /** Set while a session is running */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /** The next scheduled session, if any */
+    private ScheduledFuture<?> nextSession;
+
+    /** Set when the consumer has been stopped */
+    private volatile boolean stopped;
+
+
+    /**
+     * Creates a new instance of ReplicationConsumerRunner.
+     *
+     * @param consumer The consumer to drive
+     * @param maxRetryDelay The maximum delay between two connection attempts, in milliseconds
+     */
+    public ReplicationConsumerRunner( ReplicationConsumer consumer, long maxRetryDelay )
+    {
+        this.consumer = consumer;
+        backoff = new ExponentialBackoff( INITIAL_RETRY_DELAY, maxRetryDelay );
+    }
+
+
+    /**
+     * Starts the consumer
+     */
+    public void start()
+    {
+        consumer.setDisconnectionListener( this::reconnect );
+        schedule( 0L );
+    }
+
+
+    /**
+     * Stops the consumer. The running session, if any, is closed by the consumer itself.
+     */
+    public void stop()
+    {
+        stopped = true;
+
+        synchronized ( this )
+        {
+            if ( nextSession != null )
+            {
+                nextSession.cancel( false );
+                nextSession = null;
+            }
+        }
+
+        consumer.stop();
+    }
+
+
+    /**
+     * @return The number of failed connection attempts since the last successful session
+     */
+    public int getReconnectAttempts()
+    {
+        return Math.max( 0, backoff.getAttempts() - 1 );
+    }
+
+
+    /**
+     * Called when the consumer's connection has been closed : a consumer which was waiting
+     * for its next refresh reconnects at once. A running session will reschedule itself.
+     */
+    private void reconnect()
+    {
+        if ( !running.get() )
+        {
+            schedule( 0L );
+        }
+    }
+
+
+    /**
+     * Schedule the next session, replacing the already scheduled one
+     */
+    private synchronized void schedule( long delay )
+    {
+        if ( stopped )
+        {
+            return;
+        }
+
+        if ( nextSession != null )
+        {
+            nextSession.cancel( false );
+        }
+
+        nextSession = ReplicationScheduler.schedule( () -> ReplicationScheduler.execute( this::runSession ), delay,
+            TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Connects the consumer and synchronizes it, then schedules the next session
+     */
+    private void runSession()
+    {
+        if ( stopped || !running.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        long delay = -1L;
+
+        try
+        {
+            if ( CONSUMER_LOG.isDebugEnabled() )
+            {
+                MDC.put( "Replica", consumer.getId() );
+            }
+
+            CONSUMER_LOG.info( "starting the replication consumer with {}", consumer );
+
+            if ( !consumer.connect() )
+            {
+                delay = backoff.nextDelay();
+                CONSUMER_LOG.debug( "Consumer {} cannot connect, retrying in {} ms", consumer.getId(), delay );
+
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            ReplicationStatusEnum status;
+
+            do
+            {
+                status = consumer.startSync();
+            }
+            while ( ( status == ReplicationStatusEnum.REFRESH_REQUIRED ) && !stopped );
+
+            switch ( status )
+            {
+                case REFRESH_DONE:
+                    backoff.reset();
+                    delay = consumer.getRefreshInterval();
+                    break;
+
+                case DISCONNECTED:
+                    // A session which didn't last is retried with a growing delay
+                    if ( System.currentTimeMillis() - start >= backoff.getMaxDelay() )
+                    {
+                        backoff.reset();
+                    }
+
+                    delay = backoff.nextDelay();
+                    break;
+
+                default:
+                    CONSUMER_LOG.info( "The replication consumer {} is stopped", consumer.getId() );
+                    break;
+            }
+        }
+        catch ( RuntimeException re )
+        {
+            CONSUMER_LOG.error( "Failed to run the consumer {}", consumer.getId(), re );
+            delay = backoff.nextDelay();
+        }
+        finally
+        {
+            running.set( false );
+
+            if ( delay >= 0L )
+            {
+                schedule( delay );
+            }
+        }
+    }
+}
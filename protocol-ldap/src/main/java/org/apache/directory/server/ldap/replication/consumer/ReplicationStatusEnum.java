@@ -32,6 +32,9 @@ public enum ReplicationStatusEnum
     /** A full refresh should be done */
     REFRESH_REQUIRED,
     
+    /** A refreshOnly synchronization is done, the next one will be done after the refresh interval */
+    REFRESH_DONE,
+    
     /** The replication has been stopped */
     STOPPED
 }
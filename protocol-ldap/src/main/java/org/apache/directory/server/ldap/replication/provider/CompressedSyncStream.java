@@ -0,0 +1,348 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.Message;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.CompressedSyncControl;
+import org.apache.directory.server.ldap.replication.CompressedSyncEncoder;
+import org.apache.directory.server.ldap.replication.ReplicationScheduler;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+
+/**
+ * The compressed stream of messages sent to a consumer which has requested it with a
+ * {@link CompressedSyncControl}. The messages are gathered in batches, which are written
+ * as soon as they are full, or after a short delay. The writes are pipelined : the caller
+ * is notified when the batch containing its message has been written, instead of waiting
+ * for it.
+ * <br>
+ * The number of batches written but not yet sent is limited : once the limit is reached,
+ * adding a message waits until a batch has been sent. A caller which can't wait too long
+ * gives up after a delay, and is told the message has not been added.
+ * <br>
+ * A stream is associated with the consumer session, and replaced for each syncrepl request,
+ * as the consumer starts a new decompression context for each request.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class CompressedSyncStream
+{
+    /** The session attribute storing the stream */
+    private static final String STREAM_ATTR = CompressedSyncStream.class.getName();
+
+    /** The maximum number of messages in a batch */
+    static final int MAX_BATCH_MESSAGES = 128;
+
+    /** The maximum size of a batch, before compression */
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    /** The delay after which an incomplete batch is written, in milliseconds */
+    static final long LINGER_DELAY = 10L;
+
+    /** The maximum number of batches written and not yet sent */
+    static final int MAX_PENDING_BATCHES = 16;
+
+    /** The notification of a message write */
+    interface WriteListener
+    {
+        /**
+         * Called once the batch containing the message has been written, or has failed
+         *
+         * @param written Tells if the batch has been written
+         * @param cause The failure cause, if any
+         */
+        void written( boolean written, Throwable cause );
+    }
+
+    /** The consumer session */
+    private final IoSession ioSession;
+
+    /** The syncrepl request message ID */
+    private final int messageId;
+
+    /** The batches encoder */
+    private final CompressedSyncEncoder encoder;
+
+    /** The callbacks to notify once the current batch is written */
+    private List<WriteListener> callbacks = new ArrayList<>();
+
+    /** The number of batches written and not yet sent */
+    private int pendingBatches;
+
+    /** The pending write of the current batch */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /** Set when the stream has been replaced */
+    private boolean closed;
+
+
+    private CompressedSyncStream( LdapSession session, SearchRequest request )
+    {
+        ioSession = session.getIoSession();
+        messageId = request.getMessageId();
+        encoder = new CompressedSyncEncoder( session.getCoreSession().getDirectoryService().getLdapCodecService() );
+    }
+
+
+    /**
+     * Associate a new stream with the consumer session if the syncrepl request asks for it,
+     * replacing the previous one.
+     *
+     * @param session The consumer session
+     * @param request The syncrepl request
+     */
+    static void open( LdapSession session, SearchRequest request )
+    {
+        CompressedSyncStream previous;
+
+        if ( request.hasControl( CompressedSyncControl.OID ) )
+        {
+            previous = ( CompressedSyncStream ) session.getIoSession().setAttribute( STREAM_ATTR,
+                new CompressedSyncStream( session, request ) );
+        }
+        else
+        {
+            previous = ( CompressedSyncStream ) session.getIoSession().removeAttribute( STREAM_ATTR );
+        }
+
+        if ( previous != null )
+        {
+            previous.close();
+        }
+    }
+
+
+    /**
+     * @param session The consumer session
+     * @return The stream associated with the session, or null if the consumer hasn't requested it
+     */
+    static CompressedSyncStream get( LdapSession session )
+    {
+        return ( CompressedSyncStream ) session.getIoSession().getAttribute( STREAM_ATTR );
+    }
+
+
+    /**
+     * Write the pending messages, if the consumer session has a stream. This must be done
+     * before writing a message outside of the stream.
+     *
+     * @param session The consumer session
+     */
+    static void flush( LdapSession session )
+    {
+        CompressedSyncStream stream = get( session );
+
+        if ( stream != null )
+        {
+            stream.flush();
+        }
+    }
+
+
+    /**
+     * Add a message to the stream, once the number of pending batches is under the limit
+     *
+     * @param message The message to send
+     * @param written The callback notified when the message has been written, or not, may be null
+     * @param maxWait The maximum time to wait for the pending batches to be sent, in milliseconds
+     * @return <code>false</code> if the message has not been added, as the pending batches have
+     * not been sent in time
+     * @throws EncoderException If the message can't be encoded
+     */
+    synchronized boolean add( Message message, WriteListener written, long maxWait ) throws EncoderException
+    {
+        if ( !awaitCapacity( maxWait ) )
+        {
+            return false;
+        }
+
+        if ( !closed )
+        {
+            encoder.add( message );
+            added( written );
+        }
+
+        // Otherwise, the consumer has sent a new request, it will get this message again
+        return true;
+    }
+
+
+    /**
+     * Add an already encoded message to the stream, once the number of pending batches is
+     * under the limit
+     *
+     * @param encoded The encoded message
+     * @param written The callback notified when the message has been written, or not, may be null
+     * @param maxWait The maximum time to wait for the pending batches to be sent, in milliseconds
+     * @return <code>false</code> if the message has not been added, as the pending batches have
+     * not been sent in time
+     */
+    synchronized boolean add( ByteBuffer encoded, WriteListener written, long maxWait )
+    {
+        if ( !awaitCapacity( maxWait ) )
+        {
+            return false;
+        }
+
+        if ( !closed )
+        {
+            encoder.add( encoded );
+            added( written );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Wait until the number of pending batches is under the limit, the stream is closed, or
+     * the session is closing
+     */
+    private boolean awaitCapacity( long maxWait )
+    {
+        long start = System.currentTimeMillis();
+
+        while ( ( pendingBatches >= MAX_PENDING_BATCHES ) && !closed && !ioSession.isClosing() )
+        {
+            long delay = maxWait - ( System.currentTimeMillis() - start );
+
+            if ( delay <= 0L )
+            {
+                return false;
+            }
+
+            try
+            {
+                wait( Math.min( delay, 1000L ) );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Register the callback of the added message, and write the batch if it's full
+     */
+    private void added( WriteListener written )
+    {
+        if ( written != null )
+        {
+            callbacks.add( written );
+        }
+
+        if ( ( encoder.size() >= MAX_BATCH_MESSAGES ) || ( encoder.getPendingBytes() >= MAX_BATCH_BYTES ) )
+        {
+            flush();
+        }
+        else if ( scheduledFlush == null )
+        {
+            scheduledFlush = ReplicationScheduler.schedule( this::flush, LINGER_DELAY, TimeUnit.MILLISECONDS );
+        }
+    }
+
+
+    /**
+     * Write the current batch
+     */
+    synchronized void flush()
+    {
+        if ( scheduledFlush != null )
+        {
+            scheduledFlush.cancel( false );
+            scheduledFlush = null;
+        }
+
+        if ( closed )
+        {
+            return;
+        }
+
+        IntermediateResponse batch = encoder.flush( messageId );
+
+        if ( batch == null )
+        {
+            return;
+        }
+
+        List<WriteListener> written = callbacks;
+        callbacks = new ArrayList<>();
+        pendingBatches++;
+
+        WriteFuture future = ioSession.write( batch );
+
+        future.addListener( writeFuture ->
+        {
+            sent();
+
+            for ( WriteListener callback : written )
+            {
+                callback.written( ( ( WriteFuture ) writeFuture ).isWritten(),
+                    ( ( WriteFuture ) writeFuture ).getException() );
+            }
+        } );
+    }
+
+
+    /**
+     * Called once a batch has been sent, or has failed
+     */
+    private synchronized void sent()
+    {
+        pendingBatches--;
+        notifyAll();
+    }
+
+
+    /**
+     * Release the stream. The pending messages are dropped, as the consumer has started a new
+     * syncrepl request, and won't be able to decode them.
+     */
+    synchronized void close()
+    {
+        if ( scheduledFlush != null )
+        {
+            scheduledFlush.cancel( false );
+            scheduledFlush = null;
+        }
+
+        closed = true;
+        encoder.close();
+        notifyAll();
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The change log shared by all the consumers of a provider. This is an append only log, ordered
+ * by CSN, split in segments stored in the replication directory. Each {@link ReplicaEventLog} is
+ * only a position in this log (the last CSN sent to its consumer), and a segment is deleted as soon
+ * as the slowest consumer has gone past its last CSN.
+ * <p>
+ * A record has the following format :
+ * <ul>
+ * <li>int : the record length, not including this field</li>
+ * <li>byte : the record type, MESSAGE or REFERENCE</li>
+ * <li>int : the replica ID</li>
+ * <li>UTF : the entry CSN</li>
+ * <li>int and byte[] : for a MESSAGE, the message serialized by the {@link ReplicaEventMessageSerializer}</li>
+ * </ul>
+ * The same event is generally logged for many consumers : the message is written once, the other
+ * consumers get a REFERENCE record, which stands for the previous MESSAGE.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLog
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaChangeLog.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The segment files prefix */
+    public static final String CHANGE_LOG_NAME_PREFIX = "REPL_CHANGE_LOG.";
+
+    /** The size after which a new segment is started. Default to 16Mb */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024L * 1024L;
+
+    /** A record containing a serialized message */
+    private static final byte MESSAGE = 0;
+
+    /** A record standing for the previous message */
+    private static final byte REFERENCE = 1;
+
+    /** The directory containing the segments */
+    private final File logDirectory;
+
+    /** The SchemaManager instance */
+    private final SchemaManager schemaManager;
+
+    /** The message serializer */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** The segments, from the oldest to the current one */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /** The replica logs reading this log */
+    private final Map<Integer, ReplicaEventLog> replicaLogs = new ConcurrentHashMap<>();
+
+    /** The size after which a new segment is started */
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /** The channel used to write in the current segment */
+    private FileChannel channel;
+
+    /** A lock preventing two purges from running concurrently */
+    private final Object purgeLock = new Object();
+
+    /** The last written message, and its CSN */
+    private ReplicaEventMessage lastMessage;
+    private String lastMessageCsn;
+
+
+    /**
+     * A segment of the log. The last CSN and the length are updated by the writer, and read by the cursors
+     */
+    static final class Segment
+    {
+        /** The segment number */
+        private final long number;
+
+        /** The segment file */
+        private final File file;
+
+        /** The biggest CSN stored in this segment */
+        private volatile String lastCsn;
+
+        /** The length of the written records */
+        private volatile long length;
+
+        /** The number of written records */
+        private volatile int records;
+
+
+        Segment( long number, File file )
+        {
+            this.number = number;
+            this.file = file;
+        }
+
+
+        File getFile()
+        {
+            return file;
+        }
+
+
+        String getLastCsn()
+        {
+            return lastCsn;
+        }
+
+
+        long getLength()
+        {
+            return length;
+        }
+
+
+        private void update( String csn, long recordLength )
+        {
+            if ( ( lastCsn == null ) || ( csn.compareTo( lastCsn ) > 0 ) )
+            {
+                lastCsn = csn;
+            }
+
+            length += recordLength;
+            records++;
+        }
+    }
+
+
+    /**
+     * A record read from a segment
+     */
+    static final class Record
+    {
+        /** The record type */
+        final byte type;
+
+        /** The replica ID */
+        final int replicaId;
+
+        /** The entry CSN */
+        final String csn;
+
+        /** The serialized message, null for a REFERENCE */
+        final byte[] message;
+
+
+        Record( byte type, int replicaId, String csn, byte[] message )
+        {
+            this.type = type;
+            this.replicaId = replicaId;
+            this.csn = csn;
+            this.message = message;
+        }
+
+
+        boolean isReference()
+        {
+            return type == REFERENCE;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of ReplicaChangeLog, opening the existing segments if any.
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param logDirectory The directory containing the segments
+     * @throws IOException If the segments can't be read
+     */
+    public ReplicaChangeLog( SchemaManager schemaManager, File logDirectory ) throws IOException
+    {
+        this.schemaManager = schemaManager;
+        this.logDirectory = logDirectory;
+        serializer = new ReplicaEventMessageSerializer( schemaManager );
+
+        open();
+    }
+
+
+    /**
+     * Read the existing segments, and open the last one for writing
+     */
+    private void open() throws IOException
+    {
+        File[] files = logDirectory.listFiles( ( dir, name ) -> name.startsWith( CHANGE_LOG_NAME_PREFIX ) );
+        List<Segment> existing = new ArrayList<>();
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                try
+                {
+                    long number = Long.parseLong( file.getName().substring( CHANGE_LOG_NAME_PREFIX.length() ) );
+                    existing.add( new Segment( number, file ) );
+                }
+                catch ( NumberFormatException nfe )
+                {
+                    LOG.warn( "Ignoring the file {} in the replication directory", file );
+                }
+            }
+        }
+
+        existing.sort( ( s1, s2 ) -> Long.compare( s1.number, s2.number ) );
+
+        for ( Segment segment : existing )
+        {
+            scan( segment );
+        }
+
+        segments.addAll( existing );
+
+        if ( segments.isEmpty() )
+        {
+            segments.add( new Segment( 1L, segmentFile( 1L ) ) );
+        }
+
+        openCurrentSegment();
+
+        PROVIDER_LOG.debug( "Opened the replication change log with {} segments", segments.size() );
+    }
+
+
+    /**
+     * Read all the records of a segment to get its CSNs and length. An incomplete record at the end
+     * of the segment (the server stopped while writing it) is removed.
+     */
+    private void scan( Segment segment ) throws IOException
+    {
+        long fileLength = segment.file.length();
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+            new FileInputStream( segment.file ) ) ) )
+        {
+            while ( segment.length + Integer.BYTES <= fileLength )
+            {
+                int recordLength = in.readInt();
+
+                if ( segment.length + Integer.BYTES + recordLength > fileLength )
+                {
+                    break;
+                }
+
+                Record record = readRecord( in );
+                segment.update( record.csn, Integer.BYTES + ( long ) recordLength );
+            }
+        }
+        catch ( EOFException eofe )
+        {
+            // Truncated record, handled below
+        }
+
+        if ( segment.length < fileLength )
+        {
+            LOG.warn( "Removing an incomplete record at the end of the replication log segment {}", segment.file );
+
+            try ( RandomAccessFile raf = new RandomAccessFile( segment.file, "rw" ) )
+            {
+                raf.setLength( segment.length );
+            }
+        }
+    }
+
+
+    private File segmentFile( long number )
+    {
+        return new File( logDirectory, CHANGE_LOG_NAME_PREFIX + String.format( Locale.ROOT, "%010d", number ) );
+    }
+
+
+    private Segment currentSegment()
+    {
+        return segments.get( segments.size() - 1 );
+    }
+
+
+    private void openCurrentSegment() throws IOException
+    {
+        channel = new FileOutputStream( currentSegment().file, true ).getChannel();
+    }
+
+
+    /**
+     * Close the current segment, and start a new one
+     */
+    private void roll() throws IOException
+    {
+        channel.force( false );
+        channel.close();
+
+        long number = currentSegment().number + 1;
+        segments.add( new Segment( number, segmentFile( number ) ) );
+        openCurrentSegment();
+
+        PROVIDER_LOG.debug( "Started the replication log segment {}", number );
+    }
+
+
+    /**
+     * Tells if the message is the same event as the last written message
+     */
+    private boolean isLastMessage( ReplicaEventMessage message, String csn )
+    {
+        return ( lastMessage != null ) && csn.equals( lastMessageCsn )
+            && ( message.getChangeType() == lastMessage.getChangeType() )
+            && message.getEntry().getDn().equals( lastMessage.getEntry().getDn() );
+    }
+
+
+    /**
+     * Append a message for a replica. If the same event has just been logged for another replica,
+     * only a reference to it is written.
+     *
+     * @param replicaId The replica ID
+     * @param message The message to store
+     * @throws Exception If the message can't be written
+     */
+    public synchronized void log( int replicaId, ReplicaEventMessage message ) throws Exception
+    {
+        String csn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        byte[] serialized = null;
+
+        if ( !isLastMessage( message, csn ) )
+        {
+            serialized = serializer.serialize( message );
+
+            // A reference is always in the same segment as its message
+            if ( currentSegment().length >= segmentSize )
+            {
+                roll();
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( DataOutputStream out = new DataOutputStream( baos ) )
+        {
+            out.writeInt( 0 );
+            out.writeByte( serialized == null ? REFERENCE : MESSAGE );
+            out.writeInt( replicaId );
+            out.writeUTF( csn );
+
+            if ( serialized != null )
+            {
+                out.writeInt( serialized.length );
+                out.write( serialized );
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap( baos.toByteArray() );
+        buffer.putInt( 0, buffer.limit() - Integer.BYTES );
+
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+
+        currentSegment().update( csn, buffer.limit() );
+
+        if ( serialized != null )
+        {
+            lastMessage = message;
+            lastMessageCsn = csn;
+        }
+    }
+
+
+    /**
+     * Read a record, the length being already read
+     *
+     * @param in The stream to read from
+     * @return The read record
+     * @throws IOException If the record can't be read
+     */
+    static Record readRecord( DataInputStream in ) throws IOException
+    {
+        byte type = in.readByte();
+        int replicaId = in.readInt();
+        String csn = in.readUTF();
+        byte[] message = null;
+
+        if ( type == MESSAGE )
+        {
+            message = new byte[in.readInt()];
+            in.readFully( message );
+        }
+
+        return new Record( type, replicaId, csn, message );
+    }
+
+
+    /**
+     * Deserialize a stored message
+     *
+     * @param message The serialized message
+     * @return The message
+     * @throws IOException If the message can't be deserialized
+     */
+    ReplicaEventMessage deserialize( byte[] message ) throws IOException
+    {
+        return ( ReplicaEventMessage ) serializer.deserialize( message );
+    }
+
+
+    /**
+     * @return The current segments, from the oldest to the newest one
+     */
+    List<Segment> getSegments()
+    {
+        return new ArrayList<>( segments );
+    }
+
+
+    /**
+     * @param segment A segment
+     * @return true if this is the segment being written
+     */
+    boolean isCurrentSegment( Segment segment )
+    {
+        return segment == currentSegment();
+    }
+
+
+    /**
+     * Creates a cursor on the messages logged for a replica
+     *
+     * @param replicaId The replica ID
+     * @param consumerCsn The consumer's CSN : only the messages with a younger CSN are returned
+     * @return A cursor on top of the log
+     */
+    public ReplicaJournalCursor getCursor( int replicaId, String consumerCsn )
+    {
+        return new ReplicaJournalCursor( this, replicaId, consumerCsn );
+    }
+
+
+    /**
+     * Register a replica log, which position will be taken into account when purging the log
+     *
+     * @param replicaLog The replica log
+     */
+    void register( ReplicaEventLog replicaLog )
+    {
+        replicaLogs.put( replicaLog.getId(), replicaLog );
+    }
+
+
+    /**
+     * Unregister a replica log
+     *
+     * @param replicaLog The replica log
+     */
+    void unregister( ReplicaEventLog replicaLog )
+    {
+        replicaLogs.remove( replicaLog.getId(), replicaLog );
+    }
+
+
+    /**
+     * Delete the segments which have been read by all the consumers. A consumer which has not
+     * received anything yet prevents any purge.
+     *
+     * @return The number of deleted segments
+     */
+    public int purge()
+    {
+        return purge( Integer.MAX_VALUE );
+    }
+
+
+    /**
+     * Delete, from the oldest one, at most the given number of segments which have been read by all
+     * the consumers. A consumer which has not received anything yet prevents any purge, and nothing
+     * is purged while the log holds fewer records than the smallest purge threshold count of the
+     * consumers. The log is not locked, as the current segment, the only one being written, is never
+     * deleted.
+     *
+     * @param maxSegments The maximum number of segments to delete
+     * @return The number of deleted segments
+     */
+    public int purge( int maxSegments )
+    {
+        synchronized ( purgeLock )
+        {
+            String minCsn = null;
+            long threshold = Long.MAX_VALUE;
+
+            for ( ReplicaEventLog replicaLog : replicaLogs.values() )
+            {
+                threshold = Math.min( threshold, replicaLog.getPurgeThresholdCount() );
+
+                String lastSentCsn = replicaLog.getLastSentCsn();
+
+                if ( lastSentCsn == null )
+                {
+                    LOG.debug( "last sent CSN is null for the replica {}, skipping the purge", replicaLog.getId() );
+
+                    return 0;
+                }
+
+                if ( ( minCsn == null ) || ( lastSentCsn.compareTo( minCsn ) < 0 ) )
+                {
+                    minCsn = lastSentCsn;
+                }
+            }
+
+            long recordCount = getRecordCount();
+
+            if ( !replicaLogs.isEmpty() && ( recordCount < threshold ) )
+            {
+                LOG.debug( "{} records in the log, below the purge threshold {}, skipping the purge", recordCount,
+                    threshold );
+
+                return 0;
+            }
+
+            int purged = 0;
+
+            for ( Segment segment : segments )
+            {
+                if ( ( purged >= maxSegments ) || isCurrentSegment( segment ) )
+                {
+                    break;
+                }
+
+                // The segments are ordered, the next ones hold younger changes
+                if ( ( minCsn != null ) && ( segment.lastCsn != null ) && ( segment.lastCsn.compareTo( minCsn ) > 0 ) )
+                {
+                    break;
+                }
+
+                segments.remove( segment );
+
+                if ( !segment.file.delete() )
+                {
+                    LOG.warn( "Failed to delete the replication log segment {}", segment.file );
+                }
+
+                purged++;
+            }
+
+            if ( purged > 0 )
+            {
+                PROVIDER_LOG.debug( "Purged {} segments of the replication log, up to the CSN {}", purged, minCsn );
+            }
+
+            return purged;
+        }
+    }
+
+
+    /**
+     * Close the log
+     *
+     * @throws IOException If the current segment can't be closed
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( channel != null )
+        {
+            channel.force( false );
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    /**
+     * @return The SchemaManager instance
+     */
+    public SchemaManager getSchemaManager()
+    {
+        return schemaManager;
+    }
+
+
+    /**
+     * @return The number of segments
+     */
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+
+    /**
+     * @return The number of records in the change log
+     */
+    public long getRecordCount()
+    {
+        long count = 0L;
+
+        for ( Segment segment : segments )
+        {
+            count += segment.records;
+        }
+
+        return count;
+    }
+
+
+    /**
+     * @return The size of the change log, in bytes
+     */
+    public long getSize()
+    {
+        long size = 0L;
+
+        for ( Segment segment : segments )
+        {
+            size += segment.length;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * @return The size after which a new segment is started
+     */
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+
+    /**
+     * @param segmentSize The size after which a new segment is started
+     */
+    public void setSegmentSize( long segmentSize )
+    {
+        this.segmentSize = segmentSize;
+    }
+}
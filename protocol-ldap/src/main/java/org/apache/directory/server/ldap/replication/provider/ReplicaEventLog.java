@@ -21,27 +21,14 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
-import java.io.IOException;
-
-import jdbm.RecordManager;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.TransactionManager;
-
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
-import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
-import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.apache.directory.server.ldap.replication.ReplicaMetrics;
+import org.apache.directory.server.ldap.replication.ReplicationMetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,8 +44,8 @@ import org.slf4j.LoggerFactory;
  * <li>refreshNPersist : a flag indicating that the consumer is processing in Refresh and persist mode</li>
  * <li></li>
  * </ul>
- * A separate log is maintained for each syncrepl consumer.<br>
- * We also associate a Queue with each structure, which will store the messages to send to the consumer.
+ * The messages to send to the consumers are stored in a {@link ReplicaChangeLog} shared by all the consumers :
+ * a ReplicaEventLog is only a position in this log.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -77,7 +64,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private String searchFilter;
 
     /** the csn that was sent to the client during the last sync session*/
-    private String lastSentCsn;
+    private volatile String lastSentCsn;
 
     /** the persistent listener */
     private SyncReplSearchListener persistentListener;
@@ -94,18 +81,13 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     /** the duration(in seconds) of consumer inactivity after which this log will be deleted. Defaults to 172800 seconds (i.e. 2 days) */
     private long maxIdlePeriod = DEFAULT_MAX_IDLE_PERIOD;
 
-    /** the minimum number of entries to be present for beginning purging entries older than the last sent CSN. Default is 10000 */
+    /** the minimum number of records to be present in the change log for beginning purging the segments read by
+     * all the consumers. The smallest threshold of the consumers applies. Default is 10000 */
     private int purgeThresholdCount = DEFAULT_PURGE_THRESHOLD_COUNT;
 
     // fields that won't be serialized
-    /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
-
-    /** the underlying file  */
-    private File journalFile;
-
-    /** The record manager*/
-    private RecordManager recman;
+    /** The change log shared by all the consumers */
+    private ReplicaChangeLog changeLog;
 
     /** A flag used to indicate that the consumer is not up to date */
     private volatile boolean dirty;
@@ -113,57 +95,42 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     /** the DN of the entry where this event log details are stored */
     private Dn consumerEntryDn;
 
+    /** The metrics of the replication to this consumer */
+    private volatile ReplicaMetrics metrics;
+
     public static final String REPLICA_EVENT_LOG_NAME_PREFIX = "REPL_EVENT_LOG.";
 
     public static final int DEFAULT_PURGE_THRESHOLD_COUNT = 10000;
 
     /** The max delay for an idle replication log with no activity, by default the logs have no idle time period */
     public static final int DEFAULT_MAX_IDLE_PERIOD = -1;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
 
 
     /**
      * Creates a new instance of EventLog for a replica
      * 
-     * @param partitionTxn The Transaction to use
-     * @param directoryService The DirectoryService instance
+     * @param changeLog The change log shared by all the consumers
      * @param replicaId The replica ID
-     * @throws IOException if we weren't able to log the event
      */
-    public ReplicaEventLog( PartitionTxn partitionTxn, DirectoryService directoryService, int replicaId ) throws IOException
+    public ReplicaEventLog( ReplicaChangeLog changeLog, int replicaId )
     {
         PROVIDER_LOG.debug( "Creating the replication queue for replica {}", replicaId );
-        SchemaManager schemaManager = directoryService.getSchemaManager();
         this.replicaId = replicaId;
-        this.searchCriteria = new NotificationCriteria( schemaManager );
+        this.searchCriteria = new NotificationCriteria( changeLog.getSchemaManager() );
         this.searchCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+        this.changeLog = changeLog;
+        this.metrics = new ReplicaMetrics( ReplicationMetricsRegistry.PROVIDER_PREFIX + replicaId );
 
-        // Create the journal file, or open if already exists
-        File replDir = directoryService.getInstanceLayout().getReplDirectory();
-        journalFile = new File( replDir, REPLICA_EVENT_LOG_NAME_PREFIX + replicaId );
-        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
-        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 200 );
-
-        SerializableComparator<String> comparator = new SerializableComparator<>(
-            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
-        comparator.setSchemaManager( schemaManager );
-
-        journal = new JdbmTable<>( schemaManager, journalFile.getName(), recman, comparator,
-            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
-        
-        this.partitionTxn = partitionTxn;
+        changeLog.register( this );
     }
 
 
     /**
-     * Stores the given message in the queue 
+     * Stores the given message in the change log
      *
      * @param message The message to store
      */
-    public synchronized void log( ReplicaEventMessage message )
+    public void log( ReplicaEventMessage message )
     {
         try
         {
@@ -172,8 +139,8 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
             PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
                 message.getChangeType() );
 
-            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-            journal.put( partitionTxn, entryCsn, message );
+            changeLog.log( replicaId, message );
+            metrics.changeLogged( message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
         }
         catch ( Exception e )
         {
@@ -184,13 +151,16 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
 
     /**
-     * Deletes the queue (to remove the log) and recreates a new queue instance
-     * with the same queue name. Also creates the corresponding message producer
+     * Deletes the segments of the change log which have been sent to this consumer, and
+     * to all the other ones.
      *
-     * @throws Exception If the queue can't be deleted
+     * @throws Exception If the segments can't be deleted
      */
     public void truncate() throws Exception
     {
+        int purged = changeLog.purge();
+
+        LOG.debug( "truncated {} segments of the change log for the replica id {}", purged, replicaId );
     }
 
 
@@ -213,20 +183,8 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     {
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
 
-        // Close the producer and session, DO NOT close connection 
-        if ( journal != null )
-        {
-            journal.close( partitionTxn );
-        }
-
-        journal = null;
-
-        if ( recman != null )
-        {
-            recman.close();
-        }
-
-        recman = null;
+        // The change log is shared, we just stop holding back its purge
+        changeLog.unregister( this );
     }
 
 
@@ -368,6 +326,36 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     }
 
 
+    /**
+     * Records a change sent to the consumer, and updates the last sent CSN
+     *
+     * @param csn The CSN of the sent change
+     */
+    public void changeSent( String csn )
+    {
+        metrics.changeSent( csn );
+        setLastSentCsn( csn );
+    }
+
+
+    /**
+     * @return The metrics of the replication to this consumer
+     */
+    public ReplicaMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * @param metrics The metrics of the replication to this consumer
+     */
+    public void setMetrics( ReplicaMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+
     /**
      * @return The consumer Hostname
      */
@@ -436,12 +424,11 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
     /**
      * @param consumerCsn the consumer's CSN extracted from cookie
-     * @return A cursor on top of the queue
-     * @throws Exception If the cursor can't be created
+     * @return A cursor on top of the change log
      */
-    public ReplicaJournalCursor getCursor( String consumerCsn ) throws Exception
+    public ReplicaJournalCursor getCursor( String consumerCsn )
     {
-        return new ReplicaJournalCursor( partitionTxn, journal, consumerCsn );
+        return changeLog.getCursor( replicaId, consumerCsn );
     }
 
 
@@ -450,23 +437,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public String getName()
     {
-        return journal.getName();
-    }
-
-
-    /**
-     * @return the number of entries present in the replica log
-     */
-    public synchronized long count()
-    {
-        try
-        {
-            return journal.count( partitionTxn );
-        }
-        catch ( LdapException e )
-        {
-            throw new RuntimeException( e );
-        }
+        return REPLICA_EVENT_LOG_NAME_PREFIX + replicaId;
     }
 
 
@@ -522,7 +493,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         return "ReplicaEventLog [hostName=" + hostName + ", searchFilter=" + searchFilter + ", lastSentCsn="
             + lastSentCsn + ", searchCriteria=" + searchCriteria + ", replicaId=" + replicaId
             + ", refreshNPersist=" + refreshNPersist + ", maxInactivePeriod=" + maxIdlePeriod
-            + ", purgeThresholdCount=" + purgeThresholdCount + ", journalFile=" + journalFile
+            + ", purgeThresholdCount=" + purgeThresholdCount
             + ", dirty=" + dirty + ", consumerEntryDn=" + consumerEntryDn + "]";
     }
 }
@@ -20,163 +20,195 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicationScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Removes the replication event logs which consumers have been idle for too long, and deletes the
+ * segments of the shared change log that all the consumers have received.
+ * <br>
+ * The cleanup is not done by a dedicated thread : each pass is scheduled at the time the first
+ * event log will become idle, or after the sleep time, and deletes a bounded number of segments.
+ * When more segments can be deleted, the next pass is scheduled immediately. The purge does not
+ * lock the change log, so the changes are logged while it runs.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
-public class ReplicaEventLogJanitor extends Thread
+public class ReplicaEventLogJanitor
 {
     private static final Logger LOG = LoggerFactory.getLogger( ReplicaEventLogJanitor.class );
 
+    /** The maximum number of segments deleted by a cleanup pass */
+    static final int PURGE_BATCH_SIZE = 16;
+
     private DirectoryService directoryService;
 
     private Map<Integer, ReplicaEventLog> replicaLogMap;
 
+    private ReplicaChangeLog changeLog;
+
     private volatile boolean stop = false;
 
-    /** A lock used to wait */
-    final Object lock = new Object();
+    /** A lock preventing two cleanup passes from running concurrently */
+    private final Object cleanLock = new Object();
 
-    /** time the janitor thread sleeps before successive cleanup attempts. Default value is 5 minutes */
-    private long sleepTime = 5 * 60 * 1000L;
+    /** The next cleanup pass */
+    private ScheduledFuture<?> nextPass;
 
-    private long thresholdTime = 2 * 60 * 60 * 1000L;
+    /** the maximum time between two successive cleanup passes. Default value is 5 minutes */
+    private long sleepTime = 5 * 60 * 1000L;
 
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaChangeLog changeLog )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // the segments of the change log are purged once the slowest consumer has gone past them
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
-        setDaemon( true );
+        this.changeLog = changeLog;
     }
 
 
-    @Override
-    public void run()
+    /**
+     * Schedule the first cleanup pass
+     */
+    public void start()
     {
-        while ( !stop )
+        schedule( 0L );
+    }
+
+
+    /**
+     * Schedule the next cleanup pass, unless an earlier one is already scheduled. The pass itself
+     * is executed by the replication workers, as it deletes files and entries.
+     */
+    private synchronized void schedule( long delay )
+    {
+        if ( stop )
         {
-            for ( ReplicaEventLog log : replicaLogMap.values() )
+            return;
+        }
+
+        if ( nextPass != null )
+        {
+            long scheduled = nextPass.getDelay( TimeUnit.MILLISECONDS );
+
+            // An earlier pass is already scheduled. A pass which delay has expired may be the
+            // one currently running, so it's never taken into account
+            if ( !nextPass.isDone() && ( scheduled > 0L ) && ( scheduled <= delay ) )
             {
-                synchronized ( log ) // lock the log and clean
-                {
-                    try
-                    {
-                        String lastSentCsn = log.getLastSentCsn();
-
-                        if ( lastSentCsn == null )
-                        {
-                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
-                        }
-
-                        long now = directoryService.getTimeProvider().currentIimeMillis();
-
-                        long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
-
-                        long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
-
-                        LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
-                            lastUpdatedTime, maxIdleTime );
-
-                        // DO NOT delete those with maxIdleTime <= 0
-                        if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
-                        {
-                            //max idle time of the event log reached, delete it
-                            removeEventLog( log );
-
-                            // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
-                            // will get called eventually but removeEventLog() will not be called cause by 
-                            // that time this log will not be present in replicaLogMap
-                            // The reason we don't call this method first is to guard against any rename
-                            // operation performed on the log's entry in DiT
-                            try
-                            {
-                                directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
-                            }
-                            catch ( LdapException e )
-                            {
-                                LOG.warn( "Failed to delete the entry {} of replica event log {}",
-                                    log.getConsumerEntryDn(), log.getName(), e );
-                            }
-
-                            continue;
-                        }
-
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
-                        {
-                            continue;
-                        }
-
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
-
-                        long deleteCount = 0;
-
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
-
-                        while ( cursor.next() )
-                        {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
-                        }
-
-                        cursor.close();
-
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
-                    }
-                }
+                return;
+            }
+
+            nextPass.cancel( false );
+        }
+
+        nextPass = ReplicationScheduler.schedule( () -> ReplicationScheduler.execute( this::clean ), delay,
+            TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Run a cleanup pass, and schedule the next one
+     */
+    private void clean()
+    {
+        long nextDelay = sleepTime;
+
+        synchronized ( cleanLock )
+        {
+            if ( stop )
+            {
+                return;
             }
 
-            try
+            long now = directoryService.getTimeProvider().currentIimeMillis();
+
+            for ( ReplicaEventLog log : replicaLogMap.values() )
             {
-                synchronized ( lock )
+                try
+                {
+                    nextDelay = Math.min( nextDelay, checkIdle( log, now ) );
+                }
+                catch ( Exception e )
                 {
-                    lock.wait( sleepTime );
+                    LOG.warn( "Failed to remove the idle log {}", log.getName(), e );
                 }
             }
-            catch ( InterruptedException e )
+
+            // Some segments are left, go on with the next batch right away
+            if ( changeLog.purge( PURGE_BATCH_SIZE ) == PURGE_BATCH_SIZE )
             {
-                LOG.warn( "ReplicaEventLogJanitor thread was interrupted, processing logs for cleanup", e );
+                nextDelay = 0L;
             }
         }
+
+        schedule( nextDelay );
+    }
+
+
+    /**
+     * Remove an event log if its consumer has been idle for too long
+     *
+     * @return The delay before the log becomes idle
+     */
+    private long checkIdle( ReplicaEventLog log, long now )
+    {
+        String lastSentCsn = log.getLastSentCsn();
+
+        if ( lastSentCsn == null )
+        {
+            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
+
+            return sleepTime;
+        }
+
+        long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
+
+        // DO NOT delete those with maxIdleTime <= 0
+        if ( maxIdleTime <= 0 )
+        {
+            return sleepTime;
+        }
+
+        long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
+
+        LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
+            lastUpdatedTime, maxIdleTime );
+
+        if ( ( now - lastUpdatedTime ) < maxIdleTime )
+        {
+            return maxIdleTime - ( now - lastUpdatedTime );
+        }
+
+        //max idle time of the event log reached, delete it
+        removeEventLog( log );
+
+        // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
+        // will get called eventually but removeEventLog() will not be called cause by 
+        // that time this log will not be present in replicaLogMap
+        // The reason we don't call this method first is to guard against any rename
+        // operation performed on the log's entry in DiT
+        try
+        {
+            directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to delete the entry {} of replica event log {}",
+                log.getConsumerEntryDn(), log.getName(), e );
+        }
+
+        return sleepTime;
     }
 
 
@@ -191,9 +223,6 @@ public class ReplicaEventLogJanitor extends Thread
         try
         {
             replicaEventLog.stop();
-
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
@@ -205,6 +234,15 @@ public class ReplicaEventLogJanitor extends Thread
     }
 
 
+    /**
+     * Run a cleanup pass now, for instance after a change of the event logs idle periods
+     */
+    public void wakeUp()
+    {
+        schedule( 0L );
+    }
+
+
     public void setSleepTime( long sleepTime )
     {
         this.sleepTime = sleepTime;
@@ -219,11 +257,14 @@ public class ReplicaEventLogJanitor extends Thread
 
     public void stopCleaning()
     {
-        stop = true;
-
-        synchronized ( lock )
+        synchronized ( this )
         {
-            lock.notify();
+            stop = true;
+
+            if ( nextPass != null )
+            {
+                nextPass.cancel( false );
+            }
         }
     }
 }
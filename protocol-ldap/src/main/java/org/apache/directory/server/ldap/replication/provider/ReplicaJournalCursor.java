@@ -17,30 +17,30 @@
  *   under the License.
  *
  */
-
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Iterator;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.provider.ReplicaChangeLog.Record;
+import org.apache.directory.server.ldap.replication.provider.ReplicaChangeLog.Segment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of the replication change log, returning the messages logged for
+ * a replica.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,45 +55,50 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** the change log */
+    private ReplicaChangeLog changeLog;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the replica which messages are returned */
+    private int replicaId;
 
     /** the consumer's CSN based on which messages will be qualified for sending */
     private String consumerCsn;
 
     private ReplicaEventMessage qualifiedEvtMsg;
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
-    
+    /** the segments to read */
+    private Iterator<Segment> segments;
+
+    /** the segment being read, and the stream on it */
+    private Segment segment;
+    private DataInputStream in;
+
+    /** the position in the segment being read */
+    private long position;
+
+    /** the last message read, and its CSN, which may be referenced by the next records */
+    private byte[] lastMessage;
+    private String lastMessageCsn;
 
 
     /**
-     * Creates a cursor on top of the given journal
+     * Creates a cursor on top of the given change log
      * 
-     * @param partitionTxn The Transaction to use
-     * @param journal the log journal
+     * @param changeLog the change log
+     * @param replicaId the replica ID
      * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception If the cursor creation failed
      */
-    public ReplicaJournalCursor( PartitionTxn partitionTxn, JdbmTable<String, ReplicaEventMessage> journal, 
-            String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaChangeLog changeLog, int replicaId, String consumerCsn )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating ReplicaJournalCursor {}", this );
         }
 
-        this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.changeLog = changeLog;
+        this.replicaId = replicaId;
         this.consumerCsn = consumerCsn;
-        this.partitionTxn = partitionTxn;
+        this.segments = changeLog.getSegments().iterator();
     }
 
 
@@ -160,29 +165,18 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * selects the current queue entry if qualified for sending to the consumer
-     * 
-     * @throws Exception
+     * selects the current record if qualified for sending to the consumer
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private boolean isQualified( Record record )
     {
-        LOG.debug( "ReplicaEventMessage: {}", evtMsg );
-
-        if ( evtMsg.isEventOlderThan( consumerCsn ) )
+        if ( record.replicaId != replicaId )
         {
-            if ( LOG.isDebugEnabled() )
-            {
-                String evt = "MODDN"; // take this as default cause the event type for MODDN is null
-
-                ChangeType changeType = evtMsg.getChangeType();
-
-                if ( changeType != null )
-                {
-                    evt = changeType.name();
-                }
+            return false;
+        }
 
-                LOG.debug( "event {} for dn {} is not qualified for sending", evt, evtMsg.getEntry().getDn() );
-            }
+        if ( ( consumerCsn != null ) && ( record.csn.compareTo( consumerCsn ) <= 0 ) )
+        {
+            LOG.debug( "event with CSN {} is not qualified for sending", record.csn );
 
             return false;
         }
@@ -201,34 +195,108 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * {@inheritDoc}
+     * Move to the next segment which may contain some qualified records
      */
-    public boolean next() throws LdapException, CursorException
+    private boolean nextSegment() throws IOException
     {
-        while ( tupleCursor.next() )
+        closeSegment();
+
+        while ( segments.hasNext() )
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
+            Segment next = segments.next();
+            String lastCsn = next.getLastCsn();
 
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
+            // Skip the segments the consumer has already received
+            if ( ( consumerCsn != null ) && ( lastCsn != null ) && ( lastCsn.compareTo( consumerCsn ) <= 0 )
+                && !changeLog.isCurrentSegment( next ) )
+            {
+                continue;
+            }
 
-            if ( skipQualifying )
+            try
             {
-                qualifiedEvtMsg = message;
-                return true;
+                in = new DataInputStream( new BufferedInputStream( new FileInputStream( next.getFile() ) ) );
             }
+            catch ( FileNotFoundException fnfe )
+            {
+                // The segment has been purged in the meantime
+                continue;
+            }
+
+            segment = next;
+            position = 0L;
+            lastMessage = null;
+            lastMessageCsn = null;
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    private void closeSegment() throws IOException
+    {
+        if ( in != null )
+        {
+            in.close();
+            in = null;
+        }
+
+        segment = null;
+    }
 
-            boolean qualified = isQualified( csn, message );
 
-            if ( qualified )
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        try
+        {
+            while ( ( segment != null ) || nextSegment() )
             {
-                qualifiedEvtMsg = message;
+                // The length is read each time, the current segment may grow
+                if ( position >= segment.getLength() )
+                {
+                    if ( !nextSegment() )
+                    {
+                        break;
+                    }
+
+                    continue;
+                }
+
+                int recordLength = in.readInt();
+                Record record = ReplicaChangeLog.readRecord( in );
+                position += Integer.BYTES + ( long ) recordLength;
+
+                if ( !record.isReference() )
+                {
+                    lastMessage = record.message;
+                    lastMessageCsn = record.csn;
+                }
+
+                if ( !isQualified( record ) )
+                {
+                    continue;
+                }
+
+                if ( record.isReference() && !record.csn.equals( lastMessageCsn ) )
+                {
+                    LOG.warn( "The message with CSN {} referenced in the replication log can't be found", record.csn );
+
+                    continue;
+                }
+
+                qualifiedEvtMsg = changeLog.deserialize( record.isReference() ? lastMessage : record.message );
+
                 return true;
             }
-            else
-            {
-                journal.remove( partitionTxn, csn );
-            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe.getMessage(), ioe );
         }
 
         qualifiedEvtMsg = null;
@@ -257,7 +325,7 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        closeSegment();
         super.close();
     }
 
@@ -273,40 +341,11 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        closeSegment();
         super.close( cause );
     }
 
 
-    /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
-     */
-    protected void skipQualifyingWhileFetching()
-    {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
-    {
-        try
-        {
-            if ( qualifiedEvtMsg != null )
-            {
-                journal.remove( partitionTxn, qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            }
-        }
-        catch ( Exception e )
-        {
-        }
-    }
-
-
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,232 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.UsageEnum;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.entry.ServerEntryUtils;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.FilteringOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An interceptor which injects the replication metrics of a consumer in its entry, below
+ * ou=consumers,ou=system, when it is read. The metrics are exposed through the replicaMetrics
+ * operational attribute, which is computed on read and never stored.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaMetricsInterceptor extends BaseInterceptor
+{
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaMetricsInterceptor.class );
+
+    /** The event logs of the consumers, per replica ID */
+    private final Map<Integer, ReplicaEventLog> replicaLogMap;
+
+    /** The ou=consumers,ou=system Dn */
+    private Dn replConsumerDn;
+
+    /** The ads-dsReplicaId AttributeType */
+    private AttributeType adsDsReplicaIdAT;
+
+    /** The replicaMetrics AttributeType */
+    private AttributeType replicaMetricsAT;
+
+
+    /**
+     * Creates a new instance of a ReplicaMetricsInterceptor.
+     *
+     * @param replicaLogMap The event logs of the consumers, per replica ID
+     */
+    public ReplicaMetricsInterceptor( Map<Integer, ReplicaEventLog> replicaLogMap )
+    {
+        this.replicaLogMap = replicaLogMap;
+    }
+
+
+    /**
+     * SearchResultFilter used to inject the replication metrics in the consumer entries.
+     */
+    private final class ReplicaMetricsFilter implements EntryFilter
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( SearchOperationContext searchContext, Entry entry ) throws LdapException
+        {
+            addMetrics( searchContext, entry );
+
+            return true;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( String tabs )
+        {
+            return tabs + "ReplicaMetricsFilter";
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( DirectoryService directoryService ) throws LdapException
+    {
+        super.init( directoryService );
+
+        replConsumerDn = directoryService.getDnFactory().create( ServerDNConstants.REPL_CONSUMER_DN_STR );
+        adsDsReplicaIdAT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ADS_DS_REPLICA_ID );
+        replicaMetricsAT = getReplicaMetricsAttributeType();
+    }
+
+
+    /**
+     * Gets the replicaMetrics AttributeType, registering it in the schema if it does not exist.
+     */
+    private AttributeType getReplicaMetricsAttributeType() throws LdapException
+    {
+        AttributeType attributeType = schemaManager.getAttributeType( ApacheSchemaConstants.REPLICA_METRICS_AT_OID );
+
+        if ( attributeType != null )
+        {
+            return attributeType;
+        }
+
+        attributeType = new AttributeType( ApacheSchemaConstants.REPLICA_METRICS_AT_OID );
+        attributeType.setNames( ApacheSchemaConstants.REPLICA_METRICS_AT );
+        attributeType.setDescription( "The replication metrics of a consumer" );
+        attributeType.setSchemaName( "apache" );
+        attributeType.setSyntaxOid( SchemaConstants.DIRECTORY_STRING_SYNTAX );
+        attributeType.setEqualityOid( SchemaConstants.CASE_IGNORE_MATCH_MR_OID );
+        attributeType.setUsage( UsageEnum.DSA_OPERATION );
+        attributeType.setSingleValued( true );
+        attributeType.setUserModifiable( false );
+
+        if ( !schemaManager.add( attributeType ) )
+        {
+            LOG.warn( "Cannot register the {} attribute type : {}", ApacheSchemaConstants.REPLICA_METRICS_AT,
+                schemaManager.getErrors() );
+
+            return null;
+        }
+
+        return schemaManager.getAttributeType( ApacheSchemaConstants.REPLICA_METRICS_AT_OID );
+    }
+
+
+    /**
+     * Injects the metrics of a consumer in its returned entry, if they are requested.
+     */
+    private void addMetrics( FilteringOperationContext opContext, Entry entry ) throws LdapException
+    {
+        if ( ( replicaMetricsAT == null ) || !ServerEntryUtils.isReturned( schemaManager, opContext, replicaMetricsAT ) )
+        {
+            return;
+        }
+
+        Dn dn = entry.getDn();
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+        }
+
+        Rdn rdn = dn.getRdn();
+
+        if ( ( rdn == null ) || !adsDsReplicaIdAT.getOid().equals( rdn.getNormType() )
+            || !replConsumerDn.equals( dn.getParent() ) )
+        {
+            return;
+        }
+
+        ReplicaEventLog replica;
+
+        try
+        {
+            replica = replicaLogMap.get( Integer.valueOf( rdn.getValue() ) );
+        }
+        catch ( NumberFormatException nfe )
+        {
+            return;
+        }
+
+        if ( replica != null )
+        {
+            entry.put( replicaMetricsAT, replica.getMetrics().describe() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+    {
+        Entry entry = next( lookupContext );
+
+        addMetrics( lookupContext, entry );
+
+        return entry;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+    {
+        EntryFilteringCursor cursor = next( searchContext );
+
+        Dn baseDn = searchContext.getDn();
+
+        if ( baseDn.isDescendantOf( replConsumerDn ) || replConsumerDn.isDescendantOf( baseDn ) )
+        {
+            cursor.addEntryFilter( new ReplicaMetricsFilter() );
+        }
+
+        return cursor;
+    }
+}
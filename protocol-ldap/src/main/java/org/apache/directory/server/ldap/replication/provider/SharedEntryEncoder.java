@@ -0,0 +1,252 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.util.Asn1Buffer;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * Encodes the SearchResultEntry PDUs sent to the consumers when an entry is replicated in
+ * real time. The entry is the same for all the consumers, only the message ID and the
+ * SyncStateValue control, which contains the consumer's cookie, differ. The entry is
+ * encoded once, and its encoded form is shared by the PDUs sent to all the consumers.
+ * <br>
+ * The listeners of all the consumers are called one after the other by the thread which
+ * has modified the entry, so the last encoded entry is kept per thread.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class SharedEntryEncoder
+{
+    /** The SEQUENCE tag of the LDAPMessage */
+    private static final byte SEQUENCE_TAG = 0x30;
+
+    /** The last entry encoded by each thread */
+    private static final ThreadLocal<EncodedEntry> LAST_ENCODED_ENTRY = new ThreadLocal<>();
+
+
+    /**
+     * An encoded SearchResultEntry protocolOp
+     */
+    private static final class EncodedEntry
+    {
+        /** The encoded entry, compared by reference */
+        private final Entry entry;
+
+        /** The entry's name in the SearchResultEntry */
+        private final Dn dn;
+
+        /** The encoded protocolOp */
+        private final byte[] protocolOp;
+
+
+        private EncodedEntry( Entry entry, Dn dn, byte[] protocolOp )
+        {
+            this.entry = entry;
+            this.dn = dn;
+            this.protocolOp = protocolOp;
+        }
+    }
+
+
+    private SharedEntryEncoder()
+    {
+    }
+
+
+    /**
+     * Encode a SearchResultEntry PDU
+     *
+     * @param codec The LDAP codec
+     * @param messageId The consumer's syncrepl request message ID
+     * @param dn The name of the entry
+     * @param entry The entry
+     * @param control The consumer's SyncStateValue control
+     * @return The encoded PDU
+     * @throws EncoderException If the PDU can't be encoded
+     */
+    static ByteBuffer encode( LdapApiService codec, int messageId, Dn dn, Entry entry, Control control )
+        throws EncoderException
+    {
+        byte[] protocolOp = getProtocolOp( codec, dn, entry );
+
+        // Encode a small message carrying the consumer's message ID and control :
+        // LDAPMessage ::= SEQUENCE { messageID, protocolOp, controls }
+        SearchResultDone carrier = new SearchResultDoneImpl( messageId );
+        carrier.addControl( control );
+
+        ByteBuffer encodedCarrier = LdapEncoder.encodeMessage( new Asn1Buffer(), codec, carrier );
+        int messageIdStart = skipHeader( encodedCarrier, encodedCarrier.position() );
+        int messageIdEnd = skipTlv( encodedCarrier, messageIdStart );
+        int controlsStart = skipTlv( encodedCarrier, messageIdEnd );
+        int controlsEnd = encodedCarrier.limit();
+
+        int contentLength = ( messageIdEnd - messageIdStart ) + protocolOp.length + ( controlsEnd - controlsStart );
+        ByteBuffer pdu = ByteBuffer.allocate( 1 + getLengthSize( contentLength ) + contentLength );
+
+        pdu.put( SEQUENCE_TAG );
+        putLength( pdu, contentLength );
+        pdu.put( slice( encodedCarrier, messageIdStart, messageIdEnd ) );
+        pdu.put( protocolOp );
+        pdu.put( slice( encodedCarrier, controlsStart, controlsEnd ) );
+        pdu.flip();
+
+        return pdu;
+    }
+
+
+    /**
+     * Get the encoded protocolOp of an entry, encoding it if it's not the last encoded one
+     */
+    private static byte[] getProtocolOp( LdapApiService codec, Dn dn, Entry entry ) throws EncoderException
+    {
+        EncodedEntry last = LAST_ENCODED_ENTRY.get();
+
+        if ( ( last != null ) && ( last.entry == entry ) && last.dn.equals( dn ) )
+        {
+            return last.protocolOp;
+        }
+
+        SearchResultEntry searchResultEntry = new SearchResultEntryImpl( 0 );
+        searchResultEntry.setObjectName( dn );
+        searchResultEntry.setEntry( entry );
+
+        // LDAPMessage ::= SEQUENCE { messageID, protocolOp }
+        ByteBuffer encoded = LdapEncoder.encodeMessage( new Asn1Buffer(), codec, searchResultEntry );
+        int messageIdStart = skipHeader( encoded, encoded.position() );
+        int protocolOpStart = skipTlv( encoded, messageIdStart );
+        byte[] protocolOp = new byte[encoded.limit() - protocolOpStart];
+        encoded.position( protocolOpStart );
+        encoded.get( protocolOp );
+
+        LAST_ENCODED_ENTRY.set( new EncodedEntry( entry, dn, protocolOp ) );
+
+        return protocolOp;
+    }
+
+
+    /**
+     * @return The position of the value of the TLV starting at the given position
+     */
+    private static int skipHeader( ByteBuffer buffer, int position )
+    {
+        // The tags are all encoded on one byte
+        int lengthByte = buffer.get( position + 1 ) & 0xFF;
+
+        if ( lengthByte < 0x80 )
+        {
+            return position + 2;
+        }
+
+        return position + 2 + ( lengthByte & 0x7F );
+    }
+
+
+    /**
+     * @return The position following the TLV starting at the given position
+     */
+    private static int skipTlv( ByteBuffer buffer, int position )
+    {
+        int lengthByte = buffer.get( position + 1 ) & 0xFF;
+        int length = lengthByte;
+
+        if ( lengthByte >= 0x80 )
+        {
+            length = 0;
+
+            for ( int i = 0; i < ( lengthByte & 0x7F ); i++ )
+            {
+                length = ( length << 8 ) | ( buffer.get( position + 2 + i ) & 0xFF );
+            }
+        }
+
+        return skipHeader( buffer, position ) + length;
+    }
+
+
+    /**
+     * @return The bytes of a buffer between two positions
+     */
+    private static ByteBuffer slice( ByteBuffer buffer, int start, int end )
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit( end );
+        slice.position( start );
+
+        return slice;
+    }
+
+
+    /**
+     * @return The number of bytes needed to encode a BER length
+     */
+    private static int getLengthSize( int length )
+    {
+        if ( length < 0x80 )
+        {
+            return 1;
+        }
+
+        int size = 1;
+
+        for ( int remaining = length; remaining != 0; remaining >>>= 8 )
+        {
+            size++;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Write a BER length
+     */
+    private static void putLength( ByteBuffer buffer, int length )
+    {
+        int size = getLengthSize( length );
+
+        if ( size == 1 )
+        {
+            buffer.put( ( byte ) length );
+
+            return;
+        }
+
+        buffer.put( ( byte ) ( 0x80 | ( size - 1 ) ) );
+
+        for ( int shift = ( size - 2 ) * 8; shift >= 0; shift -= 8 )
+        {
+            buffer.put( ( byte ) ( length >>> shift ) );
+        }
+    }
+}
@@ -29,15 +29,14 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.directory.api.asn1.EncoderException;
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValueImpl;
@@ -66,6 +65,7 @@ import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.Message;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -102,7 +102,14 @@ import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
+import org.apache.directory.server.ldap.replication.CompressedSyncControlFactory;
+import org.apache.directory.server.ldap.replication.DeltaSyncControl;
+import org.apache.directory.server.ldap.replication.DeltaSyncControlFactory;
+import org.apache.directory.server.ldap.replication.DeltaSyncMessage;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaMetrics;
+import org.apache.directory.server.ldap.replication.ReplicationMetricsRegistry;
+import org.apache.directory.server.ldap.replication.ReplicationScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -134,8 +141,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private Map<Integer, ReplicaEventLog> replicaLogMap = new ConcurrentHashMap<>();
 
+    /** The interceptor exposing the metrics of the consumers in their entries */
+    private ReplicaMetricsInterceptor metricsInterceptor;
+
     private File syncReplData;
 
+    /** The change log shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
     private AtomicInteger replicaCount = new AtomicInteger( 0 );
 
     private ReplConsumerManager replicaUtil;
@@ -148,8 +161,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private AttributeType replLogPurgeThresholdCountAT;
 
-    /** thread used for updating consumer infor */
-    private Thread consumerInfoUpdateThread;
+    /** the periodic task storing the consumers information */
+    private ScheduledFuture<?> consumerInfoUpdateTask;
+
+    /** the delay between two updates of the consumers information, in seconds */
+    private static final long CONSUMER_INFO_UPDATE_DELAY = 10L;
 
     /**
      * Create a SyncReplRequestHandler empty instance
@@ -179,6 +195,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             this.ldapServer = server;
             this.dirService = server.getDirectoryService();
 
+            // The consumers may ask for the modifications instead of the modified entries,
+            // and for compressed batches
+            DeltaSyncControlFactory.register( dirService.getLdapCodecService() );
+            CompressedSyncControlFactory.register( dirService.getLdapCodecService() );
+
             csnAT = dirService.getSchemaManager()
                 .lookupAttributeTypeRegistry( SchemaConstants.ENTRY_CSN_AT );
 
@@ -199,12 +220,18 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 throw new IOException( I18n.err( I18n.ERR_00004_COULD_NOT_CREATE_DIRECTORY, syncReplData ) );
             }
 
+            changeLog = new ReplicaChangeLog( dirService.getSchemaManager(), syncReplData );
+
             // Create the replication manager
-            replicaUtil = new ReplConsumerManager( dirService );
+            replicaUtil = new ReplConsumerManager( dirService, changeLog );
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            // Expose the metrics of the consumers in their entries, computed on read
+            metricsInterceptor = new ReplicaMetricsInterceptor( replicaLogMap );
+            dirService.addLast( metricsInterceptor );
+
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, changeLog );
             logJanitor.start();
 
             registerPersistentSearches();
@@ -216,22 +243,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             dirService.getEventService().addListener( cledListener, criteria );
 
-            CountDownLatch latch = new CountDownLatch( 1 );
+            // Store the consumers information now, then periodically
+            storeReplicaInfo();
 
-            consumerInfoUpdateThread = new Thread( createConsumerInfoUpdateTask( latch ) );
-            consumerInfoUpdateThread.setDaemon( true );
-            consumerInfoUpdateThread.start();
-
-            // Wait for the thread to be ready. We wait 5 minutes, it should be way more
-            // than necessary
-            boolean threadInitDone = latch.await( 5, TimeUnit.MINUTES );
-
-            if ( !threadInitDone )
-            {
-                // We have had a time out : just get out
-                PROVIDER_LOG.error( "The consumer replica thread has not been initialized in time" );
-                throw new RuntimeException( "Cannot initialize the Provider replica listener" );
-            }
+            consumerInfoUpdateTask = ReplicationScheduler.scheduleWithFixedDelay( this::updateConsumerInfo,
+                CONSUMER_INFO_UPDATE_DELAY, CONSUMER_INFO_UPDATE_DELAY, TimeUnit.SECONDS );
 
             initialized = true;
             PROVIDER_LOG.debug( "syncrepl provider initialized successfully" );
@@ -252,13 +268,16 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         EventService evtSrv = dirService.getEventService();
 
         evtSrv.removeListener( cledListener );
-        //first set the 'stop' flag
+        //first stop the janitor
         logJanitor.stopCleaning();
-        //then interrupt the janitor
-        logJanitor.interrupt();
 
-        //then stop the consumerInfoUpdateThread
-        consumerInfoUpdateThread.interrupt();
+        //then stop the consumers information updates
+        consumerInfoUpdateTask.cancel( false );
+
+        if ( metricsInterceptor != null )
+        {
+            dirService.remove( metricsInterceptor.getName() );
+        }
         
         for ( ReplicaEventLog log : replicaLogMap.values() )
         {
@@ -277,6 +296,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         // flush the dirty repos
         storeReplicaInfo();
 
+        try
+        {
+            changeLog.close();
+        }
+        catch ( IOException ioe )
+        {
+            PROVIDER_LOG.error( "Failed to close the replication change log", ioe );
+        }
+
         initialized = false;
     }
 
@@ -298,6 +326,9 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 request.addAttributes( SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
             }
 
+            // The entries are sent in compressed batches if the consumer asks for it
+            CompressedSyncStream.open( session, request );
+
             // First extract the Sync control from the request
             SyncRequestValue syncControl = ( SyncRequestValue ) request.getControls().get(
                 SyncRequestValue.OID );
@@ -354,14 +385,16 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
 
     /**
-     * Send all the stored modifications to the consumer
+     * Send all the stored modifications to the consumer. If the consumer has requested it and
+     * isn't being reloaded, the modified entries are replaced by the logged modifications.
      */
     private void sendContentFromLog( LdapSession session, SearchRequest req, ReplicaEventLog clientMsgLog,
-        String fromCsn )
+        String fromCsn, boolean reload )
         throws Exception
     {
         // do the search from the log
         String lastSentCsn = fromCsn;
+        boolean deltaSync = !reload && req.hasControl( DeltaSyncControl.OID );
 
         ReplicaJournalCursor cursor = clientMsgLog.getCursor( fromCsn );
 
@@ -403,9 +436,16 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         throw new IllegalStateException( I18n.err( I18n.ERR_38031_UNEXPECTED_BASE_SCOPE ) );
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                if ( deltaSync && ( replicaEventMessage.getModifications() != null ) )
+                {
+                    sendModifications( session, req, clientMsgLog, entry, replicaEventMessage.getModifications() );
+                }
+                else
+                {
+                    sendSearchResultEntry( session, req, entry, syncStateType );
+                }
 
-                clientMsgLog.setLastSentCsn( lastSentCsn );
+                clientMsgLog.changeSent( lastSentCsn );
 
                 PROVIDER_LOG.debug( "The latest entry sent to the consumer {} has this CSN : {}", clientMsgLog.getId(),
                     lastSentCsn );
@@ -420,6 +460,21 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Send the modifications applied on an entry to a consumer
+     */
+    private void sendModifications( LdapSession session, SearchRequest req, ReplicaEventLog clientMsgLog,
+        Entry entry, List<Modification> modifications ) throws Exception
+    {
+        String uuid = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+        byte[] cookie = LdapProtocolUtils.createCookie( clientMsgLog.getId(), entry.get( csnAT ).getString() );
+
+        DeltaSyncMessage deltaSyncMessage = new DeltaSyncMessage( entry.getDn(), uuid, cookie, modifications );
+
+        write( session, deltaSyncMessage.toIntermediateResponse( req.getMessageId() ) );
+    }
+
+
     /**
      * process the update of the consumer, starting from the given LastEntryCSN the consumer
      * has sent with the sync request.
@@ -441,7 +496,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 handler.setSession( session );
             }
 
-            sendContentFromLog( session, req, replicaLog, consumerCsn );
+            sendContentFromLog( session, req, replicaLog, consumerCsn, false );
 
             String lastSentCsn = replicaLog.getLastSentCsn();
 
@@ -456,6 +511,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
                 PROVIDER_LOG.debug( "Sent the intermediate response to the {} consumer, {}", replicaLog.getId(),
                     syncInfoValue );
+                CompressedSyncStream.flush( session );
                 session.getIoSession().write( syncInfoValue );
 
                 replicaLog.getPersistentListener().setPushInRealTime( refreshNPersist );
@@ -471,6 +527,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "Send a SearchResultDone response to the {} consumer", replicaLog.getId(),
                     searchDoneResp );
 
+                CompressedSyncStream.flush( session );
                 session.getIoSession().write( searchDoneResp );
             }
         }
@@ -523,12 +580,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         // first register a ReplicaEventLog before starting the initial content refresh
         // this is to log all the operations happen on DIT during initial content refresh
-        ReplicaEventLog replicaLog = null;
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            replicaLog = createReplicaEventLog( partitionTxn, hostName, originalFilter );
-        }
+        ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
         Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
@@ -583,7 +635,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG
                     .debug( "Refresh&Persist requested : send the data being modified since the initial refresh" );
                 // Now, send the modified entries since the search has started
-                sendContentFromLog( session, request, replicaLog, contextCsn );
+                sendContentFromLog( session, request, replicaLog, contextCsn, true );
 
                 byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
 
@@ -595,6 +647,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", 
                     replicaLog, syncInfoValue );
 
+                CompressedSyncStream.flush( session );
                 session.getIoSession().write( syncInfoValue );
 
                 // switch the handler mode to realtime push
@@ -613,6 +666,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.info( "Sending the searchResultDone response to consumer {}, {}", replicaLog,
                     searchDoneResp );
 
+                CompressedSyncStream.flush( session );
                 session.getIoSession().write( searchDoneResp );
             }
         }
@@ -776,7 +830,26 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         resp.addControl( syncStateControl );
 
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
-        session.getIoSession().write( resp );
+        write( session, resp );
+    }
+
+
+    /**
+     * Write a replicated entry, in the compressed stream if the consumer has requested it
+     */
+    private void write( LdapSession session, Message message ) throws EncoderException
+    {
+        CompressedSyncStream stream = CompressedSyncStream.get( session );
+
+        if ( stream != null )
+        {
+            // The refresh waits for the consumer to read the pending batches
+            stream.add( message, null, Long.MAX_VALUE );
+        }
+        else
+        {
+            session.getIoSession().write( message );
+        }
     }
 
 
@@ -991,6 +1064,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     {
         try
         {
+            long journalSize = changeLog.getSize();
+
             for ( Map.Entry<Integer, ReplicaEventLog> e : replicaLogMap.entrySet() )
             {
                 ReplicaEventLog replica = e.getValue();
@@ -1001,6 +1076,22 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                     replicaUtil.updateReplicaLastSentCsn( replica );
                     replica.setDirty( false );
                 }
+
+                replica.getMetrics().setJournalSize( journalSize );
+            }
+
+            // Forget the metrics of the removed consumers
+            ReplicationMetricsRegistry metricsRegistry = ldapServer.getReplicationMetricsRegistry();
+
+            for ( ReplicaMetrics metrics : metricsRegistry.getAllMetrics() )
+            {
+                String name = metrics.getName();
+
+                if ( name.startsWith( ReplicationMetricsRegistry.PROVIDER_PREFIX ) && !replicaLogMap.containsKey(
+                    Integer.valueOf( name.substring( ReplicationMetricsRegistry.PROVIDER_PREFIX.length() ) ) ) )
+                {
+                    metricsRegistry.removeMetrics( name );
+                }
             }
         }
         catch ( Exception e )
@@ -1018,15 +1109,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         try
         {
             List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs();
-            Set<String> eventLogNames = new HashSet<>();
 
             if ( !eventLogs.isEmpty() )
             {
                 for ( ReplicaEventLog replica : eventLogs )
                 {
                     PROVIDER_LOG.debug( "initializing the replica log from {}", replica.getId() );
+                    registerMetrics( replica );
                     replicaLogMap.put( replica.getId(), replica );
-                    eventLogNames.add( replica.getName() );
 
                     // update the replicaCount's value to assign a correct value to the new replica(s)
                     if ( replicaCount.get() < replica.getId() )
@@ -1040,14 +1130,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "no replica logs found to initialize" );
             }
 
-            // remove unused logs
+            // remove the per consumer journals, replaced by the shared change log
             for ( File f : getAllReplJournalNames() )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
-                {
-                    f.delete();
-                    PROVIDER_LOG.info( "removed unused replication event log {}", f );
-                }
+                f.delete();
+                PROVIDER_LOG.info( "removed unused replication event log {}", f );
             }
         }
         catch ( Exception e )
@@ -1085,31 +1172,19 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
 
     /**
-     * Create a thread to process replication communication with a consumer
+     * Store the consumers information. Called periodically by the replication scheduler.
      */
-    private Runnable createConsumerInfoUpdateTask( final CountDownLatch latch )
+    private void updateConsumerInfo()
     {
-        return new Runnable()
+        try
         {
-            public void run()
-            {
-                try
-                {
-                    while ( true )
-                    {
-                        storeReplicaInfo();
-                        
-                        latch.countDown();
-                        Thread.sleep( 10000 );
-                    }
-                }
-                catch ( InterruptedException e )
-                {
-                    // log at debug level, this will be interrupted during stop
-                    PROVIDER_LOG.debug( "thread storing the replica information was interrupted", e );
-                }
-            }
-        };
+            storeReplicaInfo();
+        }
+        catch ( RuntimeException re )
+        {
+            // Don't stop the next updates
+            PROVIDER_LOG.error( "Failed to store the replica information", re );
+        }
     }
 
 
@@ -1133,20 +1208,31 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /**
      * Create a new ReplicaEventLog. Each replica will have a unique ID, created by the provider.
      */
-    private ReplicaEventLog createReplicaEventLog( PartitionTxn partitionTxn, String hostName, String filter ) throws Exception
+    private ReplicaEventLog createReplicaEventLog( String hostName, String filter )
     {
         int replicaId = replicaCount.incrementAndGet();
 
         PROVIDER_LOG.debug( "creating a new event log for the replica with id {}", replicaId );
 
-        ReplicaEventLog replicaLog = new ReplicaEventLog( partitionTxn, dirService, replicaId );
+        ReplicaEventLog replicaLog = new ReplicaEventLog( changeLog, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
+        registerMetrics( replicaLog );
 
         return replicaLog;
     }
 
 
+    /**
+     * Replace the metrics of a ReplicaEventLog by the ones of the LdapServer registry
+     */
+    private void registerMetrics( ReplicaEventLog replicaLog )
+    {
+        replicaLog.setMetrics( ldapServer.getReplicationMetricsRegistry().getMetrics(
+            ReplicationMetricsRegistry.PROVIDER_PREFIX + replicaLog.getId() ) );
+    }
+
+
     /**
      * Send an error response to he consue r: it has to send a SYNC_REFRESH request first.
      */
@@ -1157,6 +1243,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         SyncDoneValue syncDone = new SyncDoneValueImpl();
         searchDoneResp.addControl( syncDone );
 
+        CompressedSyncStream.flush( session );
         session.getIoSession().write( searchDoneResp );
     }
 
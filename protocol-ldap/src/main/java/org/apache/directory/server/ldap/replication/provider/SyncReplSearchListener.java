@@ -20,6 +20,11 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.apache.directory.api.asn1.EncoderException;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
@@ -28,9 +33,9 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.Message;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
-import org.apache.directory.api.ldap.model.message.SearchResultEntry;
-import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.Strings;
@@ -49,7 +54,10 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.DeltaSyncControl;
+import org.apache.directory.server.ldap.replication.DeltaSyncMessage;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,6 +76,12 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     /** Logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( SyncReplSearchListener.class );
 
+    /** The maximum time we wait for a message to be written to the consumer, in milliseconds */
+    private static final long MAX_WRITE_WAIT = 10000L;
+
+    /** The failure cause when the consumer does not read the compressed stream fast enough */
+    private static final String STREAM_FULL = "The consumer does not read the pending batches";
+
     /** The ldap session */
     private LdapSession session;
     
@@ -77,6 +91,9 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     /** A flag telling if we push the response to the consumer or if we store them in a queue */
     private volatile boolean pushInRealTime;
 
+    /** A flag telling if the consumer accepts the modifications instead of the modified entries */
+    private volatile boolean deltaSync;
+
     /** The consumer configuration */
     private final ReplicaEventLog consumerMsgLog;
     
@@ -124,6 +141,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         if ( searchRequest != null )
         {
             searchRequest.addAbandonListener( this );
+            deltaSync = searchRequest.hasControl( DeltaSyncControl.OID );
         }
     }
 
@@ -189,14 +207,72 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     
     /**
      * Send the result to the consumer. If the consumer has disconnected, we fail back to the queue.
+     * The entry is encoded once for all the consumers.
      */
-    private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
-        SyncStateValue syncStateValue )
+    private void sendResult( Dn dn, Entry entry, EventType eventType, SyncStateValue syncStateValue )
     {
-        searchResultEntry.addControl( syncStateValue );
-
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
-        WriteFuture future = session.getIoSession().write( searchResultEntry );
+
+        ByteBuffer pdu;
+
+        try
+        {
+            pdu = SharedEntryEncoder.encode( session.getCoreSession().getDirectoryService().getLdapCodecService(),
+                searchRequest.getMessageId(), dn, entry, syncStateValue );
+        }
+        catch ( EncoderException ee )
+        {
+            handleWriteResult( false, ee, entry, eventType );
+
+            return;
+        }
+
+        CompressedSyncStream stream = CompressedSyncStream.get( session );
+
+        if ( stream != null )
+        {
+            if ( !stream.add( pdu, ( written, cause ) -> handleWriteResult( written, cause, entry, eventType ),
+                MAX_WRITE_WAIT ) )
+            {
+                handleWriteResult( false, new IOException( STREAM_FULL ), entry, eventType );
+            }
+
+            return;
+        }
+
+        WriteFuture future = session.getIoSession().write( IoBuffer.wrap( pdu ) );
+
+        handleWriteFuture( future, entry, eventType );
+    }
+
+
+    /**
+     * Send a message to the consumer. In a compressed stream, the message is pipelined : we
+     * don't wait for it to be written.
+     */
+    private void send( Message message, Entry entry, EventType eventType )
+    {
+        CompressedSyncStream stream = CompressedSyncStream.get( session );
+
+        if ( stream != null )
+        {
+            try
+            {
+                if ( !stream.add( message, ( written, cause ) -> handleWriteResult( written, cause, entry, eventType ),
+                    MAX_WRITE_WAIT ) )
+                {
+                    handleWriteResult( false, new IOException( STREAM_FULL ), entry, eventType );
+                }
+            }
+            catch ( EncoderException ee )
+            {
+                handleWriteResult( false, ee, entry, eventType );
+            }
+
+            return;
+        }
+
+        WriteFuture future = session.getIoSession().write( message );
 
         // Now, send the entry to the consumer
         handleWriteFuture( future, entry, eventType );
@@ -227,15 +303,10 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             // We send the added entry directly to the consumer if it's connected
             if ( pushInRealTime )
             {
-                // Construct a new SearchResultEntry
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
                 // Create the control which will be added to the response.
                 SyncStateValue syncAdd = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.ADD, entry );
                 
-                sendResult( resultEntry, entry, EventType.ADD, syncAdd );
+                sendResult( entry.getDn(), entry, EventType.ADD, syncAdd );
             }
         }
         catch ( LdapInvalidAttributeValueException e )
@@ -277,13 +348,9 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             
             if ( pushInRealTime )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
                 SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
 
-                sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
+                sendResult( entry.getDn(), entry, EventType.DELETE, syncDelete );
             }
         }
         catch ( LdapInvalidAttributeValueException e )
@@ -312,18 +379,27 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         try
         {
             //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
+            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry,
+                new ArrayList<>( modifyContext.getModItems() ) ) );
             
-            if ( pushInRealTime )
+            if ( pushInRealTime && deltaSync )
+            {
+                // The consumer only needs the modifications
+                String uuid = alteredEntry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+                DeltaSyncMessage deltaSyncMessage = new DeltaSyncMessage( alteredEntry.getDn(), uuid,
+                    getCookie( alteredEntry ), modifyContext.getModItems() );
+                IntermediateResponse deltaResponse = deltaSyncMessage.toIntermediateResponse(
+                    searchRequest.getMessageId() );
+
+                LOG.debug( "sending the modifications of entry {}", alteredEntry.getDn() );
+                send( deltaResponse, alteredEntry, EventType.MODIFY );
+            }
+            else if ( pushInRealTime )
             {
-
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( modifyContext.getDn() );
-                resultEntry.setEntry( alteredEntry );
 
                 SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, alteredEntry );
 
-                sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
+                sendResult( modifyContext.getDn(), alteredEntry, EventType.MODIFY, syncModify );
             }
         }
         catch ( Exception e )
@@ -362,13 +438,9 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             
             if ( pushInRealTime )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( moveContext.getDn() );
-                resultEntry.setEntry( entry );
-
                 SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE, syncModify );
+                sendResult( moveContext.getDn(), entry, EventType.MOVE, syncModify );
             }
         }
         catch ( Exception e )
@@ -409,13 +481,9 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             
             if ( pushInRealTime )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
                 SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
+                sendResult( entry.getDn(), entry, EventType.MOVE_AND_RENAME, syncModify );
             }
         }
         catch ( Exception e )
@@ -449,16 +517,12 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             
             if ( pushInRealTime )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
                 SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
                 
                 // In this case, the cookie is different
                 syncModify.setCookie( getCookie( entry ) );
 
-                sendResult( resultEntry, entry, EventType.RENAME, syncModify );
+                sendResult( entry.getDn(), entry, EventType.RENAME, syncModify );
             }
         }
         catch ( Exception e )
@@ -505,13 +569,23 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     {
         // Let the operation be executed.
         // Note : we wait 10 seconds max
-        future.awaitUninterruptibly( 10000L );
-        
-        if ( !future.isWritten() )
+        future.awaitUninterruptibly( MAX_WRITE_WAIT );
+
+        handleWriteResult( future.isWritten(), future.getException(), entry, event );
+    }
+
+
+    /**
+     * Update the last sent CSN once the replicated entry has been written, or switch
+     * to the queue if it couldn't be written
+     */
+    private void handleWriteResult( boolean written, Throwable cause, Entry entry, EventType event )
+    {
+        if ( !written )
         {
             LOG.error( "Failed to write to the consumer {} during the event {} on entry {}", new Object[] { 
                            consumerMsgLog.getId(), event, entry.getDn() } );
-            LOG.error( "", future.getException() );
+            LOG.error( "", cause );
 
             // set realtime push to false, will be set back to true when the client
             // comes back and sends another request this flag will be set to true
@@ -522,7 +596,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             try
             {
                 // if successful update the last sent CSN
-                consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                consumerMsgLog.changeSent( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
             }
             catch ( Exception e )
             {
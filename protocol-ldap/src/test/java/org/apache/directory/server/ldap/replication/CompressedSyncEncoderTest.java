@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.message.Message;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the compressed batches of replicated messages.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompressedSyncEncoderTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The LDAP codec */
+    private static LdapApiService codec;
+
+
+    /**
+     * Load the SchemaManager
+     */
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = CompressedSyncEncoderTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        codec = LdapApiServiceFactory.getSingleton();
+    }
+
+
+    private SearchResultEntry createEntry( int messageId, int index ) throws Exception
+    {
+        SearchResultEntry searchResultEntry = new SearchResultEntryImpl( messageId );
+        searchResultEntry.setEntry( new DefaultEntry( schemaManager,
+            "cn=test" + index + ",ou=system",
+            "objectClass: person",
+            "cn: test" + index,
+            "sn: entry number " + index ) );
+
+        SyncStateValue syncStateValue = new SyncStateValueImpl();
+        syncStateValue.setSyncStateType( SyncStateTypeEnum.ADD );
+        syncStateValue.setEntryUUID( Strings.getBytesUtf8( "uuid-" + index ) );
+        syncStateValue.setCookie( Strings.getBytesUtf8( "rid=001,csn=" + index ) );
+        searchResultEntry.addControl( syncStateValue );
+
+        return searchResultEntry;
+    }
+
+
+    @Test
+    public void testEmptyBatch() throws Exception
+    {
+        CompressedSyncEncoder encoder = new CompressedSyncEncoder( codec );
+
+        assertNull( encoder.flush( 1 ) );
+
+        encoder.close();
+    }
+
+
+    @Test
+    public void testBatchesRoundTrip() throws Exception
+    {
+        CompressedSyncEncoder encoder = new CompressedSyncEncoder( codec );
+        CompressedSyncDecoder decoder = new CompressedSyncDecoder( codec, schemaManager );
+        int rawSize = 0;
+        int compressedSize = 0;
+
+        // Several batches sharing the same compression context
+        for ( int batch = 0; batch < 5; batch++ )
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                encoder.add( createEntry( 3, batch * 50 + i ) );
+            }
+
+            IntermediateResponse info = new IntermediateResponseImpl( 3 );
+            info.setResponseName( DeltaSyncMessage.OID );
+            info.setResponseValue( Strings.getBytesUtf8( "batch " + batch ) );
+            encoder.add( info );
+
+            assertEquals( 51, encoder.size() );
+            rawSize += encoder.getPendingBytes();
+
+            IntermediateResponse response = encoder.flush( 3 );
+
+            assertEquals( 3, response.getMessageId() );
+            assertEquals( CompressedSyncEncoder.OID, response.getResponseName() );
+            assertEquals( 0, encoder.size() );
+            compressedSize += response.getResponseValue().length;
+
+            List<Message> messages = decoder.decode( response.getResponseValue() );
+
+            assertEquals( 51, messages.size() );
+
+            for ( int i = 0; i < 50; i++ )
+            {
+                SearchResultEntry entry = ( SearchResultEntry ) messages.get( i );
+
+                assertEquals( "cn=test" + ( batch * 50 + i ) + ",ou=system", entry.getObjectName().getName() );
+                assertTrue( entry.getEntry().contains( "sn", "entry number " + ( batch * 50 + i ) ) );
+
+                SyncStateValue syncStateValue = ( SyncStateValue ) entry.getControl( SyncStateValue.OID );
+
+                assertEquals( SyncStateTypeEnum.ADD, syncStateValue.getSyncStateType() );
+                assertEquals( "uuid-" + ( batch * 50 + i ), Strings.utf8ToString( syncStateValue.getEntryUUID() ) );
+            }
+
+            IntermediateResponse decodedInfo = ( IntermediateResponse ) messages.get( 50 );
+
+            assertEquals( DeltaSyncMessage.OID, decodedInfo.getResponseName() );
+            assertArrayEquals( Strings.getBytesUtf8( "batch " + batch ), decodedInfo.getResponseValue() );
+        }
+
+        assertTrue( compressedSize < rawSize / 2 );
+
+        encoder.close();
+        decoder.close();
+    }
+}
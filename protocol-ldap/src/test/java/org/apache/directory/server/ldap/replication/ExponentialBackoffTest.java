@@ -0,0 +1,95 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the delays computed by the ExponentialBackoff.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ExponentialBackoffTest
+{
+    @Test
+    public void testFirstAttemptIsImmediate()
+    {
+        ExponentialBackoff backoff = new ExponentialBackoff( 100L, 10000L );
+
+        assertEquals( 0L, backoff.nextDelay() );
+        assertEquals( 1, backoff.getAttempts() );
+    }
+
+
+    @Test
+    public void testDelayDoublesWithJitter()
+    {
+        ExponentialBackoff backoff = new ExponentialBackoff( 100L, 10000L );
+        backoff.nextDelay();
+
+        long expected = 100L;
+
+        for ( int i = 0; i < 6; i++ )
+        {
+            long delay = backoff.nextDelay();
+
+            assertTrue( delay >= expected / 2, "delay " + delay + " below " + expected / 2 );
+            assertTrue( delay <= expected, "delay " + delay + " above " + expected );
+
+            expected *= 2;
+        }
+    }
+
+
+    @Test
+    public void testDelayIsCapped()
+    {
+        ExponentialBackoff backoff = new ExponentialBackoff( 100L, 1000L );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertTrue( backoff.nextDelay() <= 1000L );
+        }
+
+        assertTrue( backoff.nextDelay() >= 500L );
+    }
+
+
+    @Test
+    public void testReset()
+    {
+        ExponentialBackoff backoff = new ExponentialBackoff( 100L, 1000L );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            backoff.nextDelay();
+        }
+
+        backoff.reset();
+
+        assertEquals( 0, backoff.getAttempts() );
+        assertEquals( 0L, backoff.nextDelay() );
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the replication metrics.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaMetricsTest
+{
+    private static String csn( long timestamp )
+    {
+        return new Csn( timestamp, 0, 1, 0 ).toString();
+    }
+
+
+    @Test
+    public void testProviderLag()
+    {
+        ReplicaMetrics metrics = new ReplicaMetrics( "provider.1" );
+
+        metrics.changeLogged( csn( 1000L ) );
+        metrics.changeLogged( csn( 3000L ) );
+        metrics.changeLogged( csn( 4500L ) );
+        metrics.changeSent( csn( 1000L ) );
+
+        assertEquals( 3, metrics.getLoggedCount() );
+        assertEquals( 1, metrics.getSentCount() );
+        assertEquals( 2, metrics.getLagCount() );
+        assertEquals( 3500L, metrics.getLagTime() );
+        assertTrue( metrics.getSentRate() > 0d );
+
+        metrics.changeSent( csn( 3000L ) );
+        metrics.changeSent( csn( 4500L ) );
+
+        assertEquals( 0, metrics.getLagCount() );
+        assertEquals( 0L, metrics.getLagTime() );
+    }
+
+
+    @Test
+    public void testConsumerRefreshAndApply()
+    {
+        ReplicaMetrics metrics = new ReplicaMetrics( "consumer.1" );
+
+        metrics.refreshEntryReceived();
+        assertEquals( 0, metrics.getRefreshEntries() );
+
+        metrics.refreshStarted();
+        metrics.refreshEntryReceived();
+        metrics.refreshEntryReceived();
+        assertTrue( metrics.isRefreshing() );
+
+        metrics.refreshDone();
+        metrics.refreshEntryReceived();
+        assertFalse( metrics.isRefreshing() );
+        assertEquals( 2, metrics.getRefreshEntries() );
+
+        metrics.changeApplied( TimeUnit.MICROSECONDS.toNanos( 100L ) );
+        metrics.checkpoint( csn( 5000L ) );
+
+        assertEquals( 1, metrics.getAppliedCount() );
+        assertEquals( 5000L, metrics.getLastAppliedChangeTime() );
+        assertTrue( metrics.getLagTime() > 0L );
+        assertTrue( metrics.describe().contains( "refreshEntries: 2" ) );
+    }
+
+
+    @Test
+    public void testLatencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals( 0L, histogram.getPercentile( 99d ) );
+
+        for ( int i = 0; i < 99; i++ )
+        {
+            histogram.record( TimeUnit.MICROSECONDS.toNanos( 3L ) );
+        }
+
+        histogram.record( TimeUnit.MILLISECONDS.toNanos( 10L ) );
+
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 4L, histogram.getPercentile( 50d ) );
+        assertEquals( 4L, histogram.getPercentile( 99d ) );
+        assertEquals( 16384L, histogram.getPercentile( 100d ) );
+        assertEquals( ( 99L * 3L + 10000L ) / 100L, histogram.getMean() );
+    }
+
+
+    @Test
+    public void testRegistry()
+    {
+        ReplicationMetricsRegistry registry = new DefaultReplicationMetricsRegistry();
+        ReplicaMetrics metrics = registry.getMetrics( "consumer.1" );
+
+        assertSame( metrics, registry.getMetrics( "consumer.1" ) );
+        assertEquals( 1, registry.getAllMetrics().size() );
+
+        registry.removeMetrics( "consumer.1" );
+        assertTrue( registry.getAllMetrics().isEmpty() );
+    }
+}
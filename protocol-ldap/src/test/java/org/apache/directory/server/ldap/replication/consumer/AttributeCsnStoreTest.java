@@ -0,0 +1,172 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Tests the attributes CSNs used to merge the concurrent modifications of an entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AttributeCsnStoreTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The temporary directory */
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    private static String csn( long timestamp, int replicaId )
+    {
+        return new Csn( timestamp, 0, replicaId, 0 ).toString();
+    }
+
+
+    private static Modification replace( String attribute, String value ) throws Exception
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( attribute );
+
+        return new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attributeType, value );
+    }
+
+
+    @Test
+    public void testUpdateKeepsTheYoungestCsn() throws Exception
+    {
+        AttributeCsnStore store = new AttributeCsnStore( new File( tmpDir.toFile(), "csn.db" ) );
+        long now = System.currentTimeMillis();
+        String cnOid = schemaManager.lookupAttributeTypeRegistry( "cn" ).getOid();
+        String snOid = schemaManager.lookupAttributeTypeRegistry( "sn" ).getOid();
+
+        store.update( "uuid", csn( now + 2000, 1 ), Arrays.asList( replace( "cn", "a" ), replace( "entryCSN",
+            csn( now + 2000, 1 ) ) ) );
+        store.update( "uuid", csn( now + 1000, 2 ), Arrays.asList( replace( "cn", "b" ), replace( "sn", "b" ) ) );
+
+        assertEquals( csn( now + 2000, 1 ), store.getCsn( "uuid", cnOid ) );
+        assertEquals( csn( now + 1000, 2 ), store.getCsn( "uuid", snOid ) );
+        assertNull( store.getCsn( "uuid", schemaManager.lookupAttributeTypeRegistry( "entryCSN" ).getOid() ) );
+        assertNull( store.getCsn( "other", cnOid ) );
+
+        store.remove( "uuid" );
+
+        assertEquals( 0, store.size() );
+    }
+
+
+    @Test
+    public void testMergeDropsTheOlderModifications() throws Exception
+    {
+        AttributeCsnStore store = new AttributeCsnStore( new File( tmpDir.toFile(), "csn.db" ) );
+        long now = System.currentTimeMillis();
+        String localCsn = csn( now + 2000, 1 );
+
+        store.update( "uuid", localCsn, Arrays.asList( replace( "cn", "local" ) ) );
+
+        // A change older than the horizon can't be merged
+        assertTrue( store.merge( "uuid", localCsn, csn( now - 1000, 2 ), Arrays.asList( replace( "sn", "remote" ) ) )
+            .isEmpty() );
+
+        // The remote cn is older than the local one
+        List<Modification> merged = store.merge( "uuid", localCsn, csn( now + 1000, 2 ),
+            Arrays.asList( replace( "cn", "remote" ), replace( "entryCSN", csn( now + 1000, 2 ) ) ) );
+
+        assertTrue( merged.isEmpty() );
+    }
+
+
+    @Test
+    public void testPurgeMovesTheHorizon() throws Exception
+    {
+        AttributeCsnStore store = new AttributeCsnStore( new File( tmpDir.toFile(), "csn.db" ) );
+        long now = System.currentTimeMillis();
+        store.setRetention( 1000L );
+
+        store.update( "old", csn( now + 10, 1 ), Arrays.asList( replace( "cn", "a" ) ) );
+        store.update( "young", csn( now + 5000, 1 ), Arrays.asList( replace( "cn", "a" ) ) );
+
+        assertTrue( store.isTracked( csn( now + 10, 1 ) ) );
+        assertFalse( store.isTracked( "invalid" ) );
+
+        store.purge( now + 3000 );
+
+        assertEquals( now + 2000, store.getHorizon() );
+        assertFalse( store.isTracked( csn( now + 10, 1 ) ) );
+        assertTrue( store.isTracked( csn( now + 5000, 1 ) ) );
+        assertEquals( 1, store.size() );
+    }
+
+
+    @Test
+    public void testSavedAndLoaded() throws Exception
+    {
+        File file = new File( new File( tmpDir.toFile(), "repl" ), "csn.db" );
+        long now = System.currentTimeMillis();
+        String cnOid = schemaManager.lookupAttributeTypeRegistry( "cn" ).getOid();
+
+        AttributeCsnStore store = new AttributeCsnStore( file );
+        store.start( null );
+        store.update( "uuid", csn( now + 1000, 1 ), Arrays.asList( replace( "cn", "a" ) ) );
+        long horizon = store.getHorizon();
+        store.stop();
+
+        assertTrue( file.exists() );
+
+        AttributeCsnStore loaded = new AttributeCsnStore( file );
+        loaded.start( null );
+
+        assertEquals( horizon, loaded.getHorizon() );
+        assertEquals( csn( now + 1000, 1 ), loaded.getCsn( "uuid", cnOid ) );
+
+        // The file is removed until the next clean stop
+        assertFalse( file.exists() );
+        loaded.stop();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the filtering making the replicated modifications idempotent.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicatedModificationsTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    private static Entry entry() throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=test,ou=system",
+            "objectClass: person",
+            "cn: test",
+            "sn: test",
+            "description: one",
+            "description: two" );
+    }
+
+
+    private static Modification mod( ModificationOperation operation, String attribute, String... values )
+        throws Exception
+    {
+        return new DefaultModification( operation, schemaManager.lookupAttributeTypeRegistry( attribute ), values );
+    }
+
+
+    @Test
+    public void testAddedValuesAlreadyPresent() throws Exception
+    {
+        List<Modification> filtered = ReplicatedModifications.filter( entry(), Arrays.asList(
+            mod( ModificationOperation.ADD_ATTRIBUTE, "description", "ONE" ),
+            mod( ModificationOperation.ADD_ATTRIBUTE, "description", "two", "three" ) ) );
+
+        assertEquals( 1, filtered.size() );
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, filtered.get( 0 ).getOperation() );
+        assertEquals( 1, filtered.get( 0 ).getAttribute().size() );
+        assertTrue( filtered.get( 0 ).getAttribute().contains( "three" ) );
+    }
+
+
+    @Test
+    public void testRemovedValuesAbsent() throws Exception
+    {
+        List<Modification> filtered = ReplicatedModifications.filter( entry(), Arrays.asList(
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "description", "three" ),
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "description", "one", "four" ),
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "telephoneNumber" ) ) );
+
+        assertEquals( 1, filtered.size() );
+        assertEquals( 1, filtered.get( 0 ).getAttribute().size() );
+        assertTrue( filtered.get( 0 ).getAttribute().contains( "one" ) );
+    }
+
+
+    @Test
+    public void testReplaceMissingAttribute() throws Exception
+    {
+        List<Modification> filtered = ReplicatedModifications.filter( entry(), Arrays.asList(
+            mod( ModificationOperation.REPLACE_ATTRIBUTE, "telephoneNumber", "123" ),
+            mod( ModificationOperation.REPLACE_ATTRIBUTE, "seeAlso" ),
+            mod( ModificationOperation.REPLACE_ATTRIBUTE, "sn", "other" ) ) );
+
+        assertEquals( 2, filtered.size() );
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, filtered.get( 0 ).getOperation() );
+        assertEquals( ModificationOperation.REPLACE_ATTRIBUTE, filtered.get( 1 ).getOperation() );
+    }
+
+
+    @Test
+    public void testReplayedModifications() throws Exception
+    {
+        // The modifications already applied are all discarded
+        Entry entry = entry();
+        List<Modification> modifications = Arrays.asList(
+            mod( ModificationOperation.ADD_ATTRIBUTE, "telephoneNumber", "123" ),
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "description", "two" ),
+            mod( ModificationOperation.ADD_ATTRIBUTE, "description", "three" ) );
+        entry.add( "telephoneNumber", "123" );
+        entry.remove( "description", "two" );
+        entry.add( "description", "three" );
+
+        assertTrue( ReplicatedModifications.filter( entry, modifications ).isEmpty() );
+    }
+
+
+    @Test
+    public void testModificationsAppliedInOrder() throws Exception
+    {
+        // The second addition adds the value removed by the first modification
+        List<Modification> filtered = ReplicatedModifications.filter( entry(), Arrays.asList(
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "description" ),
+            mod( ModificationOperation.ADD_ATTRIBUTE, "description", "one" ),
+            mod( ModificationOperation.REMOVE_ATTRIBUTE, "description", "two" ) ) );
+
+        assertEquals( 2, filtered.size() );
+        assertEquals( ModificationOperation.REMOVE_ATTRIBUTE, filtered.get( 0 ).getOperation() );
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, filtered.get( 1 ).getOperation() );
+    }
+}
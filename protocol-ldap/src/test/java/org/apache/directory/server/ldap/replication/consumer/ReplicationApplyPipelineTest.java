@@ -0,0 +1,208 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the parallel application of the replicated changes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationApplyPipelineTest
+{
+    /** The stored cookies */
+    private final List<String> cookies = Collections.synchronizedList( new ArrayList<>() );
+
+    /** The pipeline */
+    private ReplicationApplyPipeline pipeline;
+
+
+    @AfterEach
+    public void shutdown()
+    {
+        pipeline.shutdown();
+    }
+
+
+    private void checkpoint( byte[] cookie )
+    {
+        cookies.add( Strings.utf8ToString( cookie ) );
+    }
+
+
+    @Test
+    public void testChangesOnAnEntryAppliedInOrder() throws Exception
+    {
+        pipeline = new ReplicationApplyPipeline( 4, "test", this::checkpoint );
+        Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+        Dn dn = new Dn( "cn=test,ou=system" );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            String uuid = "uuid-" + ( i % 10 );
+            int change = i;
+            pipeline.submit( uuid, dn, SyncStateTypeEnum.MODIFY, null,
+                () -> applied.computeIfAbsent( uuid, k -> Collections.synchronizedList( new ArrayList<>() ) )
+                    .add( change ) );
+        }
+
+        pipeline.drain();
+
+        assertEquals( 10, applied.size() );
+
+        for ( List<Integer> changes : applied.values() )
+        {
+            assertEquals( 100, changes.size() );
+
+            for ( int i = 1; i < changes.size(); i++ )
+            {
+                assertTrue( changes.get( i - 1 ) < changes.get( i ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testCookieStoredOnceThePreviousChangesAreApplied() throws Exception
+    {
+        pipeline = new ReplicationApplyPipeline( 2, "test", this::checkpoint );
+        CountDownLatch blocked = new CountDownLatch( 1 );
+        Dn dn = new Dn( "cn=test,ou=system" );
+
+        // Two uuids handled by distinct workers
+        String slowUuid = "a";
+        String fastUuid = "b";
+
+        pipeline.submit( slowUuid, dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c1" ),
+            () -> blocked.await( 10, TimeUnit.SECONDS ) );
+        pipeline.submit( fastUuid, dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c2" ), () -> { } );
+
+        // The second change may be applied, but its cookie can't be stored yet
+        Thread.sleep( 100L );
+        assertTrue( cookies.isEmpty() );
+
+        blocked.countDown();
+        pipeline.drain();
+
+        assertEquals( "c2", cookies.get( cookies.size() - 1 ) );
+    }
+
+
+    @Test
+    public void testChildAddedAfterItsParent() throws Exception
+    {
+        pipeline = new ReplicationApplyPipeline( 4, "test", this::checkpoint );
+        List<String> added = Collections.synchronizedList( new ArrayList<>() );
+        AtomicBoolean orphan = new AtomicBoolean();
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            Dn parentDn = new Dn( "ou=parent" + i + ",ou=system" );
+            Dn childDn = new Dn( "cn=child,ou=parent" + i + ",ou=system" );
+            String parent = parentDn.getName();
+            String child = childDn.getName();
+
+            pipeline.submit( "parent-" + i, parentDn, SyncStateTypeEnum.ADD, null, () ->
+            {
+                Thread.sleep( 1L );
+                added.add( parent );
+            } );
+            pipeline.submit( "child-" + i, childDn, SyncStateTypeEnum.ADD, null, () ->
+            {
+                if ( !added.contains( parent ) )
+                {
+                    orphan.set( true );
+                }
+
+                added.add( child );
+            } );
+        }
+
+        pipeline.drain();
+
+        assertEquals( 100, added.size() );
+        assertFalse( orphan.get() );
+    }
+
+
+    @Test
+    public void testInlineApply() throws Exception
+    {
+        pipeline = new ReplicationApplyPipeline( 0, "test", this::checkpoint );
+        Thread caller = Thread.currentThread();
+        Thread[] applier = new Thread[1];
+
+        pipeline.submit( "a", new Dn( "cn=test,ou=system" ), SyncStateTypeEnum.ADD, Strings.getBytesUtf8( "c1" ),
+            () -> applier[0] = Thread.currentThread() );
+
+        assertEquals( caller, applier[0] );
+        assertArrayEquals( new String[]
+            { "c1" }, cookies.toArray() );
+    }
+
+
+    @Test
+    public void testNoCookieStoredAfterAFailure() throws Exception
+    {
+        pipeline = new ReplicationApplyPipeline( 2, "test", this::checkpoint );
+        Dn dn = new Dn( "cn=test,ou=system" );
+
+        pipeline.submit( "a", dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c1" ), () -> { } );
+        pipeline.submit( "b", dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c2" ), () ->
+        {
+            throw new Exception( "failed" );
+        } );
+        pipeline.submit( "a", dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c3" ), () -> { } );
+        pipeline.drain();
+
+        // The cookie can't move past the failed change
+        assertTrue( pipeline.hasFailed() );
+        assertEquals( "c1", cookies.get( cookies.size() - 1 ) );
+
+        // Until the pipeline is reset
+        assertTrue( pipeline.reset() );
+        assertFalse( pipeline.hasFailed() );
+        pipeline.submit( "a", dn, SyncStateTypeEnum.MODIFY, Strings.getBytesUtf8( "c4" ), () -> { } );
+        pipeline.drain();
+
+        assertEquals( "c4", cookies.get( cookies.size() - 1 ) );
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the change log shared by the replication consumers.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLogTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the segments */
+    private File logDir;
+
+    /** The change log */
+    private ReplicaChangeLog changeLog;
+
+
+    /**
+     * Load the SchemaManager
+     */
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaChangeLogTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @BeforeEach
+    public void createLog() throws Exception
+    {
+        logDir = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+        changeLog = new ReplicaChangeLog( schemaManager, logDir );
+    }
+
+
+    @AfterEach
+    public void deleteLog() throws Exception
+    {
+        changeLog.close();
+        FileUtils.deleteDirectory( logDir );
+    }
+
+
+    private ReplicaEventMessage createMessage( int i )
+    {
+        try
+        {
+            Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+                "ObjectClass: top",
+                "ObjectClass: organizationalUnit",
+                "ou", "test" + i,
+                "entryCsn", csnFactory.newInstance().toString() );
+
+            return new ReplicaEventMessage( ChangeType.ADD, entry );
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    private String csn( ReplicaEventMessage message ) throws Exception
+    {
+        return message.getEntry().get( "entryCsn" ).getString();
+    }
+
+
+    private List<String> read( int replicaId, String consumerCsn ) throws Exception
+    {
+        List<String> ous = new ArrayList<>();
+
+        try ( ReplicaJournalCursor cursor = changeLog.getCursor( replicaId, consumerCsn ) )
+        {
+            while ( cursor.next() )
+            {
+                ous.add( cursor.get().getEntry().get( "ou" ).getString() );
+            }
+        }
+
+        return ous;
+    }
+
+
+    /**
+     * Log the same messages for two replicas, and a message for only one of them
+     */
+    @Test
+    public void testSharedLog() throws Exception
+    {
+        List<ReplicaEventMessage> messages = new ArrayList<>();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            messages.add( message );
+            changeLog.log( 1, message );
+            changeLog.log( 2, message );
+        }
+
+        long length = changeLog.getSegments().get( 0 ).getLength();
+        changeLog.log( 2, createMessage( 100 ) );
+        long messageLength = changeLog.getSegments().get( 0 ).getLength() - length;
+
+        // The messages are written once
+        assertTrue( length < 100 * messageLength + 100 * messageLength / 2 );
+
+        List<String> ous = read( 1, csn( messages.get( 49 ) ) );
+        assertEquals( 50, ous.size() );
+        assertEquals( "test50", ous.get( 0 ) );
+        assertEquals( "test99", ous.get( 49 ) );
+
+        ous = read( 2, csn( messages.get( 49 ) ) );
+        assertEquals( 51, ous.size() );
+        assertEquals( "test100", ous.get( 50 ) );
+
+        assertTrue( read( 3, null ).isEmpty() );
+    }
+
+
+    /**
+     * Check that the log is read back when reopened
+     */
+    @Test
+    public void testReopen() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            changeLog.log( 1, message );
+            changeLog.log( 2, message );
+        }
+
+        changeLog.close();
+        changeLog = new ReplicaChangeLog( schemaManager, logDir );
+
+        changeLog.log( 1, createMessage( 10 ) );
+
+        List<String> ous = read( 1, null );
+        assertEquals( 11, ous.size() );
+        assertEquals( "test10", ous.get( 10 ) );
+        assertEquals( 10, read( 2, null ).size() );
+    }
+
+
+    /**
+     * Check that the segments are deleted once the slowest replica has read them
+     */
+    @Test
+    public void testPurge() throws Exception
+    {
+        // A new segment for each message
+        changeLog.setSegmentSize( 1L );
+
+        ReplicaEventLog replica1 = new ReplicaEventLog( changeLog, 1 );
+        ReplicaEventLog replica2 = new ReplicaEventLog( changeLog, 2 );
+        replica1.setPurgeThresholdCount( 1 );
+        replica2.setPurgeThresholdCount( 1 );
+        List<ReplicaEventMessage> messages = new ArrayList<>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            messages.add( message );
+            replica1.log( message );
+            replica2.log( message );
+        }
+
+        assertEquals( 10, changeLog.getSegmentCount() );
+
+        // Nothing sent to the second replica yet
+        replica1.setLastSentCsn( csn( messages.get( 8 ) ) );
+        assertEquals( 0, changeLog.purge() );
+
+        replica2.setLastSentCsn( csn( messages.get( 4 ) ) );
+        assertEquals( 5, changeLog.purge() );
+        assertEquals( 5, changeLog.getSegmentCount() );
+
+        List<String> ous = read( 2, csn( messages.get( 4 ) ) );
+        assertEquals( 5, ous.size() );
+        assertEquals( "test5", ous.get( 0 ) );
+
+        // The second replica is removed, the first one is the slowest one
+        replica2.stop();
+        assertEquals( 4, changeLog.purge() );
+        assertEquals( "test9", read( 1, csn( messages.get( 8 ) ) ).get( 0 ) );
+
+        // The current segment is never deleted
+        replica1.setLastSentCsn( csn( messages.get( 9 ) ) );
+        assertEquals( 0, changeLog.purge() );
+        assertFalse( read( 1, null ).isEmpty() );
+    }
+
+
+    /**
+     * Check that nothing is purged while the log holds fewer records than the purge threshold count
+     */
+    @Test
+    public void testPurgeThreshold() throws Exception
+    {
+        // A new segment for each message
+        changeLog.setSegmentSize( 1L );
+
+        ReplicaEventLog replica = new ReplicaEventLog( changeLog, 1 );
+        replica.setPurgeThresholdCount( 11 );
+        List<ReplicaEventMessage> messages = new ArrayList<>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            messages.add( message );
+            replica.log( message );
+        }
+
+        replica.setLastSentCsn( csn( messages.get( 8 ) ) );
+        assertEquals( 10, changeLog.getRecordCount() );
+        assertEquals( 0, changeLog.purge() );
+
+        replica.setPurgeThresholdCount( 10 );
+        assertEquals( 9, changeLog.purge() );
+        assertEquals( 1, changeLog.getRecordCount() );
+    }
+
+
+    /**
+     * Check that the segments are purged in bounded batches, while the changes are still logged
+     */
+    @Test
+    public void testPurgeInBatches() throws Exception
+    {
+        // A new segment for each message
+        changeLog.setSegmentSize( 1L );
+
+        ReplicaEventLog replica = new ReplicaEventLog( changeLog, 1 );
+        replica.setPurgeThresholdCount( 1 );
+        List<ReplicaEventMessage> messages = new ArrayList<>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            messages.add( message );
+            replica.log( message );
+        }
+
+        replica.setLastSentCsn( csn( messages.get( 6 ) ) );
+
+        assertEquals( 3, changeLog.purge( 3 ) );
+        assertEquals( 7, changeLog.getSegmentCount() );
+
+        // A change logged between two batches
+        ReplicaEventMessage message = createMessage( 10 );
+        messages.add( message );
+        replica.log( message );
+
+        assertEquals( 3, changeLog.purge( 3 ) );
+        assertEquals( 1, changeLog.purge( 3 ) );
+        assertEquals( 0, changeLog.purge( 3 ) );
+        assertEquals( 4, changeLog.getSegmentCount() );
+
+        List<String> ous = read( 1, csn( messages.get( 6 ) ) );
+        assertEquals( 4, ous.size() );
+        assertEquals( "test7", ous.get( 0 ) );
+        assertEquals( "test10", ous.get( 3 ) );
+    }
+
+
+    /**
+     * Check that the modifications of a Modify operation are logged with the entry
+     */
+    @Test
+    public void testModifications() throws Exception
+    {
+        ReplicaEventMessage added = createMessage( 0 );
+        changeLog.log( 1, added );
+
+        Entry entry = added.getEntry().clone();
+        String csn = csnFactory.newInstance().toString();
+        entry.put( "description", "modified" );
+        entry.put( "entryCsn", csn );
+
+        List<Modification> modifications = new ArrayList<>();
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.getAttributeType( "description" ), "modified" ) );
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.getAttributeType( "entryCsn" ), csn ) );
+        changeLog.log( 1, new ReplicaEventMessage( ChangeType.MODIFY, entry, modifications ) );
+
+        try ( ReplicaJournalCursor cursor = changeLog.getCursor( 1, null ) )
+        {
+            assertTrue( cursor.next() );
+            assertNull( cursor.get().getModifications() );
+
+            assertTrue( cursor.next() );
+            ReplicaEventMessage modified = cursor.get();
+            assertEquals( ChangeType.MODIFY, modified.getChangeType() );
+            assertEquals( modifications, modified.getModifications() );
+            assertEquals( "modified", modified.getEntry().get( "description" ).getString() );
+        }
+    }
+}
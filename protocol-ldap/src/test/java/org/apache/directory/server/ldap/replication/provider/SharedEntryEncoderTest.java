@@ -0,0 +1,164 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.asn1.util.Asn1Buffer;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the PDUs built from a shared encoded entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SharedEntryEncoderTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The LDAP codec */
+    private static LdapApiService codec;
+
+
+    /**
+     * Load the SchemaManager
+     */
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = SharedEntryEncoderTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        codec = LdapApiServiceFactory.getSingleton();
+    }
+
+
+    private SyncStateValue createControl( int replicaId )
+    {
+        SyncStateValue syncStateValue = new SyncStateValueImpl();
+        syncStateValue.setSyncStateType( SyncStateTypeEnum.MODIFY );
+        syncStateValue.setEntryUUID( Strings.getBytesUtf8( "uuid" ) );
+        syncStateValue.setCookie( Strings.getBytesUtf8( "rid=" + replicaId + ",csn=20261019000000.000000Z#000000#000#000000" ) );
+
+        return syncStateValue;
+    }
+
+
+    private void assertSameEncoding( int messageId, Entry entry, SyncStateValue control ) throws Exception
+    {
+        SearchResultEntry searchResultEntry = new SearchResultEntryImpl( messageId );
+        searchResultEntry.setObjectName( entry.getDn() );
+        searchResultEntry.setEntry( entry );
+        searchResultEntry.addControl( control );
+
+        ByteBuffer expected = LdapEncoder.encodeMessage( new Asn1Buffer(), codec, searchResultEntry );
+        ByteBuffer pdu = SharedEntryEncoder.encode( codec, messageId, entry.getDn(), entry, control );
+
+        assertEquals( Strings.dumpBytes( toBytes( expected ) ), Strings.dumpBytes( toBytes( pdu ) ) );
+    }
+
+
+    private byte[] toBytes( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+
+        return bytes;
+    }
+
+
+    @Test
+    public void testSmallEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager,
+            "cn=test,ou=system",
+            "objectClass: person",
+            "cn: test",
+            "sn: test" );
+
+        assertSameEncoding( 1, entry, createControl( 1 ) );
+    }
+
+
+    @Test
+    public void testSharedLargeEntry() throws Exception
+    {
+        StringBuilder description = new StringBuilder();
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            description.append( 'x' );
+        }
+
+        Entry entry = new DefaultEntry( schemaManager,
+            "cn=test,ou=system",
+            "objectClass: person",
+            "cn: test",
+            "sn: test",
+            "description: " + description );
+
+        // The same entry, sent to consumers with various message IDs and cookies
+        assertSameEncoding( 2, entry, createControl( 1 ) );
+        assertSameEncoding( 300, entry, createControl( 12 ) );
+        assertSameEncoding( 70000, entry, createControl( 123 ) );
+    }
+}
@@ -86,6 +86,9 @@ public class ConfigPartitionInitializer
      */
     public LdifPartition initConfigPartition() throws Exception
     {
+        // The configuration entries may use attribute types the LDAP API schema does not know about yet
+        ConfigSchemaExtension.register( schemaManager );
+
         LdifPartition configPartition = new LdifPartition( schemaManager, dnFactory );
         configPartition.setId( "config" );
         configPartition.setPartitionPath( instanceLayout.getConfDirectory().toURI() );
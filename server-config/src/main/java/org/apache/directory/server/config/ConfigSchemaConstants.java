@@ -275,7 +275,23 @@ public enum ConfigSchemaConstants
 
     ADS_LDAP_SERVER_KEYSTORE_FILE("ads-ldapserverkeystorefile", ""),
 
-    ADS_LDAP_SERVER_CERT_PASSWORD("ads-ldapServerCertificatePassword", "");
+    ADS_LDAP_SERVER_CERT_PASSWORD("ads-ldapServerCertificatePassword", ""),
+
+    ADS_CREDENTIAL_CACHE_SIZE("ads-credentialCacheSize", "1.3.6.1.4.1.18060.0.4.1.2.950"),
+
+    ADS_CREDENTIAL_CACHE_TTL("ads-credentialCacheTtl", "1.3.6.1.4.1.18060.0.4.1.2.951"),
+
+    ADS_VERIFIED_CREDENTIAL_CACHE_TTL("ads-verifiedCredentialCacheTtl", "1.3.6.1.4.1.18060.0.4.1.2.952"),
+
+    ADS_REPL_APPLY_THREADS("ads-replApplyThreads", "1.3.6.1.4.1.18060.0.4.1.2.953"),
+
+    ADS_REPL_DELTA_SYNC("ads-replDeltaSync", "1.3.6.1.4.1.18060.0.4.1.2.954"),
+
+    ADS_REPL_USE_COMPRESSION("ads-replUseCompression", "1.3.6.1.4.1.18060.0.4.1.2.955"),
+
+    ADS_DS_SUBENTRY_MEMBERSHIP_COMPUTED("ads-dsSubentryMembershipComputed", "1.3.6.1.4.1.18060.0.4.1.2.956"),
+
+    ADS_PWD_POLICY_STATE_FLUSH_INTERVAL("ads-pwdPolicyStateFlushInterval", "1.3.6.1.4.1.18060.0.4.1.2.957");
 
     /** The interned value */
     private String value;
@@ -0,0 +1,143 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.config;
+
+
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.ObjectClass;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * Registers the configuration attribute types which are not yet part of the adsconfig
+ * schema shipped with the LDAP API, and adds them to the MAY list of the ObjectClass
+ * they belong to. This has to be done before the configuration partition is loaded,
+ * otherwise the LDIF reader rejects the entries using them.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class ConfigSchemaExtension
+{
+    /** The name of the schema the attribute types are added to */
+    private static final String ADSCONFIG_SCHEMA = "adsconfig";
+
+
+    private ConfigSchemaExtension()
+    {
+    }
+
+
+    /**
+     * Registers the extra configuration attribute types into the given SchemaManager.
+     * Calling this method more than once is harmless.
+     *
+     * @param schemaManager The SchemaManager to update
+     * @throws LdapException If one of the attribute types can't be registered
+     */
+    public static void register( SchemaManager schemaManager ) throws LdapException
+    {
+        // The authenticators credential caches
+        addInteger( schemaManager, ConfigSchemaConstants.ADS_CREDENTIAL_CACHE_SIZE,
+            "The maximum number of credentials cached by an authenticator", ConfigSchemaConstants.ADS_AUTHENTICATOR_OC );
+        addInteger( schemaManager, ConfigSchemaConstants.ADS_CREDENTIAL_CACHE_TTL,
+            "The time to live of a cached credential, in milliseconds", ConfigSchemaConstants.ADS_AUTHENTICATOR_OC );
+        addInteger( schemaManager, ConfigSchemaConstants.ADS_VERIFIED_CREDENTIAL_CACHE_TTL,
+            "The time a verified credential is remembered, in milliseconds",
+            ConfigSchemaConstants.ADS_AUTHENTICATOR_OC );
+
+        // The replication consumer
+        addInteger( schemaManager, ConfigSchemaConstants.ADS_REPL_APPLY_THREADS,
+            "The number of threads applying the replicated changes", ConfigSchemaConstants.ADS_REPL_CONSUMER_OC );
+        addBoolean( schemaManager, ConfigSchemaConstants.ADS_REPL_DELTA_SYNC,
+            "Tells if the modifications are replicated instead of the modified entries",
+            ConfigSchemaConstants.ADS_REPL_CONSUMER_OC );
+        addBoolean( schemaManager, ConfigSchemaConstants.ADS_REPL_USE_COMPRESSION,
+            "Tells if the replicated entries are received in compressed batches",
+            ConfigSchemaConstants.ADS_REPL_CONSUMER_OC );
+
+        // The directory service
+        addBoolean( schemaManager, ConfigSchemaConstants.ADS_DS_SUBENTRY_MEMBERSHIP_COMPUTED,
+            "Tells if the subentry operational attributes are computed on read",
+            ConfigSchemaConstants.ADS_DIRECTORY_SERVICE_OC );
+
+        // The authentication interceptor
+        addInteger( schemaManager, ConfigSchemaConstants.ADS_PWD_POLICY_STATE_FLUSH_INTERVAL,
+            "The maximum delay before the password policy state updated on bind is written, in milliseconds",
+            ConfigSchemaConstants.ADS_AUTHENTICATION_INTERCEPTOR_OC );
+    }
+
+
+    private static void addInteger( SchemaManager schemaManager, ConfigSchemaConstants at, String description,
+        ConfigSchemaConstants oc ) throws LdapException
+    {
+        add( schemaManager, at, description, SchemaConstants.INTEGER_SYNTAX, SchemaConstants.INTEGER_MATCH_MR_OID,
+            oc );
+    }
+
+
+    private static void addBoolean( SchemaManager schemaManager, ConfigSchemaConstants at, String description,
+        ConfigSchemaConstants oc ) throws LdapException
+    {
+        add( schemaManager, at, description, SchemaConstants.BOOLEAN_SYNTAX, SchemaConstants.BOOLEAN_MATCH_MR_OID,
+            oc );
+    }
+
+
+    private static void add( SchemaManager schemaManager, ConfigSchemaConstants at, String description,
+        String syntaxOid, String equalityOid, ConfigSchemaConstants oc ) throws LdapException
+    {
+        AttributeType attributeType = schemaManager.getAttributeType( at.getOid() );
+
+        if ( attributeType == null )
+        {
+            attributeType = new AttributeType( at.getOid() );
+            attributeType.setNames( at.getValue() );
+            attributeType.setDescription( description );
+            attributeType.setSchemaName( ADSCONFIG_SCHEMA );
+            attributeType.setSyntaxOid( syntaxOid );
+            attributeType.setEqualityOid( equalityOid );
+            attributeType.setSingleValued( true );
+
+            if ( !schemaManager.add( attributeType ) )
+            {
+                List<Throwable> errors = schemaManager.getErrors();
+
+                throw new LdapOtherException( "Cannot register the " + at.getValue() + " AttributeType : " + errors );
+            }
+
+            attributeType = schemaManager.getAttributeType( at.getOid() );
+        }
+
+        ObjectClass objectClass = schemaManager.getObjectClassRegistry().lookup( oc.getOid() );
+
+        if ( !objectClass.getMayAttributeTypeOids().contains( at.getOid() ) )
+        {
+            objectClass.unlock();
+            objectClass.addMayAttributeTypeOids( at.getOid() );
+            objectClass.addMayAttributeTypes( attributeType );
+            objectClass.lock();
+        }
+    }
+}
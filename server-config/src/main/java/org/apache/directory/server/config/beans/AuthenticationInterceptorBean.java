@@ -41,6 +41,10 @@ public class AuthenticationInterceptorBean extends InterceptorBean
     @ConfigurationElement(objectClass = "ads-passwordPolicy", container = "passwordPolicies")
     private List<PasswordPolicyBean> passwordPolicies = new ArrayList<>();
 
+    /** The maximum delay before the password policy state updated on bind is written, 0 to write it on each bind */
+    @ConfigurationElement(attributeType = "ads-pwdPolicyStateFlushInterval", isOptional = true, defaultValue = "0")
+    private long pwdPolicyStateFlushInterval;
+
 
     /**
      * Creates a new AuthenticationInterceptorBean instance
@@ -123,6 +127,25 @@ public class AuthenticationInterceptorBean extends InterceptorBean
     }
 
 
+    /**
+     * @return the maximum delay before the password policy state updated on bind is written, in milliseconds
+     */
+    public long getPwdPolicyStateFlushInterval()
+    {
+        return pwdPolicyStateFlushInterval;
+    }
+
+
+    /**
+     * @param pwdPolicyStateFlushInterval the maximum delay before the password policy state updated on bind
+     * is written, in milliseconds. 0 writes it on each bind
+     */
+    public void setPwdPolicyStateFlushInterval( long pwdPolicyStateFlushInterval )
+    {
+        this.pwdPolicyStateFlushInterval = pwdPolicyStateFlushInterval;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -133,6 +156,7 @@ public class AuthenticationInterceptorBean extends InterceptorBean
 
         sb.append( tabs ).append( "AuthenticationInterceptor :\n" );
         sb.append( super.toString( tabs + "  " ) );
+        sb.append( toString( tabs, "  password policy state flush interval", pwdPolicyStateFlushInterval ) );
 
         if ( ( authenticators != null ) && !authenticators.isEmpty() )
         {
@@ -38,6 +38,18 @@ public abstract class AuthenticatorBean extends AdsBaseBean
     @ConfigurationElement(attributeType = "ads-baseDn", isOptional = false)
     protected String baseDn;
 
+    /** The maximum number of credentials cached by the authenticator, 0 for the default size */
+    @ConfigurationElement(attributeType = "ads-credentialCacheSize", isOptional = true, defaultValue = "0")
+    private int credentialCacheSize;
+
+    /** The time to live of a cached credential, in milliseconds, 0 for the default value */
+    @ConfigurationElement(attributeType = "ads-credentialCacheTtl", isOptional = true, defaultValue = "0")
+    private long credentialCacheTtl;
+
+    /** The time a verified credential is remembered, in milliseconds, 0 to disable this cache */
+    @ConfigurationElement(attributeType = "ads-verifiedCredentialCacheTtl", isOptional = true, defaultValue = "0")
+    private long verifiedCredentialCacheTtl;
+
 
     /**
      * @return the authenticatorId
@@ -73,4 +85,58 @@ public abstract class AuthenticatorBean extends AdsBaseBean
     {
         this.baseDn = baseDn;
     }
+
+
+    /**
+     * @return the maximum number of credentials cached by the authenticator
+     */
+    public int getCredentialCacheSize()
+    {
+        return credentialCacheSize;
+    }
+
+
+    /**
+     * @param credentialCacheSize the maximum number of credentials cached by the authenticator
+     */
+    public void setCredentialCacheSize( int credentialCacheSize )
+    {
+        this.credentialCacheSize = credentialCacheSize;
+    }
+
+
+    /**
+     * @return the time to live of a cached credential, in milliseconds
+     */
+    public long getCredentialCacheTtl()
+    {
+        return credentialCacheTtl;
+    }
+
+
+    /**
+     * @param credentialCacheTtl the time to live of a cached credential, in milliseconds
+     */
+    public void setCredentialCacheTtl( long credentialCacheTtl )
+    {
+        this.credentialCacheTtl = credentialCacheTtl;
+    }
+
+
+    /**
+     * @return the time a verified credential is remembered, in milliseconds
+     */
+    public long getVerifiedCredentialCacheTtl()
+    {
+        return verifiedCredentialCacheTtl;
+    }
+
+
+    /**
+     * @param verifiedCredentialCacheTtl the time a verified credential is remembered, in milliseconds
+     */
+    public void setVerifiedCredentialCacheTtl( long verifiedCredentialCacheTtl )
+    {
+        this.verifiedCredentialCacheTtl = verifiedCredentialCacheTtl;
+    }
 }
@@ -54,6 +54,10 @@ public class DirectoryServiceBean extends AdsBaseBean
     @ConfigurationElement(attributeType = "ads-dsDenormalizeOpAttrsEnabled")
     private boolean dsDenormalizeOpAttrsEnabled = true;
 
+    /** The flag that tells if the subentry operational attributes are computed on read */
+    @ConfigurationElement(attributeType = "ads-dsSubentryMembershipComputed", isOptional = true, defaultValue = "false")
+    private boolean dsSubentryMembershipComputed = false;
+
     /** The flag that tells if the password should be returned as a normal attribute or not */
     @ConfigurationElement(attributeType = "ads-dsPasswordHidden")
     private boolean dsPasswordHidden = false;
@@ -229,6 +233,28 @@ public class DirectoryServiceBean extends AdsBaseBean
     }
 
 
+    /**
+     * @return the dsSubentryMembershipComputed
+     */
+    public boolean isDsSubentryMembershipComputed()
+    {
+        return dsSubentryMembershipComputed;
+    }
+
+
+    /**
+     * Sets whether the subentry operational attributes are computed on read. When they are,
+     * the references to the subentries aren't stored, so a search filter on one of those
+     * attributes, like (collectiveAttributeSubentries=...), doesn't match any entry.
+     *
+     * @param dsSubentryMembershipComputed the dsSubentryMembershipComputed to set
+     */
+    public void setDsSubentryMembershipComputed( boolean dsSubentryMembershipComputed )
+    {
+        this.dsSubentryMembershipComputed = dsSubentryMembershipComputed;
+    }
+
+
     /**
      * @return the dsPasswordHidden
      */
@@ -507,6 +533,7 @@ public class DirectoryServiceBean extends AdsBaseBean
         sb.append( toString( "  ", "accessControl enabled", dsAccessControlEnabled ) );
         sb.append( toString( "  ", "allow anonymous access", dsAllowAnonymousAccess ) );
         sb.append( toString( "  ", "denormalized attributes enabled", dsDenormalizeOpAttrsEnabled ) );
+        sb.append( toString( "  ", "subentry membership computed", dsSubentryMembershipComputed ) );
         sb.append( toString( "  ", "password hidden", dsPasswordHidden ) );
         sb.append( "  sync period millisecond : " ).append( dsSyncPeriodMillis ).append( '\n' );
         sb.append( toString( "  ", "test entries", dsTestEntries ) );
@@ -106,6 +106,18 @@ public class ReplConsumerBean extends AdsBaseBean
     @ConfigurationElement(attributeType = SchemaConstants.ADS_REPL_CONSUMER_IMPL, isOptional = true)
     private String replConsumerImpl;
 
+    /** The number of threads applying the replicated changes, 0 to apply them on the reading thread, -1 for the default value */
+    @ConfigurationElement(attributeType = "ads-replApplyThreads", isOptional = true, defaultValue = "-1")
+    private int replApplyThreads = -1;
+
+    /** Tells if the modifications are replicated instead of the modified entries */
+    @ConfigurationElement(attributeType = "ads-replDeltaSync", isOptional = true, defaultValue = "false")
+    private boolean replDeltaSync;
+
+    /** Tells if the replicated entries are received in compressed batches */
+    @ConfigurationElement(attributeType = "ads-replUseCompression", isOptional = true, defaultValue = "false")
+    private boolean replUseCompression;
+
 
     /**
      * Create a new Replication Consumer instance
@@ -455,6 +467,63 @@ public class ReplConsumerBean extends AdsBaseBean
     }
 
 
+    /**
+     * @return the number of threads applying the replicated changes
+     */
+    public int getReplApplyThreads()
+    {
+        return replApplyThreads;
+    }
+
+
+    /**
+     * @param replApplyThreads the number of threads applying the replicated changes
+     */
+    public void setReplApplyThreads( int replApplyThreads )
+    {
+        this.replApplyThreads = replApplyThreads;
+    }
+
+
+    /**
+     * @return true if the modifications are replicated instead of the modified entries
+     */
+    public boolean isReplDeltaSync()
+    {
+        return replDeltaSync;
+    }
+
+
+    /**
+     * In MMR mode, only the modifications replicated this way are merged per attribute with the
+     * concurrent local modifications. The modified entries are resolved per entry.
+     *
+     * @param replDeltaSync true if the modifications are replicated instead of the modified entries
+     */
+    public void setReplDeltaSync( boolean replDeltaSync )
+    {
+        this.replDeltaSync = replDeltaSync;
+    }
+
+
+    /**
+     * @return true if the replicated entries are received in compressed batches
+     */
+    public boolean isReplUseCompression()
+    {
+        return replUseCompression;
+    }
+
+
+    /**
+     * @param replUseCompression true if the replicated entries are received in compressed batches
+     */
+    public void setReplUseCompression( boolean replUseCompression )
+    {
+        this.replUseCompression = replUseCompression;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -485,6 +554,9 @@ public class ReplConsumerBean extends AdsBaseBean
 
         sb.append( toString( tabs, "  struct certivicate validation", replStrictCertValidation ) );
         sb.append( toString( tabs, "  use TLS", replUseTls ) );
+        sb.append( tabs ).append( "  apply threads : " ).append( replApplyThreads ).append( '\n' );
+        sb.append( toString( tabs, "  delta sync", replDeltaSync ) );
+        sb.append( toString( tabs, "  use compression", replUseCompression ) );
 
         return sb.toString();
     }
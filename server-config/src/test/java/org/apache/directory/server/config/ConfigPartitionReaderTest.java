@@ -21,9 +21,15 @@
 package org.apache.directory.server.config;
 
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -35,8 +41,11 @@ import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.FileUtils;
 import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.config.beans.AuthenticationInterceptorBean;
+import org.apache.directory.server.config.beans.AuthenticatorBean;
 import org.apache.directory.server.config.beans.ConfigBean;
 import org.apache.directory.server.config.beans.DirectoryServiceBean;
+import org.apache.directory.server.config.beans.InterceptorBean;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.partition.ldif.SingleFileLdifPartition;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
@@ -90,6 +99,8 @@ public class ConfigPartitionReaderTest
             throw new Exception( "Schema load failed : " + Exceptions.printErrors( errors ) );
         }
 
+        ConfigSchemaExtension.register( schemaManager );
+
         dnFactory = new DefaultDnFactory( schemaManager, 100 );
     }
 
@@ -117,6 +128,77 @@ public class ConfigPartitionReaderTest
         DirectoryServiceBean directoryServiceBean = ( DirectoryServiceBean ) configBean.getDirectoryServiceBeans().get(
             0 );
         assertNotNull( directoryServiceBean );
+        assertFalse( directoryServiceBean.isDsSubentryMembershipComputed() );
+
+        configPartition.destroy( configPartition.beginReadTransaction() );
+    }
+
+
+    @Test
+    public void testReadOptInModes() throws Exception
+    {
+        File configDir = new File( workDir, "optInConfig" );
+
+        String configFile = LdifConfigExtractor.extractSingleFileConfig( configDir, "config.ldif", true );
+
+        // Enable the opt-in modes in the extracted configuration
+        List<String> lines = new ArrayList<>();
+
+        for ( String line : Files.readAllLines( new File( configFile ).toPath(), StandardCharsets.UTF_8 ) )
+        {
+            lines.add( line );
+
+            if ( "dn: ads-directoryServiceId=default,ou=config".equals( line ) )
+            {
+                lines.add( "ads-dsSubentryMembershipComputed: TRUE" );
+            }
+            else if ( line.startsWith( "dn: ads-authenticatorid=simpleauthenticator," ) )
+            {
+                lines.add( "ads-credentialCacheSize: 500" );
+                lines.add( "ads-credentialCacheTtl: 60000" );
+                lines.add( "ads-verifiedCredentialCacheTtl: 1000" );
+            }
+        }
+
+        Files.write( new File( configFile ).toPath(), lines, StandardCharsets.UTF_8 );
+
+        SingleFileLdifPartition configPartition = new SingleFileLdifPartition( schemaManager, dnFactory );
+        configPartition.setId( "config" );
+        configPartition.setPartitionPath( new File( configFile ).toURI() );
+        configPartition.setSuffixDn( new Dn( schemaManager, "ou=config" ) );
+        configPartition.setSchemaManager( schemaManager );
+
+        configPartition.initialize();
+
+        ConfigPartitionReader cpReader = new ConfigPartitionReader( configPartition );
+
+        ConfigBean configBean = cpReader.readConfig( "ou=config" );
+
+        DirectoryServiceBean directoryServiceBean = ( DirectoryServiceBean ) configBean.getDirectoryServiceBeans().get(
+            0 );
+        assertTrue( directoryServiceBean.isDsSubentryMembershipComputed() );
+
+        AuthenticatorBean simpleAuthenticator = null;
+
+        for ( InterceptorBean interceptor : directoryServiceBean.getInterceptors() )
+        {
+            if ( interceptor instanceof AuthenticationInterceptorBean )
+            {
+                for ( AuthenticatorBean authenticator : ( ( AuthenticationInterceptorBean ) interceptor )
+                    .getAuthenticators() )
+                {
+                    if ( "simpleauthenticator".equals( authenticator.getAuthenticatorId() ) )
+                    {
+                        simpleAuthenticator = authenticator;
+                    }
+                }
+            }
+        }
+
+        assertNotNull( simpleAuthenticator );
+        assertEquals( 500, simpleAuthenticator.getCredentialCacheSize() );
+        assertEquals( 60000L, simpleAuthenticator.getCredentialCacheTtl() );
+        assertEquals( 1000L, simpleAuthenticator.getVerifiedCredentialCacheTtl() );
 
         configPartition.destroy( configPartition.beginReadTransaction() );
     }
@@ -21,7 +21,9 @@
 package org.apache.directory.server.config;
 
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.util.List;
@@ -37,6 +39,7 @@ import org.apache.directory.api.util.FileUtils;
 import org.apache.directory.api.util.exception.Exceptions;
 import org.apache.directory.server.config.beans.ConfigBean;
 import org.apache.directory.server.config.beans.LdapServerBean;
+import org.apache.directory.server.config.beans.ReplConsumerBean;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.partition.ldif.SingleFileLdifPartition;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
@@ -90,6 +93,8 @@ public class LdapServerConfigReaderTest
             throw new Exception( "Schema load failed : " + Exceptions.printErrors( errors ) );
         }
 
+        ConfigSchemaExtension.register( schemaManager );
+
         dnFactory = new DefaultDnFactory( schemaManager, 100 );
     }
 
@@ -117,6 +122,11 @@ public class LdapServerConfigReaderTest
         LdapServerBean ldapServerBean = ( LdapServerBean ) configBean.getDirectoryServiceBeans().get( 0 );
         assertNotNull( ldapServerBean );
 
+        ReplConsumerBean replConsumerBean = ldapServerBean.getReplConsumers().get( 0 );
+        assertEquals( 4, replConsumerBean.getReplApplyThreads() );
+        assertTrue( replConsumerBean.isReplDeltaSync() );
+        assertTrue( replConsumerBean.isReplUseCompression() );
+
         configPartition.destroy( configPartition.beginReadTransaction() );
     }
 }
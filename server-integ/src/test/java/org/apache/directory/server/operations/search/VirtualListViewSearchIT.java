@@ -0,0 +1,389 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.operations.search;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewRequest;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewRequestImpl;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewResponse;
+import org.apache.directory.api.ldap.extras.controls.vlv.VirtualListViewResultCode;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Network;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Tests for searching with the Virtual List View control.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( { ApacheDSTestExtension.class } )
+@CreateLdapServer(transports =
+    { @CreateTransport(protocol = "LDAP") })
+@ApplyLdifFiles(
+    { "sortedsearch-test-data.ldif" })
+public class VirtualListViewSearchIT extends AbstractLdapTestUnit
+{
+    private LdapConnection con;
+
+    private SortKey sk;
+
+    private VirtualListViewRequest vlv;
+
+    /** The last response control */
+    private VirtualListViewResponse vlvResponse;
+
+    /** The last search result done */
+    private SearchResultDone done;
+
+
+    @BeforeEach
+    public void createConnection() throws Exception
+    {
+        con = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, getLdapServer().getPort() );
+        con.bind( "uid=admin,ou=system", "secret" );
+
+        sk = new SortKey( "sn" );
+        vlv = new VirtualListViewRequestImpl();
+    }
+
+
+    @AfterEach
+    public void closeConnection() throws Exception
+    {
+        con.close();
+    }
+
+
+    /**
+     * Send a VLV request, and return the sn of the returned entries
+     */
+    private List<String> search( String... attributes ) throws Exception
+    {
+        SearchRequest req = new SearchRequestImpl();
+        req.setBase( new Dn( "ou=parent,ou=system" ) );
+        req.setFilter( new EqualityNode<String>( "objectClass", "person" ) );
+        req.setScope( SearchScope.SUBTREE );
+        req.addAttributes( attributes );
+
+        if ( sk != null )
+        {
+            SortRequest ctrl = new SortRequestImpl();
+            ctrl.addSortKey( sk );
+            req.addControl( ctrl );
+        }
+
+        req.addControl( vlv );
+
+        List<String> sns = new ArrayList<>();
+
+        try ( SearchCursor cursor = con.search( req ) )
+        {
+            while ( cursor.next() )
+            {
+                Entry entry = ( ( SearchResultEntry ) cursor.get() ).getEntry();
+
+                if ( entry.containsAttribute( "sn" ) )
+                {
+                    sns.add( entry.get( "sn" ).getString() );
+                }
+                else
+                {
+                    sns.add( entry.get( "uid" ).getString() );
+                }
+            }
+
+            done = cursor.getSearchResultDone();
+        }
+
+        vlvResponse = ( VirtualListViewResponse ) done.getControl( VirtualListViewResponse.OID );
+        assertNotNull( vlvResponse );
+
+        return sns;
+    }
+
+
+    private void setOffset( int offset, int before, int after )
+    {
+        vlv.setOffset( offset );
+        vlv.setBeforeCount( before );
+        vlv.setAfterCount( after );
+    }
+
+
+    @Test
+    public void testWithoutSortControl() throws Exception
+    {
+        sk = null;
+        setOffset( 1, 0, 1 );
+
+        assertTrue( search().isEmpty() );
+        assertEquals( VirtualListViewResultCode.SORTCONTROLMISSING, vlvResponse.getVirtualListViewResult() );
+        assertEquals( ResultCodeEnum.UNWILLING_TO_PERFORM, done.getLdapResult().getResultCode() );
+    }
+
+
+    @Test
+    public void testByOffset() throws Exception
+    {
+        setOffset( 1, 0, 2 );
+
+        List<String> sns = search();
+
+        assertEquals( VirtualListViewResultCode.SUCCESS, vlvResponse.getVirtualListViewResult() );
+        assertEquals( 1, vlvResponse.getTargetPosition() );
+        assertEquals( 11, vlvResponse.getContentCount() );
+        assertEquals( 3, sns.size() );
+        assertEquals( "person1_sn", sns.get( 0 ) );
+        assertEquals( "person2_sn", sns.get( 1 ) );
+        assertEquals( "person3_sn", sns.get( 2 ) );
+    }
+
+
+    @Test
+    public void testMoveInTheList() throws Exception
+    {
+        setOffset( 5, 1, 1 );
+
+        List<String> sns = search();
+        byte[] contextId = vlvResponse.getContextId();
+        assertNotNull( contextId );
+        assertEquals( 5, vlvResponse.getTargetPosition() );
+        assertEquals( "user0_sn", sns.get( 0 ) );
+        assertEquals( "user1_sn", sns.get( 1 ) );
+        assertEquals( "user2_sn", sns.get( 2 ) );
+
+        // Move forward, using the context
+        vlv.setContextId( contextId );
+        setOffset( 10, 0, 5 );
+        sns = search();
+        assertEquals( 10, vlvResponse.getTargetPosition() );
+        assertEquals( 2, sns.size() );
+        assertEquals( "user6_sn", sns.get( 0 ) );
+        assertEquals( "user7_sn", sns.get( 1 ) );
+
+        // Move backward
+        vlv.setContextId( vlvResponse.getContextId() );
+        setOffset( 2, 5, 0 );
+        sns = search();
+        assertEquals( 2, vlvResponse.getTargetPosition() );
+        assertEquals( 2, sns.size() );
+        assertEquals( "person1_sn", sns.get( 0 ) );
+        assertEquals( "person2_sn", sns.get( 1 ) );
+    }
+
+
+    @Test
+    public void testScaledOffset() throws Exception
+    {
+        // The client thinks there are 22 entries, the middle of the list is the 6th entry
+        vlv.setContentCount( 22 );
+        setOffset( 11, 0, 0 );
+
+        List<String> sns = search();
+        assertEquals( 6, vlvResponse.getTargetPosition() );
+        assertEquals( "user2_sn", sns.get( 0 ) );
+    }
+
+
+    @Test
+    public void testOffsetAfterTheEnd() throws Exception
+    {
+        setOffset( 20, 1, 1 );
+
+        List<String> sns = search();
+
+        // The target is after the last entry
+        assertEquals( 12, vlvResponse.getTargetPosition() );
+        assertEquals( 1, sns.size() );
+        assertEquals( "user7_sn", sns.get( 0 ) );
+    }
+
+
+    @Test
+    public void testByAssertionValue() throws Exception
+    {
+        vlv.setAssertionValue( Strings.getBytesUtf8( "user3" ) );
+        vlv.setBeforeCount( 0 );
+        vlv.setAfterCount( 1 );
+
+        List<String> sns = search();
+
+        assertEquals( 7, vlvResponse.getTargetPosition() );
+        assertEquals( 2, sns.size() );
+        assertEquals( "user3_sn", sns.get( 0 ) );
+        assertEquals( "user4_sn", sns.get( 1 ) );
+
+        // Now, search backward using the context
+        vlv.setContextId( vlvResponse.getContextId() );
+        vlv.setAssertionValue( Strings.getBytesUtf8( "PERSON2" ) );
+        sns = search();
+
+        assertEquals( 2, vlvResponse.getTargetPosition() );
+        assertEquals( "person2_sn", sns.get( 0 ) );
+    }
+
+
+    @Test
+    public void testReverseOrder() throws Exception
+    {
+        sk.setReverseOrder( true );
+        setOffset( 1, 0, 1 );
+
+        List<String> sns = search();
+
+        assertEquals( "user7_sn", sns.get( 0 ) );
+        assertEquals( "user6_sn", sns.get( 1 ) );
+    }
+
+
+    @Test
+    public void testSortAttributeNotRequested() throws Exception
+    {
+        setOffset( 1, 0, 1 );
+
+        List<String> uids = search( "uid" );
+
+        // The sn attribute is not returned
+        assertEquals( 2, uids.size() );
+        assertEquals( "person1", uids.get( 0 ) );
+        assertEquals( "person2", uids.get( 1 ) );
+        assertFalse( uids.contains( "person1_sn" ) );
+    }
+
+
+    @Test
+    public void testOneListPerSession() throws Exception
+    {
+        setOffset( 1, 0, 0 );
+
+        search();
+        int firstContext = VirtualListViewContext.getContextValue( vlvResponse.getContextId() );
+
+        // A request without contextID builds a new list, which replaces the first one
+        search();
+        int secondContext = VirtualListViewContext.getContextValue( vlvResponse.getContextId() );
+        boolean found = false;
+
+        for ( LdapSession session : getLdapServer().getLdapSessionManager().getSessions() )
+        {
+            if ( session.getPagedSearchContext( secondContext ) != null )
+            {
+                found = true;
+                assertNull( session.getPagedSearchContext( firstContext ) );
+            }
+        }
+
+        assertTrue( found );
+    }
+
+
+    @Test
+    public void testDeletedEntrySkipped() throws Exception
+    {
+        Dn dn = new Dn( "cn=first,ou=parent,ou=system" );
+        con.add( new DefaultEntry( dn,
+            "objectClass: person",
+            "cn: first",
+            "sn: a_first_sn" ) );
+
+        try
+        {
+            setOffset( 1, 0, 1 );
+            List<String> sns = search();
+            assertEquals( 12, vlvResponse.getContentCount() );
+            assertEquals( "a_first_sn", sns.get( 0 ) );
+        }
+        finally
+        {
+            con.delete( dn );
+        }
+
+        // The list is kept, the deleted entry is not returned anymore
+        vlv.setContextId( vlvResponse.getContextId() );
+        List<String> sns = search();
+        assertEquals( 12, vlvResponse.getContentCount() );
+        assertEquals( 1, sns.size() );
+        assertEquals( "person1_sn", sns.get( 0 ) );
+    }
+
+
+    @Test
+    public void testListLargerThanTheServerSizeLimit() throws Exception
+    {
+        long maxSizeLimit = getLdapServer().getMaxSizeLimit();
+        getLdapServer().setMaxSizeLimit( 10 );
+
+        try
+        {
+            // The list has 11 entries, it can't be kept
+            setOffset( 1, 0, 1 );
+
+            assertTrue( search().isEmpty() );
+            assertEquals( VirtualListViewResultCode.ADMINLIMITEXCEEDED, vlvResponse.getVirtualListViewResult() );
+            assertEquals( ResultCodeEnum.SIZE_LIMIT_EXCEEDED, done.getLdapResult().getResultCode() );
+            assertNull( vlvResponse.getContextId() );
+        }
+        finally
+        {
+            getLdapServer().setMaxSizeLimit( maxSizeLimit );
+        }
+
+        // With a size limit large enough, the list is built
+        search();
+        assertEquals( VirtualListViewResultCode.SUCCESS, vlvResponse.getVirtualListViewResult() );
+        assertEquals( 11, vlvResponse.getContentCount() );
+    }
+}
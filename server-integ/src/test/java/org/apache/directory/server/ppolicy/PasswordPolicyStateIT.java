@@ -0,0 +1,270 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ppolicy;
+
+
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT;
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT;
+import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT;
+import static org.apache.directory.server.core.integ.IntegrationUtils.getAdminNetworkConnection;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Network;
+import org.apache.directory.api.util.TimeProvider;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
+import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Test the deferred writes of the password policy state updated on bind.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( { ApacheDSTestExtension.class } )
+@CreateLdapServer(transports =
+    {
+        @CreateTransport(protocol = "LDAP") })
+@CreateDS(enableChangeLog = false, name = "PasswordPolicyStateTest")
+public class PasswordPolicyStateIT extends AbstractLdapTestUnit
+{
+    private AuthenticationInterceptor authenticationInterceptor;
+
+    private LdapConnection adminConnection;
+
+    private Dn userDn;
+
+
+    @BeforeEach
+    public void setPwdPolicy() throws Exception
+    {
+        PasswordPolicyConfiguration policyConfig = new PasswordPolicyConfiguration();
+        policyConfig.setPwdMaxFailure( 3 );
+        policyConfig.setPwdLockout( true );
+        policyConfig.setPwdLockoutDuration( 0 );
+        policyConfig.setPwdMaxIdle( 3600 );
+
+        PpolicyConfigContainer policyContainer = new PpolicyConfigContainer();
+        Dn defaultPolicyDn = new Dn( getService().getSchemaManager(), "cn=default" );
+        policyContainer.addPolicy( defaultPolicyDn, policyConfig );
+        policyContainer.setDefaultPolicyDn( defaultPolicyDn );
+
+        authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+        authenticationInterceptor.setPwdPolicies( policyContainer );
+
+        // Never flush during the test
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 3600000L );
+
+        adminConnection = getAdminNetworkConnection( getLdapServer() );
+        userDn = new Dn( getService().getSchemaManager(), "cn=user,ou=system" );
+        adminConnection.add( new DefaultEntry(
+            userDn.getName(),
+            "ObjectClass: top",
+            "ObjectClass: person",
+            "cn: user",
+            "sn: user_sn",
+            "userPassword: 12345" ) );
+    }
+
+
+    @AfterEach
+    public void resetPwdPolicy() throws Exception
+    {
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 0L );
+        authenticationInterceptor.setPwdPolicies( null );
+        adminConnection.delete( userDn );
+        IntegrationUtils.closeConnections();
+    }
+
+
+    private void bind( String password ) throws Exception
+    {
+        bind( userDn, password );
+    }
+
+
+    private void bind( Dn dn, String password ) throws Exception
+    {
+        try ( LdapConnection userConnection = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME,
+            getLdapServer().getPort() ) )
+        {
+            userConnection.bind( dn, password );
+        }
+    }
+
+
+    @Test
+    public void testFailuresDeferredUntilLockout() throws Exception
+    {
+        for ( int i = 0; i < 2; i++ )
+        {
+            assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+        }
+
+        // The failures are not written yet
+        Entry userEntry = adminConnection.lookup( userDn, "+" );
+        assertNull( userEntry.get( PWD_FAILURE_TIME_AT ) );
+
+        // But they are taken into account : the third failure locks the account, immediately
+        assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+
+        userEntry = adminConnection.lookup( userDn, "+" );
+        assertNotNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+        assertTrue( userEntry.get( PWD_FAILURE_TIME_AT ).size() > 0 );
+
+        // The right password is rejected
+        assertThrows( LdapAuthenticationException.class, () -> bind( "12345" ) );
+    }
+
+
+    @Test
+    public void testSuccessWrittenOnFlush() throws Exception
+    {
+        assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+        bind( "12345" );
+
+        Entry userEntry = adminConnection.lookup( userDn, "+" );
+        assertNull( userEntry.get( PWD_LAST_SUCCESS_AT ) );
+
+        // Restarting the store writes the pending updates
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 3600000L );
+
+        userEntry = adminConnection.lookup( userDn, "+" );
+        assertNotNull( userEntry.get( PWD_LAST_SUCCESS_AT ) );
+        assertNull( userEntry.get( PWD_FAILURE_TIME_AT ) );
+    }
+
+
+    @Test
+    public void testStateOfDeletedEntryDropped() throws Exception
+    {
+        Dn otherDn = new Dn( getService().getSchemaManager(), "cn=other,ou=system" );
+        adminConnection.add( new DefaultEntry(
+            otherDn.getName(),
+            "ObjectClass: top",
+            "ObjectClass: person",
+            "cn: other",
+            "sn: other_sn",
+            "userPassword: 12345" ) );
+
+        assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+        assertThrows( LdapAuthenticationException.class, () -> bind( otherDn, "bad" ) );
+
+        // Delete the other entry without telling the store
+        List<String> interceptors = new ArrayList<>( getService().getInterceptors( OperationEnum.DELETE ) );
+        interceptors.remove( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+        DeleteOperationContext deleteContext = new DeleteOperationContext( getService().getAdminSession(), otherDn );
+        deleteContext.setInterceptors( interceptors );
+        getService().getOperationManager().delete( deleteContext );
+
+        // The state of the deleted entry is dropped, the other one is written
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 3600000L );
+
+        Entry userEntry = adminConnection.lookup( userDn, "+" );
+        assertEquals( 1, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+        assertFalse( adminConnection.exists( otherDn ) );
+    }
+
+
+    @Test
+    public void testPendingStateWrittenBeforeModify() throws Exception
+    {
+        assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+        assertThrows( LdapAuthenticationException.class, () -> bind( "bad" ) );
+
+        // A modification of the entry writes the pending state first
+        adminConnection.modify( userDn,
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "sn", "new_sn" ) );
+
+        Entry userEntry = adminConnection.lookup( userDn, "+" );
+        assertEquals( 2, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+        assertFalse( userEntry.containsAttribute( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+    }
+
+
+    @Test
+    public void testConcurrentFailuresAccumulated() throws Exception
+    {
+        // Each failure gets its own time
+        AtomicLong time = new AtomicLong( System.currentTimeMillis() );
+        getService().setTimeProvider( time::incrementAndGet );
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+
+        try
+        {
+            List<Future<?>> binds = new ArrayList<>();
+
+            for ( int i = 0; i < 3; i++ )
+            {
+                binds.add( executor.submit( () -> assertThrows( LdapAuthenticationException.class,
+                    () -> bind( "bad" ) ) ) );
+            }
+
+            for ( Future<?> bind : binds )
+            {
+                bind.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            getService().setTimeProvider( TimeProvider.DEFAULT );
+        }
+
+        // No failure is lost : the last one locked the account, and wrote all of them
+        Entry userEntry = adminConnection.lookup( userDn, "+" );
+        assertNotNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+        assertEquals( 3, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+    }
+}
@@ -23,6 +23,7 @@ package org.apache.directory.server.replication;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
@@ -50,6 +51,8 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.annotations.CreateConsumer;
 import org.apache.directory.server.annotations.CreateLdapServer;
 import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.annotations.ContextEntry;
 import org.apache.directory.server.core.annotations.CreateDS;
 import org.apache.directory.server.core.annotations.CreateIndex;
@@ -443,6 +446,51 @@ public class ClientServerReplicationIT
     }
 
 
+    /**
+     * Test that the metrics of the consumers are computed on read, and not stored in their entries
+     */
+    @Test
+    public void testConsumerMetrics() throws Exception
+    {
+        Entry provUser = createEntry();
+
+        providerSession.add( provUser );
+
+        assertTrue( checkEntryReplicated( provUser.getDn() ) );
+
+        SearchRequest searchRequest = new SearchRequestImpl();
+
+        searchRequest.setBase( new Dn( schemaManager, ServerDNConstants.REPL_CONSUMER_DN_STR ) );
+        searchRequest.setFilter( "(objectClass=*)" );
+        searchRequest.setScope( SearchScope.ONELEVEL );
+        searchRequest.addAttributes( "*", ApacheSchemaConstants.REPLICA_METRICS_AT );
+
+        int nbConsumers = 0;
+
+        try ( Cursor<Entry> cursor = providerSession.search( searchRequest ) )
+        {
+            while ( cursor.next() )
+            {
+                Entry consumerEntry = cursor.get();
+
+                assertNotNull( consumerEntry.get( ApacheSchemaConstants.REPLICA_METRICS_AT ) );
+                assertFalse( consumerEntry.containsAttribute( SchemaConstants.DESCRIPTION_AT ) );
+
+                // Not returned unless requested
+                Entry userEntry = providerSession.lookup( consumerEntry.getDn(), "*" );
+                assertFalse( userEntry.containsAttribute( ApacheSchemaConstants.REPLICA_METRICS_AT ) );
+
+                Entry operationalEntry = providerSession.lookup( consumerEntry.getDn(), "+" );
+                assertNotNull( operationalEntry.get( ApacheSchemaConstants.REPLICA_METRICS_AT ) );
+
+                nbConsumers++;
+            }
+        }
+
+        assertEquals( 1, nbConsumers );
+    }
+
+
     private Entry restartConsumer( Entry provUser ) throws Exception
     {
         //System.out.println( "------------------------------------- Stop consumer" );
@@ -56,6 +56,7 @@ import org.apache.directory.server.factory.ServerAnnotationProcessor;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.provider.ReplicaChangeLog;
 import org.apache.directory.server.ldap.replication.provider.ReplicaEventLog;
 import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
 import org.junit.jupiter.api.AfterAll;
@@ -311,19 +312,18 @@ public class StaleEventLogDetectionIT
         log.setMaxIdlePeriod( 10 ); // in seconds
 
         syncreplHandler.getLogJanitor().setSleepTime( 1000 ); // every second
-        syncreplHandler.getLogJanitor().interrupt();
+        syncreplHandler.getLogJanitor().wakeUp();
 
+        // the log is registered, and the shared change log exists
+        assertTrue( syncreplHandler.getReplicaLogMap().containsKey( log.getId() ) );
         File replDir = providerServer.getDirectoryService().getInstanceLayout().getReplDirectory();
-        File logFile = new File( replDir, log.getName() + ".db" );
-
-        // there should be only one log file
-        assertTrue( logFile.exists() );
+        assertTrue( replDir.list( ( dir, name ) -> name.startsWith( ReplicaChangeLog.CHANGE_LOG_NAME_PREFIX ) ).length > 0 );
 
         // let it sleep for 10 seconds + 5 seconds (above)
         Thread.sleep( 10 * 1000 );
 
-        // there should be only one log file
-        assertFalse( logFile.exists() );
+        // the log has been removed
+        assertFalse( syncreplHandler.getReplicaLogMap().containsKey( log.getId() ) );
 
         //System.out.println( "\n<-- Done" );
     }
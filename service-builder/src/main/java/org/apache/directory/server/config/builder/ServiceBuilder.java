@@ -87,6 +87,7 @@ import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.authn.AuthenticationInterceptor;
 import org.apache.directory.server.core.authn.Authenticator;
 import org.apache.directory.server.core.authn.DelegatingAuthenticator;
+import org.apache.directory.server.core.authn.SimpleAuthenticator;
 import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
 import org.apache.directory.server.core.changelog.DefaultChangeLog;
 import org.apache.directory.server.core.journal.DefaultJournal;
@@ -222,6 +223,8 @@ public final class ServiceBuilder
                     }
 
                     ( ( AuthenticationInterceptor ) interceptor ).setPwdPolicies( ppolicyContainer );
+                    ( ( AuthenticationInterceptor ) interceptor ).setPwdPolicyStateFlushInterval(
+                        ( ( AuthenticationInterceptorBean ) interceptorBean ).getPwdPolicyStateFlushInterval() );
                 }
 
                 interceptors.add( interceptor );
@@ -544,6 +547,15 @@ public final class ServiceBuilder
                 LOG.warn( errorMsg );
                 throw new ConfigurationException( errorMsg, e );
             }
+
+            if ( authenticator instanceof SimpleAuthenticator )
+            {
+                // Size the credential cache of this authenticator
+                SimpleAuthenticator simpleAuthenticator = ( SimpleAuthenticator ) authenticator;
+                simpleAuthenticator.setCacheSize( authenticatorBean.getCredentialCacheSize() );
+                simpleAuthenticator.setCacheTtl( authenticatorBean.getCredentialCacheTtl() );
+                simpleAuthenticator.setVerifiedCacheTtl( authenticatorBean.getVerifiedCredentialCacheTtl() );
+            }
         }
 
         return authenticator;
@@ -1068,6 +1080,14 @@ public final class ServiceBuilder
                 config.setUseTls( replBean.isReplUseTls() );
                 config.setStrictCertVerification( replBean.isReplStrictCertValidation() );
 
+                if ( replBean.getReplApplyThreads() >= 0 )
+                {
+                    config.setApplyThreads( replBean.getReplApplyThreads() );
+                }
+
+                config.setDeltaSync( replBean.isReplDeltaSync() );
+                config.setUseCompression( replBean.isReplUseCompression() );
+
                 config.setConfigEntryDn( replBean.getDn() );
 
                 consumer.setConfig( config );
@@ -1330,6 +1350,9 @@ public final class ServiceBuilder
         // DenormalizedOpAttrsEnabled
         directoryService.setDenormalizeOpAttrsEnabled( directoryServiceBean.isDsDenormalizeOpAttrsEnabled() );
 
+        // SubentryMembershipComputed
+        directoryService.setSubentryMembershipComputed( directoryServiceBean.isDsSubentryMembershipComputed() );
+
         // Journal
         Journal journal = createJournal( directoryServiceBean.getJournal() );
 
@@ -24,7 +24,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -212,6 +214,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
+
+    /** The transaction used by the bulk load, if any : the user indexes are built at the end */
+    private volatile PartitionWriteTxn bulkLoadTxn;
+
+    /** The number of bulk loaded entries indexed per write transaction */
+    private static final int BULK_INDEX_CHUNK_SIZE = 1000;
+
+    /** The IDs of the entries added while bulk loading */
+    private final List<String> bulkLoadedIds = new ArrayList<>();
     
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -769,6 +780,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         assert ( partitionTxn != null );
         assert ( partitionTxn instanceof PartitionWriteTxn );
 
+        // Only the additions done in the bulk load transaction are bulk loaded
+        boolean bulkLoaded = ( bulkLoadTxn != null ) && ( partitionTxn == bulkLoadTxn );
+
         try
         {
             setRWLock( addContext );
@@ -833,18 +847,16 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 throw new LdapSchemaViolationException( rc, msg );
             }
 
-            for ( Value value : objectClass )
-            {
-                if ( value.equals( topOCValue ) )
-                {
-                    continue;
-                }
-                
-                String normalizedOc = objectClassNormalizer.normalize( value.getString() );
+            // Check the entryCSN before anything is written
+            Attribute entryCsn = entry.get( entryCsnAT );
 
-                objectClassIdx.add( partitionTxn, normalizedOc, id );
+            if ( entryCsn == null )
+            {
+                String msg = I18n.err( I18n.ERR_49010_ENTRY_WITHOUT_ENTRY_CSN, entryDn.getName(), entry );
+                throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, msg );
             }
 
+            // The alias is checked before its indexes are updated
             if ( objectClass.contains( SchemaConstants.ALIAS_OC ) )
             {
                 Attribute aliasAttr = entry.get( aliasedObjectNameAT );
@@ -852,15 +864,19 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 addAliasIndices( partitionTxn, id, entryDn, new Dn( schemaManager, aliasAttr.getString() ) );
             }
 
-            // Update the EntryCsn index
-            Attribute entryCsn = entry.get( entryCsnAT );
-
-            if ( entryCsn == null )
+            for ( Value value : objectClass )
             {
-                String msg = I18n.err( I18n.ERR_49010_ENTRY_WITHOUT_ENTRY_CSN, entryDn.getName(), entry );
-                throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, msg );
+                if ( value.equals( topOCValue ) )
+                {
+                    continue;
+                }
+                
+                String normalizedOc = objectClassNormalizer.normalize( value.getString() );
+
+                objectClassIdx.add( partitionTxn, normalizedOc, id );
             }
 
+            // Update the EntryCsn index
             entryCsnIdx.add( partitionTxn, entryCsn.getString(), id );
 
             // Update the AdministrativeRole index, if needed
@@ -878,28 +894,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 presenceIdx.add( partitionTxn, administrativeRoleAT.getOid(), id );
             }
 
-            // Now work on the user defined userIndices
-            for ( Attribute attribute : entry )
+            // Now work on the user defined userIndices, unless they are built at the end of a bulk load
+            if ( !bulkLoaded )
             {
-                AttributeType attributeType = attribute.getAttributeType();
-                String attributeOid = attributeType.getOid();
-
-                if ( hasUserIndexOn( attributeType ) )
-                {
-                    Index<Object, String> userIndex = ( Index<Object, String> ) getUserIndex( attributeType );
-
-                    // here lookup by attributeId is OK since we got attributeId from
-                    // the entry via the enumeration - it's in there as is for sure
-
-                    for ( Value value : attribute )
-                    {
-                        String normalized = value.getNormalized();
-                        userIndex.add( partitionTxn, normalized, id );
-                    }
-
-                    // Adds only those attributes that are indexed
-                    presenceIdx.add( partitionTxn, attributeOid, id );
-                }
+                addUserIndices( partitionTxn, entry, id );
             }
 
             // Add the parentId in the entry
@@ -934,6 +932,14 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 unlockWrite();
             }
+
+            if ( bulkLoaded )
+            {
+                synchronized ( bulkLoadedIds )
+                {
+                    bulkLoadedIds.add( id );
+                }
+            }
         }
         catch ( LdapException le )
         {
@@ -946,6 +952,258 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Adds the values of an added entry in the user indexes
+     */
+    private void addUserIndices( PartitionTxn partitionTxn, Entry entry, String id )
+        throws LdapException, IndexNotFoundException
+    {
+        for ( Attribute attribute : entry )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+            String attributeOid = attributeType.getOid();
+
+            if ( hasUserIndexOn( attributeType ) )
+            {
+                Index<Object, String> userIndex = ( Index<Object, String> ) getUserIndex( attributeType );
+
+                // here lookup by attributeId is OK since we got attributeId from
+                // the entry via the enumeration - it's in there as is for sure
+
+                for ( Value value : attribute )
+                {
+                    String normalized = value.getNormalized();
+                    userIndex.add( partitionTxn, normalized, id );
+                }
+
+                // Adds only those attributes that are indexed
+                presenceIdx.add( partitionTxn, attributeOid, id );
+            }
+        }
+    }
+
+
+    //---------------------------------------------------------------------------------------------
+    // The bulk load
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Starts a bulk load. The entries added with the returned transaction are not stored in
+     * the user indexes until {@link #endBulkLoad()} is called : they can't be found meanwhile
+     * using a filter on an indexed attribute. The additions done with any other transaction
+     * are processed as usual.
+     * <p>
+     * The returned transaction is committed after each operation, and it's up to the partition
+     * to group those commits. It is closed by {@link #endBulkLoad()}.
+     *
+     * @return The transaction to use for the bulk loaded operations, or <code>null</code> if
+     * the partition can't be bulk loaded
+     * @throws LdapException If the partition is already bulk loaded
+     */
+    public PartitionWriteTxn beginBulkLoad() throws LdapException
+    {
+        synchronized ( bulkLoadedIds )
+        {
+            if ( bulkLoadTxn != null )
+            {
+                throw new LdapOtherException( "The " + suffixDn + " partition is already bulk loaded" );
+            }
+
+            bulkLoadTxn = beginBulkWriteTransaction();
+        }
+
+        if ( bulkLoadTxn != null )
+        {
+            LOG.info( "Starting a bulk load of the {} partition", suffixDn );
+        }
+
+        return bulkLoadTxn;
+    }
+
+
+    /**
+     * Creates the transaction used while bulk loading the partition. By default, a partition
+     * can't be bulk loaded.
+     *
+     * @return The bulk load transaction, or <code>null</code> if the partition can't be bulk loaded
+     */
+    protected PartitionWriteTxn beginBulkWriteTransaction()
+    {
+        return null;
+    }
+
+
+    /**
+     * @return <code>true</code> if the partition is being bulk loaded
+     */
+    public boolean isBulkLoading()
+    {
+        return bulkLoadTxn != null;
+    }
+
+
+    /**
+     * Ends a bulk load : the bulk load transaction is closed, then the user indexes are updated
+     * with the entries added since {@link #beginBulkLoad()} was called, and the partition is
+     * synced. The entries are indexed by chunks of {@link #BULK_INDEX_CHUNK_SIZE}, each chunk
+     * being committed on its own.
+     *
+     * @throws LdapException If the bulk load transaction has failed, or if the indexes can't
+     * be updated. The partition is in the normal mode anyway.
+     */
+    public void endBulkLoad() throws LdapException
+    {
+        PartitionWriteTxn bulkTxn;
+        List<String> ids;
+
+        synchronized ( bulkLoadedIds )
+        {
+            bulkTxn = bulkLoadTxn;
+
+            if ( bulkTxn == null )
+            {
+                return;
+            }
+
+            // The next writes are done as usual
+            bulkLoadTxn = null;
+            ids = new ArrayList<>( bulkLoadedIds );
+            bulkLoadedIds.clear();
+        }
+
+        LOG.info( "Ending the bulk load of {} entries in the {} partition", ids.size(), suffixDn );
+
+        IOException bulkFailure = null;
+
+        try
+        {
+            bulkTxn.close();
+        }
+        catch ( IOException ioe )
+        {
+            // The added entries are indexed anyway, so that the partition stays consistent
+            bulkFailure = ioe;
+        }
+
+        for ( int start = 0; start < ids.size(); start += BULK_INDEX_CHUNK_SIZE )
+        {
+            buildBulkLoadedIndexes( ids.subList( start, Math.min( start + BULK_INDEX_CHUNK_SIZE, ids.size() ) ) );
+        }
+
+        sync();
+
+        if ( bulkFailure != null )
+        {
+            throw new LdapOtherException( bulkFailure.getMessage(), bulkFailure );
+        }
+    }
+
+
+    private void abort( PartitionTxn partitionTxn ) throws LdapException
+    {
+        try
+        {
+            partitionTxn.abort();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Adds a chunk of bulk loaded entries in the user indexes, in a write transaction of its
+     * own. The values of each index are sorted using the index comparator before being added,
+     * so that the BTree pages are filled one after the other.
+     */
+    private void buildBulkLoadedIndexes( List<String> ids ) throws LdapException
+    {
+        PartitionTxn partitionTxn = beginWriteTransaction();
+
+        try
+        {
+            Map<Index<?, String>, List<String[]>> indexedValues = new HashMap<>();
+
+            for ( String id : ids )
+            {
+                Entry entry = master.get( partitionTxn, id );
+
+                // The entry may have been deleted since
+                if ( entry == null )
+                {
+                    continue;
+                }
+
+                for ( Attribute attribute : entry )
+                {
+                    AttributeType attributeType = attribute.getAttributeType();
+
+                    if ( hasUserIndexOn( attributeType ) )
+                    {
+                        List<String[]> values = indexedValues.computeIfAbsent( getUserIndex( attributeType ),
+                            index -> new ArrayList<>() );
+
+                        for ( Value value : attribute )
+                        {
+                            values.add( new String[]
+                                { value.getNormalized(), id } );
+                        }
+
+                        presenceIdx.add( partitionTxn, attributeType.getOid(), id );
+                    }
+                }
+            }
+
+            for ( Map.Entry<Index<?, String>, List<String[]>> indexValues : indexedValues.entrySet() )
+            {
+                Index<Object, String> userIndex = ( Index<Object, String> ) indexValues.getKey();
+                Comparator<Object> comparator = getIndexComparator( userIndex );
+                List<String[]> values = indexValues.getValue();
+                values.sort( ( value1, value2 ) -> comparator.compare( value1[0], value2[0] ) );
+
+                LOG.debug( "Adding {} values in the {} index", values.size(), userIndex.getAttributeId() );
+
+                for ( String[] value : values )
+                {
+                    userIndex.add( partitionTxn, value[0], value[1] );
+                }
+            }
+
+            partitionTxn.commit();
+        }
+        catch ( LdapException le )
+        {
+            abort( partitionTxn );
+
+            throw le;
+        }
+        catch ( IOException | IndexNotFoundException e )
+        {
+            abort( partitionTxn );
+
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * @return The comparator ordering the keys of an index, which is the comparator of the
+     * equality matching rule of the indexed attribute
+     */
+    @SuppressWarnings("unchecked")
+    private Comparator<Object> getIndexComparator( Index<?, String> index )
+    {
+        MatchingRule equality = index.getAttribute().getEquality();
+
+        if ( ( equality == null ) || ( equality.getLdapComparator() == null ) )
+        {
+            return ( value1, value2 ) -> ( ( String ) value1 ).compareTo( ( String ) value2 );
+        }
+
+        return ( Comparator<Object> ) equality.getLdapComparator();
+    }
+
+
     //---------------------------------------------------------------------------------------------
     // The Delete operation
     //---------------------------------------------------------------------------------------------
@@ -0,0 +1,528 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.cursor;
+
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor returning the candidates of a search in the order of a sort key, as
+ * defined by <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>. The
+ * candidates are read from the forward index of the sort attribute, so they are
+ * streamed in order without having to be collected and sorted first.
+ * <br>
+ * The entries which don't have the sort attribute are considered larger than
+ * any other entry : they are returned after the indexed entries, or before them
+ * when the order is reversed. When the attribute is multi-valued, an entry is
+ * returned at the position of its smallest value.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SortedIndexCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    private static final String UNSUPPORTED_MSG = I18n.err( I18n.ERR_49046_SORTED_INDEX_CURSOR_NOT_ORDERED );
+
+    /** The phase where the entries are read from the sort attribute index */
+    private static final int INDEX_PHASE = 0;
+
+    /** The phase where the entries without the sort attribute are read */
+    private static final int MISSING_PHASE = 1;
+
+    /** The store */
+    private final Store store;
+
+    /** The sort attribute */
+    private final AttributeType attributeType;
+
+    /** The cursor on the sort attribute forward index */
+    private final Cursor<IndexEntry<Object, String>> indexCursor;
+
+    /** The cursor on all the candidates, used to find the entries without the sort attribute */
+    private final Cursor<IndexEntry<String, String>> candidateCursor;
+
+    /** The set of candidate UUIDs, or null if all the entries are candidates */
+    private final Set<String> candidateSet;
+
+    /** The comparator used to order the sort attribute index */
+    private final LdapComparator<Object> comparator;
+
+    /** Tells if the sort order is reversed */
+    private final boolean reverse;
+
+    /** Tells if the sort attribute is multi-valued */
+    private final boolean multiValued;
+
+    /** The phases, in the order they are walked */
+    private final int[] phases;
+
+    /** The current position in the phases array */
+    private int phasePos;
+
+    /** The current element */
+    private IndexEntry<String, String> current;
+
+
+    /**
+     * Creates a new instance of a SortedIndexCursor
+     *
+     * @param partitionTxn The transaction to use
+     * @param store The store
+     * @param index The forward index on the sort attribute
+     * @param candidateCursor A cursor on all the candidates
+     * @param candidateSet The set of candidate UUIDs, null if all the entries are candidates
+     * @param reverse Tells if the sort order is reversed
+     * @throws LdapException If the cursor can't be created
+     */
+    @SuppressWarnings("unchecked")
+    public SortedIndexCursor( PartitionTxn partitionTxn, Store store, Index<?, String> index,
+        Cursor<IndexEntry<String, String>> candidateCursor, Set<String> candidateSet, boolean reverse )
+        throws LdapException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating SortedIndexCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.store = store;
+        this.attributeType = index.getAttribute();
+        this.indexCursor = ( ( Index<Object, String> ) index ).forwardCursor( partitionTxn );
+        this.candidateCursor = candidateCursor;
+        this.candidateSet = candidateSet;
+        this.reverse = reverse;
+        this.multiValued = !attributeType.isSingleValued();
+        this.comparator = ( LdapComparator<Object> ) attributeType.getEquality().getLdapComparator();
+
+        // The entries without the attribute are the larger ones
+        if ( reverse )
+        {
+            phases = new int[]
+                { MISSING_PHASE, INDEX_PHASE };
+        }
+        else
+        {
+            phases = new int[]
+                { INDEX_PHASE, MISSING_PHASE };
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        phasePos = 0;
+        positionAtStart( phases[phasePos] );
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        phasePos = phases.length - 1;
+        positionAtEnd( phases[phasePos] );
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        while ( true )
+        {
+            if ( step( phases[phasePos], true ) )
+            {
+                return setAvailable( true );
+            }
+
+            if ( phasePos == phases.length - 1 )
+            {
+                current = null;
+
+                return setAvailable( false );
+            }
+
+            phasePos++;
+            positionAtStart( phases[phasePos] );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        while ( true )
+        {
+            if ( step( phases[phasePos], false ) )
+            {
+                return setAvailable( true );
+            }
+
+            if ( phasePos == 0 )
+            {
+                current = null;
+
+                return setAvailable( false );
+            }
+
+            phasePos--;
+            positionAtEnd( phases[phasePos] );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( available() )
+        {
+            return current;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_49021_CURSOR_NOT_POSITIONED ) );
+    }
+
+
+    /**
+     * Move the cursor of the given phase in the sort order, until we find an
+     * acceptable candidate
+     */
+    private boolean step( int phase, boolean forward ) throws LdapException, CursorException
+    {
+        if ( phase == INDEX_PHASE )
+        {
+            // The index is read backward when the order is reversed
+            boolean moveNext = forward != reverse;
+
+            while ( moveNext ? indexCursor.next() : indexCursor.previous() )
+            {
+                checkNotClosed();
+                IndexEntry<String, String> candidate = acceptIndexed( indexCursor.get() );
+
+                if ( candidate != null )
+                {
+                    current = candidate;
+
+                    return true;
+                }
+            }
+        }
+        else
+        {
+            while ( forward ? candidateCursor.next() : candidateCursor.previous() )
+            {
+                checkNotClosed();
+                IndexEntry<String, String> candidate = acceptMissing( candidateCursor.get() );
+
+                if ( candidate != null )
+                {
+                    current = candidate;
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Check that an element read from the sort attribute index is a candidate, and
+     * that it's positioned on the smallest value of the entry
+     */
+    private IndexEntry<String, String> acceptIndexed( IndexEntry<Object, String> indexEntry ) throws LdapException
+    {
+        String id = indexEntry.getId();
+
+        if ( ( candidateSet != null ) && !candidateSet.contains( id ) )
+        {
+            return null;
+        }
+
+        IndexEntry<String, String> candidate = new IndexEntry<>();
+        candidate.setKey( id );
+        candidate.setId( id );
+
+        Object key = indexEntry.getKey();
+
+        if ( multiValued && ( key != null ) )
+        {
+            Entry entry = store.fetch( partitionTxn, id );
+
+            if ( ( entry == null ) || !isSmallestValue( entry.get( attributeType ), key ) )
+            {
+                return null;
+            }
+
+            // Keep the entry, it will be evaluated later on
+            candidate.setEntry( entry );
+        }
+
+        return candidate;
+    }
+
+
+    /**
+     * Check that a candidate does not have the sort attribute
+     */
+    private IndexEntry<String, String> acceptMissing( IndexEntry<String, String> indexEntry ) throws LdapException
+    {
+        String id = indexEntry.getId();
+
+        if ( store.getPresenceIndex().forward( partitionTxn, attributeType.getOid(), id ) )
+        {
+            return null;
+        }
+
+        IndexEntry<String, String> candidate = new IndexEntry<>();
+        candidate.setKey( id );
+        candidate.setId( id );
+
+        return candidate;
+    }
+
+
+    /**
+     * Tells if the given index key is the smallest value of the attribute
+     */
+    private boolean isSmallestValue( Attribute attribute, Object key )
+    {
+        if ( attribute == null )
+        {
+            return false;
+        }
+
+        for ( Value value : attribute )
+        {
+            if ( comparator.compare( value.getNormalized(), key ) < 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private void positionAtStart( int phase ) throws LdapException, CursorException
+    {
+        if ( phase == INDEX_PHASE )
+        {
+            if ( reverse )
+            {
+                indexCursor.afterLast();
+            }
+            else
+            {
+                indexCursor.beforeFirst();
+            }
+        }
+        else
+        {
+            candidateCursor.beforeFirst();
+        }
+    }
+
+
+    private void positionAtEnd( int phase ) throws LdapException, CursorException
+    {
+        if ( phase == INDEX_PHASE )
+        {
+            if ( reverse )
+            {
+                indexCursor.beforeFirst();
+            }
+            else
+            {
+                indexCursor.afterLast();
+            }
+        }
+        else
+        {
+            candidateCursor.afterLast();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexCursor {}", this );
+        }
+
+        super.close();
+        indexCursor.close();
+        candidateCursor.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexCursor {}", this );
+        }
+
+        super.close( cause );
+        indexCursor.close( cause );
+        candidateCursor.close( cause );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "SortedIndexCursor (" );
+
+        if ( available() )
+        {
+            sb.append( "available)" );
+        }
+        else
+        {
+            sb.append( "absent)" );
+        }
+
+        sb.append( " on " ).append( attributeType.getName() );
+
+        if ( reverse )
+        {
+            sb.append( ", reversed" );
+        }
+
+        sb.append( " :\n" );
+        sb.append( indexCursor.toString( tabs + "    " ) );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
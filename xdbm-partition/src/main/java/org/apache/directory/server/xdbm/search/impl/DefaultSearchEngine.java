@@ -25,6 +25,7 @@ import java.util.Set;
 
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.SetCursor;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
@@ -35,19 +36,26 @@ import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
 import org.apache.directory.api.ldap.model.filter.ScopeNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
+import org.apache.directory.server.xdbm.search.cursor.SortedIndexCursor;
 import org.apache.directory.server.xdbm.search.evaluator.BaseLevelScopeEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +72,12 @@ public class DefaultSearchEngine implements SearchEngine
     /** The logger */
     private static final Logger LOG = LoggerFactory.getLogger( DefaultSearchEngine.class );
 
+    /**
+     * Under this ratio of candidates against the sort attribute index size, it's cheaper
+     * to sort the candidates in memory than to walk the whole index
+     */
+    private static final int SORTED_INDEX_SCAN_RATIO = 16;
+
     /** the Optimizer used by this DefaultSearchEngine */
     private final Optimizer optimizer;
 
@@ -253,6 +267,41 @@ public class DefaultSearchEngine implements SearchEngine
 
         LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
 
+        // Check if we can stream the candidates in the requested sort order
+        Index<?, String> sortIndex = getSortIndex( partitionTxn, schemaManager, searchContext, nbResults );
+
+        if ( sortIndex != null )
+        {
+            Cursor<IndexEntry<String, String>> candidateCursor;
+            Set<String> candidateSet = null;
+
+            if ( nbResults < Long.MAX_VALUE )
+            {
+                for ( String uuid : uuidSet )
+                {
+                    IndexEntry<String, String> indexEntry = new IndexEntry<>();
+                    indexEntry.setId( uuid );
+                    resultSet.add( indexEntry );
+                }
+
+                candidateCursor = new SetCursor<>( resultSet );
+                candidateSet = uuidSet;
+            }
+            else
+            {
+                candidateCursor = new AllEntriesCursor( partitionTxn, db );
+            }
+
+            LOG.debug( "Using the {} index to return the entries in sort order", sortIndex.getAttributeId() );
+
+            searchResult.setEvaluator( evaluator );
+            searchResult.setResultSet( new SortedIndexCursor( partitionTxn, db, sortIndex, candidateCursor,
+                candidateSet, searchContext.getSortKey().isReverseOrder() ) );
+            searchContext.setSorted( true );
+
+            return searchResult;
+        }
+
         if ( nbResults < Long.MAX_VALUE )
         {
             for ( String uuid : uuidSet )
@@ -295,6 +344,75 @@ public class DefaultSearchEngine implements SearchEngine
     }
 
 
+    /**
+     * Get the user index we can read to return the candidates in the order requested by
+     * the sort key, if any. The index can only be used if it's ordered using the matching
+     * rule requested by the sort key, and if it's not much larger than the candidate set.
+     */
+    private Index<?, String> getSortIndex( PartitionTxn partitionTxn, SchemaManager schemaManager,
+        SearchOperationContext searchContext, long nbResults ) throws LdapException
+    {
+        SortKey sortKey = searchContext.getSortKey();
+
+        if ( sortKey == null )
+        {
+            return null;
+        }
+
+        AttributeType attributeType = schemaManager.getAttributeType( sortKey.getAttributeTypeDesc() );
+
+        if ( ( attributeType == null ) || ( attributeType.getEquality() == null )
+            || !db.hasUserIndexOn( attributeType ) )
+        {
+            return null;
+        }
+
+        // The user indexes are ordered using the equality matching rule comparator
+        String mrOid = sortKey.getMatchingRuleId();
+
+        if ( mrOid != null )
+        {
+            MatchingRule matchingRule;
+
+            try
+            {
+                matchingRule = schemaManager.lookupMatchingRuleRegistry( mrOid );
+            }
+            catch ( LdapException le )
+            {
+                return null;
+            }
+
+            String oid = matchingRule.getOid();
+            MatchingRule ordering = attributeType.getOrdering();
+
+            if ( !oid.equals( attributeType.getEquality().getOid() )
+                && ( ( ordering == null ) || !oid.equals( ordering.getOid() ) ) )
+            {
+                return null;
+            }
+        }
+
+        Index<?, String> index;
+
+        try
+        {
+            index = db.getUserIndex( attributeType );
+        }
+        catch ( IndexNotFoundException infe )
+        {
+            return null;
+        }
+
+        if ( ( nbResults < Long.MAX_VALUE ) && ( nbResults * SORTED_INDEX_SCAN_RATIO < index.count( partitionTxn ) ) )
+        {
+            return null;
+        }
+
+        return index;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,339 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.SetCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
+import org.apache.directory.server.xdbm.search.cursor.SortedIndexCursor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the SortedIndexCursor, which returns the candidates in the order of a sort key.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class SortedIndexCursorTest
+{
+    File wkdir;
+    Store store;
+    static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static AttributeType cnAT;
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = SortedIndexCursorTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        dnFactory = new DefaultDnFactory( schemaManager, 100 );
+        cnAT = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+    }
+
+
+    @BeforeEach
+    public void createStore() throws Exception
+    {
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, dnFactory );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID, false ) );
+        store.addIndex( new AvlIndex<String>( SchemaConstants.CN_AT_OID, false ) );
+        ( ( Partition ) store ).setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+    }
+
+
+    @AfterEach
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy( null );
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    /**
+     * Read all the entries from the cursor, checking that each entry is returned once
+     */
+    private List<Entry> readAll( PartitionTxn txn, SortedIndexCursor cursor ) throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+
+        cursor.beforeFirst();
+
+        while ( cursor.next() )
+        {
+            IndexEntry<String, String> indexEntry = cursor.get();
+            assertTrue( ids.add( indexEntry.getId() ) );
+            entries.add( store.fetch( txn, indexEntry.getId() ) );
+        }
+
+        assertFalse( cursor.available() );
+
+        return entries;
+    }
+
+
+    /**
+     * @return the smallest normalized cn of an entry, or null if it has no cn
+     */
+    private String smallestCn( Entry entry )
+    {
+        Attribute cn = entry.get( cnAT );
+
+        if ( cn == null )
+        {
+            return null;
+        }
+
+        String smallest = null;
+
+        for ( Value value : cn )
+        {
+            if ( ( smallest == null ) || ( value.getNormalized().compareTo( smallest ) < 0 ) )
+            {
+                smallest = value.getNormalized();
+            }
+        }
+
+        return smallest;
+    }
+
+
+    @Test
+    public void testAllEntriesSorted() throws Exception
+    {
+        PartitionTxn txn = ( ( Partition ) store ).beginReadTransaction();
+        SortedIndexCursor cursor = new SortedIndexCursor( txn, store, store.getUserIndex( cnAT ),
+            new AllEntriesCursor( txn, store ), null, false );
+
+        List<Entry> entries = readAll( txn, cursor );
+
+        assertEquals( store.count( txn ), entries.size() );
+
+        String previous = "";
+        boolean missing = false;
+
+        for ( Entry entry : entries )
+        {
+            String cn = smallestCn( entry );
+
+            if ( cn == null )
+            {
+                missing = true;
+            }
+            else
+            {
+                // The entries without a cn are the last ones
+                assertFalse( missing );
+                assertTrue( previous.compareTo( cn ) <= 0 );
+                previous = cn;
+            }
+        }
+
+        assertTrue( missing );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testAllEntriesReverseSorted() throws Exception
+    {
+        PartitionTxn txn = ( ( Partition ) store ).beginReadTransaction();
+        SortedIndexCursor cursor = new SortedIndexCursor( txn, store, store.getUserIndex( cnAT ),
+            new AllEntriesCursor( txn, store ), null, true );
+
+        List<Entry> entries = readAll( txn, cursor );
+
+        assertEquals( store.count( txn ), entries.size() );
+
+        // The entries without a cn are the first ones
+        assertNull( smallestCn( entries.get( 0 ) ) );
+
+        String previous = null;
+
+        for ( Entry entry : entries )
+        {
+            String cn = smallestCn( entry );
+
+            if ( cn == null )
+            {
+                assertNull( previous );
+            }
+            else
+            {
+                if ( previous != null )
+                {
+                    assertTrue( previous.compareTo( cn ) >= 0 );
+                }
+
+                previous = cn;
+            }
+        }
+
+        assertNotNull( previous );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testCandidatesSortedBothWays() throws Exception
+    {
+        PartitionTxn txn = ( ( Partition ) store ).beginReadTransaction();
+        Set<IndexEntry<String, String>> resultSet = new HashSet<>();
+        Set<String> candidates = new HashSet<>();
+        AllEntriesCursor allEntries = new AllEntriesCursor( txn, store );
+
+        // Keep one entry out of two
+        boolean keep = true;
+
+        while ( allEntries.next() )
+        {
+            if ( keep )
+            {
+                IndexEntry<String, String> indexEntry = new IndexEntry<>();
+                indexEntry.setId( allEntries.get().getId() );
+                resultSet.add( indexEntry );
+                candidates.add( indexEntry.getId() );
+            }
+
+            keep = !keep;
+        }
+
+        allEntries.close();
+
+        SortedIndexCursor cursor = new SortedIndexCursor( txn, store, store.getUserIndex( cnAT ),
+            new SetCursor<>( resultSet ), candidates, false );
+
+        List<String> forward = new ArrayList<>();
+
+        cursor.beforeFirst();
+
+        while ( cursor.next() )
+        {
+            assertTrue( candidates.contains( cursor.get().getId() ) );
+            forward.add( cursor.get().getId() );
+        }
+
+        assertEquals( candidates.size(), forward.size() );
+
+        // Now, walk the cursor backward, we should get the same elements in the opposite order
+        List<String> backward = new ArrayList<>();
+
+        cursor.afterLast();
+
+        while ( cursor.previous() )
+        {
+            backward.add( 0, cursor.get().getId() );
+        }
+
+        assertEquals( forward, backward );
+        cursor.close();
+    }
+}